@@ -93,6 +93,7 @@ import com.android.camera.app.PanoramaStitchingManager;
 import com.android.camera.crop.CropActivity;
 import com.android.camera.data.CameraDataAdapter;
 import com.android.camera.data.CameraPreviewData;
+import com.android.camera.data.ExifMetadataIndexer;
 import com.android.camera.data.FixedFirstDataAdapter;
 import com.android.camera.data.FixedLastDataAdapter;
 import com.android.camera.data.InProgressDataWrapper;
@@ -101,7 +102,7 @@ import com.android.camera.data.LocalDataAdapter;
 import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
 import com.android.camera.data.SimpleViewData;
-import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifIndex;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.ui.ModuleSwitcher;
 import com.android.camera.ui.DetailsDialog;
@@ -850,14 +851,10 @@ public class CameraActivity extends Activity
             // saves jpeg with orientation tag set.
             int orientation = 0;
             if (mCheckOrientation) {
-                ExifInterface exif = new ExifInterface();
                 try {
-                    if (mJpegData != null) {
-                        exif.readExif(mJpegData);
-                    } else {
-                        exif.readExif(path);
-                    }
-                    orientation = Exif.getOrientation(exif);
+                    ExifIndex exif = mJpegData != null
+                            ? ExifIndex.read(mJpegData) : ExifIndex.read(path);
+                    orientation = exif.getRotation();
                 } catch (IOException e) {
                     // ignore
                 }
@@ -1401,19 +1398,18 @@ public class CameraActivity extends Activity
                 return true;
             }
             case R.id.action_details:
-                (new AsyncTask<Void, Void, MediaDetails>() {
-                    @Override
-                    protected MediaDetails doInBackground(Void... params) {
-                        return localData.getMediaDetails(CameraActivity.this);
-                    }
-
+                // The EXIF details come from the index, make sure the photo is in it.
+                ExifMetadataIndexer.getInstance().request(localData, new Runnable() {
                     @Override
-                    protected void onPostExecute(MediaDetails mediaDetails) {
-                        if ((mediaDetails != null) && !mPaused) {
-                            DetailsDialog.create(CameraActivity.this, mediaDetails).show();
-                        }
+                    public void run() {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                showDetails(localData);
+                            }
+                        });
                     }
-                }).execute();
+                });
                 return true;
             case R.id.action_show_on_map:
                 double[] latLong = localData.getLatLong();
@@ -1426,6 +1422,22 @@ public class CameraActivity extends Activity
         }
     }
 
+    private void showDetails(final LocalData localData) {
+        (new AsyncTask<Void, Void, MediaDetails>() {
+            @Override
+            protected MediaDetails doInBackground(Void... params) {
+                return localData.getMediaDetails(CameraActivity.this);
+            }
+
+            @Override
+            protected void onPostExecute(MediaDetails mediaDetails) {
+                if ((mediaDetails != null) && !mPaused) {
+                    DetailsDialog.create(CameraActivity.this, mediaDetails).show();
+                }
+            }
+        }).execute();
+    }
+
     public boolean isCaptureIntent() {
         if (MediaStore.ACTION_VIDEO_CAPTURE.equals(getIntent().getAction())
                 || MediaStore.ACTION_IMAGE_CAPTURE.equals(getIntent().getAction())
@@ -1881,6 +1893,7 @@ public class CameraActivity extends Activity
         if(mCurrentModule != null){
             mCurrentModule.onDestroy();
         }
+        ExifMetadataIndexer.getInstance().shutdown();
         super.onDestroy();
     }
 
@@ -109,6 +109,7 @@ import com.android.camera.ui.RotateTextToast;
 import com.android.camera.ui.TrackingFocusRenderer;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CaptureTrace;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
 import com.android.camera.util.AccessibilityUtils;
@@ -1400,6 +1401,13 @@ public class CaptureModule implements CameraModule, PhotoController,
      */
     private void takePicture() {
         Log.d(TAG, "takePicture");
+        int captureId = CaptureTrace.newCaptureId();
+        long traceStart = CaptureTrace.begin();
+        doTakePicture();
+        CaptureTrace.end(CaptureTrace.SPAN_TAKE_PICTURE, captureId, traceStart);
+    }
+
+    private void doTakePicture() {
         mUI.enableShutter(false);
         if (mSettingsManager.isZSLInHALEnabled()) {
             takeZSLPictureInHAL();
@@ -1585,6 +1593,7 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private void captureStillPicture(final int id) {
         Log.d(TAG, "captureStillPicture " + id);
+        long traceStart = CaptureTrace.begin();
         mJpegImageData = null;
         mIsRefocus = false;
         try {
@@ -1630,6 +1639,9 @@ public class CaptureModule implements CameraModule, PhotoController,
         } catch (CameraAccessException e) {
             Log.d(TAG, "Capture still picture has failed");
             e.printStackTrace();
+        } finally {
+            CaptureTrace.end(CaptureTrace.SPAN_CAPTURE_STILL,
+                    CaptureTrace.currentCaptureId(), traceStart);
         }
     }
 
@@ -1672,6 +1684,10 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private void captureStillPictureForLongshot(CaptureRequest.Builder captureBuilder, int id) throws CameraAccessException{
         Log.d(TAG, "captureStillPictureForLongshot " + id);
+        final MediaSaveService saveService = mActivity.getMediaSaveService();
+        if (saveService != null) {
+            saveService.getSaveScheduler().resetStats();
+        }
         List<CaptureRequest> burstList = new ArrayList<>();
         for (int i = 0; i < PersistUtil.getLongshotShotLimit(); i++) {
             burstList.add(captureBuilder.build());
@@ -1714,6 +1730,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                     public void onCaptureSequenceCompleted(CameraCaptureSession session, int
                             sequenceId, long frameNumber) {
                         Log.d(TAG, "captureStillPictureForLongshot onCaptureSequenceCompleted: " + id);
+                        if (saveService != null) {
+                            Log.d(TAG, "Longshot saves: " + saveService.getSaveScheduler());
+                        }
                         mLongshotActive = false;
                         unlockFocus(id);
                     }
@@ -2381,6 +2400,10 @@ public class CaptureModule implements CameraModule, PhotoController,
         setBokehModeVisible();
         mJpegImageData = null;
         closeVideoFileDescriptor();
+        if (PersistUtil.getCaptureTraceLevel() > 1) {
+            CaptureTrace.getInstance().dumpChromeTrace(
+                    new File(mActivity.getFilesDir(), "capture_trace.json"));
+        }
     }
 
     @Override
@@ -4499,13 +4522,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     @Override
-    public void onQueueStatus(final boolean full) {
-        mActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mUI.enableShutter(!full);
-            }
-        });
+    public void onSavePressureChanged(int pressure, long queuedBytes, long limitBytes) {
+        mUI.enableShutter(pressure != SaveScheduler.PRESSURE_FULL);
     }
 
     public void triggerFocusAtPoint(float x, float y, int id) {
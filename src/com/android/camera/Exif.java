@@ -18,6 +18,7 @@ package com.android.camera;
 
 import android.util.Log;
 
+import com.android.camera.exif.ExifIndex;
 import com.android.camera.exif.ExifInterface;
 
 import java.io.IOException;
@@ -48,7 +49,7 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        // Only one tag is needed, skip building the full tag set.
+        return ExifIndex.read(jpegData).getRotation();
     }
 }
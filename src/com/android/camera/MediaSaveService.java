@@ -16,10 +16,16 @@
 
 package com.android.camera;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -33,7 +39,9 @@ import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 
@@ -41,9 +49,12 @@ import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
 import com.android.camera.mpo.MpoInterface;
+import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CaptureTrace;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.XmpUtil;
 
+import org.codeaurora.snapcam.filter.DepthMapEncoder;
 import org.codeaurora.snapcam.filter.GDepth;
 import org.codeaurora.snapcam.filter.GImage;
 
@@ -62,15 +73,16 @@ public class MediaSaveService extends Service {
                                    PersistUtil.getSaveTaskMemoryLimitInMb();
 
     private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
+    private static final int XMP_STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final String SPILL_PREFIX = "mpo";
+    private static final String SPILL_SUFFIX = ".jpg";
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
 
     private final IBinder mBinder = new LocalBinder();
-    private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveScheduler mScheduler;
 
-    public interface Listener {
-        public void onQueueStatus(boolean full);
+    /* Callbacks run on the main thread, see SaveScheduler.PRESSURE_* */
+    public interface Listener extends SaveScheduler.PressureListener {
     }
 
     public interface OnMediaSavedListener {
@@ -95,15 +107,47 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        Log.d(TAG, "Save stats: " + mScheduler);
+        mScheduler.shutdown();
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mScheduler = new SaveScheduler(PersistUtil.getSaveWorkerCount(),
+                SAVE_TASK_MEMORY_LIMIT, new Executor() {
+                    @Override
+                    public void execute(Runnable r) {
+                        mainHandler.post(r);
+                    }
+                });
+        deleteStaleSpillFiles();
+    }
+
+    /*
+     * Spill files of tasks that were still queued when a previous instance
+     * of the service died are never read again.
+     */
+    private void deleteStaleSpillFiles() {
+        File[] files = getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX)) {
+                Log.d(TAG, "Deleting stale spill file " + name);
+                f.delete();
+            }
+        }
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mScheduler.isFull();
+    }
+
+    public SaveScheduler getSaveScheduler() {
+        return mScheduler;
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -112,74 +156,43 @@ public class MediaSaveService extends Service {
             String title, long date, Location loc, int orientation,
             OnMediaSavedListener l, ContentResolver resolver,
             String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-
         MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
 
-        long size = (csImage == null ? 0
-                : csImage.length)
-                + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
+        long size = t.getHeldBytes();
+        if (!mScheduler.hasRoomFor(size)) {
+            // Park the auxiliary images in files while the task is queued so
+            // that only the primary image counts against the budget.
+            size = t.spillAuxiliaryImages(getCacheDir());
+        }
+        if (!submit(t, SaveScheduler.PRIORITY_USER_VISIBLE, size)) {
+            t.deleteSpillFiles();
         }
-        t.execute();
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        submit(t, SaveScheduler.PRIORITY_USER_VISIBLE, data.length);
     }
 
     public void addRawImage(final byte[] data, String title, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
-
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        submit(t, SaveScheduler.PRIORITY_BACKGROUND, data.length);
     }
 
     public void addXmpImage(byte[] mainImage, GImage bayer, GDepth gDepth,
                                    String title, long date, Location loc, int width, int height,
                                    int orientation, ExifInterface exif,
                                    OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         XmpImageSaveTask t = new XmpImageSaveTask(mainImage, bayer, gDepth,
                 title, date,  (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += mainImage.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        submit(t, SaveScheduler.PRIORITY_USER_VISIBLE, mainImage.length);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -205,23 +218,28 @@ public class MediaSaveService extends Service {
     }
 
     public void setListener(Listener l) {
-        mListener = l;
-        if (l == null) return;
-        l.onQueueStatus(isQueueFull());
-    }
-
-    private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
+        mScheduler.setPressureListener(l);
     }
 
-    private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
+    private boolean submit(SaveScheduler.SaveTask<?> t, int priority, long size) {
+        if (!mScheduler.submit(t, priority, size)) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            return false;
+        }
+        return true;
     }
 
-    private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class MpoSaveTask extends SaveScheduler.SaveTask<Uri> {
+        private final int captureId = CaptureTrace.currentCaptureId();
+        private final long queuedNs = CaptureTrace.begin();
         private byte[] csImage;
         private byte[] bayerImage;
         private byte[] monoImage;
+        private File bayerFile;
+        private File monoFile;
+        private String path;
+        private int size;
+        private long traceStart;
         private String title;
         private long date;
         private Location loc;
@@ -250,14 +268,19 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected Uri doInBackground() {
+            long traceStart = CaptureTrace.begin();
+            CaptureTrace.getInstance().record(CaptureTrace.SPAN_SAVE_QUEUED, captureId, queuedNs,
+                    traceStart);
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
-            MpoImageData bayer = new MpoImageData(bayerImage,
-                    ByteOrder.BIG_ENDIAN);
+            MpoImageData bayer = (bayerFile != null)
+                    ? new MpoImageData(bayerFile, ByteOrder.BIG_ENDIAN)
+                    : new MpoImageData(bayerImage, ByteOrder.BIG_ENDIAN);
 
-            MpoImageData mono = new MpoImageData(monoImage,
-                    ByteOrder.BIG_ENDIAN);
+            MpoImageData mono = (monoFile != null)
+                    ? new MpoImageData(monoFile, ByteOrder.BIG_ENDIAN)
+                    : new MpoImageData(monoImage, ByteOrder.BIG_ENDIAN);
 
             if (csImage == null) {
                 mpo.addAuxiliaryMpoImage(mono);
@@ -273,32 +296,96 @@ public class MediaSaveService extends Service {
 
             // combine to single mpo
             String path = Storage.generateFilepath(title, pictureFormat);
-            int size = MpoInterface.writeMpo(mpo, path);
+            int size;
+            try {
+                size = MpoInterface.writeMpo(mpo, path);
+            } finally {
+                deleteSpillFiles();
+            }
             // Try to get the real image size after add exif.
             File f = new File(path);
             if (f.exists() && f.isFile()) {
                 size = (int) f.length();
             }
-            return Storage.addImage(resolver, title, date, loc, orientation,
+            this.path = path;
+            this.size = size;
+            this.traceStart = traceStart;
+            return null;
+        }
+
+        @Override
+        protected Uri onPublish(Uri result) {
+            Uri uri = Storage.addImage(resolver, title, date, loc, orientation,
                     size, path, width, height, pictureFormat);
+            CaptureTrace.end(CaptureTrace.SPAN_SAVE_MPO, captureId, traceStart);
+            return uri;
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null)
                 listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
+        }
+
+        /**
+         * Moves the auxiliary images into files under dir and returns the
+         * number of image bytes still held in memory. Images that cannot be
+         * written out are kept in memory.
+         */
+        long spillAuxiliaryImages(File dir) {
+            if (csImage != null) {
+                bayerFile = spill(bayerImage, dir);
+                if (bayerFile != null) {
+                    bayerImage = null;
+                }
+            }
+            monoFile = spill(monoImage, dir);
+            if (monoFile != null) {
+                monoImage = null;
+            }
+            return getHeldBytes();
+        }
+
+        /* Number of image bytes held in memory */
+        long getHeldBytes() {
+            return (csImage == null ? 0 : csImage.length)
+                    + (bayerImage == null ? 0 : bayerImage.length)
+                    + (monoImage == null ? 0 : monoImage.length);
+        }
+
+        private File spill(byte[] jpeg, File dir) {
+            File file = null;
+            FileOutputStream out = null;
+            try {
+                file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, dir);
+                out = new FileOutputStream(file);
+                out.write(jpeg);
+                out.close();
+                out = null;
+                return file;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to spill mpo image, keeping it in memory", e);
+                CameraUtil.closeSilently(out);
+                if (file != null) {
+                    file.delete();
+                }
+                return null;
+            }
+        }
+
+        void deleteSpillFiles() {
+            if (bayerFile != null) {
+                bayerFile.delete();
+            }
+            if (monoFile != null) {
+                monoFile.delete();
+            }
         }
     }
 
-    private class RawImageSaveTask extends AsyncTask<Void, Void, Long> {
+    private class RawImageSaveTask extends SaveScheduler.SaveTask<Long> {
+        private final int captureId = CaptureTrace.currentCaptureId();
+        private final long queuedNs = CaptureTrace.begin();
         private byte[] data;
         private String title;
         private String pictureFormat;
@@ -310,25 +397,20 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-        }
-
-        @Override
-        protected Long doInBackground(Void... params) {
+        protected Long doInBackground() {
+            long traceStart = CaptureTrace.begin();
+            CaptureTrace.getInstance().record(CaptureTrace.SPAN_SAVE_QUEUED, captureId, queuedNs,
+                    traceStart);
             long length = Storage.addRawImage(title, data, pictureFormat);
+            CaptureTrace.end(CaptureTrace.SPAN_SAVE_RAW, captureId, traceStart);
             return new Long(length);
         }
 
-        @Override
-        protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
-        }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ImageSaveTask extends SaveScheduler.SaveTask<Uri> {
+        private final int captureId = CaptureTrace.currentCaptureId();
+        private final long queuedNs = CaptureTrace.begin();
         private byte[] data;
         private String title;
         private long date;
@@ -339,6 +421,9 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
+        private long traceStart;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
@@ -357,12 +442,10 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
+        protected Uri doInBackground() {
+            long traceStart = CaptureTrace.begin();
+            CaptureTrace.getInstance().record(CaptureTrace.SPAN_SAVE_QUEUED, captureId, queuedNs,
+                    traceStart);
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -371,24 +454,32 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            path = Storage.generateFilepath(title, pictureFormat);
+            size = Storage.writeImage(path, data, exif, pictureFormat);
+            this.traceStart = traceStart;
+            return null;
+        }
+
+        @Override
+        protected Uri onPublish(Uri result) {
+            Uri uri = Storage.addImage(resolver, title, date, loc, orientation,
+                    size, path, width, height, pictureFormat);
+            CaptureTrace.end(CaptureTrace.SPAN_SAVE_IMAGE, captureId, traceStart);
+            return uri;
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
     }
 
-    private class XmpImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class XmpImageSaveTask extends SaveScheduler.SaveTask<Uri> {
+        private final int captureId = CaptureTrace.currentCaptureId();
+        private final long queuedNs = CaptureTrace.begin();
         private byte[] mainImage;
         private GImage bayer;
         private GDepth gDepth;
-        private byte[] data;
         private String title;
         private long date;
         private Location loc;
@@ -398,6 +489,9 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
+        private long traceStart;
 
         public XmpImageSaveTask(byte[] mainImage, GImage bayer, GDepth gDepth,
                                 String title, long date, Location loc,
@@ -420,44 +514,53 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
-            data = embedGDepthAndBayerInClearSight(mainImage);
-            if ( data == null ) {
-                data = mainImage;
-                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
-            }
-
+        protected Uri doInBackground() {
+            long traceStart = CaptureTrace.begin();
+            CaptureTrace.getInstance().record(CaptureTrace.SPAN_SAVE_QUEUED, captureId, queuedNs,
+                    traceStart);
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                BitmapFactory.decodeByteArray(mainImage, 0, mainImage.length, options);
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            path = Storage.generateFilepath(title, pictureFormat);
+            size = embedGDepthAndBayerInClearSight(mainImage, path);
+            if (size < 0) {
+                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
+                size = Storage.writeImage(path, mainImage, exif, pictureFormat);
+            }
+            this.traceStart = traceStart;
+            return null;
+        }
+
+        @Override
+        protected Uri onPublish(Uri result) {
+            Uri uri = Storage.addImage(resolver, title, date, loc, orientation, size, path,
+                    width, height, pictureFormat);
+            CaptureTrace.end(CaptureTrace.SPAN_SAVE_XMP, captureId, traceStart);
+            return uri;
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
 
 
-        private byte[] embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
+        /**
+         * Writes the image with its exif and the depth map and bayer image as
+         * extended XMP to path. The depth map and bayer image are Base64
+         * encoded while they are written. Returns the file size, or -1 if
+         * nothing usable was written.
+         */
+        private int embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes, String path) {
             Log.d(TAG, "embedGDepthInClearSight");
             if ( clearSightImageBytes == null || (gDepth ==null && bayer==null) ) {
                 Log.d(TAG, "clearSightImageBytes is null");
-                return null;
+                return -1;
             }
 
             XMPMeta xmpMeta = XmpUtil.createXMPMeta();
@@ -473,6 +576,14 @@ public class MediaSaveService extends Service {
                     xmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_ROI_Y, roi.top);
                     xmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_ROI_WIDTH, roi.width());
                     xmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_ROI_HEIGHT, roi.height());
+                    if (DepthMapEncoder.MIME_DEFLATE.equals(gDepth.getMime())) {
+                        xmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_WIDTH,
+                                gDepth.getWidth());
+                        xmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_HEIGHT,
+                                gDepth.getHeight());
+                        xmpMeta.setProperty(GDepth.NAMESPACE_URL,
+                                GDepth.PROPERTY_BITS_PER_SAMPLE, gDepth.getBitsPerSample());
+                    }
                 }
 
                 if ( bayer != null ) {
@@ -482,32 +593,46 @@ public class MediaSaveService extends Service {
 
             } catch(XMPException exception) {
                 Log.d(TAG, "create XMPMeta error", exception);
-                return null;
+                return -1;
             }
 
-            XMPMeta extendXmpMeta = XmpUtil.createXMPMeta();
-            try{
-                if ( gDepth != null) {
-                    extendXmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getData());
-                }
+            List<XmpUtil.BinaryProperty> binaryProperties = new ArrayList<XmpUtil.BinaryProperty>();
+            if ( gDepth != null && gDepth.getEncodedDepthMap() != null ) {
+                binaryProperties.add(new XmpUtil.BinaryProperty(GDepth.NAMESPACE_URL,
+                        GDepth.PROPERTY_DATA, gDepth.getEncodedDepthMap()));
+            }
+            if ( bayer != null ) {
+                binaryProperties.add(new XmpUtil.BinaryProperty(GImage.NAMESPACE_URL,
+                        GImage.PROPERTY_DATA, bayer.getBytes()));
+            }
 
-                if ( bayer != null ) {
-                    extendXmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getData());
+            // Add the exif first so that the XMP goes right after it
+            byte[] jpeg = clearSightImageBytes;
+            if (exif != null && (pictureFormat == null ||
+                    pictureFormat.equalsIgnoreCase("jpeg"))) {
+                try {
+                    exif.setPaddingSize(PersistUtil.getExifPaddingSize());
+                    jpeg = exif.writeExif(clearSightImageBytes, 0, clearSightImageBytes.length);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to add exif", e);
+                    return -1;
                 }
-            }catch(XMPException exception) {
-                Log.d(TAG, "create extended XMPMeta error", exception);
             }
 
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(clearSightImageBytes);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if ( XmpUtil.writeXMPMeta(bais, baos, xmpMeta, extendXmpMeta) ){
-                return baos.toByteArray();
-            }else{
+            OutputStream out;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(path), XMP_STREAM_BUFFER_SIZE);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Failed to open " + path, e);
+                return -1;
+            }
+            if (!XmpUtil.writeXMPMeta(jpeg, out, xmpMeta, XmpUtil.createXMPMeta(),
+                    binaryProperties)) {
                 Log.e(TAG, "embedGDepthInClearSight failure ");
-                return null;
+                new File(path).delete();
+                return -1;
             }
-
+            return (int) new File(path).length();
         }
     }
 
@@ -1373,16 +1373,14 @@ public class PhotoModule
         return outStream.toByteArray();
     }
 
-    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree) {
-        ExifInterface exif = new ExifInterface();
-        exif.addOrientationTag(orientationInDegree);
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
+    public static byte[] addExifTags(byte[] jpeg, ExifInterface exif) {
+        exif.setPaddingSize(PersistUtil.getExifPaddingSize());
         try {
-            exif.writeExif(jpeg, jpegOut);
+            return exif.writeExif(jpeg, 0, jpeg.length);
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return jpeg;
     }
 
     private final class JpegPictureCallback
@@ -1504,6 +1502,8 @@ public class PhotoModule
             if (!mRefocus || (mRefocus && mReceivedSnapNum == 7)) {
                 ExifInterface exif = Exif.getExif(jpegData);
                 int orientation = Exif.getOrientation(exif);
+                // Whether jpegData already holds exif, so saving need not write it again
+                boolean exifInJpeg = false;
                 if(mCameraId == CameraHolder.instance().getFrontCameraId()) {
                     IconListPreference selfieMirrorPref = (IconListPreference) mPreferenceGroup
                             .findPreference(CameraSettings.KEY_SELFIE_MIRROR);
@@ -1511,7 +1511,9 @@ public class PhotoModule
                             selfieMirrorPref.getValue().equalsIgnoreCase("enable")) {
                         CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
                         jpegData = flipJpeg(jpegData, info.orientation, orientation);
-                        jpegData = addExifTags(jpegData, orientation);
+                        // The flipped image has no EXIF, carry the camera's over once
+                        jpegData = addExifTags(jpegData, exif);
+                        exifInJpeg = true;
                     }
                 }
                 if (!mIsImageCaptureIntent) {
@@ -1569,7 +1571,9 @@ public class PhotoModule
                               new Rational(mHeading, 1));
                             exif.setTag(directionRefTag);
                             exif.setTag(directionTag);
+                            exifInJpeg = false;
                         }
+                        ExifInterface saveExif = exifInJpeg ? null : exif;
                         String mPictureFormat = mParameters.get(KEY_PICTURE_FORMAT);
                          Log.d(TAG, "capture:" + title + "." + mPictureFormat);
                          if (mIsBokehMode) {
@@ -1594,14 +1598,14 @@ public class PhotoModule
                                  } else {
                                      mActivity.getMediaSaveService().addImage(
                                              jpegData, title, date, mLocation, width, height,
-                                             orientation, exif, mOnMediaSavedListener,
+                                             orientation, saveExif, mOnMediaSavedListener,
                                              mContentResolver, mPictureFormat);
                                  }
                              }
                          } else {
                              mActivity.getMediaSaveService().addImage(
                                      jpegData, title, date, mLocation, width, height,
-                                     orientation, exif, mOnMediaSavedListener,
+                                     orientation, saveExif, mOnMediaSavedListener,
                                      mContentResolver, mPictureFormat);
                          }
                             if (mRefocus && mReceivedSnapNum == 7) {
@@ -5107,8 +5111,8 @@ public class PhotoModule
     }
 
     @Override
-    public void onQueueStatus(boolean full) {
-        mUI.enableShutter(!full);
+    public void onSavePressureChanged(int pressure, long queuedBytes, long limitBytes) {
+        mUI.enableShutter(pressure != SaveScheduler.PRESSURE_FULL);
     }
 
     @Override
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs MediaSaveService work on a fixed pool of workers.
+ *
+ * Tasks are admitted against a byte budget: a task is accepted only if the
+ * bytes already queued plus its own stay within the limit, and its bytes are
+ * returned when it completes, just before its completion callback runs. A
+ * single task larger than the whole budget is admitted into an empty queue
+ * so it can still be saved; nothing else is admitted until it completes. User visible saves are picked before
+ * background ones (RAW and debug dumps); tasks of the same priority start in
+ * submission order.
+ *
+ * A save has two stages. doInBackground() writes the file on a worker.
+ * onPublish() then makes it visible, e.g. inserts it into MediaStore, on a
+ * single publish thread that does not wait behind queued file writes, so the
+ * URI for the thumbnail and filmstrip is available as soon as the file is
+ * written. User visible saves are published, and their completion callbacks
+ * run, in submission order even when a later one finishes writing first.
+ *
+ * Completion and pressure callbacks run on the callback executor, which is
+ * the main thread in the app.
+ */
+public class SaveScheduler {
+    private static final String TAG = "SaveScheduler";
+
+    public static final int PRIORITY_USER_VISIBLE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    public static final int PRESSURE_NONE = 0;
+    /* Queued bytes are at or above HIGH_WATERMARK_PERCENT of the limit */
+    public static final int PRESSURE_HIGH = 1;
+    /* New tasks are rejected until queued bytes drop below the limit */
+    public static final int PRESSURE_FULL = 2;
+    private static final int HIGH_WATERMARK_PERCENT = 75;
+    private static final long PUBLISH_KEEP_ALIVE_MS = 1000;
+
+    public interface PressureListener {
+        public void onSavePressureChanged(int pressure, long queuedBytes, long limitBytes);
+    }
+
+    public abstract static class SaveTask<R> implements Runnable, Comparable<SaveTask<?>> {
+        private SaveScheduler mScheduler;
+        private int mPriority;
+        private long mSequence;
+        private long mPublishSequence = -1;
+        private long mBytes;
+        private long mQueuedNs;
+        private R mResult;
+
+        /* Runs on a worker thread */
+        protected abstract R doInBackground();
+
+        /* Runs on the publish thread with the result of doInBackground() */
+        protected R onPublish(R result) {
+            return result;
+        }
+
+        /* Runs on the callback executor */
+        protected void onPostExecute(R result) {
+        }
+
+        @Override
+        public final void run() {
+            long startNs = System.nanoTime();
+            try {
+                mResult = doInBackground();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Save task failed", e);
+            }
+            mScheduler.onTaskWritten(this, startNs, System.nanoTime());
+        }
+
+        private void publish() {
+            R result = mResult;
+            mResult = null;
+            try {
+                result = onPublish(result);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Publish failed", e);
+            }
+            mScheduler.onTaskDone(this, result);
+        }
+
+        @Override
+        public int compareTo(SaveTask<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final long mLimitBytes;
+    private final Executor mCallbackExecutor;
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mPublishExecutor;
+    // Written user visible tasks waiting for their turn to be published.
+    private final TreeMap<Long, SaveTask<?>> mWritten = new TreeMap<Long, SaveTask<?>>();
+    private long mNextPublish;
+    private final AtomicLong mPublishSequence = new AtomicLong();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mPostedPressure = new AtomicInteger(PRESSURE_NONE);
+    // Only touched on the callback executor.
+    private int mDeliveredPressure = PRESSURE_NONE;
+    private volatile PressureListener mPressureListener;
+
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicInteger mMaxPending = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mCompletedBytes = new AtomicLong();
+    private final AtomicLong mQueueWaitNs = new AtomicLong();
+    private final AtomicLong mSaveNs = new AtomicLong();
+    private final AtomicLong mStatsStartNs = new AtomicLong(System.nanoTime());
+    private final AtomicLong mLastDoneNs = new AtomicLong();
+
+    public SaveScheduler(int workers, long limitBytes, Executor callbackExecutor) {
+        mLimitBytes = limitBytes;
+        mCallbackExecutor = callbackExecutor;
+        final int threads = Math.max(1, workers);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MediaSave-" + mCount.incrementAndGet());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        // Not shut down with the workers so saves still being written are
+        // published; its thread exits once idle.
+        mPublishExecutor = new ThreadPoolExecutor(1, 1, PUBLISH_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "MediaPublish");
+                    }
+                });
+        mPublishExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setPressureListener(PressureListener listener) {
+        mPressureListener = listener;
+        if (listener != null) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDeliveredPressure = pressureOf(mQueuedBytes.get());
+                    PressureListener l = mPressureListener;
+                    if (l != null) {
+                        l.onSavePressureChanged(mDeliveredPressure, mQueuedBytes.get(),
+                                mLimitBytes);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues task if the byte budget allows it.
+     *
+     * @return false if the queue was full and the task was dropped
+     */
+    public boolean submit(SaveTask<?> task, int priority, long bytes) {
+        if (!tryAdmit(bytes)) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        task.mScheduler = this;
+        task.mPriority = priority;
+        task.mBytes = bytes;
+        task.mSequence = mSequence.getAndIncrement();
+        if (priority == PRIORITY_USER_VISIBLE) {
+            task.mPublishSequence = mPublishSequence.getAndIncrement();
+        }
+        task.mQueuedNs = System.nanoTime();
+        int pending = mPending.incrementAndGet();
+        int max;
+        while (pending > (max = mMaxPending.get())) {
+            if (mMaxPending.compareAndSet(max, pending)) {
+                break;
+            }
+        }
+        mExecutor.execute(task);
+        return true;
+    }
+
+    private boolean tryAdmit(long bytes) {
+        while (true) {
+            long queued = mQueuedBytes.get();
+            // An oversized task may only go into an empty queue.
+            if (queued + bytes > mLimitBytes && queued > 0) {
+                return false;
+            }
+            if (mQueuedBytes.compareAndSet(queued, queued + bytes)) {
+                updatePressure(queued + bytes);
+                return true;
+            }
+        }
+    }
+
+    private void release(long bytes) {
+        updatePressure(mQueuedBytes.addAndGet(-bytes));
+    }
+
+    private void onTaskWritten(SaveTask<?> task, long startNs, long endNs) {
+        mQueueWaitNs.addAndGet(startNs - task.mQueuedNs);
+        mSaveNs.addAndGet(endNs - startNs);
+        mLastDoneNs.set(endNs);
+        if (task.mPublishSequence < 0) {
+            schedulePublish(task);
+            return;
+        }
+        synchronized (mWritten) {
+            mWritten.put(task.mPublishSequence, task);
+            SaveTask<?> next;
+            while ((next = mWritten.remove(mNextPublish)) != null) {
+                mNextPublish++;
+                schedulePublish(next);
+            }
+        }
+    }
+
+    private void schedulePublish(final SaveTask<?> task) {
+        mPublishExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.publish();
+            }
+        });
+    }
+
+    private <R> void onTaskDone(final SaveTask<R> task, final R result) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Account first so work queued from the callback sees the freed budget.
+                mPending.decrementAndGet();
+                mCompleted.incrementAndGet();
+                mCompletedBytes.addAndGet(task.mBytes);
+                release(task.mBytes);
+                task.onPostExecute(result);
+            }
+        });
+    }
+
+    private int pressureOf(long queuedBytes) {
+        if (queuedBytes >= mLimitBytes) {
+            return PRESSURE_FULL;
+        }
+        if (queuedBytes * 100 >= mLimitBytes * HIGH_WATERMARK_PERCENT) {
+            return PRESSURE_HIGH;
+        }
+        return PRESSURE_NONE;
+    }
+
+    private void updatePressure(long queuedBytes) {
+        int pressure = pressureOf(queuedBytes);
+        if (mPostedPressure.getAndSet(pressure) == pressure) {
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Re-read so late callbacks never report a stale level.
+                long queued = mQueuedBytes.get();
+                int current = pressureOf(queued);
+                if (current == mDeliveredPressure) {
+                    return;
+                }
+                mDeliveredPressure = current;
+                PressureListener l = mPressureListener;
+                if (l != null) {
+                    l.onSavePressureChanged(current, queued, mLimitBytes);
+                }
+            }
+        });
+    }
+
+    public boolean isFull() {
+        return mQueuedBytes.get() >= mLimitBytes;
+    }
+
+    /* True if bytes more can be queued without going over the limit */
+    public boolean hasRoomFor(long bytes) {
+        return mQueuedBytes.get() + bytes <= mLimitBytes;
+    }
+
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    public long getLimitBytes() {
+        return mLimitBytes;
+    }
+
+    /* Tasks accepted but whose completion callback has not run yet */
+    public int getQueueDepth() {
+        return mPending.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxPending.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /* Saved bytes per second since the last resetStats() */
+    public long getThroughputBytesPerSecond() {
+        long elapsed = mLastDoneNs.get() - mStatsStartNs.get();
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return mCompletedBytes.get() * 1000000000L / elapsed;
+    }
+
+    public long getAverageQueueWaitMs() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : mQueueWaitNs.get() / completed / 1000000L;
+    }
+
+    public long getAverageSaveMs() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : mSaveNs.get() / completed / 1000000L;
+    }
+
+    /* Starts a new measurement window, e.g. at the beginning of a longshot burst */
+    public void resetStats() {
+        mMaxPending.set(mPending.get());
+        mCompleted.set(0);
+        mRejected.set(0);
+        mCompletedBytes.set(0);
+        mQueueWaitNs.set(0);
+        mSaveNs.set(0);
+        mStatsStartNs.set(System.nanoTime());
+        mLastDoneNs.set(0);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "SaveScheduler{queued=" + mQueuedBytes.get() + "/" + mLimitBytes
+                + " depth=" + mPending.get() + " maxDepth=" + mMaxPending.get()
+                + " completed=" + mCompleted.get() + " rejected=" + mRejected.get()
+                + " throughput=" + getThroughputBytesPerSecond() / 1024 + "KB/s"
+                + " wait=" + getAverageQueueWaitMs() + "ms"
+                + " save=" + getAverageSaveMs() + "ms}";
+    }
+}
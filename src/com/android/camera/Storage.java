@@ -35,6 +35,7 @@ import android.util.Log;
 import com.android.camera.data.LocalData;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.ApiHelper;
+import com.android.camera.util.PersistUtil;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -74,11 +75,14 @@ public class Storage {
         }
     }
 
+    // Writes the image to path and returns its size. Pass a null exif when the
+    // jpeg already carries its final EXIF, so it is written as is.
     public static int writeFile(String path, byte[] jpeg, ExifInterface exif,
             String mimeType) {
         if (exif != null && (mimeType == null ||
             mimeType.equalsIgnoreCase("jpeg"))) {
             try {
+                exif.setPaddingSize(PersistUtil.getExifPaddingSize());
                 return exif.writeExif(jpeg, path);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to write data", e);
@@ -116,14 +120,21 @@ public class Storage {
             int height, String mimeType) {
 
         String path = generateFilepath(title, mimeType);
+        int size = writeImage(path, jpeg, exif, mimeType);
+        return addImage(resolver, title, date, location, orientation,
+                size, path, width, height, mimeType);
+    }
+
+    // Save the image without adding it to the MediaStore, returns the file size.
+    public static int writeImage(String path, byte[] jpeg, ExifInterface exif,
+            String mimeType) {
         int size = writeFile(path, jpeg, exif, mimeType);
         // Try to get the real image size after add exif.
         File f = new File(path);
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
         }
-        return addImage(resolver, title, date, location, orientation,
-                size, path, width, height, mimeType);
+        return size;
     }
 
     // Get a ContentValues object for the given photo data
@@ -179,6 +179,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
             insertData(newData);
         }
         c.close();
+        ExifMetadataIndexer.getInstance().index(newData);
     }
 
     @Override
@@ -224,6 +225,9 @@ public class CameraDataAdapter implements LocalDataAdapter {
         LocalData refreshedData = data.refresh(resolver);
         if (refreshedData != null) {
             updateData(pos, refreshedData);
+            ExifMetadataIndexer indexer = ExifMetadataIndexer.getInstance();
+            indexer.invalidate(data.getContentId());
+            indexer.index(refreshedData);
         }
     }
 
@@ -351,6 +355,8 @@ public class CameraDataAdapter implements LocalDataAdapter {
             if (l.size() != 0) {
                 l.sort(new LocalData.NewestFirstComparator());
             }
+            // Read EXIF details ahead of time, newest first.
+            ExifMetadataIndexer.getInstance().index(l);
 
             return l;
         }
@@ -376,6 +382,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
                     continue;
                 }
                 data[i].delete(mContext);
+                ExifMetadataIndexer.getInstance().invalidate(data[i].getContentId());
             }
             return null;
         }
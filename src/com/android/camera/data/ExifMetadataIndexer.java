@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.data;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.android.camera.exif.ExifIndex;
+import com.android.camera.exif.ExifInterface;
+import org.codeaurora.snapcam.R;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background EXIF extraction for the filmstrip.
+ * <p>
+ * When the camera folder is loaded, the photos are handed to {@link #index}
+ * and their EXIF headers are read on a small pool of background threads,
+ * each walking its share of the list in order. Only the values shown in the
+ * details dialog are kept, in parallel primitive arrays keyed by content id
+ * and the MediaStore modification time, so a rewritten file is read again.
+ * Opening the details of a photo never reads the file on the caller's
+ * thread: {@link #request} moves a photo that is not indexed yet ahead of
+ * the background work and calls back once it is.
+ * <p>
+ * Photos that are deleted or edited are dropped with {@link #invalidate}.
+ * {@link #shutdown} stops the workers when the camera goes away; the next
+ * {@link #getInstance} starts over with an empty index.
+ */
+public class ExifMetadataIndexer {
+    private static final String TAG = "CAM_ExifIndexer";
+
+    private static final int WORKER_COUNT = 2;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Bits of mPresent, one per detail found in the file
+    private static final int HAS_FLASH = 1;
+    private static final int HAS_WIDTH = 1 << 1;
+    private static final int HAS_HEIGHT = 1 << 2;
+    private static final int HAS_ISO = 1 << 3;
+    private static final int HAS_WHITE_BALANCE = 1 << 4;
+    private static final int HAS_APERTURE = 1 << 5;
+    private static final int HAS_EXPOSURE_TIME = 1 << 6;
+    private static final int HAS_FOCAL_LENGTH = 1 << 7;
+
+    private static ExifMetadataIndexer sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mWorkerCount;
+    private final LinkedBlockingDeque<Runnable> mQueue = new LinkedBlockingDeque<Runnable>();
+    // Requests batch workers pick up between two photos of their slice.
+    private final ConcurrentLinkedQueue<Request> mUrgent = new ConcurrentLinkedQueue<Request>();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Sorted by content id; guarded by this.
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private long[] mModified = new long[INITIAL_CAPACITY];
+    private int[] mPresent = new int[INITIAL_CAPACITY];
+    private int[] mFlash = new int[INITIAL_CAPACITY];
+    private int[] mWidth = new int[INITIAL_CAPACITY];
+    private int[] mHeight = new int[INITIAL_CAPACITY];
+    private int[] mIso = new int[INITIAL_CAPACITY];
+    private int[] mWhiteBalance = new int[INITIAL_CAPACITY];
+    private double[] mAperture = new double[INITIAL_CAPACITY];
+    private double[] mExposureTime = new double[INITIAL_CAPACITY];
+    private double[] mFocalLength = new double[INITIAL_CAPACITY];
+    private String[] mMake = new String[INITIAL_CAPACITY];
+    private String[] mModel = new String[INITIAL_CAPACITY];
+    private int mSize;
+    // A folder holds photos from a handful of devices; share the strings.
+    private final HashMap<String, String> mStrings = new HashMap<String, String>();
+
+    public static synchronized ExifMetadataIndexer getInstance() {
+        if (sInstance == null || sInstance.isShutdown()) {
+            sInstance = new ExifMetadataIndexer(WORKER_COUNT);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates an indexer of its own, the app shares {@link #getInstance}.
+     */
+    public ExifMetadataIndexer(int workerCount) {
+        mWorkerCount = workerCount;
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, 10, TimeUnit.SECONDS,
+                mQueue, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "ExifIndexer");
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules the photos in list for indexing, replacing any pending
+     * batch. Photos already indexed at the same modification time are
+     * skipped.
+     */
+    public void index(LocalDataList list) {
+        int count = list.size();
+        long[] ids = new long[count];
+        long[] modified = new long[count];
+        String[] paths = new String[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            LocalData data = list.get(i);
+            if (data instanceof LocalMediaData.PhotoData
+                    && LocalData.MIME_TYPE_JPEG.equalsIgnoreCase(data.getMimeType())) {
+                ids[n] = data.getContentId();
+                modified[n] = data.getDateModified();
+                paths[n] = data.getPath();
+                n++;
+            }
+        }
+        submit(ids, modified, paths, n);
+    }
+
+    /**
+     * Schedules a single photo, e.g. one just saved, without cancelling
+     * pending batches.
+     */
+    public void index(LocalData data) {
+        if (data instanceof LocalMediaData.PhotoData
+                && LocalData.MIME_TYPE_JPEG.equalsIgnoreCase(data.getMimeType())) {
+            final long id = data.getContentId();
+            final long modified = data.getDateModified();
+            final String path = data.getPath();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isIndexed(id, modified)) {
+                        extract(id, modified, path);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes sure a photo is indexed and then runs callback, on a worker
+     * thread. A photo already indexed, or one without EXIF details, runs the
+     * callback on the caller's thread right away. Otherwise the photo goes
+     * ahead of all queued work. After {@link #shutdown} the callback runs
+     * right away, without the photo being indexed.
+     */
+    public void request(LocalData data, Runnable callback) {
+        if (!(data instanceof LocalMediaData.PhotoData)
+                || !LocalData.MIME_TYPE_JPEG.equalsIgnoreCase(data.getMimeType())
+                || isShutdown()
+                || isIndexed(data.getContentId(), data.getDateModified())) {
+            callback.run();
+            return;
+        }
+        Request request = new Request(data.getContentId(), data.getDateModified(),
+                data.getPath(), callback);
+        mUrgent.add(request);
+        // Also queue it first for a worker that is idle or between slices.
+        mQueue.offerFirst(request);
+        mExecutor.prestartAllCoreThreads();
+        if (isShutdown()) {
+            // Raced with shutdown, no worker may be left to take it.
+            request.run();
+        }
+    }
+
+    /**
+     * Stops indexing. Pending batches are dropped, requests already made
+     * still call back. Later calls to {@link #index} are ignored.
+     */
+    public void shutdown() {
+        mGeneration.incrementAndGet();
+        mExecutor.shutdown();
+        removePendingBatches();
+    }
+
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down, nothing more to index.
+        }
+    }
+
+    private void runUrgent() {
+        Request request;
+        while ((request = mUrgent.poll()) != null) {
+            request.run();
+        }
+    }
+
+    private class Request implements Runnable {
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private final long mId;
+        private final long mModified;
+        private final String mPath;
+        private final Runnable mCallback;
+
+        Request(long id, long modified, String path, Runnable callback) {
+            mId = id;
+            mModified = modified;
+            mPath = path;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            // Queued twice, whoever gets it first runs it
+            if (!mClaimed.compareAndSet(false, true)) {
+                return;
+            }
+            mUrgent.remove(this);
+            if (!isShutdown() && !isIndexed(mId, mModified)) {
+                extract(mId, mModified, mPath);
+            }
+            mCallback.run();
+        }
+    }
+
+    private class BatchSlice implements Runnable {
+        private final long[] mIds;
+        private final long[] mModified;
+        private final String[] mPaths;
+        private final int mFrom;
+        private final int mTo;
+        private final int mBatchGeneration;
+
+        BatchSlice(long[] ids, long[] modified, String[] paths, int from, int to,
+                int generation) {
+            mIds = ids;
+            mModified = modified;
+            mPaths = paths;
+            mFrom = from;
+            mTo = to;
+            mBatchGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            for (int i = mFrom; i < mTo; i++) {
+                runUrgent();
+                if (mGeneration.get() != mBatchGeneration) {
+                    return;
+                }
+                if (!isIndexed(mIds[i], mModified[i])) {
+                    extract(mIds[i], mModified[i], mPaths[i]);
+                }
+            }
+        }
+    }
+
+    private void submit(long[] ids, long[] modified, String[] paths, int count) {
+        int generation = mGeneration.incrementAndGet();
+        removePendingBatches();
+        // Contiguous slices keep each worker's reads in list order.
+        int slice = (count + mWorkerCount - 1) / mWorkerCount;
+        for (int start = 0; start < count; start += slice) {
+            execute(new BatchSlice(ids, modified, paths, start,
+                    Math.min(count, start + slice), generation));
+        }
+    }
+
+    // Single photos and requests stay queued.
+    private void removePendingBatches() {
+        Iterator<Runnable> pending = mQueue.iterator();
+        while (pending.hasNext()) {
+            if (pending.next() instanceof BatchSlice) {
+                pending.remove();
+            }
+        }
+    }
+
+    private void extract(long id, long modified, String path) {
+        ExifIndex exif;
+        try {
+            exif = ExifIndex.read(path);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read exif from file: " + path, e);
+            exif = ExifIndex.read((byte[]) null);
+        }
+        put(id, modified, exif);
+    }
+
+    /**
+     * Drops the cached values of a photo that was deleted or edited. An
+     * edit can keep the modification time, which is only in seconds.
+     */
+    public synchronized void invalidate(long id) {
+        int i = find(id);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    private synchronized boolean isIndexed(long id, long modified) {
+        int i = find(id);
+        return i >= 0 && mModified[i] == modified;
+    }
+
+    /**
+     * Adds the cached EXIF details of a photo to details. Never reads the
+     * file; returns false if the photo is not indexed yet, see
+     * {@link #request}.
+     */
+    public boolean fillDetails(LocalData data, MediaDetails details) {
+        return fillFromCache(data.getContentId(), data.getDateModified(), details);
+    }
+
+    private synchronized boolean fillFromCache(long id, long modified, MediaDetails details) {
+        int i = find(id);
+        if (i < 0 || mModified[i] != modified) {
+            return false;
+        }
+        int present = mPresent[i];
+        if ((present & HAS_FLASH) != 0) {
+            details.addDetail(MediaDetails.INDEX_FLASH, new MediaDetails.FlashState(mFlash[i]));
+        }
+        if ((present & HAS_WIDTH) != 0) {
+            details.addDetail(MediaDetails.INDEX_WIDTH, String.valueOf(mWidth[i]));
+        }
+        if ((present & HAS_HEIGHT) != 0) {
+            details.addDetail(MediaDetails.INDEX_HEIGHT, String.valueOf(mHeight[i]));
+        }
+        if (mMake[i] != null) {
+            details.addDetail(MediaDetails.INDEX_MAKE, mMake[i]);
+        }
+        if (mModel[i] != null) {
+            details.addDetail(MediaDetails.INDEX_MODEL, mModel[i]);
+        }
+        if ((present & HAS_APERTURE) != 0) {
+            details.addDetail(MediaDetails.INDEX_APERTURE, String.valueOf(mAperture[i]));
+        }
+        if ((present & HAS_ISO) != 0) {
+            details.addDetail(MediaDetails.INDEX_ISO, String.valueOf(mIso[i]));
+        }
+        if ((present & HAS_WHITE_BALANCE) != 0) {
+            details.addDetail(MediaDetails.INDEX_WHITE_BALANCE,
+                    String.valueOf(mWhiteBalance[i]));
+        }
+        if ((present & HAS_EXPOSURE_TIME) != 0) {
+            details.addDetail(MediaDetails.INDEX_EXPOSURE_TIME,
+                    String.valueOf(mExposureTime[i]));
+        }
+        if ((present & HAS_FOCAL_LENGTH) != 0) {
+            details.addDetail(MediaDetails.INDEX_FOCAL_LENGTH, mFocalLength[i]);
+            details.setUnit(MediaDetails.INDEX_FOCAL_LENGTH, R.string.unit_mm);
+        }
+        return true;
+    }
+
+    private synchronized void put(long id, long modified, ExifIndex exif) {
+        int i = find(id);
+        if (i < 0) {
+            i = insertAt(-(i + 1), id);
+        }
+        int present = 0;
+        mModified[i] = modified;
+        if (exif.hasTag(ExifInterface.TAG_FLASH)) {
+            mFlash[i] = exif.getInt(ExifInterface.TAG_FLASH, 0);
+            present |= HAS_FLASH;
+        }
+        if (exif.hasTag(ExifInterface.TAG_IMAGE_WIDTH)) {
+            mWidth[i] = exif.getInt(ExifInterface.TAG_IMAGE_WIDTH, 0);
+            present |= HAS_WIDTH;
+        }
+        if (exif.hasTag(ExifInterface.TAG_IMAGE_LENGTH)) {
+            mHeight[i] = exif.getInt(ExifInterface.TAG_IMAGE_LENGTH, 0);
+            present |= HAS_HEIGHT;
+        }
+        if (exif.hasTag(ExifInterface.TAG_ISO_SPEED_RATINGS)) {
+            mIso[i] = exif.getInt(ExifInterface.TAG_ISO_SPEED_RATINGS, 0);
+            present |= HAS_ISO;
+        }
+        if (exif.hasTag(ExifInterface.TAG_WHITE_BALANCE)) {
+            mWhiteBalance[i] = exif.getInt(ExifInterface.TAG_WHITE_BALANCE, 0);
+            present |= HAS_WHITE_BALANCE;
+        }
+        if (exif.hasTag(ExifInterface.TAG_APERTURE_VALUE)) {
+            mAperture[i] = exif.getRationalAsDouble(ExifInterface.TAG_APERTURE_VALUE, 0, 0);
+            present |= HAS_APERTURE;
+        }
+        if (exif.hasTag(ExifInterface.TAG_EXPOSURE_TIME)) {
+            mExposureTime[i] = exif.getRationalAsDouble(ExifInterface.TAG_EXPOSURE_TIME, 0, 0);
+            present |= HAS_EXPOSURE_TIME;
+        }
+        if (exif.hasTag(ExifInterface.TAG_FOCAL_LENGTH)) {
+            mFocalLength[i] = exif.getRationalAsDouble(ExifInterface.TAG_FOCAL_LENGTH, 0, 0);
+            present |= HAS_FOCAL_LENGTH;
+        }
+        mPresent[i] = present;
+        mMake[i] = share(exif.getString(ExifInterface.TAG_MAKE));
+        mModel[i] = share(exif.getString(ExifInterface.TAG_MODEL));
+    }
+
+    private String share(String value) {
+        if (value == null) {
+            return null;
+        }
+        String shared = mStrings.get(value);
+        if (shared == null) {
+            mStrings.put(value, value);
+            shared = value;
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the number of photos with cached values.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private int find(long id) {
+        int lo = 0;
+        int hi = mSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long key = mIds[mid];
+            if (key < id) {
+                lo = mid + 1;
+            } else if (key > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int insertAt(int i, long id) {
+        if (mSize == mIds.length) {
+            grow(mSize * 2);
+        }
+        int tail = mSize - i;
+        if (tail > 0) {
+            System.arraycopy(mIds, i, mIds, i + 1, tail);
+            System.arraycopy(mModified, i, mModified, i + 1, tail);
+            System.arraycopy(mPresent, i, mPresent, i + 1, tail);
+            System.arraycopy(mFlash, i, mFlash, i + 1, tail);
+            System.arraycopy(mWidth, i, mWidth, i + 1, tail);
+            System.arraycopy(mHeight, i, mHeight, i + 1, tail);
+            System.arraycopy(mIso, i, mIso, i + 1, tail);
+            System.arraycopy(mWhiteBalance, i, mWhiteBalance, i + 1, tail);
+            System.arraycopy(mAperture, i, mAperture, i + 1, tail);
+            System.arraycopy(mExposureTime, i, mExposureTime, i + 1, tail);
+            System.arraycopy(mFocalLength, i, mFocalLength, i + 1, tail);
+            System.arraycopy(mMake, i, mMake, i + 1, tail);
+            System.arraycopy(mModel, i, mModel, i + 1, tail);
+        }
+        mIds[i] = id;
+        mSize++;
+        return i;
+    }
+
+    private void removeAt(int i) {
+        int tail = mSize - i - 1;
+        if (tail > 0) {
+            System.arraycopy(mIds, i + 1, mIds, i, tail);
+            System.arraycopy(mModified, i + 1, mModified, i, tail);
+            System.arraycopy(mPresent, i + 1, mPresent, i, tail);
+            System.arraycopy(mFlash, i + 1, mFlash, i, tail);
+            System.arraycopy(mWidth, i + 1, mWidth, i, tail);
+            System.arraycopy(mHeight, i + 1, mHeight, i, tail);
+            System.arraycopy(mIso, i + 1, mIso, i, tail);
+            System.arraycopy(mWhiteBalance, i + 1, mWhiteBalance, i, tail);
+            System.arraycopy(mAperture, i + 1, mAperture, i, tail);
+            System.arraycopy(mExposureTime, i + 1, mExposureTime, i, tail);
+            System.arraycopy(mFocalLength, i + 1, mFocalLength, i, tail);
+            System.arraycopy(mMake, i + 1, mMake, i, tail);
+            System.arraycopy(mModel, i + 1, mModel, i, tail);
+        }
+        mSize--;
+        mMake[mSize] = null;
+        mModel[mSize] = null;
+    }
+
+    private void grow(int capacity) {
+        mIds = Arrays.copyOf(mIds, capacity);
+        mModified = Arrays.copyOf(mModified, capacity);
+        mPresent = Arrays.copyOf(mPresent, capacity);
+        mFlash = Arrays.copyOf(mFlash, capacity);
+        mWidth = Arrays.copyOf(mWidth, capacity);
+        mHeight = Arrays.copyOf(mHeight, capacity);
+        mIso = Arrays.copyOf(mIso, capacity);
+        mWhiteBalance = Arrays.copyOf(mWhiteBalance, capacity);
+        mAperture = Arrays.copyOf(mAperture, capacity);
+        mExposureTime = Arrays.copyOf(mExposureTime, capacity);
+        mFocalLength = Arrays.copyOf(mFocalLength, capacity);
+        mMake = Arrays.copyOf(mMake, capacity);
+        mModel = Arrays.copyOf(mModel, capacity);
+    }
+}
@@ -434,7 +434,7 @@ public abstract class LocalMediaData implements LocalData {
         @Override
         public MediaDetails getMediaDetails(Context context) {
             MediaDetails mediaDetails = super.getMediaDetails(context);
-            MediaDetails.extractExifInfo(mediaDetails, mPath);
+            ExifMetadataIndexer.getInstance().fillDetails(this, mediaDetails);
             mediaDetails.addDetail(MediaDetails.INDEX_ORIENTATION, mOrientation);
             return mediaDetails;
         }
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only index over the EXIF header of a JPEG image.
+ * <p>
+ * Unlike {@link ExifInterface#readExif}, no {@link ExifTag} objects are
+ * built. The IFDs are walked once to record, for every entry, its tag,
+ * type, component count and where its value starts. Values are decoded
+ * from the underlying buffer only when they are asked for, so reading the
+ * orientation of a file costs one pass over its directories and no boxed
+ * values.
+ * <p>
+ * Tags are looked up with the ExifInterface TAG_* constants, which carry
+ * the IFD they are expected in.
+ */
+public class ExifIndex {
+    private static final short SOS = (short) 0xFFDA;
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final short TAG_EXIF_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+    private static final int ENTRY_SIZE = 12;
+    // Guards against corrupt headers; real files have a few dozen entries.
+    private static final int MAX_ENTRIES = 1024;
+    private static final int[] TYPE_SIZE = {0, 1, 1, 2, 4, 8, 0, 1, 0, 4, 8};
+
+    private static final ExifIndex EMPTY = new ExifIndex(null, 0);
+
+    private final ByteBuffer mBuffer;
+    private int[] mKeys;
+    private short[] mTypes;
+    private int[] mCounts;
+    private int[] mValuePositions;
+    private int mSize;
+
+    private ExifIndex(ByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mKeys = new int[capacity];
+        mTypes = new short[capacity];
+        mCounts = new int[capacity];
+        mValuePositions = new int[capacity];
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG image. Returns an empty index if the
+     * data is not a JPEG image or has no readable EXIF header.
+     */
+    public static ExifIndex read(byte[] jpeg) {
+        if (jpeg == null) {
+            return EMPTY;
+        }
+        return read(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG image starting at the position of
+     * jpeg. The buffer is referenced, not copied, and must not change while
+     * the index is in use.
+     */
+    public static ExifIndex read(ByteBuffer jpeg) {
+        ByteBuffer buf = jpeg.duplicate();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        int pos = buf.position();
+        int limit = buf.limit();
+        if (limit - pos < 4 || buf.getShort(pos) != JpegHeader.SOI) {
+            return EMPTY;
+        }
+        pos += 2;
+        while (pos + 4 <= limit) {
+            short marker = buf.getShort(pos);
+            if ((marker & 0xff00) != 0xff00 || marker == SOS || marker == JpegHeader.EOI) {
+                break;
+            }
+            int length = buf.getShort(pos + 2) & 0xffff;
+            if (marker == JpegHeader.APP1 && length >= 8
+                    && pos + 2 + length <= limit && buf.getInt(pos + 4) == EXIF_HEADER) {
+                ByteBuffer app1 = buf.duplicate();
+                app1.position(pos + 10);
+                app1.limit(pos + 2 + length);
+                return parseTiff(app1.slice());
+            }
+            pos += 2 + length;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG file. Only segment headers are read
+     * until the EXIF APP1 segment is found; that segment alone is mapped.
+     */
+    public static ExifIndex read(String path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(10);
+            if (readFully(channel, header, 0) < 4 || header.getShort(0) != JpegHeader.SOI) {
+                return EMPTY;
+            }
+            long pos = 2;
+            while (pos + 4 <= size) {
+                header.clear();
+                int n = readFully(channel, header, pos);
+                if (n < 4) {
+                    break;
+                }
+                short marker = header.getShort(0);
+                if ((marker & 0xff00) != 0xff00 || marker == SOS || marker == JpegHeader.EOI) {
+                    break;
+                }
+                int length = header.getShort(2) & 0xffff;
+                if (marker == JpegHeader.APP1 && length >= 8 && n >= 8
+                        && pos + 2 + length <= size && header.getInt(4) == EXIF_HEADER) {
+                    return parseTiff(channel.map(FileChannel.MapMode.READ_ONLY, pos + 10,
+                            length - 8));
+                }
+                pos += 2 + length;
+            }
+            return EMPTY;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer dst, long pos)
+            throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /* tiff starts at the TIFF header; offsets in the directories are relative to it */
+    private static ExifIndex parseTiff(ByteBuffer tiff) {
+        if (tiff.limit() < 8) {
+            return EMPTY;
+        }
+        tiff.order(ByteOrder.BIG_ENDIAN);
+        short order = tiff.getShort(0);
+        if (order == TIFF_LITTLE_ENDIAN) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order != TIFF_BIG_ENDIAN) {
+            return EMPTY;
+        }
+        if (tiff.getShort(2) != TIFF_HEADER) {
+            return EMPTY;
+        }
+        ExifIndex index = new ExifIndex(tiff, 32);
+        int ifd1 = index.indexIfd(IfdId.TYPE_IFD_0, tiff.getInt(4));
+        if (ifd1 > 0) {
+            index.indexIfd(IfdId.TYPE_IFD_1, ifd1);
+        }
+        index.sort();
+        return index;
+    }
+
+    /* Returns the offset of the next IFD, or 0 */
+    private int indexIfd(int ifd, int offset) {
+        ByteBuffer buf = mBuffer;
+        int limit = buf.limit();
+        if (offset < 8 || offset + 2 > limit) {
+            return 0;
+        }
+        int count = buf.getShort(offset) & 0xffff;
+        int entry = offset + 2;
+        if (count > MAX_ENTRIES || entry + count * ENTRY_SIZE > limit) {
+            return 0;
+        }
+        for (int i = 0; i < count; i++, entry += ENTRY_SIZE) {
+            short tagId = buf.getShort(entry);
+            short type = buf.getShort(entry + 2);
+            int components = buf.getInt(entry + 4);
+            if (type <= 0 || type >= TYPE_SIZE.length || TYPE_SIZE[type] == 0
+                    || components < 0) {
+                continue;
+            }
+            long dataSize = (long) components * TYPE_SIZE[type];
+            int valuePos = entry + 8;
+            if (dataSize > 4) {
+                valuePos = buf.getInt(entry + 8);
+                if (valuePos < 0 || valuePos + dataSize > limit) {
+                    continue;
+                }
+            }
+            add(ifd, tagId, type, components, valuePos);
+            if (ifd == IfdId.TYPE_IFD_0 && tagId == TAG_EXIF_IFD) {
+                indexIfd(IfdId.TYPE_IFD_EXIF, buf.getInt(valuePos));
+            } else if (ifd == IfdId.TYPE_IFD_0 && tagId == TAG_GPS_IFD) {
+                indexIfd(IfdId.TYPE_IFD_GPS, buf.getInt(valuePos));
+            } else if (ifd == IfdId.TYPE_IFD_EXIF && tagId == TAG_INTEROPERABILITY_IFD) {
+                indexIfd(IfdId.TYPE_IFD_INTEROPERABILITY, buf.getInt(valuePos));
+            }
+        }
+        if (entry + 4 > limit) {
+            return 0;
+        }
+        int next = buf.getInt(entry);
+        return next > offset ? next : 0;
+    }
+
+    private void add(int ifd, short tagId, short type, int components, int valuePos) {
+        if (mSize == mKeys.length) {
+            int capacity = mSize * 2;
+            mKeys = copyOf(mKeys, capacity);
+            mCounts = copyOf(mCounts, capacity);
+            mValuePositions = copyOf(mValuePositions, capacity);
+            short[] types = new short[capacity];
+            System.arraycopy(mTypes, 0, types, 0, mSize);
+            mTypes = types;
+        }
+        mKeys[mSize] = ExifInterface.defineTag(ifd, tagId);
+        mTypes[mSize] = type;
+        mCounts[mSize] = components;
+        mValuePositions[mSize] = valuePos;
+        mSize++;
+    }
+
+    private static int[] copyOf(int[] src, int capacity) {
+        int[] dst = new int[capacity];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+
+    /* Insertion sort by key: IFDs are mostly sorted already and small */
+    private void sort() {
+        for (int i = 1; i < mSize; i++) {
+            int key = mKeys[i];
+            short type = mTypes[i];
+            int count = mCounts[i];
+            int pos = mValuePositions[i];
+            int j = i - 1;
+            while (j >= 0 && mKeys[j] > key) {
+                mKeys[j + 1] = mKeys[j];
+                mTypes[j + 1] = mTypes[j];
+                mCounts[j + 1] = mCounts[j];
+                mValuePositions[j + 1] = mValuePositions[j];
+                j--;
+            }
+            mKeys[j + 1] = key;
+            mTypes[j + 1] = type;
+            mCounts[j + 1] = count;
+            mValuePositions[j + 1] = pos;
+        }
+    }
+
+    private int find(int tag) {
+        int lo = 0;
+        int hi = mSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int key = mKeys[mid];
+            if (key < tag) {
+                lo = mid + 1;
+            } else if (key > tag) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns where the value of a tag starts, relative to the TIFF header,
+     * or -1 if the tag is not present.
+     */
+    int getValuePosition(int tag) {
+        int i = find(tag);
+        return i < 0 ? -1 : mValuePositions[i];
+    }
+
+    ByteOrder getByteOrder() {
+        return mBuffer == null ? ByteOrder.BIG_ENDIAN : mBuffer.order();
+    }
+
+    /**
+     * Returns the number of indexed entries.
+     */
+    public int getTagCount() {
+        return mSize;
+    }
+
+    public boolean hasTag(int tag) {
+        return find(tag) >= 0;
+    }
+
+    /**
+     * Returns the data type of a tag, one of the ExifTag.TYPE_* constants,
+     * or -1 if the tag is not present.
+     */
+    public short getDataType(int tag) {
+        int i = find(tag);
+        return i < 0 ? -1 : mTypes[i];
+    }
+
+    /**
+     * Returns the component count of a tag, or 0 if the tag is not present.
+     */
+    public int getComponentCount(int tag) {
+        int i = find(tag);
+        return i < 0 ? 0 : mCounts[i];
+    }
+
+    /**
+     * Returns the index-th component of an integer typed tag, or
+     * defaultValue if the tag is missing, too short or not an integer type.
+     */
+    public long getLong(int tag, int index, long defaultValue) {
+        int i = find(tag);
+        if (i < 0 || index < 0 || index >= mCounts[i]) {
+            return defaultValue;
+        }
+        int pos = mValuePositions[i];
+        switch (mTypes[i]) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                return mBuffer.get(pos + index) & 0xff;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return mBuffer.getShort(pos + index * 2) & 0xffff;
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return mBuffer.getInt(pos + index * 4) & 0xffffffffL;
+            case ExifTag.TYPE_LONG:
+                return mBuffer.getInt(pos + index * 4);
+            default:
+                return defaultValue;
+        }
+    }
+
+    public int getInt(int tag, int defaultValue) {
+        return (int) getLong(tag, 0, defaultValue);
+    }
+
+    /**
+     * Returns the index-th component of a rational tag as a double, or
+     * defaultValue if the tag is missing, too short or not a rational.
+     */
+    public double getRationalAsDouble(int tag, int index, double defaultValue) {
+        int i = find(tag);
+        if (i < 0 || index < 0 || index >= mCounts[i]) {
+            return defaultValue;
+        }
+        int pos = mValuePositions[i] + index * 8;
+        double numerator;
+        double denominator;
+        if (mTypes[i] == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+            numerator = mBuffer.getInt(pos) & 0xffffffffL;
+            denominator = mBuffer.getInt(pos + 4) & 0xffffffffL;
+        } else if (mTypes[i] == ExifTag.TYPE_RATIONAL) {
+            numerator = mBuffer.getInt(pos);
+            denominator = mBuffer.getInt(pos + 4);
+        } else {
+            return defaultValue;
+        }
+        return denominator == 0 ? defaultValue : numerator / denominator;
+    }
+
+    public Rational getRational(int tag, int index) {
+        int i = find(tag);
+        if (i < 0 || index < 0 || index >= mCounts[i]) {
+            return null;
+        }
+        int pos = mValuePositions[i] + index * 8;
+        if (mTypes[i] == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+            return new Rational(mBuffer.getInt(pos) & 0xffffffffL,
+                    mBuffer.getInt(pos + 4) & 0xffffffffL);
+        } else if (mTypes[i] == ExifTag.TYPE_RATIONAL) {
+            return new Rational(mBuffer.getInt(pos), mBuffer.getInt(pos + 4));
+        }
+        return null;
+    }
+
+    /**
+     * Returns an ASCII tag as a String, up to the first NUL, or null if the
+     * tag is not present or not ASCII.
+     */
+    public String getString(int tag) {
+        int i = find(tag);
+        if (i < 0 || mTypes[i] != ExifTag.TYPE_ASCII) {
+            return null;
+        }
+        int pos = mValuePositions[i];
+        int length = 0;
+        while (length < mCounts[i] && mBuffer.get(pos + length) != 0) {
+            length++;
+        }
+        char[] chars = new char[length];
+        for (int c = 0; c < length; c++) {
+            chars[c] = (char) (mBuffer.get(pos + c) & 0x7f);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the rotation in degrees from the orientation tag, 0 if absent.
+     */
+    public int getRotation() {
+        return ExifInterface.getRotationForOrientationValue(
+                (short) getInt(ExifInterface.TAG_ORIENTATION, ExifInterface.Orientation.TOP_LEFT));
+    }
+
+    /**
+     * Decodes the GPS position into latLong[0] and latLong[1] without
+     * allocating.
+     *
+     * @return false if the GPS tags are missing or incomplete.
+     */
+    public boolean getLatLong(double[] latLong) {
+        if (getComponentCount(ExifInterface.TAG_GPS_LATITUDE) < 3
+                || getComponentCount(ExifInterface.TAG_GPS_LONGITUDE) < 3) {
+            return false;
+        }
+        int latRef = getRefChar(ExifInterface.TAG_GPS_LATITUDE_REF);
+        int lonRef = getRefChar(ExifInterface.TAG_GPS_LONGITUDE_REF);
+        if (latRef < 0 || lonRef < 0) {
+            return false;
+        }
+        latLong[0] = toDegrees(ExifInterface.TAG_GPS_LATITUDE, latRef == 'S');
+        latLong[1] = toDegrees(ExifInterface.TAG_GPS_LONGITUDE, lonRef == 'W');
+        return true;
+    }
+
+    private int getRefChar(int tag) {
+        int i = find(tag);
+        if (i < 0 || mTypes[i] != ExifTag.TYPE_ASCII || mCounts[i] < 1) {
+            return -1;
+        }
+        return mBuffer.get(mValuePositions[i]) & 0xff;
+    }
+
+    private double toDegrees(int tag, boolean negative) {
+        double result = getRationalAsDouble(tag, 0, 0)
+                + getRationalAsDouble(tag, 1, 0) / 60.0
+                + getRationalAsDouble(tag, 2, 0) / 3600.0;
+        return negative ? -result : result;
+    }
+}
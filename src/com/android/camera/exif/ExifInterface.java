@@ -36,6 +36,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -709,7 +710,10 @@ public class ExifInterface {
     }
 
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
+    // Typical APP1 size without a thumbnail; the stream grows if needed.
+    private static final int DEFAULT_EXIF_HEADER_SIZE = 4 * 1024;
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
+    private int mPaddingSize = 0;
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
     public ExifInterface() {
@@ -798,12 +802,152 @@ public class ExifInterface {
      * @throws IOException
      */
     public void writeExif(byte[] jpeg, OutputStream exifOutStream) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        writeExif(jpeg, 0, jpeg.length, exifOutStream);
+    }
+
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image held in
+     * part of a larger buffer, removing prior exif tags.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param offset the offset of the jpeg image in the array.
+     * @param length the length of the jpeg image.
+     * @param exifOutStream an OutputStream to which the jpeg image with added
+     *            exif tags will be written.
+     * @throws IOException
+     */
+    public void writeExif(byte[] jpeg, int offset, int length, OutputStream exifOutStream)
+            throws IOException {
         if (jpeg == null || exifOutStream == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
         OutputStream s = getExifWriterStream(exifOutStream);
-        s.write(jpeg, 0, jpeg.length);
+        s.write(jpeg, offset, length);
+        s.flush();
+    }
+
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image held in
+     * part of a larger buffer, straight to a FileChannel. The image is not
+     * copied: SOI and the new APP1 segment are written together with the
+     * slices of the original image around its old APP1 segment in a single
+     * gathering write.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param offset the offset of the jpeg image in the array.
+     * @param length the length of the jpeg image.
+     * @param channel the FileChannel to which the jpeg image with added exif
+     *            tags will be written, starting at its current position.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    public int writeExif(byte[] jpeg, int offset, int length, FileChannel channel)
+            throws IOException {
+        if (jpeg == null || channel == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ByteBuffer[] parts = splitAroundExif(jpeg, offset, length);
+        long total = 0;
+        for (ByteBuffer part : parts) {
+            total += part.remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            written += channel.write(parts);
+        }
+        return (int) total;
+    }
+
+    /**
+     * Returns a copy of a jpeg image held in part of a larger buffer with the
+     * tags from this ExifInterface object added, removing prior exif tags.
+     * The image data is copied once, into an array of the exact output size.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param offset the offset of the jpeg image in the array.
+     * @param length the length of the jpeg image.
+     * @return the jpeg image with exif tags.
+     * @throws IOException
+     */
+    public byte[] writeExif(byte[] jpeg, int offset, int length) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ByteBuffer[] parts = splitAroundExif(jpeg, offset, length);
+        int total = 0;
+        for (ByteBuffer part : parts) {
+            total += part.remaining();
+        }
+        byte[] out = new byte[total];
+        int pos = 0;
+        for (ByteBuffer part : parts) {
+            int n = part.remaining();
+            part.get(out, pos, n);
+            pos += n;
+        }
+        return out;
+    }
+
+    /**
+     * Splits a jpeg image into SOI + new APP1, the segments before the old
+     * APP1 and everything after it. Mirrors ExifOutputStream: segments are
+     * walked until the first APP1, which is dropped, or the first SOF.
+     */
+    private ByteBuffer[] splitAroundExif(byte[] jpeg, int offset, int length)
+            throws IOException {
+        int app1 = findApp1(jpeg, offset, length);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(DEFAULT_EXIF_HEADER_SIZE);
+        OutputStream s = getExifWriterStream(header);
+        // ExifOutputStream emits the new APP1 right after it sees SOI.
+        s.write(jpeg, offset, 2);
         s.flush();
+
+        int end = offset + length;
+        if (app1 >= 0) {
+            int resume = Math.min(end, app1 + 2 + (readShort(jpeg, app1 + 2) & 0xffff));
+            return new ByteBuffer[] {
+                    ByteBuffer.wrap(header.toByteArray()),
+                    ByteBuffer.wrap(jpeg, offset + 2, app1 - offset - 2),
+                    ByteBuffer.wrap(jpeg, resume, end - resume)
+            };
+        }
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(header.toByteArray()),
+                ByteBuffer.wrap(jpeg, offset + 2, length - 2)
+        };
+    }
+
+    /**
+     * Returns the position of the APP1 segment that a new exif header
+     * replaces, or -1 if the image has none before its first SOF.
+     *
+     * @throws IOException if the image does not start with SOI.
+     */
+    static int findApp1(byte[] jpeg, int offset, int length) throws IOException {
+        if (offset < 0 || length < 2 || offset + length > jpeg.length
+                || readShort(jpeg, offset) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        int end = offset + length;
+        int pos = offset + 2;
+        while (pos + 4 <= end) {
+            short marker = readShort(jpeg, pos);
+            if (marker == JpegHeader.APP1) {
+                return pos;
+            }
+            if (JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            pos += 2 + (readShort(jpeg, pos + 2) & 0xffff);
+        }
+        return -1;
+    }
+
+    private static short readShort(byte[] buf, int pos) {
+        return (short) (((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff));
     }
 
     /**
@@ -857,17 +1001,16 @@ public class ExifInterface {
         if (jpeg == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        ExifOutputStream s = null;
+        FileOutputStream out = new FileOutputStream(exifOutFileName);
+        int size;
         try {
-            s = (ExifOutputStream) getExifWriterStream(exifOutFileName);
-            s.write(jpeg, 0, jpeg.length);
-            s.flush();
+            size = writeExif(jpeg, 0, jpeg.length, out.getChannel());
         } catch (IOException e) {
-            closeSilently(s);
+            closeSilently(out);
             throw e;
         }
-        s.close();
-        return s.size();
+        out.close();
+        return size;
     }
 
     /**
@@ -967,9 +1110,26 @@ public class ExifInterface {
         }
         ExifOutputStream eos = new ExifOutputStream(outStream, this);
         eos.setExifData(mData);
+        eos.setPaddingSize(mPaddingSize);
         return eos;
     }
 
+    /**
+     * Reserves zero bytes at the end of the exif header written by this
+     * object. A later {@link #rewriteExif} can then grow or add tags in place
+     * instead of copying the whole file, as long as the new header fits.
+     *
+     * @param size the number of bytes to reserve; 0 (the default) reserves
+     *            none.
+     */
+    public void setPaddingSize(int size) {
+        mPaddingSize = size;
+    }
+
+    public int getPaddingSize() {
+        return mPaddingSize;
+    }
+
     /**
      * Returns an OutputStream object that writes to a file. Exif tags in this
      * ExifInterface object will be added to a jpeg image written to this
@@ -998,8 +1158,8 @@ public class ExifInterface {
 
     /**
      * Attempts to do an in-place rewrite the exif metadata in a file for the
-     * given tags. If tags do not exist or do not have the same size as the
-     * existing exif tags, this method will fail.
+     * given tags. Only the exif header is mapped and written. If the new
+     * header does not fit in the existing APP1 segment, this method will fail.
      *
      * @param filename a String containing a filepath for a jpeg file with exif
      *            tags to rewrite.
@@ -1057,8 +1217,10 @@ public class ExifInterface {
 
     /**
      * Attempts to do an in-place rewrite the exif metadata in a ByteBuffer for
-     * the given tags. If tags do not exist or do not have the same size as the
-     * existing exif tags, this method will fail.
+     * the given tags. Tags that exist with the same size are overwritten
+     * directly. Otherwise the whole exif header is rewritten in place if it
+     * still fits in the existing APP1 segment, which is what the padding from
+     * {@link #setPaddingSize} is for. If it does not fit, this method fails.
      *
      * @param buf a ByteBuffer containing a jpeg file with existing exif tags to
      *            rewrite.
@@ -1075,7 +1237,10 @@ public class ExifInterface {
             for (ExifTag t : tags) {
                 mod.modifyTag(t);
             }
-            return mod.commit();
+            if (mod.commit()) {
+                return true;
+            }
+            return mod.rewriteSegment(tags);
         } catch (ExifInvalidFormatException e) {
             throw new IOException("Invalid exif format : " + e);
         }
@@ -1948,7 +2113,7 @@ public class ExifInterface {
     }
 
     private static final String GPS_DATE_FORMAT_STR = "yyyy:MM:dd";
-    private static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
+    static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
     private final DateFormat mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
     private final DateFormat mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
     private final Calendar mGPSTimeStampCalendar = Calendar
@@ -1968,74 +2133,117 @@ public class ExifInterface {
         if (tagId == TAG_DATE_TIME || tagId == TAG_DATE_TIME_DIGITIZED
                 || tagId == TAG_DATE_TIME_ORIGINAL) {
             mDateTimeStampFormat.setTimeZone(timezone);
-            ExifTag t = buildTag(tagId, mDateTimeStampFormat.format(timestamp));
-            if (t == null) {
-                return false;
-            }
-            setTag(t);
-        } else {
-            return false;
+            return setAsciiTagValue(tagId, mDateTimeStampFormat.format(timestamp));
         }
-        return true;
+        return false;
     }
 
     public void addFlashTag(boolean isOn) {
-        ExifTag t;
         if(isOn) {
-            t = buildTag(ExifInterface.TAG_FLASH, Flash.FIRED);
+            setIntTagValue(ExifInterface.TAG_FLASH, Flash.FIRED);
         } else {
-            t = buildTag(ExifInterface.TAG_FLASH, Flash.DID_NOT_FIRED);
-        }
-        if(t != null) {
-            setTag(t);
+            setIntTagValue(ExifInterface.TAG_FLASH, Flash.DID_NOT_FIRED);
         }
     }
 
     public void addFocalLength(Rational r) {
-        ExifTag t;
-        t = buildTag(ExifInterface.TAG_FOCAL_LENGTH, r);
-        if(t != null) {
-            setTag(t);
-        }
+        setRationalTagValue(ExifInterface.TAG_FOCAL_LENGTH, r);
     }
 
     public void addWhiteBalanceMode(int value) {
-        ExifTag t;
         if(value == CaptureResult.CONTROL_AWB_MODE_AUTO) {
-            t = buildTag(ExifInterface.TAG_WHITE_BALANCE, WhiteBalance.AUTO);
+            setIntTagValue(ExifInterface.TAG_WHITE_BALANCE, WhiteBalance.AUTO);
         } else {
-            t = buildTag(ExifInterface.TAG_WHITE_BALANCE, WhiteBalance.MANUAL);
-        }
-        if(t != null) {
-            setTag(t);
+            setIntTagValue(ExifInterface.TAG_WHITE_BALANCE, WhiteBalance.MANUAL);
         }
     }
 
     public void addAperture(Rational r) {
-        ExifTag t;
-        t = buildTag(ExifInterface.TAG_APERTURE_VALUE, r);
-        if(t != null) {
-            setTag(t);
-        }
+        setRationalTagValue(ExifInterface.TAG_APERTURE_VALUE, r);
     }
 
     public void addExposureTime(Rational r) {
-        ExifTag t;
-        t = buildTag(ExifInterface.TAG_EXPOSURE_TIME, r);
-        if(t != null) {
-            setTag(t);
-        }
+        setRationalTagValue(ExifInterface.TAG_EXPOSURE_TIME, r);
     }
 
     public void addISO(int value) {
-        ExifTag t;
-        t = buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, value);
-        if(t != null) {
+        setIntTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, value);
+    }
+
+    public boolean addOrientationTag(int orientation) {
+        return setIntTagValue(TAG_ORIENTATION, getOrientationTagValue(orientation));
+    }
+
+    /*
+     * The setters below put single-valued tags straight into their default
+     * IFD's value array, with the same checks as buildTag and setTag but
+     * without allocating an ExifTag or a boxed value for each capture.
+     */
+
+    private boolean setIntTagValue(int tagId, int value) {
+        int info = getTagInfo().get(tagId);
+        if (info == 0) {
+            return false;
+        }
+        short type = getTypeFromInfo(info);
+        int definedCount = getComponentCountFromInfo(info);
+        boolean hasDefinedCount = (definedCount != ExifTag.SIZE_UNDEFINED);
+        if ((hasDefinedCount && definedCount != 1) || !ExifTag.isValidInt(type, value)) {
+            return false;
+        }
+        mData.getOrCreateIfdData(getTrueIfd(tagId))
+                .setLong(getTrueTagKey(tagId), type, value, hasDefinedCount);
+        return true;
+    }
+
+    private boolean setRationalTagValue(int tagId, Rational value) {
+        int info = getTagInfo().get(tagId);
+        if (info == 0 || value == null) {
+            return false;
+        }
+        short type = getTypeFromInfo(info);
+        int definedCount = getComponentCountFromInfo(info);
+        boolean hasDefinedCount = (definedCount != ExifTag.SIZE_UNDEFINED);
+        if ((hasDefinedCount && definedCount != 1) || !ExifTag.isValidRational(type,
+                value.getNumerator(), value.getDenominator())) {
+            return false;
+        }
+        mData.getOrCreateIfdData(getTrueIfd(tagId)).setRational(getTrueTagKey(tagId), type,
+                value.getNumerator(), value.getDenominator(), hasDefinedCount);
+        return true;
+    }
+
+    private boolean setAsciiTagValue(int tagId, String value) {
+        int info = getTagInfo().get(tagId);
+        if (info == 0 || value == null) {
+            return false;
+        }
+        int length = value.length();
+        boolean plainAscii = length > 0 && value.charAt(length - 1) != 0;
+        for (int i = 0; plainAscii && i < length; i++) {
+            plainAscii = value.charAt(i) < 0x80;
+        }
+        short type = getTypeFromInfo(info);
+        if (type != ExifTag.TYPE_ASCII || !plainAscii) {
+            // Empty, NUL terminated or non-ASCII strings take the ExifTag path.
+            ExifTag t = buildTag(tagId, value);
+            if (t == null) {
+                return false;
+            }
             setTag(t);
+            return true;
         }
+        int definedCount = getComponentCountFromInfo(info);
+        boolean hasDefinedCount = (definedCount != ExifTag.SIZE_UNDEFINED);
+        if (hasDefinedCount && definedCount != length + 1) {
+            return false;
+        }
+        mData.getOrCreateIfdData(getTrueIfd(tagId))
+                .setAscii(getTrueTagKey(tagId), value, length + 1, hasDefinedCount);
+        return true;
     }
 
-    public boolean addOrientationTag(int orientation) {
+    static int getOrientationTagValue(int orientation) {
         int value = Orientation.TOP_LEFT;
         if(orientation == 90) {
             value = Orientation.RIGHT_TOP;
@@ -2044,12 +2252,7 @@ public class ExifInterface {
         } else if(orientation == 270) {
             value = Orientation.RIGHT_BOTTOM;
         }
-        ExifTag t = buildTag(TAG_ORIENTATION, value);
-        if (t == null) {
-            return false;
-        }
-        setTag(t);
-        return true;
+        return value;
     }
 
     /**
@@ -2108,17 +2311,7 @@ public class ExifInterface {
         if ( maker.equals("unknown") ) {
             maker = "QCOM-AA";
         }
-        ExifTag t = buildTag(TAG_MAKE, maker);
-        if (t == null) {
-            return false;
-        }
-        setTag(t);
-        t = buildTag(TAG_MODEL, Build.MODEL);
-        if (t == null) {
-            return false;
-        }
-        setTag(t);
-        return true;
+        return setAsciiTagValue(TAG_MAKE, maker) && setAsciiTagValue(TAG_MODEL, Build.MODEL);
     }
 
 
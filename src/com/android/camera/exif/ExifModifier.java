@@ -18,12 +18,14 @@ package com.android.camera.exif;
 
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 class ExifModifier {
@@ -33,6 +35,7 @@ class ExifModifier {
     private final ExifData mTagToModified;
     private final List<TagOffset> mTagOffsets = new ArrayList<TagOffset>();
     private final ExifInterface mInterface;
+    private final int mStart;
     private int mOffsetBase;
 
     private static class TagOffset {
@@ -48,7 +51,8 @@ class ExifModifier {
     protected ExifModifier(ByteBuffer byteBuffer, ExifInterface iRef) throws IOException,
             ExifInvalidFormatException {
         mByteBuffer = byteBuffer;
-        mOffsetBase = byteBuffer.position();
+        mStart = byteBuffer.position();
+        mOffsetBase = mStart;
         mInterface = iRef;
         InputStream is = null;
         try {
@@ -155,8 +159,9 @@ class ExifModifier {
             case ExifTag.TYPE_ASCII:
                 byte buf[] = tag.getStringByte();
                 if (buf.length == tag.getComponentCount()) {
-                    buf[buf.length - 1] = 0;
-                    mByteBuffer.put(buf);
+                    // The last byte is the terminator, the value is not ours to change.
+                    mByteBuffer.put(buf, 0, buf.length - 1);
+                    mByteBuffer.put((byte) 0);
                 } else {
                     mByteBuffer.put(buf);
                     mByteBuffer.put((byte) 0);
@@ -190,6 +195,59 @@ class ExifModifier {
         }
     }
 
+    /**
+     * Rewrites the whole APP1 segment in place with the existing tags plus
+     * the given ones, for when {@link #commit()} fails because tags grew or
+     * are new. This succeeds as long as the new segment fits in the old one,
+     * e.g. in padding reserved when the file was written; the rest is
+     * zero-filled so nothing after the segment moves.
+     *
+     * @return true if success, false if the new segment does not fit. If
+     *         false, no changes are made to the ByteBuffer.
+     */
+    protected boolean rewriteSegment(Collection<ExifTag> tags) throws IOException,
+            ExifInvalidFormatException {
+        // The TIFF header follows the APP1 marker, its length and "Exif\0\0".
+        int app1 = mOffsetBase - 10;
+        if (app1 < mStart + 2) {
+            return false;
+        }
+        mByteBuffer.order(ByteOrder.BIG_ENDIAN);
+        int oldSize = 2 + (mByteBuffer.getShort(app1 + 2) & 0xffff);
+        if (app1 + oldSize > mByteBuffer.limit()) {
+            return false;
+        }
+
+        ByteBuffer source = mByteBuffer.duplicate();
+        source.position(mStart);
+        ExifData data = new ExifReader(mInterface).read(new ByteBufferInputStream(source));
+        for (ExifTag t : tags) {
+            data.addTag(t);
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream(oldSize + 2);
+        ExifOutputStream out = new ExifOutputStream(header, mInterface);
+        out.setExifData(data);
+        // The new APP1 segment is emitted right after SOI.
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xD8});
+        out.flush();
+        byte[] segment = header.toByteArray();
+        int newSize = segment.length - 2;
+        if (newSize > oldSize) {
+            return false;
+        }
+        if (DEBUG) {
+            Log.v(TAG, "rewriting APP1 in place: " + newSize + " of " + oldSize + " bytes");
+        }
+
+        mByteBuffer.position(app1);
+        mByteBuffer.put(segment, 2, newSize);
+        mByteBuffer.putShort(app1 + 2, (short) (oldSize - 2));
+        for (int i = app1 + newSize, end = app1 + oldSize; i < end; i++) {
+            mByteBuffer.put(i, (byte) 0);
+        }
+        return true;
+    }
+
     public void modifyTag(ExifTag tag) {
         mTagToModified.addTag(tag);
     }
@@ -81,6 +81,7 @@ class ExifOutputStream extends FilterOutputStream {
     private byte[] mSingleByteArray = new byte[1];
     private ByteBuffer mBuffer = ByteBuffer.allocate(4);
     private final ExifInterface mInterface;
+    private int mPaddingSize = 0;
 
     private int mSize = 0;
 
@@ -97,6 +98,15 @@ class ExifOutputStream extends FilterOutputStream {
         mExifData = exifData;
     }
 
+    /**
+     * Sets the number of zero bytes reserved at the end of the APP1 segment,
+     * so tags can later grow or be added in place. The padding is trimmed if
+     * the segment would exceed its 64Kb limit.
+     */
+    protected void setPaddingSize(int size) {
+        mPaddingSize = Math.max(0, size);
+    }
+
     /**
      * Gets the Exif header to be written into the JPEF file.
      */
@@ -227,10 +237,11 @@ class ExifOutputStream extends FilterOutputStream {
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
+        int padding = Math.min(mPaddingSize, MAX_EXIF_SIZE - (exifSize + 8));
         OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
         dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
         dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
+        dataOutputStream.writeShort((short) (exifSize + 8 + padding));
         dataOutputStream.writeInt(EXIF_HEADER);
         dataOutputStream.writeShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
@@ -243,18 +254,33 @@ class ExifOutputStream extends FilterOutputStream {
         dataOutputStream.writeInt(8);
         writeAllTags(dataOutputStream);
         writeThumbnail(dataOutputStream);
-        for (ExifTag t : nullTags) {
-            mExifData.addTag(t);
+        if (padding > 0) {
+            dataOutputStream.write(new byte[padding]);
+        }
+        if (nullTags != null) {
+            for (ExifTag t : nullTags) {
+                mExifData.addTag(t);
+            }
         }
         mSize += dataOutputStream.size();
     }
 
     private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
-        ArrayList<ExifTag> nullTags = new ArrayList<ExifTag>();
-        for(ExifTag t : data.getAllTags()) {
-            if (t.getValue() == null && !ExifInterface.isOffsetTag(t.getTagId())) {
-                data.removeTag(t.getTagId(), t.getIfd());
-                nullTags.add(t);
+        ArrayList<ExifTag> nullTags = null;
+        for (int ifdId : IfdData.getIfds()) {
+            IfdData ifd = data.getIfdData(ifdId);
+            if (ifd == null) {
+                continue;
+            }
+            for (int i = ifd.getTagCount() - 1; i >= 0; i--) {
+                if (!ifd.hasValueAt(i) && !ExifInterface.isOffsetTag(ifd.getTagIdAt(i))) {
+                    ExifTag t = ifd.getTagAt(i);
+                    ifd.removeTag(t.getTagId());
+                    if (nullTags == null) {
+                        nullTags = new ArrayList<ExifTag>();
+                    }
+                    nullTags.add(t);
+                }
             }
         }
         return nullTags;
@@ -289,39 +315,41 @@ class ExifOutputStream extends FilterOutputStream {
 
     private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
-            dataOutputStream.writeShort(tag.getTagId());
-            dataOutputStream.writeShort(tag.getDataType());
-            dataOutputStream.writeInt(tag.getComponentCount());
+        int count = ifd.getTagCount();
+        dataOutputStream.writeShort((short) count);
+        for (int i = 0; i < count; i++) {
+            dataOutputStream.writeShort(ifd.getTagIdAt(i));
+            dataOutputStream.writeShort(ifd.getDataTypeAt(i));
+            dataOutputStream.writeInt(ifd.getComponentCountAt(i));
             if (DEBUG) {
-                Log.v(TAG, "\n" + tag.toString());
+                Log.v(TAG, "\n" + ifd.getTagAt(i).toString());
             }
-            if (tag.getDataSize() > 4) {
-                dataOutputStream.writeInt(tag.getOffset());
+            int size = ifd.getDataSizeAt(i);
+            if (size > 4) {
+                dataOutputStream.writeInt(ifd.getOffsetAt(i));
             } else {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
-                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
+                ExifOutputStream.writeTagValue(ifd, i, dataOutputStream);
+                for (int j = 0, n = 4 - size; j < n; j++) {
                     dataOutputStream.write(0);
                 }
             }
         }
         dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
-            if (tag.getDataSize() > 4) {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
+        for (int i = 0; i < count; i++) {
+            if (ifd.getDataSizeAt(i) > 4) {
+                ExifOutputStream.writeTagValue(ifd, i, dataOutputStream);
             }
         }
     }
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
-        offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
-            if (tag.getDataSize() > 4) {
-                tag.setOffset(offset);
-                offset += tag.getDataSize();
+        int count = ifd.getTagCount();
+        offset += 2 + count * TAG_SIZE + 4;
+        for (int i = 0; i < count; i++) {
+            int size = ifd.getDataSizeAt(i);
+            if (size > 4) {
+                ifd.setOffsetAt(i, offset);
+                offset += size;
             }
         }
         return offset;
@@ -486,40 +514,50 @@ class ExifOutputStream extends FilterOutputStream {
         return offset;
     }
 
-    static void writeTagValue(ExifTag tag, OrderedDataOutputStream dataOutputStream)
+    /**
+     * Writes the value of the entry at the given position straight from the
+     * IFD's backing array. Components missing from the value are written as
+     * zeros.
+     */
+    static void writeTagValue(IfdData ifd, int index, OrderedDataOutputStream dataOutputStream)
             throws IOException {
-        switch (tag.getDataType()) {
+        byte[] buf = ifd.getValueBuffer();
+        boolean hasValue = ifd.hasValueAt(index);
+        int pos = hasValue ? ifd.getValuePositionAt(index) : 0;
+        int size = hasValue ? ifd.getValueSizeAt(index) : 0;
+        int count = ifd.getComponentCountAt(index);
+        switch (ifd.getDataTypeAt(index)) {
             case ExifTag.TYPE_ASCII:
-                byte buf[] = tag.getStringByte();
-                if (buf.length == tag.getComponentCount()) {
-                    buf[buf.length - 1] = 0;
-                    dataOutputStream.write(buf);
+                if (size == count && size > 0) {
+                    dataOutputStream.write(buf, pos, size - 1);
                 } else {
-                    dataOutputStream.write(buf);
-                    dataOutputStream.write(0);
+                    dataOutputStream.write(buf, pos, size);
                 }
+                dataOutputStream.write(0);
                 break;
             case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_UNSIGNED_LONG:
-                for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeInt((int) tag.getValueAt(i));
+                for (int i = 0; i < count; i++) {
+                    dataOutputStream.writeInt(i * 4 < size ? IfdData.readInt(buf, pos + i * 4) : 0);
                 }
                 break;
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
-                for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeRational(tag.getRational(i));
+                for (int i = 0; i < count * 2; i++) {
+                    dataOutputStream.writeInt(i * 4 < size ? IfdData.readInt(buf, pos + i * 4) : 0);
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
             case ExifTag.TYPE_UNSIGNED_BYTE:
-                buf = new byte[tag.getComponentCount()];
-                tag.getBytes(buf);
-                dataOutputStream.write(buf);
+                dataOutputStream.write(buf, pos, Math.min(size, count));
+                for (int i = size; i < count; i++) {
+                    dataOutputStream.write(0);
+                }
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT:
-                for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeShort((short) tag.getValueAt(i));
+                for (int i = 0; i < count; i++) {
+                    dataOutputStream.writeShort(
+                            i * 2 < size ? IfdData.readShort(buf, pos + i * 2) : 0);
                 }
                 break;
         }
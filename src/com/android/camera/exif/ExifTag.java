@@ -25,6 +25,12 @@ import java.util.Date;
  * This class stores information of an EXIF tag. For more information about
  * defined EXIF tags, please read the Jeita EXIF 2.2 standard. Tags should be
  * instantiated using {@link ExifInterface#buildTag}.
+ * <p>
+ * Once a tag has been added to an IFD it is a view over that IFD's entry: the
+ * value lives in the IFD's backing array. It is decoded on the first read and
+ * the decoded value is kept until the value is set again, so repeated reads
+ * do not allocate. Arrays returned by the getters are shared with the tag and
+ * must not be modified; use one of the setValue() methods instead.
  *
  * @see ExifInterface
  */
@@ -97,10 +103,13 @@ public class ExifTag {
     private int mComponentCountActual;
     // The ifd that this tag should be put in
     private int mIfd;
-    // The value (array of elements of type Tag Type)
+    // The value (array of elements of type Tag Type). While in an IFD, the
+    // decoded value of the IFD's entry, or null until it is first read.
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
+    // The IFD holding the value once this tag has been added to one
+    private IfdData mStore;
 
     private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("yyyy:MM:dd kk:mm:ss");
 
@@ -212,6 +221,9 @@ public class ExifTag {
      */
     protected void forceSetComponentCount(int count) {
         mComponentCountActual = count;
+        if (mStore != null) {
+            mStore.setComponentCount(mTagId, count);
+        }
     }
 
     /**
@@ -219,7 +231,7 @@ public class ExifTag {
      * contain an offset value that is determined when the tag is written.
      */
     public boolean hasValue() {
-        return mValue != null;
+        return mStore != null ? mStore.hasValue(mTagId) : mValue != null;
     }
 
     /**
@@ -251,8 +263,7 @@ public class ExifTag {
         for (int i = 0; i < value.length; i++) {
             data[i] = value[i];
         }
-        mValue = data;
-        mComponentCountActual = value.length;
+        setStoredValue(data, value.length);
         return true;
     }
 
@@ -268,9 +279,18 @@ public class ExifTag {
      * </ul>
      */
     public boolean setValue(int value) {
-        return setValue(new int[] {
-                value
-        });
+        if (mStore == null) {
+            return setValue(new int[] {
+                    value
+            });
+        }
+        if (checkBadComponentCount(1) || !isValidInt(mDataType, value)) {
+            return false;
+        }
+        mComponentCountActual = 1;
+        mStore.putLong(mTagId, value);
+        mValue = null;
+        return true;
     }
 
     /**
@@ -290,8 +310,7 @@ public class ExifTag {
         if (checkOverflowForUnsignedLong(value)) {
             return false;
         }
-        mValue = value;
-        mComponentCountActual = value.length;
+        setStoredValue(value, value.length);
         return true;
     }
 
@@ -305,9 +324,19 @@ public class ExifTag {
      * </ul>
      */
     public boolean setValue(long value) {
-        return setValue(new long[] {
-                value
-        });
+        if (mStore == null) {
+            return setValue(new long[] {
+                    value
+            });
+        }
+        if (checkBadComponentCount(1) || mDataType != TYPE_UNSIGNED_LONG
+                || value < 0 || value > UNSIGNED_LONG_MAX) {
+            return false;
+        }
+        mComponentCountActual = 1;
+        mStore.putLong(mTagId, value);
+        mValue = null;
+        return true;
     }
 
     /**
@@ -341,8 +370,7 @@ public class ExifTag {
         if (checkBadComponentCount(count)) {
             return false;
         }
-        mComponentCountActual = count;
-        mValue = finalBuf;
+        setStoredValue(finalBuf, count);
         return true;
     }
 
@@ -373,8 +401,7 @@ public class ExifTag {
             return false;
         }
 
-        mValue = value;
-        mComponentCountActual = value.length;
+        setStoredValue(value, value.length);
         return true;
     }
 
@@ -392,9 +419,19 @@ public class ExifTag {
      * @see Rational
      */
     public boolean setValue(Rational value) {
-        return setValue(new Rational[] {
-                value
-        });
+        if (mStore == null) {
+            return setValue(new Rational[] {
+                    value
+            });
+        }
+        if (checkBadComponentCount(1) || !isValidRational(mDataType,
+                value.getNumerator(), value.getDenominator())) {
+            return false;
+        }
+        mComponentCountActual = 1;
+        mStore.putRational(mTagId, value.getNumerator(), value.getDenominator());
+        mValue = null;
+        return true;
     }
 
     /**
@@ -415,9 +452,9 @@ public class ExifTag {
         if (mDataType != TYPE_UNSIGNED_BYTE && mDataType != TYPE_UNDEFINED) {
             return false;
         }
-        mValue = new byte[length];
-        System.arraycopy(value, offset, mValue, 0, length);
-        mComponentCountActual = length;
+        byte[] data = new byte[length];
+        System.arraycopy(value, offset, data, 0, length);
+        setStoredValue(data, length);
         return true;
     }
 
@@ -538,12 +575,13 @@ public class ExifTag {
      *         or cannot be converted to a String.
      */
     public String getValueAsString() {
-        if (mValue == null) {
+        Object value = getValue();
+        if (value == null) {
             return null;
-        } else if (mValue instanceof String) {
-            return (String) mValue;
-        } else if (mValue instanceof byte[]) {
-            return new String((byte[]) mValue, US_ASCII);
+        } else if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof byte[]) {
+            return new String((byte[]) value, US_ASCII);
         }
         return null;
     }
@@ -572,8 +610,9 @@ public class ExifTag {
      *         exist or cannot be converted to a byte array.
      */
     public byte[] getValueAsBytes() {
-        if (mValue instanceof byte[]) {
-            return (byte[]) mValue;
+        Object value = getValue();
+        if (value instanceof byte[]) {
+            return (byte[]) value;
         }
         return null;
     }
@@ -603,8 +642,9 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
-        if (mValue instanceof Rational[]) {
-            return (Rational[]) mValue;
+        Object value = getValue();
+        if (value instanceof Rational[]) {
+            return (Rational[]) value;
         }
         return null;
     }
@@ -649,10 +689,11 @@ public class ExifTag {
      *         not exist or cannot be converted to an array of ints.
      */
     public int[] getValueAsInts() {
-        if (mValue == null) {
+        Object value = getValue();
+        if (value == null) {
             return null;
-        } else if (mValue instanceof long[]) {
-            long[] val = (long[]) mValue;
+        } else if (value instanceof long[]) {
+            long[] val = (long[]) value;
             int[] arr = new int[val.length];
             for (int i = 0; i < val.length; i++) {
                 arr[i] = (int) val[i]; // Truncates
@@ -687,8 +728,9 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
-        if (mValue instanceof long[]) {
-            return (long[]) mValue;
+        Object value = getValue();
+        if (value instanceof long[]) {
+            return (long[]) value;
         }
         return null;
     }
@@ -711,9 +753,13 @@ public class ExifTag {
     }
 
     /**
-     * Gets the tag's value or null if none exists.
+     * Gets the tag's value or null if none exists. The returned array is
+     * shared with the tag and must not be modified.
      */
     public Object getValue() {
+        if (mStore != null && mValue == null) {
+            mValue = mStore.getValue(mTagId);
+        }
         return mValue;
     }
 
@@ -745,33 +791,34 @@ public class ExifTag {
      * Gets a string representation of the value.
      */
     public String forceGetValueAsString() {
-        if (mValue == null) {
+        Object value = getValue();
+        if (value == null) {
             return "";
-        } else if (mValue instanceof byte[]) {
+        } else if (value instanceof byte[]) {
             if (mDataType == TYPE_ASCII) {
-                return new String((byte[]) mValue, US_ASCII);
+                return new String((byte[]) value, US_ASCII);
             } else {
-                return Arrays.toString((byte[]) mValue);
+                return Arrays.toString((byte[]) value);
             }
-        } else if (mValue instanceof long[]) {
-            if (((long[]) mValue).length == 1) {
-                return String.valueOf(((long[]) mValue)[0]);
+        } else if (value instanceof long[]) {
+            if (((long[]) value).length == 1) {
+                return String.valueOf(((long[]) value)[0]);
             } else {
-                return Arrays.toString((long[]) mValue);
+                return Arrays.toString((long[]) value);
             }
-        } else if (mValue instanceof Object[]) {
-            if (((Object[]) mValue).length == 1) {
-                Object val = ((Object[]) mValue)[0];
+        } else if (value instanceof Object[]) {
+            if (((Object[]) value).length == 1) {
+                Object val = ((Object[]) value)[0];
                 if (val == null) {
                     return "";
                 } else {
                     return val.toString();
                 }
             } else {
-                return Arrays.toString((Object[]) mValue);
+                return Arrays.toString((Object[]) value);
             }
         } else {
-            return mValue.toString();
+            return value.toString();
         }
     }
 
@@ -786,6 +833,10 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     public long getValueAt(int index) {
+        if (mStore != null && mStore.hasValue(mTagId) && mDataType != TYPE_RATIONAL
+                && mDataType != TYPE_UNSIGNED_RATIONAL) {
+            return mStore.getLong(mTagId, index);
+        }
         if (mValue instanceof long[]) {
             return ((long[]) mValue)[index];
         } else if (mValue instanceof byte[]) {
@@ -806,14 +857,14 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get ASCII value from "
                     + convertTypeToString(mDataType));
         }
-        return new String((byte[]) mValue, US_ASCII);
+        return new String((byte[]) getValue(), US_ASCII);
     }
 
     /*
-     * Get the converted ascii byte. Used by ExifOutputStream.
+     * Get the converted ascii byte. Used by ExifModifier.
      */
     public byte[] getStringByte() {
-        return (byte[]) mValue;
+        return (byte[]) getValue();
     }
 
     /**
@@ -827,7 +878,7 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get RATIONAL value from "
                     + convertTypeToString(mDataType));
         }
-        return ((Rational[]) mValue)[index];
+        return ((Rational[]) getValue())[index];
     }
 
     /**
@@ -852,7 +903,7 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get BYTE value from "
                     + convertTypeToString(mDataType));
         }
-        System.arraycopy(mValue, 0, buf, offset,
+        System.arraycopy(getValue(), 0, buf, offset,
                 (length > mComponentCountActual) ? mComponentCountActual : length);
     }
 
@@ -861,16 +912,81 @@ public class ExifTag {
      * contains an offset to the location of the actual value.
      */
     public int getOffset() {
-        return mOffset;
+        return mStore != null ? mStore.getOffset(mTagId) : mOffset;
     }
 
     /**
      * Sets the offset of this tag.
      */
     public void setOffset(int offset) {
+        if (mStore != null) {
+            mStore.setOffset(mTagId, offset);
+        } else {
+            mOffset = offset;
+        }
+    }
+
+    /**
+     * Makes this tag a view over its entry in the given IFD, which already
+     * holds a copy of the value.
+     */
+    void attach(IfdData store) {
+        mStore = store;
+        mValue = null;
+    }
+
+    /**
+     * Makes this tag standalone again, holding the given value of its entry.
+     */
+    void detach(Object value, int offset) {
+        mStore = null;
+        mValue = value;
         mOffset = offset;
     }
 
+    IfdData getStore() {
+        return mStore;
+    }
+
+    private void setStoredValue(Object value, int count) {
+        mComponentCountActual = count;
+        if (mStore != null) {
+            mStore.putValue(mTagId, value, count);
+            // Decoded again on the next read, the caller still holds value.
+            mValue = null;
+        } else {
+            mValue = value;
+        }
+    }
+
+    /**
+     * Returns true if a single int value can be set into a tag of the given
+     * type, as {@link #setValue(int)} checks.
+     */
+    static boolean isValidInt(short type, int value) {
+        if (type == TYPE_UNSIGNED_SHORT) {
+            return value >= 0 && value <= UNSIGNED_SHORT_MAX;
+        } else if (type == TYPE_UNSIGNED_LONG) {
+            return value >= 0;
+        }
+        return type == TYPE_LONG;
+    }
+
+    /**
+     * Returns true if a single Rational value can be set into a tag of the
+     * given type, as {@link #setValue(Rational)} checks.
+     */
+    static boolean isValidRational(short type, long numerator, long denominator) {
+        if (type == TYPE_UNSIGNED_RATIONAL) {
+            return numerator >= 0 && denominator >= 0
+                    && numerator <= UNSIGNED_LONG_MAX && denominator <= UNSIGNED_LONG_MAX;
+        } else if (type == TYPE_RATIONAL) {
+            return numerator >= LONG_MIN && denominator >= LONG_MIN
+                    && numerator <= LONG_MAX && denominator <= LONG_MAX;
+        }
+        return false;
+    }
+
     protected void setHasDefinedCount(boolean d) {
         mHasDefinedDefaultComponentCount = d;
     }
@@ -970,29 +1086,31 @@ public class ExifTag {
                     || tag.mDataType != this.mDataType) {
                 return false;
             }
-            if (mValue != null) {
-                if (tag.mValue == null) {
+            Object value = getValue();
+            Object other = tag.getValue();
+            if (value != null) {
+                if (other == null) {
                     return false;
-                } else if (mValue instanceof long[]) {
-                    if (!(tag.mValue instanceof long[])) {
+                } else if (value instanceof long[]) {
+                    if (!(other instanceof long[])) {
                         return false;
                     }
-                    return Arrays.equals((long[]) mValue, (long[]) tag.mValue);
-                } else if (mValue instanceof Rational[]) {
-                    if (!(tag.mValue instanceof Rational[])) {
+                    return Arrays.equals((long[]) value, (long[]) other);
+                } else if (value instanceof Rational[]) {
+                    if (!(other instanceof Rational[])) {
                         return false;
                     }
-                    return Arrays.equals((Rational[]) mValue, (Rational[]) tag.mValue);
-                } else if (mValue instanceof byte[]) {
-                    if (!(tag.mValue instanceof byte[])) {
+                    return Arrays.equals((Rational[]) value, (Rational[]) other);
+                } else if (value instanceof byte[]) {
+                    if (!(other instanceof byte[])) {
                         return false;
                     }
-                    return Arrays.equals((byte[]) mValue, (byte[]) tag.mValue);
+                    return Arrays.equals((byte[]) value, (byte[]) other);
                 } else {
-                    return mValue.equals(tag.mValue);
+                    return value.equals(other);
                 }
             } else {
-                return tag.mValue == null;
+                return other == null;
             }
         }
         return false;
@@ -1002,7 +1120,7 @@ public class ExifTag {
     public String toString() {
         return String.format("tag id: %04X\n", mTagId) + "ifd id: " + mIfd + "\ntype: "
                 + convertTypeToString(mDataType) + "\ncount: " + mComponentCountActual
-                + "\noffset: " + mOffset + "\nvalue: " + forceGetValueAsString() + "\n";
+                + "\noffset: " + getOffset() + "\nvalue: " + forceGetValueAsString() + "\n";
     }
 
 }
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Pre-serialized EXIF header for the tags written with every capture.
+ * <p>
+ * Laying out the IFDs and computing their offsets gives the same result for
+ * every frame of a burst; only the values change. A template serializes the
+ * APP1 segment once for a given set of tags and records where each value
+ * lives. {@link #write} then copies the segment in front of the image and
+ * patches the fixed-width values in place. The output is byte-identical to
+ * what {@link ExifInterface} writes for the same tags.
+ * <p>
+ * Make, model, orientation and DateTime are always present. The optional
+ * tags are selected with the FIELD_* bits, one template per combination.
+ */
+public class ExifTemplate {
+    public static final int FIELD_FLASH = 1;
+    public static final int FIELD_FOCAL_LENGTH = 1 << 1;
+    public static final int FIELD_WHITE_BALANCE = 1 << 2;
+    public static final int FIELD_APERTURE = 1 << 3;
+    public static final int FIELD_EXPOSURE_TIME = 1 << 4;
+    public static final int FIELD_ISO = 1 << 5;
+    private static final int FIELD_ALL = (1 << 6) - 1;
+
+    // SOI, APP1 marker and length, then "Exif\0\0" precede the TIFF header.
+    private static final int TIFF_START = 12;
+    private static final int DATE_TIME_LENGTH = 19;
+    private static final long UNSIGNED_LONG_MAX = 0xffffffffL;
+    private static final int UNSIGNED_SHORT_MAX = 0xffff;
+
+    private static final ExifTemplate[] sTemplates = new ExifTemplate[FIELD_ALL + 1];
+
+    private final int mFields;
+    private final int mPaddingSize;
+    private final byte[] mHeader;
+    private final boolean mBigEndian;
+    private final int mOrientationPos;
+    private final int mDateTimePos;
+    private final int mFlashPos;
+    private final int mFocalLengthPos;
+    private final int mWhiteBalancePos;
+    private final int mAperturePos;
+    private final int mExposureTimePos;
+    private final int mIsoPos;
+
+    // Frames of a burst mostly share a second; format it once.
+    private final DateFormat mDateFormat =
+            new SimpleDateFormat(ExifInterface.DATETIME_FORMAT_STR);
+    private final Date mDate = new Date();
+    private final byte[] mDateTime = new byte[DATE_TIME_LENGTH];
+    private long mDateTimeSecond = Long.MIN_VALUE;
+    private TimeZone mDateTimeZone;
+
+    /**
+     * Per-frame values. Each optional setter also selects the tag in
+     * {@link #getFields()}.
+     */
+    public static class Frame {
+        private int mFields;
+        private int mOrientation;
+        private long mDateTime;
+        private TimeZone mTimeZone;
+        private boolean mFlashFired;
+        private int mWhiteBalanceMode;
+        private int mIso;
+        private long mFocalLengthNum, mFocalLengthDen;
+        private long mApertureNum, mApertureDen;
+        private long mExposureTimeNum, mExposureTimeDen;
+
+        public Frame(int orientationInDegree, long dateTime, TimeZone timeZone) {
+            mOrientation = orientationInDegree;
+            mDateTime = dateTime;
+            mTimeZone = timeZone;
+        }
+
+        public void setFlashFired(boolean fired) {
+            mFlashFired = fired;
+            mFields |= FIELD_FLASH;
+        }
+
+        public void setFocalLength(long numerator, long denominator) {
+            mFocalLengthNum = numerator;
+            mFocalLengthDen = denominator;
+            mFields |= FIELD_FOCAL_LENGTH;
+        }
+
+        /* One of the CaptureResult.CONTROL_AWB_MODE_* values */
+        public void setWhiteBalanceMode(int awbMode) {
+            mWhiteBalanceMode = awbMode;
+            mFields |= FIELD_WHITE_BALANCE;
+        }
+
+        public void setAperture(long numerator, long denominator) {
+            mApertureNum = numerator;
+            mApertureDen = denominator;
+            mFields |= FIELD_APERTURE;
+        }
+
+        public void setExposureTime(long numerator, long denominator) {
+            mExposureTimeNum = numerator;
+            mExposureTimeDen = denominator;
+            mFields |= FIELD_EXPOSURE_TIME;
+        }
+
+        public void setIso(int iso) {
+            mIso = iso;
+            mFields |= FIELD_ISO;
+        }
+
+        public int getFields() {
+            return mFields;
+        }
+
+        /**
+         * Fills an ExifInterface with the same tags a template writes. Used
+         * when a value does not fit the template.
+         */
+        public void addTo(ExifInterface exif) {
+            exif.addMakeAndModelTag();
+            exif.addOrientationTag(mOrientation);
+            exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, mDateTime, mTimeZone);
+            if ((mFields & FIELD_FLASH) != 0) {
+                exif.addFlashTag(mFlashFired);
+            }
+            if ((mFields & FIELD_FOCAL_LENGTH) != 0) {
+                exif.addFocalLength(new Rational(mFocalLengthNum, mFocalLengthDen));
+            }
+            if ((mFields & FIELD_WHITE_BALANCE) != 0) {
+                exif.addWhiteBalanceMode(mWhiteBalanceMode);
+            }
+            if ((mFields & FIELD_APERTURE) != 0) {
+                exif.addAperture(new Rational(mApertureNum, mApertureDen));
+            }
+            if ((mFields & FIELD_EXPOSURE_TIME) != 0) {
+                exif.addExposureTime(new Rational(mExposureTimeNum, mExposureTimeDen));
+            }
+            if ((mFields & FIELD_ISO) != 0) {
+                exif.addISO(mIso);
+            }
+        }
+
+        /* Values ExifTag would reject, leaving the tag out of the layout */
+        private boolean fitsTemplate() {
+            if ((mFields & FIELD_FOCAL_LENGTH) != 0
+                    && !isUnsignedRational(mFocalLengthNum, mFocalLengthDen)) {
+                return false;
+            }
+            if ((mFields & FIELD_APERTURE) != 0
+                    && !isUnsignedRational(mApertureNum, mApertureDen)) {
+                return false;
+            }
+            if ((mFields & FIELD_EXPOSURE_TIME) != 0
+                    && !isUnsignedRational(mExposureTimeNum, mExposureTimeDen)) {
+                return false;
+            }
+            if ((mFields & FIELD_ISO) != 0 && (mIso < 0 || mIso > UNSIGNED_SHORT_MAX)) {
+                return false;
+            }
+            return mTimeZone != null;
+        }
+
+        private static boolean isUnsignedRational(long numerator, long denominator) {
+            return numerator >= 0 && numerator <= UNSIGNED_LONG_MAX
+                    && denominator >= 0 && denominator <= UNSIGNED_LONG_MAX;
+        }
+    }
+
+    /**
+     * Returns the template for a set of FIELD_* bits, building it on first
+     * use.
+     */
+    public static ExifTemplate getInstance(int fields) throws IOException {
+        return getInstance(fields, 0);
+    }
+
+    /**
+     * Returns the template for a set of FIELD_* bits whose header reserves
+     * paddingSize bytes, see {@link ExifInterface#setPaddingSize}.
+     */
+    public static ExifTemplate getInstance(int fields, int paddingSize) throws IOException {
+        if ((fields & ~FIELD_ALL) != 0) {
+            throw new IllegalArgumentException("Unknown fields " + fields);
+        }
+        synchronized (sTemplates) {
+            ExifTemplate template = sTemplates[fields];
+            if (template == null || template.mPaddingSize != paddingSize) {
+                template = new ExifTemplate(fields, paddingSize);
+                sTemplates[fields] = template;
+            }
+            return template;
+        }
+    }
+
+    private ExifTemplate(int fields, int paddingSize) throws IOException {
+        mFields = fields;
+        mPaddingSize = paddingSize;
+        Frame placeholder = new Frame(0, 0, TimeZone.getTimeZone("UTC"));
+        if ((fields & FIELD_FLASH) != 0) {
+            placeholder.setFlashFired(false);
+        }
+        if ((fields & FIELD_FOCAL_LENGTH) != 0) {
+            placeholder.setFocalLength(1, 1);
+        }
+        if ((fields & FIELD_WHITE_BALANCE) != 0) {
+            placeholder.setWhiteBalanceMode(CaptureResult.CONTROL_AWB_MODE_AUTO);
+        }
+        if ((fields & FIELD_APERTURE) != 0) {
+            placeholder.setAperture(1, 1);
+        }
+        if ((fields & FIELD_EXPOSURE_TIME) != 0) {
+            placeholder.setExposureTime(1, 1);
+        }
+        if ((fields & FIELD_ISO) != 0) {
+            placeholder.setIso(0);
+        }
+        ExifInterface exif = new ExifInterface();
+        exif.setPaddingSize(paddingSize);
+        placeholder.addTo(exif);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        OutputStream s = exif.getExifWriterStream(header);
+        // ExifOutputStream emits the APP1 segment right after SOI.
+        s.write(new byte[] {(byte) 0xFF, (byte) 0xD8});
+        s.flush();
+        mHeader = header.toByteArray();
+
+        ExifIndex index = ExifIndex.read(mHeader);
+        mBigEndian = index.getByteOrder() == ByteOrder.BIG_ENDIAN;
+        mOrientationPos = locate(index, ExifInterface.TAG_ORIENTATION);
+        mDateTimePos = locate(index, ExifInterface.TAG_DATE_TIME);
+        mFlashPos = locate(index, fields, FIELD_FLASH, ExifInterface.TAG_FLASH);
+        mFocalLengthPos = locate(index, fields, FIELD_FOCAL_LENGTH,
+                ExifInterface.TAG_FOCAL_LENGTH);
+        mWhiteBalancePos = locate(index, fields, FIELD_WHITE_BALANCE,
+                ExifInterface.TAG_WHITE_BALANCE);
+        mAperturePos = locate(index, fields, FIELD_APERTURE, ExifInterface.TAG_APERTURE_VALUE);
+        mExposureTimePos = locate(index, fields, FIELD_EXPOSURE_TIME,
+                ExifInterface.TAG_EXPOSURE_TIME);
+        mIsoPos = locate(index, fields, FIELD_ISO, ExifInterface.TAG_ISO_SPEED_RATINGS);
+        if (index.getComponentCount(ExifInterface.TAG_DATE_TIME) != DATE_TIME_LENGTH + 1) {
+            throw new IOException("Unexpected DateTime layout in exif template");
+        }
+    }
+
+    private static int locate(ExifIndex index, int fields, int field, int tag)
+            throws IOException {
+        return (fields & field) != 0 ? locate(index, tag) : -1;
+    }
+
+    private static int locate(ExifIndex index, int tag) throws IOException {
+        int pos = index.getValuePosition(tag);
+        if (pos < 0) {
+            throw new IOException("Tag " + tag + " missing from exif template");
+        }
+        return TIFF_START + pos;
+    }
+
+    public int getFields() {
+        return mFields;
+    }
+
+    /**
+     * Returns the size of the SOI and APP1 segment written by this template.
+     */
+    public int getHeaderSize() {
+        return mHeader.length;
+    }
+
+    /**
+     * Returns a copy of a jpeg image held in part of a larger buffer with the
+     * template's APP1 segment in place of any prior one, patched with the
+     * values of frame. Returns null if frame selects different tags or holds
+     * a value the template cannot represent; write it through
+     * {@link ExifInterface} instead.
+     *
+     * @throws IOException if the data is not a jpeg image.
+     */
+    public byte[] write(byte[] jpeg, int offset, int length, Frame frame) throws IOException {
+        if (frame.mFields != mFields || !frame.fitsTemplate()) {
+            return null;
+        }
+        int app1 = ExifInterface.findApp1(jpeg, offset, length);
+        int end = offset + length;
+        int head = length - 2;
+        int resume = end;
+        if (app1 >= 0) {
+            head = app1 - offset - 2;
+            int segmentLength = ((jpeg[app1 + 2] & 0xff) << 8) | (jpeg[app1 + 3] & 0xff);
+            resume = Math.min(end, app1 + 2 + segmentLength);
+        }
+        byte[] out = new byte[mHeader.length + head + (end - resume)];
+        System.arraycopy(mHeader, 0, out, 0, mHeader.length);
+        if (!patch(out, frame)) {
+            return null;
+        }
+        System.arraycopy(jpeg, offset + 2, out, mHeader.length, head);
+        System.arraycopy(jpeg, resume, out, mHeader.length + head, end - resume);
+        return out;
+    }
+
+    private boolean patch(byte[] out, Frame frame) {
+        if (!formatDateTime(frame.mDateTime, frame.mTimeZone, out, mDateTimePos)) {
+            return false;
+        }
+        putShort(out, mOrientationPos, ExifInterface.getOrientationTagValue(frame.mOrientation));
+        if (mFlashPos >= 0) {
+            putShort(out, mFlashPos, frame.mFlashFired
+                    ? ExifInterface.Flash.FIRED : ExifInterface.Flash.DID_NOT_FIRED);
+        }
+        if (mWhiteBalancePos >= 0) {
+            putShort(out, mWhiteBalancePos,
+                    frame.mWhiteBalanceMode == CaptureResult.CONTROL_AWB_MODE_AUTO
+                    ? ExifInterface.WhiteBalance.AUTO : ExifInterface.WhiteBalance.MANUAL);
+        }
+        if (mIsoPos >= 0) {
+            putShort(out, mIsoPos, frame.mIso);
+        }
+        if (mFocalLengthPos >= 0) {
+            putRational(out, mFocalLengthPos, frame.mFocalLengthNum, frame.mFocalLengthDen);
+        }
+        if (mAperturePos >= 0) {
+            putRational(out, mAperturePos, frame.mApertureNum, frame.mApertureDen);
+        }
+        if (mExposureTimePos >= 0) {
+            putRational(out, mExposureTimePos, frame.mExposureTimeNum, frame.mExposureTimeDen);
+        }
+        return true;
+    }
+
+    private synchronized boolean formatDateTime(long dateTime, TimeZone timeZone,
+            byte[] out, int pos) {
+        long second = dateTime >= 0 ? dateTime / 1000 : (dateTime - 999) / 1000;
+        if (second != mDateTimeSecond || timeZone != mDateTimeZone) {
+            mDateFormat.setTimeZone(timeZone);
+            mDate.setTime(dateTime);
+            String value = mDateFormat.format(mDate);
+            if (value.length() != DATE_TIME_LENGTH) {
+                mDateTimeSecond = Long.MIN_VALUE;
+                return false;
+            }
+            for (int i = 0; i < DATE_TIME_LENGTH; i++) {
+                mDateTime[i] = (byte) value.charAt(i);
+            }
+            mDateTimeSecond = second;
+            mDateTimeZone = timeZone;
+        }
+        System.arraycopy(mDateTime, 0, out, pos, DATE_TIME_LENGTH);
+        return true;
+    }
+
+    private void putShort(byte[] out, int pos, int value) {
+        if (mBigEndian) {
+            out[pos] = (byte) (value >> 8);
+            out[pos + 1] = (byte) value;
+        } else {
+            out[pos] = (byte) value;
+            out[pos + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private void putInt(byte[] out, int pos, int value) {
+        if (mBigEndian) {
+            out[pos] = (byte) (value >> 24);
+            out[pos + 1] = (byte) (value >> 16);
+            out[pos + 2] = (byte) (value >> 8);
+            out[pos + 3] = (byte) value;
+        } else {
+            out[pos] = (byte) value;
+            out[pos + 1] = (byte) (value >> 8);
+            out[pos + 2] = (byte) (value >> 16);
+            out[pos + 3] = (byte) (value >> 24);
+        }
+    }
+
+    private void putRational(byte[] out, int pos, long numerator, long denominator) {
+        putInt(out, pos, (int) numerator);
+        putInt(out, pos + 4, (int) denominator);
+    }
+}
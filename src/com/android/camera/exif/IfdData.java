@@ -16,11 +16,24 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * This class stores all the tags in an IFD.
+ * <p>
+ * Entries are kept in a sorted array of primitive tag ids with parallel
+ * type, count and offset arrays, and all values live in one backing byte
+ * array (big-endian, in their EXIF encoding). Lookups are a binary search
+ * without boxing, and {@link ExifOutputStream} serializes the entries by index
+ * straight from the arrays in the ascending order required by the EXIF
+ * specification.
+ * <p>
+ * An {@link ExifTag} added with {@link #setTag(ExifTag)} becomes a view over
+ * its entry: its value is copied into the backing array, and later reads and
+ * writes through the tag go to that entry. The set methods used by
+ * {@link ExifInterface} for the per-capture tags write into the backing array
+ * without creating a tag at all; a view is then created the first time the
+ * entry is asked for.
  *
  * @see ExifData
  * @see ExifTag
@@ -28,7 +41,25 @@ import java.util.Map;
 class IfdData {
 
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    // Enough for the tags the camera writes into IFD0 / Exif IFD per capture.
+    private static final int INITIAL_CAPACITY = 16;
+    // Enough for the values of those tags, make and model included.
+    private static final int INITIAL_VALUE_CAPACITY = 256;
+    private static final int NO_VALUE = -1;
+
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private short[] mTypes = new short[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private boolean[] mDefinedCounts = new boolean[INITIAL_CAPACITY];
+    // Offset of the value in the exif header, for values larger than 4 bytes.
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    // Position and size in bytes of each value in mValues, or NO_VALUE.
+    private int[] mValuePositions = new int[INITIAL_CAPACITY];
+    private int[] mValueSizes = new int[INITIAL_CAPACITY];
+    private ExifTag[] mViews = new ExifTag[INITIAL_CAPACITY];
+    private byte[] mValues = new byte[INITIAL_VALUE_CAPACITY];
+    private int mValuesSize = 0;
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -55,7 +86,26 @@ class IfdData {
      * Get a array the contains all {@link ExifTag} in this IFD.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        ExifTag[] tags = new ExifTag[mTagCount];
+        for (int i = 0; i < mTagCount; i++) {
+            tags[i] = getTagAt(i);
+        }
+        return tags;
+    }
+
+    /**
+     * Gets the {@link ExifTag} at the given position. Tags are ordered by
+     * ascending tag id; valid positions are 0 to {@link #getTagCount()} - 1.
+     */
+    protected ExifTag getTagAt(int index) {
+        ExifTag tag = mViews[index];
+        if (tag == null) {
+            tag = new ExifTag(mTagIds[index], mTypes[index], mCounts[index], mIfdId,
+                    mDefinedCounts[index]);
+            tag.attach(this);
+            mViews[index] = tag;
+        }
+        return tag;
     }
 
     /**
@@ -76,33 +126,494 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return index >= 0 ? getTagAt(index) : null;
     }
 
     /**
-     * Adds or replaces a {@link ExifTag}.
+     * Adds or replaces a {@link ExifTag}. The tag's value is copied into this
+     * IFD and the tag becomes a view over it.
      */
     protected ExifTag setTag(ExifTag tag) {
+        short tagId = tag.getTagId();
+        int index = indexOf(tagId);
+        ExifTag old = null;
+        if (index >= 0) {
+            if (mViews[index] == tag) {
+                return tag;
+            }
+            old = detach(index);
+        } else {
+            index = insert(-(index + 1), tagId);
+        }
+        Object value = tag.getValue();
+        IfdData store = tag.getStore();
+        if (store != null) {
+            // The other IFD keeps its own copy of the value.
+            store.releaseView(tagId);
+        }
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        mTypes[index] = tag.getDataType();
+        mCounts[index] = tag.getComponentCount();
+        mDefinedCounts[index] = tag.hasDefinedCount();
+        mOffsets[index] = tag.getOffset();
+        putValue(index, value);
+        mViews[index] = tag;
+        tag.attach(this);
+        return old;
+    }
+
+    /**
+     * Sets a single integer value for the given tag without creating an
+     * {@link ExifTag}. The caller has checked the value against the type.
+     */
+    protected void setLong(short tagId, short type, long value, boolean definedCount) {
+        int index = prepare(tagId, type, 1, definedCount);
+        putLong(index, value);
+    }
+
+    /**
+     * Sets a single rational value for the given tag without creating an
+     * {@link ExifTag}. The caller has checked the value against the type.
+     */
+    protected void setRational(short tagId, short type, long numerator, long denominator,
+            boolean definedCount) {
+        int index = prepare(tagId, type, 1, definedCount);
+        putRational(index, numerator, denominator);
+    }
+
+    /**
+     * Sets an {@link ExifTag#TYPE_ASCII} value of count bytes, NUL padded,
+     * without creating an {@link ExifTag}. The caller has checked that the
+     * string is 7-bit ASCII and shorter than count.
+     */
+    protected void setAscii(short tagId, String value, int count, boolean definedCount) {
+        int index = prepare(tagId, ExifTag.TYPE_ASCII, count, definedCount);
+        int pos = reserve(index, count);
+        int length = value.length();
+        for (int i = 0; i < count; i++) {
+            mValues[pos + i] = i < length ? (byte) value.charAt(i) : 0;
+        }
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        detach(index);
+        int tail = mTagCount - index - 1;
+        if (tail > 0) {
+            System.arraycopy(mTagIds, index + 1, mTagIds, index, tail);
+            System.arraycopy(mTypes, index + 1, mTypes, index, tail);
+            System.arraycopy(mCounts, index + 1, mCounts, index, tail);
+            System.arraycopy(mDefinedCounts, index + 1, mDefinedCounts, index, tail);
+            System.arraycopy(mOffsets, index + 1, mOffsets, index, tail);
+            System.arraycopy(mValuePositions, index + 1, mValuePositions, index, tail);
+            System.arraycopy(mValueSizes, index + 1, mValueSizes, index, tail);
+            System.arraycopy(mViews, index + 1, mViews, index, tail);
+        }
+        mTagCount--;
+        mViews[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Gets the tag id of the entry at the given position.
+     */
+    protected short getTagIdAt(int index) {
+        return mTagIds[index];
+    }
+
+    /**
+     * Gets the data type of the entry at the given position.
+     */
+    protected short getDataTypeAt(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * Gets the component count of the entry at the given position.
+     */
+    protected int getComponentCountAt(int index) {
+        return mCounts[index];
+    }
+
+    /**
+     * Gets the size in bytes the entry at the given position takes in the
+     * exif header.
+     */
+    protected int getDataSizeAt(int index) {
+        return mCounts[index] * ExifTag.getElementSize(mTypes[index]);
+    }
+
+    /**
+     * Gets the offset in the exif header of the value of the entry at the
+     * given position.
+     */
+    protected int getOffsetAt(int index) {
+        return mOffsets[index];
+    }
+
+    protected void setOffsetAt(int index, int offset) {
+        mOffsets[index] = offset;
+    }
+
+    protected boolean hasValueAt(int index) {
+        return mValuePositions[index] != NO_VALUE;
+    }
+
+    /**
+     * Gets the backing array of the values. The value of the entry at a
+     * position is {@link #getValueSizeAt} bytes at {@link #getValuePositionAt}.
+     */
+    protected byte[] getValueBuffer() {
+        return mValues;
+    }
+
+    protected int getValuePositionAt(int index) {
+        return mValuePositions[index];
+    }
+
+    protected int getValueSizeAt(int index) {
+        return mValueSizes[index];
+    }
+
+    /**
+     * Gets the element at the given position of an integer or byte value.
+     * Unsigned types are returned unsigned, except bytes which are returned
+     * sign-extended as {@link ExifTag#getValueAt(int)} always did.
+     */
+    protected long getLongAt(int index, int element) {
+        int size = ExifTag.getElementSize(mTypes[index]);
+        if (element < 0 || (element + 1) * size > mValueSizes[index]) {
+            throw new ArrayIndexOutOfBoundsException(element);
+        }
+        int pos = mValuePositions[index] + element * size;
+        switch (mTypes[index]) {
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return readShort(mValues, pos) & 0xffff;
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return readInt(mValues, pos) & 0xffffffffL;
+            case ExifTag.TYPE_LONG:
+                return readInt(mValues, pos);
+            default:
+                return mValues[pos];
+        }
+    }
+
+    /*
+     * Accessors used by the ExifTag views.
+     */
+
+    boolean hasValue(short tagId) {
+        int index = indexOf(tagId);
+        return index >= 0 && hasValueAt(index);
+    }
+
+    Object getValue(short tagId) {
+        int index = indexOf(tagId);
+        return index >= 0 ? decode(index) : null;
+    }
+
+    long getLong(short tagId, int element) {
+        return getLongAt(indexOf(tagId), element);
+    }
+
+    void putValue(short tagId, Object value, int count) {
+        int index = indexOf(tagId);
+        mCounts[index] = count;
+        putValue(index, value);
+    }
+
+    void putLong(short tagId, long value) {
+        int index = indexOf(tagId);
+        mCounts[index] = 1;
+        putLong(index, value);
+    }
+
+    void putRational(short tagId, long numerator, long denominator) {
+        int index = indexOf(tagId);
+        mCounts[index] = 1;
+        putRational(index, numerator, denominator);
+    }
+
+    void setComponentCount(short tagId, int count) {
+        mCounts[indexOf(tagId)] = count;
+    }
+
+    int getOffset(short tagId) {
+        return mOffsets[indexOf(tagId)];
+    }
+
+    void setOffset(short tagId, int offset) {
+        mOffsets[indexOf(tagId)] = offset;
+    }
+
+    /**
+     * Forgets the view of an entry, which keeps its value here, because the
+     * tag has been added to another IFD.
+     */
+    void releaseView(short tagId) {
+        int index = indexOf(tagId);
+        if (index >= 0) {
+            mViews[index] = null;
+        }
+    }
+
+    /**
+     * Finds or inserts the entry for a tag set without an {@link ExifTag}.
+     * A view of an existing entry is detached so it keeps the old value, as
+     * a replaced tag would.
+     */
+    private int prepare(short tagId, short type, int count, boolean definedCount) {
+        int index = indexOf(tagId);
+        if (index >= 0) {
+            detach(index);
+        } else {
+            index = insert(-(index + 1), tagId);
+        }
+        mTypes[index] = type;
+        mCounts[index] = count;
+        mDefinedCounts[index] = definedCount;
+        mOffsets[index] = 0;
+        return index;
+    }
+
+    /**
+     * Turns the view of an entry back into a standalone tag holding a copy of
+     * the value, and returns it.
+     */
+    private ExifTag detach(int index) {
+        ExifTag tag = mViews[index];
+        if (tag != null) {
+            tag.detach(tag.getValue(), mOffsets[index]);
+            mViews[index] = null;
+        }
+        mValuePositions[index] = NO_VALUE;
+        mValueSizes[index] = 0;
+        return tag;
+    }
+
+    private int insert(int index, short tagId) {
+        if (mTagCount == mTagIds.length) {
+            int capacity = mTagIds.length * 2;
+            mTagIds = Arrays.copyOf(mTagIds, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mDefinedCounts = Arrays.copyOf(mDefinedCounts, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mValuePositions = Arrays.copyOf(mValuePositions, capacity);
+            mValueSizes = Arrays.copyOf(mValueSizes, capacity);
+            mViews = Arrays.copyOf(mViews, capacity);
+        }
+        int tail = mTagCount - index;
+        if (tail > 0) {
+            System.arraycopy(mTagIds, index, mTagIds, index + 1, tail);
+            System.arraycopy(mTypes, index, mTypes, index + 1, tail);
+            System.arraycopy(mCounts, index, mCounts, index + 1, tail);
+            System.arraycopy(mDefinedCounts, index, mDefinedCounts, index + 1, tail);
+            System.arraycopy(mOffsets, index, mOffsets, index + 1, tail);
+            System.arraycopy(mValuePositions, index, mValuePositions, index + 1, tail);
+            System.arraycopy(mValueSizes, index, mValueSizes, index + 1, tail);
+            System.arraycopy(mViews, index, mViews, index + 1, tail);
+        }
+        mTagIds[index] = tagId;
+        mValuePositions[index] = NO_VALUE;
+        mValueSizes[index] = 0;
+        mViews[index] = null;
+        mTagCount++;
+        return index;
+    }
+
+    /**
+     * Returns the position of size bytes for the value of an entry. The old
+     * value's bytes are reused when they are large enough.
+     */
+    private int reserve(int index, int size) {
+        int pos = mValuePositions[index];
+        if (pos != NO_VALUE && mValueSizes[index] >= size) {
+            mValueSizes[index] = size;
+            return pos;
+        }
+        mValuePositions[index] = NO_VALUE;
+        mValueSizes[index] = 0;
+        if (mValuesSize + size > mValues.length) {
+            compact(size);
+        }
+        pos = mValuesSize;
+        mValuesSize += size;
+        mValuePositions[index] = pos;
+        mValueSizes[index] = size;
+        return pos;
+    }
+
+    /**
+     * Drops the bytes of replaced and removed values, growing the backing
+     * array if extra bytes still do not fit.
+     */
+    private void compact(int extra) {
+        int live = 0;
+        for (int i = 0; i < mTagCount; i++) {
+            live += mValueSizes[i];
+        }
+        int capacity = mValues.length;
+        while (capacity < live + extra) {
+            capacity *= 2;
+        }
+        byte[] values = new byte[capacity];
+        int pos = 0;
+        for (int i = 0; i < mTagCount; i++) {
+            if (mValuePositions[i] != NO_VALUE) {
+                System.arraycopy(mValues, mValuePositions[i], values, pos, mValueSizes[i]);
+                mValuePositions[i] = pos;
+                pos += mValueSizes[i];
+            }
+        }
+        mValues = values;
+        mValuesSize = pos;
+    }
+
+    private void putValue(int index, Object value) {
+        if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            int pos = reserve(index, bytes.length);
+            System.arraycopy(bytes, 0, mValues, pos, bytes.length);
+        } else if (value instanceof long[]) {
+            long[] longs = (long[]) value;
+            int size = ExifTag.getElementSize(mTypes[index]);
+            int pos = reserve(index, longs.length * size);
+            for (long l : longs) {
+                writeElement(pos, size, l);
+                pos += size;
+            }
+        } else if (value instanceof Rational[]) {
+            Rational[] rationals = (Rational[]) value;
+            int pos = reserve(index, rationals.length * 8);
+            for (Rational r : rationals) {
+                writeInt(mValues, pos, (int) r.getNumerator());
+                writeInt(mValues, pos + 4, (int) r.getDenominator());
+                pos += 8;
+            }
+        } else {
+            mValuePositions[index] = NO_VALUE;
+            mValueSizes[index] = 0;
+        }
+    }
+
+    private void putLong(int index, long value) {
+        int size = ExifTag.getElementSize(mTypes[index]);
+        writeElement(reserve(index, size), size, value);
+    }
+
+    private void putRational(int index, long numerator, long denominator) {
+        int pos = reserve(index, 8);
+        writeInt(mValues, pos, (int) numerator);
+        writeInt(mValues, pos + 4, (int) denominator);
+    }
+
+    private void writeElement(int pos, int size, long value) {
+        if (size == 2) {
+            writeShort(mValues, pos, (short) value);
+        } else if (size == 4) {
+            writeInt(mValues, pos, (int) value);
+        } else {
+            mValues[pos] = (byte) value;
+        }
+    }
+
+    /**
+     * Decodes the value of an entry into the form a standalone
+     * {@link ExifTag} holds: byte[], long[] or Rational[].
+     */
+    private Object decode(int index) {
+        int pos = mValuePositions[index];
+        if (pos == NO_VALUE) {
+            return null;
+        }
+        int size = mValueSizes[index];
+        short type = mTypes[index];
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+            case ExifTag.TYPE_UNSIGNED_LONG:
+            case ExifTag.TYPE_LONG:
+                long[] longs = new long[size / ExifTag.getElementSize(type)];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = getLongAt(index, i);
+                }
+                return longs;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+            case ExifTag.TYPE_RATIONAL:
+                Rational[] rationals = new Rational[size / 8];
+                for (int i = 0; i < rationals.length; i++) {
+                    long numerator = readInt(mValues, pos + i * 8);
+                    long denominator = readInt(mValues, pos + i * 8 + 4);
+                    if (type == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+                        numerator &= 0xffffffffL;
+                        denominator &= 0xffffffffL;
+                    }
+                    rationals[i] = new Rational(numerator, denominator);
+                }
+                return rationals;
+            default:
+                return Arrays.copyOfRange(mValues, pos, pos + size);
+        }
+    }
+
+    static short readShort(byte[] buf, int pos) {
+        return (short) ((buf[pos] << 8) | (buf[pos + 1] & 0xff));
+    }
+
+    static int readInt(byte[] buf, int pos) {
+        return (buf[pos] << 24) | ((buf[pos + 1] & 0xff) << 16)
+                | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+    }
+
+    private static void writeShort(byte[] buf, int pos, short value) {
+        buf[pos] = (byte) (value >> 8);
+        buf[pos + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 24);
+        buf[pos + 1] = (byte) (value >> 16);
+        buf[pos + 2] = (byte) (value >> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Binary search over the tag ids, compared as unsigned 16-bit values.
+     * Returns the position of the tag, or (-(insertion point) - 1).
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int lo = 0;
+        int hi = mTagCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
     }
 
     /**
@@ -134,13 +645,13 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
-                    if (ExifInterface.isOffsetTag(tag.getTagId())) {
+                for (int i = 0, n = data.getTagCount(); i < n; i++) {
+                    short tagId = data.mTagIds[i];
+                    if (ExifInterface.isOffsetTag(tagId)) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
-                    if (!tag.equals(tag2)) {
+                    int j = indexOf(tagId);
+                    if (j < 0 || !data.entryEquals(i, this, j)) {
                         return false;
                     }
                 }
@@ -149,4 +660,18 @@ class IfdData {
         }
         return false;
     }
+
+    private boolean entryEquals(int i, IfdData other, int j) {
+        if (mTypes[i] != other.mTypes[j] || mCounts[i] != other.mCounts[j]
+                || mValueSizes[i] != other.mValueSizes[j]
+                || hasValueAt(i) != other.hasValueAt(j)) {
+            return false;
+        }
+        for (int k = 0, n = mValueSizes[i]; k < n; k++) {
+            if (mValues[mValuePositions[i] + k] != other.mValues[other.mValuePositions[j] + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -35,6 +35,12 @@ public class OrderedDataOutputStream extends FilterOutputStream {
         return this;
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would push this through write(int) byte by byte.
+        out.write(b, off, len);
+    }
+
     public OrderedDataOutputStream writeShort(short value) throws IOException {
         mByteBuffer.rewind();
         mByteBuffer.putShort(value);
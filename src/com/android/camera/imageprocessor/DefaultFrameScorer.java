@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.Face;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Default ZSL frame scorer.
+ *
+ * Image: variance of a 4-neighbour Laplacian at a grid of at most
+ * MAX_SAMPLES luma points, so the cost does not grow with the sensor size.
+ * Metadata: a penalty proportional to the exposure time as a motion blur
+ * proxy, plus a bonus when faces are detected.
+ */
+public class DefaultFrameScorer implements FrameScorer {
+    private static final int MAX_SAMPLES = 4096;
+    private static final float SHARPNESS_WEIGHT = 1.0f;
+    private static final float EXPOSURE_PENALTY_PER_MS = 0.05f;
+    private static final float FACE_BONUS = 1.0f;
+
+    @Override
+    public float scoreImage(Image image) {
+        Image.Plane y = image.getPlanes()[0];
+        double variance = laplacianVariance(y.getBuffer(), image.getWidth(), image.getHeight(),
+                y.getRowStride(), y.getPixelStride(), MAX_SAMPLES);
+        return SHARPNESS_WEIGHT * (float) Math.log1p(variance);
+    }
+
+    @Override
+    public float scoreMetadata(TotalCaptureResult result) {
+        float score = 0f;
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (exposure != null) {
+            score -= EXPOSURE_PENALTY_PER_MS * (exposure / 1000000f);
+        }
+        Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
+        if (faces != null && faces.length > 0) {
+            score += FACE_BONUS;
+        }
+        return score;
+    }
+
+    /**
+     * Variance of the Laplacian of the luma plane, evaluated at the points of
+     * a regular grid. The neighbours of each point are the adjacent pixels, so
+     * the estimate responds to blur of a few pixels whatever the grid spacing.
+     * Absolute reads leave the buffer position untouched.
+     */
+    public static double laplacianVariance(ByteBuffer y, int width, int height,
+            int rowStride, int pixelStride, int maxSamples) {
+        if (width < 3 || height < 3) {
+            return 0;
+        }
+        int step = Math.max(1, (int) Math.ceil(Math.sqrt((double) width * height / maxSamples)));
+        int start = Math.max(1, step / 2);
+        long sum = 0;
+        long sumSq = 0;
+        int count = 0;
+        for (int row = start; row < height - 1; row += step) {
+            int base = row * rowStride;
+            for (int col = start; col < width - 1; col += step) {
+                int center = base + col * pixelStride;
+                int lap = 4 * (y.get(center) & 0xff)
+                        - (y.get(center - pixelStride) & 0xff)
+                        - (y.get(center + pixelStride) & 0xff)
+                        - (y.get(center - rowStride) & 0xff)
+                        - (y.get(center + rowStride) & 0xff);
+                sum += lap;
+                sumSq += lap * lap;
+                count++;
+            }
+        }
+        double mean = (double) sum / count;
+        return (double) sumSq / count - mean * mean;
+    }
+}
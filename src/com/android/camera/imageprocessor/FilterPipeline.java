@@ -0,0 +1,265 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged executor for PostProcessor multi-frame captures.
+ *
+ *   INGEST  - one thread, FIFO. Filter init and per-frame hand-off.
+ *   ADD     - pool used for ImageFilter.addImage() when the filter declares
+ *             it thread-safe, otherwise adds run inline on INGEST.
+ *   PROCESS - one thread. ImageFilter.processImage() once a burst's adds are in.
+ *   ENCODE  - pool. JPEG encoding, EXIF and hand-off to MediaSaveService.
+ *
+ * Each stage has a bounded queue. Camera callback threads use trySubmit(),
+ * which drops and logs the task when the queue is full so frame intake is
+ * never stalled; hand-offs between stages use submit(), which waits for room
+ * and returns false if the stage was shut down, leaving cleanup to the caller.
+ * With the stages split, burst N+1 can be ingested and filtered while burst N
+ * is still being encoded.
+ */
+public class FilterPipeline {
+    private static final String TAG = "FilterPipeline";
+
+    public static final int STAGE_INGEST = 0;
+    public static final int STAGE_ADD = 1;
+    public static final int STAGE_PROCESS = 2;
+    public static final int STAGE_ENCODE = 3;
+    private static final String[] STAGE_NAMES = {"Ingest", "Add", "Process", "Encode"};
+
+    // For all stages together
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    private final ThreadPoolExecutor[] mStages = new ThreadPoolExecutor[STAGE_NAMES.length];
+
+    /**
+     * Tracks one capture through the stages so PROCESS can wait for the last
+     * add and the next burst can wait for an encode that still reads
+     * filter-owned output.
+     */
+    public static class Burst {
+        private volatile Burst mPrevious;
+        private int mPendingAdds;
+        private boolean mEncoded;
+        private volatile boolean mFilterOwnedResult;
+        private volatile boolean mFailed;
+
+        Burst(Burst previous) {
+            mPrevious = previous;
+        }
+
+        public synchronized void addStarted() {
+            mPendingAdds++;
+        }
+
+        public synchronized void addDone() {
+            mPendingAdds--;
+            notifyAll();
+        }
+
+        public synchronized boolean awaitAdds(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (mPendingAdds > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* Marks the burst as missing a frame, so it must not be processed */
+        public void fail() {
+            mFailed = true;
+        }
+
+        public boolean isFailed() {
+            return mFailed;
+        }
+
+        public void setFilterOwnedResult(boolean filterOwned) {
+            mFilterOwnedResult = filterOwned;
+        }
+
+        public synchronized void encodeDone() {
+            mEncoded = true;
+            notifyAll();
+        }
+
+        private synchronized boolean awaitEncoded(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!mEncoded) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* Waits until the previous burst no longer reads filter-owned output */
+        public boolean awaitPreviousEncode(long timeoutMs) {
+            Burst previous = mPrevious;
+            // Drop the link so finished bursts do not chain up in memory.
+            mPrevious = null;
+            if (previous == null || !previous.mFilterOwnedResult) {
+                return true;
+            }
+            return previous.awaitEncoded(timeoutMs);
+        }
+    }
+
+    private Burst mLastBurst;
+
+    public FilterPipeline(int addThreads, int encodeThreads, int queueCapacity) {
+        int[] threads = {1, addThreads, 1, encodeThreads};
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new ThreadPoolExecutor(threads[i], threads[i], 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new StageThreadFactory(STAGE_NAMES[i]));
+        }
+    }
+
+    public static FilterPipeline createDefault(int queueCapacity) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new FilterPipeline(Math.max(1, cores - 2), Math.min(2, cores), queueCapacity);
+    }
+
+    public synchronized Burst newBurst() {
+        mLastBurst = new Burst(mLastBurst);
+        return mLastBurst;
+    }
+
+    /**
+     * Queues the task, waiting for room if the stage is full. Returns false,
+     * and the task is not run, if the stage is shut down or the caller is
+     * interrupted; the caller then owns whatever the task would have released.
+     */
+    public boolean submit(int stage, Runnable task) {
+        ThreadPoolExecutor executor = mStages[stage];
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // full or shut down
+        }
+        try {
+            while (!executor.isShutdown()) {
+                if (executor.getQueue().offer(task, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.w(TAG, STAGE_NAMES[stage] + " stage is shut down, dropping task");
+        return false;
+    }
+
+    /**
+     * Queues the task without blocking. Returns false, and the task is not
+     * run, if the stage is full or shut down.
+     */
+    public boolean trySubmit(int stage, Runnable task) {
+        ThreadPoolExecutor executor = mStages[stage];
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, STAGE_NAMES[stage] + (executor.isShutdown() ? " stage is shut down"
+                    : " queue is full") + ", dropping task");
+            return false;
+        }
+    }
+
+    public int getQueueDepth(int stage) {
+        return mStages[stage].getQueue().size();
+    }
+
+    /* Lets queued work drain, then stops the workers */
+    public void shutdown() {
+        for (ThreadPoolExecutor stage : mStages) {
+            stage.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+        for (int i = 0; i < mStages.length; i++) {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            try {
+                if (!mStages[i].awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, STAGE_NAMES[i] + " stage did not finish in time");
+                    mStages[i].shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                mStages[i].shutdownNow();
+            }
+        }
+        synchronized (this) {
+            mLastBurst = null;
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        StageThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    r.run();
+                }
+            }, "PostProcessor" + mName + "-" + mCount.getAndIncrement());
+        }
+    }
+}
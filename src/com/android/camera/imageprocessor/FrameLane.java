@@ -0,0 +1,99 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer queue of timestamped frames.
+ * Offering and polling are wait-free; a full lane rejects the frame and the
+ * producer is expected to release it.
+ */
+public class FrameLane<T> {
+    private final long[] mTimestamps;
+    private final float[] mScores;
+    private final Object[] mItems;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    private long mPolledTimestamp;
+    private float mPolledScore;
+
+    public FrameLane(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mTimestamps = new long[size];
+        mScores = new float[size];
+        mItems = new Object[size];
+        mMask = size - 1;
+    }
+
+    /* Called only from the producer thread */
+    public boolean offer(long timestamp, float score, T item) {
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mItems.length) {
+            return false;
+        }
+        int i = (int) tail & mMask;
+        mTimestamps[i] = timestamp;
+        mScores[i] = score;
+        mItems[i] = item;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /* Called only from the consumer thread, returns null when the lane is empty */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        int i = (int) head & mMask;
+        T item = (T) mItems[i];
+        mPolledTimestamp = mTimestamps[i];
+        mPolledScore = mScores[i];
+        mItems[i] = null;
+        mHead.lazySet(head + 1);
+        return item;
+    }
+
+    /* Timestamp of the item most recently returned by poll() */
+    public long polledTimestamp() {
+        return mPolledTimestamp;
+    }
+
+    /* Score of the item most recently returned by poll() */
+    public float polledScore() {
+        return mPolledScore;
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+}
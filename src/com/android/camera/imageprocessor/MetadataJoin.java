@@ -0,0 +1,298 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Joins capture results with the frames of a shot.
+ *
+ * Each shot gets a Capture that keys results by frame number. The frames of
+ * the shot are registered as they start, so the index-th frame is the
+ * index-th frame number the shot produced no matter in which order results
+ * and failures arrive. Waiters block on the slot for the index they need and
+ * are woken as soon as that result (or its failure) arrives, instead of
+ * polling. Every wait ends at a fixed deadline measured from when it started.
+ */
+public class MetadataJoin<T> {
+    /* Log2 buckets in milliseconds: <1, <2, <4 ... <512, and >=512 */
+    public static final int HISTOGRAM_BUCKETS = 11;
+
+    private final int mMaxResults;
+    private final AtomicLongArray mWaitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private volatile Capture<T> mCurrent;
+    // Highest frame number started or delivered so far. Written on the callback
+    // thread, read by beginCapture() on the capture thread.
+    private volatile long mLastFrameNumber = -1;
+
+    public MetadataJoin(int maxResults) {
+        mMaxResults = maxResults;
+    }
+
+    /* Starts a new shot; results of older frames are no longer accepted */
+    public Capture<T> beginCapture() {
+        Capture<T> capture = new Capture<T>(this, mMaxResults, mLastFrameNumber);
+        Capture<T> previous = mCurrent;
+        mCurrent = capture;
+        if (previous != null) {
+            previous.cancel();
+        }
+        return capture;
+    }
+
+    public Capture<T> getCurrentCapture() {
+        return mCurrent;
+    }
+
+    /* Registers a frame of the current shot, in the order frames start */
+    public void onStarted(long frameNumber) {
+        advance(frameNumber);
+        Capture<T> capture = mCurrent;
+        if (capture != null) {
+            capture.start(frameNumber);
+        }
+    }
+
+    public void onResult(long frameNumber, T result) {
+        deliver(frameNumber, result);
+    }
+
+    public void onFailure(long frameNumber) {
+        deliver(frameNumber, null);
+    }
+
+    private void advance(long frameNumber) {
+        if (frameNumber > mLastFrameNumber) {
+            mLastFrameNumber = frameNumber;
+        }
+    }
+
+    private void deliver(long frameNumber, T result) {
+        advance(frameNumber);
+        Capture<T> capture = mCurrent;
+        if (capture != null) {
+            capture.deliver(frameNumber, result);
+        }
+    }
+
+    public void close() {
+        Capture<T> capture = mCurrent;
+        mCurrent = null;
+        if (capture != null) {
+            capture.cancel();
+        }
+    }
+
+    /* Returns a copy of the wait time histogram, see HISTOGRAM_BUCKETS */
+    public long[] getWaitHistogram() {
+        long[] counts = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            counts[i] = mWaitHistogram.get(i);
+        }
+        return counts;
+    }
+
+    public String dumpWaitHistogram() {
+        StringBuilder sb = new StringBuilder("meta wait ms:");
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            sb.append(i == HISTOGRAM_BUCKETS - 1 ? " >=" : " <").append(1 << i)
+                    .append('=').append(mWaitHistogram.get(i));
+        }
+        return sb.toString();
+    }
+
+    static int bucketOf(long waitNs) {
+        long ms = waitNs / 1000000L;
+        int bucket = 0;
+        while (ms > 0 && bucket < HISTOGRAM_BUCKETS - 1) {
+            ms >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private void recordWait(long waitNs) {
+        mWaitHistogram.incrementAndGet(bucketOf(waitNs));
+    }
+
+    public static class Capture<T> {
+        private static final byte PENDING = 0;
+        private static final byte ARRIVED = 1;
+        private static final byte FAILED = 2;
+
+        private final MetadataJoin<T> mJoin;
+        private final long mStartFrameNumber;
+        // Slots sorted by frame number, the index of a slot is the frame's index in the shot
+        private final long[] mFrameNumbers;
+        private final Object[] mResults;
+        private final byte[] mStates;
+        private int mCount;
+        private int mResultCount;
+        private boolean mCancelled;
+        private long mTotalWaitNs;
+        private long mMaxWaitNs;
+
+        Capture(MetadataJoin<T> join, int maxResults, long startFrameNumber) {
+            mJoin = join;
+            mStartFrameNumber = startFrameNumber;
+            mFrameNumbers = new long[maxResults];
+            mResults = new Object[maxResults];
+            mStates = new byte[maxResults];
+        }
+
+        synchronized void start(long frameNumber) {
+            if (!mCancelled && frameNumber > mStartFrameNumber) {
+                slotOf(frameNumber);
+            }
+        }
+
+        synchronized void deliver(long frameNumber, T result) {
+            if (mCancelled || frameNumber <= mStartFrameNumber) {
+                return;
+            }
+            int slot = slotOf(frameNumber);
+            if (slot < 0 || mStates[slot] != PENDING) {
+                return;
+            }
+            mResults[slot] = result;
+            mStates[slot] = result == null ? FAILED : ARRIVED;
+            mResultCount++;
+            notifyAll();
+        }
+
+        /*
+         * Finds the slot of frameNumber, inserting a pending one in frame
+         * number order if the frame is new. Returns -1 if the shot is full.
+         */
+        private int slotOf(long frameNumber) {
+            int slot = mCount;
+            while (slot > 0 && mFrameNumbers[slot - 1] >= frameNumber) {
+                slot--;
+            }
+            if (slot < mCount && mFrameNumbers[slot] == frameNumber) {
+                return slot;
+            }
+            if (mCount == mFrameNumbers.length) {
+                return -1;
+            }
+            int tail = mCount - slot;
+            System.arraycopy(mFrameNumbers, slot, mFrameNumbers, slot + 1, tail);
+            System.arraycopy(mResults, slot, mResults, slot + 1, tail);
+            System.arraycopy(mStates, slot, mStates, slot + 1, tail);
+            mFrameNumbers[slot] = frameNumber;
+            mResults[slot] = null;
+            mStates[slot] = PENDING;
+            mCount++;
+            return slot;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits up to timeoutMs for the result of the index-th frame of the shot.
+         * Falls back to the first result, as the old polling code did, when the
+         * requested one failed or did not show up in time.
+         */
+        public T await(int index, long timeoutMs) {
+            long start = System.nanoTime();
+            long deadline = start + timeoutMs * 1000000L;
+            T result;
+            synchronized (this) {
+                long remaining = deadline - start;
+                while (!isResolvedLocked(index) && !mCancelled && remaining > 0) {
+                    try {
+                        wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+                result = getLocked(index);
+                if (result == null) {
+                    result = firstAvailableLocked();
+                }
+                long waited = System.nanoTime() - start;
+                mTotalWaitNs += waited;
+                if (waited > mMaxWaitNs) {
+                    mMaxWaitNs = waited;
+                }
+                mJoin.recordWait(waited);
+            }
+            return result;
+        }
+
+        /* Non-blocking; null if the index-th result has not arrived or failed */
+        public synchronized T get(int index) {
+            return getLocked(index);
+        }
+
+        /* Frame number of the index-th frame of the shot, or -1 if not known yet */
+        public synchronized long getFrameNumber(int index) {
+            return index >= 0 && index < mCount ? mFrameNumbers[index] : -1;
+        }
+
+        /* Results and failures received so far */
+        public synchronized int getResultCount() {
+            return mResultCount;
+        }
+
+        public synchronized long getTotalWaitNs() {
+            return mTotalWaitNs;
+        }
+
+        public synchronized long getMaxWaitNs() {
+            return mMaxWaitNs;
+        }
+
+        private boolean isResolvedLocked(int index) {
+            return index >= 0 && index < mCount && mStates[index] != PENDING;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T getLocked(int index) {
+            if (!isResolvedLocked(index)) {
+                return null;
+            }
+            return (T) mResults[index];
+        }
+
+        private T firstAvailableLocked() {
+            for (int i = 0; i < mCount; i++) {
+                if (mStates[i] == ARRIVED) {
+                    return getLocked(i);
+                }
+            }
+            return null;
+        }
+    }
+}
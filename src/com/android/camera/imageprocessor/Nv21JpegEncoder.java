@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import com.android.camera.imageprocessor.filter.ImageFilter;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves a YUV_420_888 {@link Image} into an NV21 result buffer and compresses
+ * it to JPEG with a single full-frame copy.
+ *
+ * The planes are read straight from their ByteBuffers, honouring row and
+ * pixel strides, into the result image array that {@link YuvImage} consumes.
+ * The compressed stream lands in an {@link OutputBuffer} that is sized once
+ * from the frame dimensions and kept across shots, so encoding does not
+ * repeatedly grow and copy a ByteArrayOutputStream.
+ *
+ * Not thread-safe, each encoding thread needs its own instance.
+ */
+public class Nv21JpegEncoder {
+    // Generous upper bound for q100 4:2:0 output, in bytes per pixel.
+    private static final float INITIAL_BYTES_PER_PIXEL = 0.75f;
+
+    private final OutputBuffer mOutput = new OutputBuffer();
+    private long mBytesCopied;
+
+    /**
+     * Reusable JPEG sink. The contents are valid until the next compress()
+     * on the owning encoder.
+     */
+    public static class OutputBuffer extends OutputStream {
+        private byte[] mBuffer = new byte[0];
+        private int mSize;
+        private long mBytesCopied;
+
+        void reset(int expectedSize) {
+            if (mBuffer.length < expectedSize) {
+                mBuffer = new byte[expectedSize];
+            }
+            mSize = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(mSize + 1);
+            mBuffer[mSize++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(mSize + len);
+            System.arraycopy(b, off, mBuffer, mSize, len);
+            mSize += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mBuffer.length) {
+                byte[] grown = new byte[Math.max(capacity, mBuffer.length + (mBuffer.length >> 1))];
+                System.arraycopy(mBuffer, 0, grown, 0, mSize);
+                mBytesCopied += mSize;
+                mBuffer = grown;
+            }
+        }
+
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        public int size() {
+            return mSize;
+        }
+    }
+
+    public void copyPlanes(Image image, ImageFilter.ResultImage dst) {
+        Image.Plane[] planes = image.getPlanes();
+        copyPlanes(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[2].getBuffer(), planes[1].getBuffer(),
+                planes[2].getRowStride(), planes[2].getPixelStride(),
+                dst.width, dst.height, dst.outBuffer.array(), dst.stride);
+    }
+
+    /**
+     * Writes the luma plane followed by interleaved VU rows into nv21, which
+     * uses dstStride for both. Semi-planar sources (chroma pixel stride 2, V
+     * plane first) are copied row by row, or in one bulk copy when the strides
+     * already match. The source buffers' positions are left untouched.
+     */
+    public void copyPlanes(ByteBuffer y, int yRowStride, ByteBuffer v, ByteBuffer u,
+            int uvRowStride, int uvPixelStride, int width, int height,
+            byte[] nv21, int dstStride) {
+        copyRows(y.duplicate(), yRowStride, width, height, nv21, 0, dstStride);
+        int chromaOffset = dstStride * height;
+        int chromaHeight = height / 2;
+        if (uvPixelStride == 2) {
+            // V plane of an NV21 layout already holds V/U pairs.
+            copyRows(v.duplicate(), uvRowStride, width, chromaHeight, nv21,
+                    chromaOffset, dstStride);
+        } else {
+            for (int row = 0; row < chromaHeight; row++) {
+                int src = row * uvRowStride;
+                int dst = chromaOffset + row * dstStride;
+                for (int col = 0; col < width / 2; col++) {
+                    nv21[dst++] = v.get(src + col * uvPixelStride);
+                    nv21[dst++] = u.get(src + col * uvPixelStride);
+                }
+            }
+            mBytesCopied += (long) chromaHeight * width;
+        }
+    }
+
+    private void copyRows(ByteBuffer src, int srcStride, int width, int rows,
+            byte[] dst, int dstOffset, int dstStride) {
+        int available = src.limit();
+        if (srcStride == dstStride) {
+            // Last row of a plane may be shorter than the stride.
+            int length = Math.min(available, srcStride * rows);
+            src.position(0);
+            src.get(dst, dstOffset, length);
+            mBytesCopied += length;
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            int start = row * srcStride;
+            int length = Math.min(width, available - start);
+            if (length <= 0) {
+                break;
+            }
+            src.position(start);
+            src.get(dst, dstOffset + row * dstStride, length);
+            mBytesCopied += length;
+        }
+    }
+
+    public OutputBuffer compress(ImageFilter.ResultImage image, Rect roi, int quality) {
+        return compress(image.outBuffer.array(), image.width, image.height, image.stride,
+                roi, quality);
+    }
+
+    public OutputBuffer compress(byte[] nv21, int width, int height, int stride, Rect roi,
+            int quality) {
+        mOutput.reset((int) (roi.width() * roi.height() * INITIAL_BYTES_PER_PIXEL));
+        YuvImage im = new YuvImage(nv21, ImageFormat.NV21, width, height,
+                new int[] {stride, stride});
+        im.compressToJpeg(roi, quality, mOutput);
+        return mOutput;
+    }
+
+    /* Bytes moved by Java-side copies, plane copies plus any output regrowth */
+    public long getBytesCopied() {
+        return mBytesCopied + mOutput.mBytesCopied;
+    }
+}
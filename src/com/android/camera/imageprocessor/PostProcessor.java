@@ -32,7 +32,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -60,7 +59,7 @@ import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
 import com.android.camera.SettingsManager;
 import com.android.camera.exif.ExifInterface;
-import com.android.camera.exif.Rational;
+import com.android.camera.exif.ExifTemplate;
 import com.android.camera.imageprocessor.filter.BestpictureFilter;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
 import com.android.camera.imageprocessor.filter.ChromaflashFilter;
@@ -70,11 +69,11 @@ import com.android.camera.imageprocessor.filter.StillmoreFilter;
 import com.android.camera.imageprocessor.filter.UbifocusFilter;
 import com.android.camera.ui.RotateTextToast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import android.util.Size;
@@ -83,6 +82,7 @@ import java.util.concurrent.Semaphore;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.CaptureTrace;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.VendorTagUtil;
 
@@ -101,6 +101,7 @@ public class PostProcessor{
     public static final int FILTER_BLURBUSTER = 7;
     public static final int FILTER_MAX = 8;
 
+    private static final long PIPELINE_STAGE_TIMEOUT_MS = 10000;
     //BestPicture requires 10 which is the biggest among filters
     private static final int MAX_REQUIRED_IMAGE_NUM = 11;
     private int mCurrentNumImage = 0;
@@ -119,6 +120,12 @@ public class PostProcessor{
     private WatchdogThread mWatchdog;
     private int mOrientation = 0;
     private ImageWriter mImageWriter;
+    private final YuvBufferPool mBufferPool = YuvBufferPool.getInstance();
+    // Encoders keep reusable output buffers. Each task borrows one and the
+    // pool is dropped when the pipeline shuts down.
+    private final ArrayList<Nv21JpegEncoder> mEncoders = new ArrayList<Nv21JpegEncoder>();
+    private FilterPipeline mPipeline;
+    private FilterPipeline.Burst mCurrentBurst;
 
     private static boolean DEBUG_DUMP_FILTER_IMG =
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_IMAGE) ||
@@ -139,7 +146,9 @@ public class PostProcessor{
     private Handler mSavingHander;
     private HandlerThread mSavingHandlerThread;
     private ImageHandlerTask mImageHandlerTask;
-    private LinkedList<TotalCaptureResult> mTotalCaptureResultList = new LinkedList<TotalCaptureResult>();
+    private static final long META_WAIT_TIMEOUT_MS = 100;
+    private final MetadataJoin<TotalCaptureResult> mMetadataJoin =
+            new MetadataJoin<TotalCaptureResult>(MAX_REQUIRED_IMAGE_NUM + 1);
     private TotalCaptureResult mZSLFallOffResult = null;
     private boolean mIsZSLFallOff = false;
     private TotalCaptureResult mLatestResultForLongShot = null;
@@ -156,7 +165,7 @@ public class PostProcessor{
     }
 
     public void onStartCapturing() {
-        mTotalCaptureResultList.clear();
+        mMetadataJoin.beginCapture();
     }
 
     public ImageReader getZSLReprocessImageReader() {
@@ -387,14 +396,20 @@ public class PostProcessor{
 
     CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session,
+                                     CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            // Fixes the frame's index in the shot before its result can arrive.
+            mMetadataJoin.onStarted(frameNumber);
+        }
+
         @Override
         public void onCaptureCompleted(CameraCaptureSession session,
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
             Log.d(TAG, "onCaptureCompleted");
-            if(mTotalCaptureResultList.size() <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
-                mTotalCaptureResultList.add(result);
-            }
+            mMetadataJoin.onResult(result.getFrameNumber(), result);
             if(mIsZSLFallOff) {
                 mZSLFallOffResult = result;
             } else {
@@ -407,6 +422,8 @@ public class PostProcessor{
                                     CaptureRequest request,
                                     CaptureFailure result) {
             Log.d(TAG, "onCaptureFailed");
+            // Wakes up anyone waiting on this frame instead of letting them time out.
+            mMetadataJoin.onFailure(result.getFrameNumber());
         }
 
         @Override
@@ -698,7 +715,8 @@ public class PostProcessor{
         Log.d(TAG,"ZSL is "+mUseZSL);
         startBackgroundThread();
         if(mUseZSL) {
-            mZSLQueue = new ZSLQueue(mController);
+            mZSLQueue = new ZSLQueue(mController,
+                    PersistUtil.getZSLSelectionWindowMs() > 0 ? new DefaultFrameScorer() : null);
         }
         mMaxRequiredImageNum = MAX_REQUIRED_IMAGE_NUM;
         if(mController.isLongShotSettingEnabled()) {
@@ -717,6 +735,8 @@ public class PostProcessor{
                 mHandler.setInActive();
             }
         }
+        // Release encode threads still waiting on metadata before joining them.
+        mMetadataJoin.close();
         stopBackgroundThread();
 
         setFilter(FILTER_NONE);
@@ -736,12 +756,15 @@ public class PostProcessor{
         mCaptureSession = null;
         mImageReader = null;
         mPendingContinuousRequestCount = 0;
+        if (DEBUG_ZSL) Log.d(TAG, mBufferPool.toString());
+        mBufferPool.trim();
     }
 
     private void startBackgroundThread() {
         mHandlerThread = new HandlerThread("PostProcessorThread");
         mHandlerThread.start();
         mHandler = new ProcessorHandler(mHandlerThread.getLooper());
+        mPipeline = FilterPipeline.createDefault(MAX_REQUIRED_IMAGE_NUM * 2);
 
         mZSLHandlerThread = new HandlerThread("ZSLHandlerThread");
         mZSLHandlerThread.start();
@@ -818,6 +841,14 @@ public class PostProcessor{
             mHandlerThread = null;
             mHandler = null;
         }
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+            mPipeline = null;
+            mCurrentBurst = null;
+        }
+        synchronized (mEncoders) {
+            mEncoders.clear();
+        }
         synchronized (lock){
             if (mZSLHandlerThread != null) {
                 mZSLHandlerThread.quitSafely();
@@ -915,7 +946,7 @@ public class PostProcessor{
     }
 
     private void addImage(final Image image) {
-        if(mHandler == null || !mHandler.isRunning) {
+        if(mHandler == null || !mHandler.isRunning || mPipeline == null) {
             return;
         }
         final ProcessorHandler handler = mHandler;
@@ -924,7 +955,7 @@ public class PostProcessor{
             mHeight = image.getHeight();
             mStride = image.getPlanes()[0].getRowStride();
             mStatus = STATUS.INIT;
-            mHandler.post(new Runnable() {
+            boolean queued = mPipeline.trySubmit(FilterPipeline.STAGE_INGEST, new Runnable() {
                     public void run() {
                         synchronized (lock) {
                             if(!handler.isRunning) {
@@ -938,6 +969,12 @@ public class PostProcessor{
                         }
                     }
                 });
+            if (!queued) {
+                // Retried with the next frame
+                mStatus = STATUS.DEINIT;
+                image.close();
+                return;
+            }
         }
         if(mCurrentNumImage == 0) {
             mStatus = STATUS.BUSY;
@@ -945,94 +982,154 @@ public class PostProcessor{
                 mWatchdog.startMonitor();
             }
             mOrientation = CameraUtil.getJpegRotation(mController.getMainCameraId(), mController.getDisplayOrientation());
+            mCurrentBurst = mPipeline.newBurst();
         }
         if(mFilter != null && mCurrentNumImage >= mFilter.getNumRequiredImage()) {
             return;
         }
         final int numImage = mCurrentNumImage;
         mCurrentNumImage++;
-        if(mHandler == null) {
-            return;
-        }
-        mHandler.post(new Runnable() {
+        final FilterPipeline.Burst burst = mCurrentBurst;
+        final FilterPipeline pipeline = mPipeline;
+        final int captureId = CaptureTrace.currentCaptureId();
+        burst.addStarted();
+        final Runnable addTask = new Runnable() {
+            public void run() {
+                long traceStart = CaptureTrace.begin();
+                try {
+                    addImageToFilter(image, numImage, handler, captureId);
+                } finally {
+                    burst.addDone();
+                    CaptureTrace.end(CaptureTrace.SPAN_ADD_IMAGE, captureId, traceStart);
+                }
+            }
+        };
+        boolean queued = pipeline.trySubmit(FilterPipeline.STAGE_INGEST, new Runnable() {
                 public void run() {
+                    ImageFilter filter;
                     synchronized (lock) {
-                        if(!handler.isRunning || mStatus != STATUS.BUSY) {
-                            return;
-                        }
-                        ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
-                        ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
-
-                        if(mFilter == null) {
-                            mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                            yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
-                            vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
+                        filter = mFilter;
+                    }
+                    if (filter != null && filter.isAddImageThreadSafe()) {
+                        if (!pipeline.submit(FilterPipeline.STAGE_ADD, addTask)) {
+                            burst.fail();
+                            burst.addDone();
                             image.close();
-                        } else {
-                            if (DEBUG_DUMP_FILTER_IMG) {
-                                ImageFilter.ResultImage debugResultImage = new
-                                        ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                        mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
-                                        mHeight), mWidth, mHeight, mStride);
-                                yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
-                                vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
-                                        vuBuf.remaining());
-                                yBuf.rewind();
-                                vuBuf.rewind();
-
-                                byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
-                                mActivity.getMediaSaveService().addImage(
-                                        bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
-                                        debugResultImage.outRoi.width(),
-                                        debugResultImage.outRoi.height(),
-                                        mOrientation, null, mController.getMediaSavedListener(),
-                                        mActivity.getContentResolver(), "jpeg");
-                            }
-                            if (mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
-                                mController.checkAndPlayShutterSound(mController.getMainCameraId());
-                            }
-                            mFilter.addImage(yBuf, vuBuf, numImage, null);
-                            mImages[numImage] = image;
                         }
+                    } else {
+                        addTask.run();
                     }
                 }
             });
+        if (!queued) {
+            // Give the slot to the next frame instead of stalling the camera thread
+            mCurrentNumImage--;
+            burst.addDone();
+            image.close();
+        }
+    }
+
+    private void addImageToFilter(Image image, int numImage, ProcessorHandler handler,
+                                  int captureId) {
+        ImageFilter filter;
+        synchronized (lock) {
+            if(!handler.isRunning || mStatus != STATUS.BUSY) {
+                return;
+            }
+            filter = mFilter;
+            if(filter == null) {
+                if (mDefaultResultImage != null) {
+                    mDefaultResultImage.release();
+                }
+                mDefaultResultImage = mBufferPool.acquireResultImage(mWidth, mHeight, mStride);
+                copyPlanes(image, mDefaultResultImage);
+                image.close();
+                return;
+            }
+            mImages[numImage] = image;
+        }
+        ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
+        ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
+        if (DEBUG_DUMP_FILTER_IMG) {
+            ImageFilter.ResultImage debugResultImage =
+                    mBufferPool.acquireResultImage(mWidth, mHeight, mStride);
+            copyPlanes(image, debugResultImage);
+
+            byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null, captureId);
+            mActivity.getMediaSaveService().addImage(
+                    bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
+                    debugResultImage.outRoi.width(),
+                    debugResultImage.outRoi.height(),
+                    mOrientation, null, mController.getMediaSavedListener(),
+                    mActivity.getContentResolver(), "jpeg");
+            debugResultImage.release();
+        }
+        if (mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
+            mController.checkAndPlayShutterSound(mController.getMainCameraId());
+        }
+        if (filter.isAddImageThreadSafe()) {
+            filter.addImage(yBuf, vuBuf, numImage, null);
+        } else {
+            synchronized (lock) {
+                if (filter == mFilter) {
+                    filter.addImage(yBuf, vuBuf, numImage, null);
+                }
+            }
+        }
     }
 
     public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
-        ExifInterface exif = new ExifInterface();
-        exif.addMakeAndModelTag();
-        exif.addOrientationTag(orientationInDegree);
-        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
-                TimeZone.getDefault());
+        return addExifTags(jpeg, jpeg.length, orientationInDegree, result,
+                CaptureTrace.currentCaptureId());
+    }
+
+    /*
+     * jpeg may be a reusable buffer holding length valid bytes. captureId is
+     * the capture the image belongs to, for tracing.
+     */
+    public static byte[] addExifTags(byte[] jpeg, int length, int orientationInDegree,
+                                     TotalCaptureResult result, int captureId) {
+        long traceStart = CaptureTrace.begin();
+        ExifTemplate.Frame frame = new ExifTemplate.Frame(orientationInDegree,
+                System.currentTimeMillis(), TimeZone.getDefault());
         if(result != null) {
             if(result.get(CaptureResult.FLASH_MODE) != null) {
-                exif.addFlashTag(result.get(CaptureResult.FLASH_MODE) != CaptureResult.FLASH_MODE_OFF);
+                frame.setFlashFired(result.get(CaptureResult.FLASH_MODE) != CaptureResult.FLASH_MODE_OFF);
             }
             if(result.get(CaptureResult.LENS_FOCAL_LENGTH) != null) {
-                exif.addFocalLength(new Rational((int)(result.get(CaptureResult.LENS_FOCAL_LENGTH)*100), 100));
+                frame.setFocalLength((int)(result.get(CaptureResult.LENS_FOCAL_LENGTH)*100), 100);
             }
             if(result.get(CaptureResult.CONTROL_AWB_MODE) != null) {
-                exif.addWhiteBalanceMode(result.get(CaptureResult.CONTROL_AWB_MODE));
+                frame.setWhiteBalanceMode(result.get(CaptureResult.CONTROL_AWB_MODE));
             }
             if(result.get(CaptureResult.LENS_APERTURE) != null) {
-                exif.addAperture(new Rational((int)(result.get(CaptureResult.LENS_APERTURE)*100), 100));
+                frame.setAperture((int)(result.get(CaptureResult.LENS_APERTURE)*100), 100);
             }
             if(result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null) {
-                exif.addExposureTime(new Rational(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)/1000000, 1000));
+                frame.setExposureTime(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)/1000000, 1000);
             }
             if(result.get(CaptureResult.SENSOR_SENSITIVITY) != null) {
-                exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
+                frame.setIso(result.get(CaptureResult.SENSOR_SENSITIVITY));
             }
         }
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
+        byte[] bytes = null;
         try {
-            exif.writeExif(jpeg, jpegOut);
+            // The layout only depends on which tags are present, so bursts
+            // reuse one serialized header and just patch the values.
+            bytes = ExifTemplate.getInstance(frame.getFields(), PersistUtil.getExifPaddingSize())
+                    .write(jpeg, 0, length, frame);
+            if (bytes == null) {
+                ExifInterface exif = new ExifInterface();
+                exif.setPaddingSize(PersistUtil.getExifPaddingSize());
+                frame.addTo(exif);
+                bytes = exif.writeExif(jpeg, 0, length);
+            }
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
+            bytes = Arrays.copyOf(jpeg, length);
         }
-        return jpegOut.toByteArray();
+        CaptureTrace.end(CaptureTrace.SPAN_ADD_EXIF, captureId, traceStart);
+        return bytes;
     }
 
     private void clear() {
@@ -1042,22 +1139,53 @@ public class PostProcessor{
     private void processImage(final String title, final long date,
                              final MediaSaveService.OnMediaSavedListener mediaSavedListener,
                              final ContentResolver contentResolver) {
-        if(mHandler == null || !mHandler.isRunning || mStatus != STATUS.BUSY) {
+        if(mHandler == null || !mHandler.isRunning || mStatus != STATUS.BUSY
+                || mPipeline == null || mCurrentBurst == null) {
             return;
         }
         final ProcessorHandler handler = mHandler;
-        mHandler.post(new Runnable() {
+        final FilterPipeline pipeline = mPipeline;
+        final FilterPipeline.Burst burst = mCurrentBurst;
+        final MetadataJoin.Capture<TotalCaptureResult> metadata = mMetadataJoin.getCurrentCapture();
+        final int captureId = CaptureTrace.currentCaptureId();
+        boolean queued = pipeline.trySubmit(FilterPipeline.STAGE_PROCESS, new Runnable() {
             public void run() {
-                byte[] bytes;
+                long traceStart = CaptureTrace.begin();
+                if (!burst.awaitAdds(PIPELINE_STAGE_TIMEOUT_MS)) {
+                    Log.w(TAG, "Timed out waiting for images to be added");
+                }
+                if (!burst.awaitPreviousEncode(PIPELINE_STAGE_TIMEOUT_MS)) {
+                    Log.w(TAG, "Timed out waiting for previous capture to be encoded");
+                }
                 ImageFilter.ResultImage resultImage = null;
+                final int orientation;
                 synchronized (lock) {
                     if (!handler.isRunning) {
+                        burst.encodeDone();
+                        return;
+                    }
+                    if (burst.isFailed()) {
+                        Log.w(TAG, "Dropping capture, a frame could not be added");
+                        for (int i = 0; i < mImages.length; i++) {
+                            if(mImages[i] != null) {
+                                mImages[i].close();
+                                mImages[i] = null;
+                            }
+                        }
+                        clear();
+                        mStatus = STATUS.INIT;
+                        if(mWatchdog != null) {
+                            mWatchdog.stopMonitor();
+                        }
+                        burst.encodeDone();
                         return;
                     }
                     if (mFilter == null) { //In case no post filter is chosen
                         resultImage = mDefaultResultImage;
+                        mDefaultResultImage = null;
                     } else {
                         resultImage = mFilter.processImage();
+                        burst.setFilterOwnedResult(true);
                         for (int i = 0; i < mImages.length; i++) {
                             if(mImages[i] != null) {
                                 mImages[i].close();
@@ -1065,6 +1193,7 @@ public class PostProcessor{
                             }
                         }
                     }
+                    orientation = mOrientation;
                     if(resultImage != null) {
                         //Start processing FrameProcessor filter as well
                         for (ImageFilter filter : mController.getFrameFilters()) {
@@ -1074,7 +1203,7 @@ public class PostProcessor{
 
                         if(isSelfieMirrorOn() && !mController.isBackCamera()) {
                             boolean isVertical = true;
-                            if (mOrientation == 0 || mOrientation == 180) {
+                            if (orientation == 0 || orientation == 180) {
                                 isVertical = false;
                             } else {
                                 isVertical = true;
@@ -1090,55 +1219,92 @@ public class PostProcessor{
                     if(mWatchdog != null) {
                         mWatchdog.stopMonitor();
                     }
-                    if(resultImage == null ||
-                            (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
-                            (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
-                            ) {
-                        Log.d(TAG, "Result image is not valid.");
-                    } else {
-                        bytes = nv21ToJpeg(resultImage, mOrientation, waitForMetaData(0));
-                        if (mController.getCurrentIntentMode() ==
-                                CaptureModule.INTENT_MODE_CAPTURE) {
-                            mController.setJpegImageData(bytes);
-                            if (mController.isQuickCapture()) {
-                                mController.onCaptureDone();
-                            } else {
-                                mController.showCapturedReview(bytes, mOrientation);
-                            }
+                }
+                CaptureTrace.end(CaptureTrace.SPAN_PROCESS_IMAGE, captureId, traceStart);
+                // Encoding runs off the process stage so the next burst can start filtering.
+                final ImageFilter.ResultImage encodeImage = resultImage;
+                boolean encodeQueued = pipeline.submit(FilterPipeline.STAGE_ENCODE,
+                        new Runnable() {
+                    public void run() {
+                        try {
+                            encodeAndSave(encodeImage, orientation, metadata, captureId,
+                                    title, date, mediaSavedListener, contentResolver);
+                        } finally {
+                            burst.encodeDone();
                         }
-                        mActivity.getMediaSaveService().addImage(
-                                    bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                                    mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                            mController.updateThumbnailJpegData(bytes);
                     }
+                });
+                if (!encodeQueued) {
+                    if (encodeImage != null) {
+                        encodeImage.release();
+                    }
+                    burst.encodeDone();
                 }
             }
         });
+        if (!queued) {
+            // The watchdog resets the filter if this burst never completes
+            burst.encodeDone();
+        }
     }
 
-    public TotalCaptureResult waitForMetaData(int index) {
-        int timeout = 10; //100ms
-    	while(timeout > 0) {
-            if (mTotalCaptureResultList.size() > index) {
-                    return mTotalCaptureResultList.get(index);
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
+    private void encodeAndSave(ImageFilter.ResultImage resultImage, int orientation,
+                               MetadataJoin.Capture<TotalCaptureResult> metadata, int captureId,
+                               String title, long date,
+                               MediaSaveService.OnMediaSavedListener mediaSavedListener,
+                               ContentResolver contentResolver) {
+        if(resultImage == null ||
+                (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
+                (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
+                ) {
+            Log.d(TAG, "Result image is not valid.");
+        } else {
+            byte[] bytes = nv21ToJpeg(resultImage, orientation,
+                    waitForMetaData(metadata, 0), captureId);
+            if (mController.getCurrentIntentMode() ==
+                    CaptureModule.INTENT_MODE_CAPTURE) {
+                mController.setJpegImageData(bytes);
+                if (mController.isQuickCapture()) {
+                    mController.onCaptureDone();
+                } else {
+                    mController.showCapturedReview(bytes, orientation);
+                }
             }
-            timeout--;
+            mActivity.getMediaSaveService().addImage(
+                        bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
+                        orientation, null, mediaSavedListener, contentResolver, "jpeg");
+                mController.updateThumbnailJpegData(bytes);
         }
-        if(mTotalCaptureResultList.size() == 0) {
+        if (resultImage != null) {
+            // No-op for filter owned buffers, pooled ones are reused by the next shot.
+            resultImage.release();
+        }
+    }
+
+    public TotalCaptureResult waitForMetaData(int index) {
+        return waitForMetaData(mMetadataJoin.getCurrentCapture(), index);
+    }
+
+    private TotalCaptureResult waitForMetaData(MetadataJoin.Capture<TotalCaptureResult> capture,
+                                               int index) {
+        if (capture == null) {
             return null;
         }
-        return mTotalCaptureResultList.get(0);
+        TotalCaptureResult result = capture.await(index, META_WAIT_TIMEOUT_MS);
+        if (DEBUG_ZSL) {
+            Log.d(TAG, "Metadata " + index + " waited " + capture.getMaxWaitNs() / 1000000L
+                    + "ms max, " + mMetadataJoin.dumpWaitHistogram());
+        }
+        return result;
+    }
+
+    /* See MetadataJoin.HISTOGRAM_BUCKETS for the bucket layout */
+    public long[] getMetadataWaitHistogram() {
+        return mMetadataJoin.getWaitHistogram();
     }
 
     private ImageFilter.ResultImage resizeImage(ImageFilter.ResultImage oldImage, Size newSize) {
-        ImageFilter.ResultImage newImage = new ImageFilter.ResultImage(
-                ByteBuffer.allocateDirect(newSize.getWidth() * newSize.getHeight() * 3/2),
-                new Rect(0, 0,
-                        newSize.getWidth(), newSize.getHeight()),
+        ImageFilter.ResultImage newImage = mBufferPool.acquireResultImage(
                 newSize.getWidth(), newSize.getHeight(), newSize.getWidth());
         int ratio = nativeResizeImage(oldImage.outBuffer.array(), newImage.outBuffer.array(),
                 oldImage.width, oldImage.height, oldImage.stride, newSize.getWidth(), newSize.getHeight());
@@ -1191,20 +1357,50 @@ public class PostProcessor{
         }
     };
 
-    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                                    resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
+    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
+                              TotalCaptureResult result, int captureId) {
         if(isSelfieMirrorOn() && !mController.isBackCamera()) {
             int t = resultImage.height - (resultImage.outRoi.top + resultImage.outRoi.height());
             resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
         }
-        im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation, result);
+        long traceStart = CaptureTrace.begin();
+        Nv21JpegEncoder encoder = acquireEncoder();
+        byte[] bytes;
+        try {
+            Nv21JpegEncoder.OutputBuffer jpeg = encoder.compress(resultImage, resultImage.outRoi,
+                    getJpegQualityValue());
+            bytes = addExifTags(jpeg.getBuffer(), jpeg.size(), orientation, result, captureId);
+        } finally {
+            releaseEncoder(encoder);
+        }
+        CaptureTrace.end(CaptureTrace.SPAN_NV21_TO_JPEG, captureId, traceStart);
         return bytes;
     }
 
+    private Nv21JpegEncoder acquireEncoder() {
+        synchronized (mEncoders) {
+            if (!mEncoders.isEmpty()) {
+                return mEncoders.remove(mEncoders.size() - 1);
+            }
+        }
+        return new Nv21JpegEncoder();
+    }
+
+    private void releaseEncoder(Nv21JpegEncoder encoder) {
+        synchronized (mEncoders) {
+            mEncoders.add(encoder);
+        }
+    }
+
+    private void copyPlanes(Image image, ImageFilter.ResultImage dst) {
+        Nv21JpegEncoder encoder = acquireEncoder();
+        try {
+            encoder.copyPlanes(image, dst);
+        } finally {
+            releaseEncoder(encoder);
+        }
+    }
+
     public int getJpegQualityValue() {
         int quality = 55;
         if(SettingsManager.getInstance() != null && SettingsManager.getInstance().getValue(SettingsManager.KEY_JPEG_QUALITY) != null) {
@@ -1214,16 +1410,6 @@ public class PostProcessor{
         return quality;
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
-
     private native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf, int width, int height, int srcStride, int dstStride);
     private native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight, int oldStride, int newWidth, int newHeight);
     private native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from a sensor timestamp to a ring buffer slot.
+ * Keys are primitive longs so lookups on the frame path never box, and
+ * removal uses backward-shift deletion so the table never fills up with
+ * tombstones.
+ */
+public class TimestampIndex {
+    public static final int NO_SLOT = -1;
+
+    private final long[] mKeys;
+    private final int[] mSlots;
+    private final boolean[] mUsed;
+    private final int mMask;
+    private int mSize;
+
+    public TimestampIndex(int maxEntries) {
+        int capacity = Integer.highestOneBit(Math.max(4, maxEntries * 4) - 1) << 1;
+        mKeys = new long[capacity];
+        mSlots = new int[capacity];
+        mUsed = new boolean[capacity];
+        mMask = capacity - 1;
+    }
+
+    private int hash(long timestamp) {
+        // Timestamps are nanoseconds with coarse low bits, so mix before masking.
+        long h = timestamp * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    public int get(long timestamp) {
+        int i = hash(timestamp);
+        while (mUsed[i]) {
+            if (mKeys[i] == timestamp) {
+                return mSlots[i];
+            }
+            i = (i + 1) & mMask;
+        }
+        return NO_SLOT;
+    }
+
+    public void put(long timestamp, int slot) {
+        int i = hash(timestamp);
+        while (mUsed[i]) {
+            if (mKeys[i] == timestamp) {
+                mSlots[i] = slot;
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        if (mSize >= mMask) {
+            throw new IllegalStateException("TimestampIndex is full");
+        }
+        mUsed[i] = true;
+        mKeys[i] = timestamp;
+        mSlots[i] = slot;
+        mSize++;
+    }
+
+    public int remove(long timestamp) {
+        int i = hash(timestamp);
+        while (mUsed[i]) {
+            if (mKeys[i] == timestamp) {
+                int slot = mSlots[i];
+                shiftBack(i);
+                mSize--;
+                return slot;
+            }
+            i = (i + 1) & mMask;
+        }
+        return NO_SLOT;
+    }
+
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mMask;
+            if (!mUsed[i]) {
+                break;
+            }
+            int home = hash(mKeys[i]);
+            // Move the entry into the hole unless its home lies cyclically in (hole, i].
+            boolean between = (hole <= i) ? (hole < home && home <= i)
+                    : (hole < home || home <= i);
+            if (!between) {
+                mKeys[hole] = mKeys[i];
+                mSlots[hole] = mSlots[i];
+                hole = i;
+            }
+        }
+        mUsed[hole] = false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+}
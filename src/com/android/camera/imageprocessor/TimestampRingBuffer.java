@@ -0,0 +1,344 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed-size ring of frames that pairs an image with its capture metadata by
+ * sensor timestamp. Whichever half arrives first claims the next slot and
+ * registers its timestamp in a {@link TimestampIndex}; the other half finds
+ * the slot in O(1) regardless of arrival order. When the ring wraps, the
+ * oldest slot is recycled whether or not it was ever matched, which is how
+ * dropped images or results age out.
+ *
+ * Only one thread at a time may add frames or clear the ring. Consumers may
+ * call {@link #takeNewest} concurrently with the writer: every slot carries an
+ * atomic state word (EMPTY / IMAGE_ONLY / META_ONLY / MATCHED / CLAIMED plus a
+ * reuse generation), and a consumer takes ownership of a matched frame with a
+ * single CAS, so neither side ever waits on the other.
+ */
+public class TimestampRingBuffer<I, M> {
+
+    public interface Recycler<I, M> {
+        void recycleImage(I image);
+        void recycleMeta(M meta);
+    }
+
+    public interface Selector<I, M> {
+        boolean accept(I image, M meta);
+    }
+
+    public static class Match<I, M> {
+        public final long timestamp;
+        public final I image;
+        public final M meta;
+
+        Match(long timestamp, I image, M meta) {
+            this.timestamp = timestamp;
+            this.image = image;
+            this.meta = meta;
+        }
+    }
+
+    public static final int EMPTY = 0;
+    public static final int IMAGE_ONLY = 1;
+    public static final int META_ONLY = 2;
+    public static final int MATCHED = 3;
+    public static final int CLAIMED = 4;
+
+    private static final int STATE_BITS = 3;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final long[] mTimestamps;
+    private final Object[] mImages;
+    private final Object[] mMetas;
+    private final float[] mScores;
+    // Low bits hold the slot state, the rest count reuses to defeat ABA on claim.
+    private final AtomicIntegerArray mStates;
+    private final TimestampIndex mIndex;
+    private final Recycler<I, M> mRecycler;
+    private volatile int mHead;
+    private long mEvictedWatermark = Long.MIN_VALUE;
+    private int mDroppedCount;
+
+    public TimestampRingBuffer(int size, Recycler<I, M> recycler) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid ring size " + size);
+        }
+        mTimestamps = new long[size];
+        mImages = new Object[size];
+        mMetas = new Object[size];
+        mScores = new float[size];
+        mStates = new AtomicIntegerArray(size);
+        mIndex = new TimestampIndex(size);
+        mRecycler = recycler;
+    }
+
+    public int addImage(long timestamp, I image) {
+        return addImage(timestamp, image, 0f);
+    }
+
+    public int addMeta(long timestamp, M meta) {
+        return addMeta(timestamp, meta, 0f);
+    }
+
+    /**
+     * Returns the slot now holding the image, or -1 if the image was discarded.
+     * The score is added to whatever the metadata half contributed.
+     */
+    public int addImage(long timestamp, I image, float score) {
+        int slot = findOrAllocate(timestamp);
+        if (slot < 0) {
+            mRecycler.recycleImage(image);
+            return -1;
+        }
+        if (mImages[slot] != null) {
+            mRecycler.recycleImage(image(slot));
+        }
+        mImages[slot] = image;
+        mScores[slot] += score;
+        publish(slot, mMetas[slot] != null ? MATCHED : IMAGE_ONLY);
+        return slot;
+    }
+
+    /* Returns the slot now holding the metadata, or -1 if it was discarded */
+    public int addMeta(long timestamp, M meta, float score) {
+        int slot = findOrAllocate(timestamp);
+        if (slot < 0) {
+            mRecycler.recycleMeta(meta);
+            return -1;
+        }
+        if (mMetas[slot] != null) {
+            mRecycler.recycleMeta(meta(slot));
+        }
+        mMetas[slot] = meta;
+        mScores[slot] += score;
+        publish(slot, mImages[slot] != null ? MATCHED : META_ONLY);
+        return slot;
+    }
+
+    private int findOrAllocate(long timestamp) {
+        int slot = mIndex.get(timestamp);
+        if (slot != TimestampIndex.NO_SLOT) {
+            int state = state(mStates.get(slot));
+            // A matched or claimed frame is complete, a duplicate half is dropped.
+            return (state == IMAGE_ONLY || state == META_ONLY) ? slot : -1;
+        }
+        if (timestamp <= mEvictedWatermark) {
+            // The other half of this frame already aged out of the ring.
+            mDroppedCount++;
+            return -1;
+        }
+        slot = mHead;
+        if (state(mStates.get(slot)) != EMPTY) {
+            evict(slot);
+        }
+        mTimestamps[slot] = timestamp;
+        mScores[slot] = 0f;
+        mIndex.put(timestamp, slot);
+        mHead = (slot + 1) % mTimestamps.length;
+        return slot;
+    }
+
+    private void publish(int slot, int state) {
+        int word = mStates.get(slot);
+        mStates.set(slot, (word & ~STATE_MASK) | state);
+    }
+
+    private void evict(int slot) {
+        long timestamp = mTimestamps[slot];
+        int word = mStates.get(slot);
+        int state = state(word);
+        if (state == IMAGE_ONLY || state == META_ONLY) {
+            mDroppedCount++;
+        }
+        if (state != CLAIMED && timestamp > mEvictedWatermark) {
+            mEvictedWatermark = timestamp;
+        }
+        release(slot, word);
+    }
+
+    private void release(int slot, int word) {
+        mIndex.remove(mTimestamps[slot]);
+        // Losing this CAS means a consumer claimed the frame, which it now owns.
+        boolean owned = state(word) != CLAIMED && mStates.compareAndSet(slot, word,
+                nextGeneration(word) | EMPTY);
+        if (owned) {
+            if (mImages[slot] != null) {
+                mRecycler.recycleImage(image(slot));
+            }
+            if (mMetas[slot] != null) {
+                mRecycler.recycleMeta(meta(slot));
+            }
+        } else {
+            mStates.set(slot, nextGeneration(mStates.get(slot)) | EMPTY);
+        }
+        mImages[slot] = null;
+        mMetas[slot] = null;
+    }
+
+    private static int state(int word) {
+        return word & STATE_MASK;
+    }
+
+    private static int nextGeneration(int word) {
+        return (word & ~STATE_MASK) + (1 << STATE_BITS);
+    }
+
+    public int getState(int slot) {
+        return state(mStates.get(slot));
+    }
+
+    public boolean isMatched(int slot) {
+        return state(mStates.get(slot)) == MATCHED;
+    }
+
+    /**
+     * Walks from the newest slot to the oldest and claims the first matched
+     * frame the selector accepts. Ownership of the image and metadata passes
+     * to the caller. Safe to call while another thread is adding frames.
+     */
+    public Match<I, M> takeNewest(Selector<I, M> selector) {
+        int size = mTimestamps.length;
+        int head = mHead;
+        for (int i = 1; i <= size; i++) {
+            Match<I, M> match = tryClaim((head - i + size) % size, selector);
+            if (match != null) {
+                return match;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Claims the highest scoring matched frame the selector accepts among
+     * those no older than windowNs behind the newest matched frame. Falls back
+     * to {@link #takeNewest} when nothing inside the window is acceptable.
+     */
+    public Match<I, M> takeBest(long windowNs, Selector<I, M> selector) {
+        int size = mTimestamps.length;
+        long newest = Long.MIN_VALUE;
+        for (int slot = 0; slot < size; slot++) {
+            if (isMatched(slot) && mTimestamps[slot] > newest) {
+                newest = mTimestamps[slot];
+            }
+        }
+        if (newest == Long.MIN_VALUE) {
+            return null;
+        }
+        boolean[] rejected = new boolean[size];
+        for (int attempt = 0; attempt < size; attempt++) {
+            int best = -1;
+            for (int slot = 0; slot < size; slot++) {
+                if (rejected[slot] || !isMatched(slot)
+                        || newest - mTimestamps[slot] > windowNs) {
+                    continue;
+                }
+                if (best < 0 || mScores[slot] > mScores[best]
+                        || (mScores[slot] == mScores[best]
+                            && mTimestamps[slot] > mTimestamps[best])) {
+                    best = slot;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            Match<I, M> match = tryClaim(best, selector);
+            if (match != null) {
+                return match;
+            }
+            rejected[best] = true;
+        }
+        return takeNewest(selector);
+    }
+
+    public float getScore(int slot) {
+        return mScores[slot];
+    }
+
+    /* Claims the frame in the given slot if it is matched and accepted, otherwise null */
+    public Match<I, M> tryClaim(int slot, Selector<I, M> selector) {
+        int word = mStates.get(slot);
+        if (state(word) != MATCHED) {
+            return null;
+        }
+        // Read the payload before claiming: the writer never touches a MATCHED
+        // slot without first moving its generation on, which fails our CAS.
+        long timestamp = mTimestamps[slot];
+        I image = image(slot);
+        M meta = meta(slot);
+        if (image == null || meta == null
+                || (selector != null && !selector.accept(image, meta))) {
+            return null;
+        }
+        if (!mStates.compareAndSet(slot, word, (word & ~STATE_MASK) | CLAIMED)) {
+            return null;
+        }
+        return new Match<I, M>(timestamp, image, meta);
+    }
+
+    public void clear() {
+        for (int i = 0; i < mTimestamps.length; i++) {
+            int word = mStates.get(i);
+            if (state(word) != EMPTY) {
+                release(i, word);
+            }
+        }
+        mIndex.clear();
+        mHead = 0;
+        mEvictedWatermark = Long.MIN_VALUE;
+    }
+
+    public long getTimestamp(int slot) {
+        return mTimestamps[slot];
+    }
+
+    public int getSize() {
+        return mTimestamps.length;
+    }
+
+    public int getHead() {
+        return mHead;
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    public I image(int slot) {
+        return (I) mImages[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public M meta(int slot) {
+        return (M) mMetas[slot];
+    }
+}
@@ -0,0 +1,239 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.filter.ImageFilter;
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Size-classed pool of direct NV21 buffers for {@link ImageFilter.ResultImage}.
+ * Buffers are keyed by (width, stride, height), borrowed when a result image
+ * is needed and handed back through {@link ImageFilter.ResultImage#release()}
+ * once the JPEG has been produced. The cap covers the bytes of idle and
+ * borrowed buffers together. To make room for a new buffer the least
+ * recently returned idle ones are dropped first; if the borrowed ones alone
+ * leave no room, acquire waits for one to be handed back. A wait that times
+ * out allocates over the cap rather than stalling the capture for good.
+ */
+public class YuvBufferPool {
+    private static final String TAG = "YuvBufferPool";
+    private static final long DEFAULT_WAIT_TIMEOUT_MS = 500;
+    private static YuvBufferPool sInstance;
+
+    private static class Entry {
+        final int width;
+        final int stride;
+        final int height;
+        final ByteBuffer buffer;
+
+        Entry(int width, int stride, int height, ByteBuffer buffer) {
+            this.width = width;
+            this.stride = stride;
+            this.height = height;
+            this.buffer = buffer;
+        }
+    }
+
+    private final long mCapacityBytes;
+    private final long mWaitTimeoutMs;
+    // Idle buffers, oldest first.
+    private final ArrayList<Entry> mFree = new ArrayList<Entry>();
+    private long mFreeBytes;
+    // Handed out and not released yet.
+    private long mOutstandingBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mWaits;
+    private long mOverflows;
+
+    public static synchronized YuvBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new YuvBufferPool(PersistUtil.getYuvBufferPoolLimitInMb() * 1024L * 1024L);
+        }
+        return sInstance;
+    }
+
+    public YuvBufferPool(long capacityBytes) {
+        this(capacityBytes, DEFAULT_WAIT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param waitTimeoutMs how long acquire waits for a borrowed buffer to
+     *        come back before it allocates over the cap.
+     */
+    public YuvBufferPool(long capacityBytes, long waitTimeoutMs) {
+        mCapacityBytes = capacityBytes;
+        mWaitTimeoutMs = waitTimeoutMs;
+    }
+
+    public static int getBufferSize(int stride, int height) {
+        return stride * height * 3 / 2;
+    }
+
+    /**
+     * Borrows a buffer, waiting for borrowed ones to be released if the cap
+     * leaves no room for a new one.
+     */
+    public synchronized ByteBuffer acquire(int width, int stride, int height) {
+        int size = getBufferSize(stride, height);
+        long deadline = 0;
+        while (true) {
+            for (int i = mFree.size() - 1; i >= 0; i--) {
+                Entry entry = mFree.get(i);
+                if (entry.width == width && entry.stride == stride && entry.height == height) {
+                    mFree.remove(i);
+                    mFreeBytes -= entry.buffer.capacity();
+                    mOutstandingBytes += entry.buffer.capacity();
+                    mHits++;
+                    entry.buffer.clear();
+                    return entry.buffer;
+                }
+            }
+            evictIdle(size);
+            if (mOutstandingBytes + size <= mCapacityBytes) {
+                break;
+            }
+            long now = System.nanoTime() / 1000000L;
+            if (deadline == 0) {
+                deadline = now + mWaitTimeoutMs;
+                mWaits++;
+            }
+            if (mOutstandingBytes == 0 || now >= deadline) {
+                // Nothing to wait for, or it did not come back in time
+                mOverflows++;
+                Log.w(TAG, "Allocating over the cap, " + mOutstandingBytes + "B borrowed");
+                break;
+            }
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mOverflows++;
+                break;
+            }
+        }
+        mMisses++;
+        mOutstandingBytes += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    public synchronized void release(int width, int stride, int height, ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        for (int i = 0; i < mFree.size(); i++) {
+            if (mFree.get(i).buffer == buffer) {
+                Log.w(TAG, "Buffer released twice");
+                return;
+            }
+        }
+        mOutstandingBytes = Math.max(0, mOutstandingBytes - buffer.capacity());
+        notifyAll();
+        if (buffer.capacity() != getBufferSize(stride, height)) {
+            return;
+        }
+        evictIdle(buffer.capacity());
+        if (mOutstandingBytes + mFreeBytes + buffer.capacity() > mCapacityBytes) {
+            mEvictions++;
+            return;
+        }
+        mFree.add(new Entry(width, stride, height, buffer));
+        mFreeBytes += buffer.capacity();
+    }
+
+    // Drops the oldest idle buffers until size more bytes fit under the cap.
+    private void evictIdle(int size) {
+        while (mOutstandingBytes + mFreeBytes + size > mCapacityBytes && !mFree.isEmpty()) {
+            mFreeBytes -= mFree.remove(0).buffer.capacity();
+            mEvictions++;
+        }
+    }
+
+    /* Borrows a full-frame result image, call ResultImage.release() when done with it */
+    public ImageFilter.ResultImage acquireResultImage(int width, int height, int stride) {
+        ByteBuffer buffer = acquire(width, stride, height);
+        return new ImageFilter.ResultImage(buffer, new Rect(0, 0, width, height),
+                width, height, stride, this);
+    }
+
+    public synchronized void trim() {
+        mEvictions += mFree.size();
+        mFree.clear();
+        mFreeBytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    public synchronized long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    public synchronized long getOutstandingBytes() {
+        return mOutstandingBytes;
+    }
+
+    /* Times acquire had to wait for a borrowed buffer to come back */
+    public synchronized long getWaitCount() {
+        return mWaits;
+    }
+
+    /* Buffers allocated over the cap */
+    public synchronized long getOverflowCount() {
+        return mOverflows;
+    }
+
+    public long getCapacityBytes() {
+        return mCapacityBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YuvBufferPool hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions
+                + " waits=" + mWaits + " overflows=" + mOverflows
+                + " free=" + mFree.size() + "/" + mFreeBytes + "B borrowed=" + mOutstandingBytes
+                + "B cap=" + mCapacityBytes + "B";
+    }
+}
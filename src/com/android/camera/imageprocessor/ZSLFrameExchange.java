@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lock-free meeting point for the ZSL image and metadata producers and the
+ * shutter consumer.
+ *
+ * Each producer only appends to its own {@link FrameLane}. Whichever thread
+ * finds the drain flag free moves pending frames from both lanes into the
+ * {@link TimestampRingBuffer}; a thread that loses the race simply leaves,
+ * because the current drainer rechecks the lanes before it lets go. The
+ * shutter claims matched frames straight from the ring with a CAS, so it
+ * never waits for intake and intake never waits for it.
+ */
+public class ZSLFrameExchange<I, M> {
+    private final TimestampRingBuffer<I, M> mRing;
+    private final TimestampRingBuffer.Recycler<I, M> mRecycler;
+    private final FrameLane<I> mImageLane;
+    private final FrameLane<M> mMetaLane;
+    private final AtomicBoolean mDraining = new AtomicBoolean(false);
+    private volatile boolean mClosed = false;
+
+    public ZSLFrameExchange(int size, TimestampRingBuffer.Recycler<I, M> recycler) {
+        mRing = new TimestampRingBuffer<I, M>(size, recycler);
+        mRecycler = recycler;
+        mImageLane = new FrameLane<I>(size);
+        mMetaLane = new FrameLane<M>(size);
+    }
+
+    public boolean addImage(long timestamp, I image) {
+        return addImage(timestamp, image, 0f);
+    }
+
+    public boolean addMeta(long timestamp, M meta) {
+        return addMeta(timestamp, meta, 0f);
+    }
+
+    /* Called only from the image producer thread */
+    public boolean addImage(long timestamp, I image, float score) {
+        if (mClosed || !mImageLane.offer(timestamp, score, image)) {
+            mRecycler.recycleImage(image);
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    /* Called only from the metadata producer thread */
+    public boolean addMeta(long timestamp, M meta, float score) {
+        if (mClosed || !mMetaLane.offer(timestamp, score, meta)) {
+            mRecycler.recycleMeta(meta);
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    public TimestampRingBuffer.Match<I, M> takeNewest(TimestampRingBuffer.Selector<I, M> selector) {
+        drain();
+        return mRing.takeNewest(selector);
+    }
+
+    public TimestampRingBuffer.Match<I, M> takeBest(long windowNs,
+            TimestampRingBuffer.Selector<I, M> selector) {
+        drain();
+        return mRing.takeBest(windowNs, selector);
+    }
+
+    private void drain() {
+        while (hasPending() && mDraining.compareAndSet(false, true)) {
+            try {
+                if (mClosed) {
+                    recyclePending();
+                } else {
+                    I image;
+                    while ((image = mImageLane.poll()) != null) {
+                        mRing.addImage(mImageLane.polledTimestamp(), image,
+                                mImageLane.polledScore());
+                    }
+                    M meta;
+                    while ((meta = mMetaLane.poll()) != null) {
+                        mRing.addMeta(mMetaLane.polledTimestamp(), meta,
+                                mMetaLane.polledScore());
+                    }
+                }
+            } finally {
+                mDraining.set(false);
+            }
+        }
+    }
+
+    private boolean hasPending() {
+        return !mImageLane.isEmpty() || !mMetaLane.isEmpty();
+    }
+
+    private void recyclePending() {
+        I image;
+        while ((image = mImageLane.poll()) != null) {
+            mRecycler.recycleImage(image);
+        }
+        M meta;
+        while ((meta = mMetaLane.poll()) != null) {
+            mRecycler.recycleMeta(meta);
+        }
+    }
+
+    /**
+     * Releases every buffered frame. Producers that race with close recycle
+     * their own frames, the only wait here is for an in-flight drain.
+     */
+    public void close() {
+        mClosed = true;
+        while (!mDraining.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            recyclePending();
+            mRing.clear();
+        } finally {
+            mDraining.set(false);
+        }
+        // A producer may have offered after our last poll but before seeing mClosed.
+        drain();
+    }
+
+    public int getDroppedCount() {
+        return mRing.getDroppedCount();
+    }
+}
@@ -35,175 +35,107 @@ import android.util.Log;
 
 import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
-import android.os.SystemProperties;
-
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
 
 public class ZSLQueue {
-    private int mCircularBufferSize;
-    private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
-    private Object mLock = new Object();
+    private volatile ZSLFrameExchange<ImageItem, TotalCaptureResult> mBuffer;
     private CaptureModule mModule;
+    private final FrameScorer mScorer;
+    private final long mSelectionWindowNs;
     private static final boolean DEBUG_QUEUE  =
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
     private static final String TAG = "ZSLQueue";
 
-    public ZSLQueue(CaptureModule module) {
-        mCircularBufferSize = PersistUtil.getCircularBufferSize();
-        synchronized (mLock) {
-            mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
-            mModule = module;
+    private final TimestampRingBuffer.Recycler<ImageItem, TotalCaptureResult> mRecycler =
+            new TimestampRingBuffer.Recycler<ImageItem, TotalCaptureResult>() {
+        @Override
+        public void recycleImage(ImageItem item) {
+            item.closeImage();
         }
-    }
 
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+        @Override
+        public void recycleMeta(TotalCaptureResult meta) {
+        }
+    };
+
+    private final TimestampRingBuffer.Selector<ImageItem, TotalCaptureResult> mSelector =
+            new TimestampRingBuffer.Selector<ImageItem, TotalCaptureResult>() {
+        @Override
+        public boolean accept(ImageItem item, TotalCaptureResult metadata) {
+            return checkImageRequirement(metadata);
+        }
+    };
+
+    public ZSLQueue(CaptureModule module) {
+        this(module, null);
     }
 
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+    /**
+     * With a scorer the shutter picks the best scoring matched frame within the
+     * configured selection window, otherwise the newest acceptable frame.
+     */
+    public ZSLQueue(CaptureModule module, FrameScorer scorer) {
+        mScorer = scorer;
+        mSelectionWindowNs = PersistUtil.getZSLSelectionWindowMs() * 1000000L;
+        mBuffer = new ZSLFrameExchange<ImageItem, TotalCaptureResult>(
+                PersistUtil.getCircularBufferSize(), mRecycler);
+        mModule = module;
     }
 
+    /* Called only from the image reader thread */
     public void add(Image image, Image rawImage) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image,rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
-            }
+        ImageItem item = new ImageItem();
+        item.setImage(image, rawImage);
+        ZSLFrameExchange<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null) {
+            item.closeImage();
+            return;
         }
+        float score = mScorer == null ? 0f : mScorer.scoreImage(image);
+        boolean queued = buffer.addImage(image.getTimestamp(), item, score);
 
-        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + image.getTimestamp());
+        if(DEBUG_QUEUE) Log.d(TAG, "image: " + queued + " " + image.getTimestamp());
     }
 
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
-            } catch(IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
-            }
-            if(timestamp == -1) {
-                return;
-            }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
-            } else {
-                mBuffer[mMetaHead].closeMeta();
-            }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
-            }
+        long timestamp = -1;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
+        } catch(IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
         }
+        if(timestamp == -1) {
+            return;
+        }
+        ZSLFrameExchange<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null)
+            return;
+        float score = mScorer == null ? 0f : mScorer.scoreMetadata(metadata);
+        boolean queued = buffer.addMeta(timestamp, metadata, score);
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + queued + " " + timestamp);
     }
 
     public ImageItem tryToGetMatchingItem() {
-        synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
-                }
-                index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+        ZSLFrameExchange<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null)
+            return null;
+        TimestampRingBuffer.Match<ImageItem, TotalCaptureResult> match =
+                mScorer == null ? buffer.takeNewest(mSelector)
+                        : buffer.takeBest(mSelectionWindowNs, mSelector);
+        if (match == null) {
+            return null;
         }
-        return null;
+        match.image.setMetadata(match.meta);
+        return match.image;
     }
 
     public void onClose() {
-        synchronized (mLock) {
-            for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
-            }
-            mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
+        ZSLFrameExchange<ImageItem, TotalCaptureResult> buffer = mBuffer;
+        mBuffer = null;
+        if (buffer != null) {
+            buffer.close();
         }
     }
 
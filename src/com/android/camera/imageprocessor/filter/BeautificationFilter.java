@@ -154,6 +154,11 @@ public class BeautificationFilter implements ImageFilter {
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
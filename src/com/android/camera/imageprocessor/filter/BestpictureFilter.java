@@ -50,6 +50,7 @@ import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
 import com.android.camera.imageprocessor.PostProcessor;
+import com.android.camera.imageprocessor.YuvBufferPool;
 import com.android.camera.util.CameraUtil;
 
 import java.io.ByteArrayOutputStream;
@@ -207,17 +208,19 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
-                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
+            mBestpictureResultImage = YuvBufferPool.getInstance().acquireResultImage(
+                    mWidth, mHeight, mStrideY);
             yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
             vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
                     vuBuf.remaining());
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
+            byte[] bytes = nv21ToJpeg(mBestpictureResultImage, mOrientation,
                     mProcessor.waitForMetaData(imageNum));
+            mBestpictureResultImage.release();
+            mBestpictureResultImage = null;
+            return bytes;
         }
     }
 
@@ -256,6 +259,11 @@ public class BestpictureFilter implements ImageFilter {
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return true;
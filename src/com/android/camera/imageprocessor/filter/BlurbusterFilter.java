@@ -132,6 +132,11 @@ public class BlurbusterFilter implements ImageFilter{
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
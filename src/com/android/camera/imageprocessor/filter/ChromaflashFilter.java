@@ -143,6 +143,11 @@ public class ChromaflashFilter implements ImageFilter{
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return true;
@@ -33,6 +33,7 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
 import android.os.Handler;
+import com.android.camera.imageprocessor.YuvBufferPool;
 import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
@@ -71,13 +72,30 @@ public interface ImageFilter {
         public int width;
         public int height;
         public int stride;
+        private YuvBufferPool mPool;
 
         public ResultImage(ByteBuffer buf, Rect roi, int width, int height, int stride) {
+            this(buf, roi, width, height, stride, null);
+        }
+
+        /* The buffer goes back to pool on release(), pool may be null */
+        public ResultImage(ByteBuffer buf, Rect roi, int width, int height, int stride,
+                           YuvBufferPool pool) {
             outBuffer = buf;
             outRoi = roi;
             this.width = width;
             this.height = height;
             this.stride = stride;
+            mPool = pool;
+        }
+
+        /* Returns a pooled buffer, the image must not be used afterwards */
+        public void release() {
+            if (mPool != null) {
+                mPool.release(width, stride, height, outBuffer);
+                mPool = null;
+                outBuffer = null;
+            }
         }
     }
 
@@ -87,6 +105,9 @@ public interface ImageFilter {
     /* Whether it will use burst capture or manual capture */
     boolean isManualMode();
 
+    /* Whether addImage can be called for different frames concurrently */
+    boolean isAddImageThreadSafe();
+
     /* if it's manual mode, this function has to be implemented */
     void manualCapture(CaptureRequest.Builder builder, CameraCaptureSession captureSession,
                        CameraCaptureSession.CaptureCallback callback, Handler handler) throws CameraAccessException;
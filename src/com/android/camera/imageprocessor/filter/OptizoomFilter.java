@@ -133,6 +133,11 @@ public class OptizoomFilter implements ImageFilter{
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
@@ -156,6 +156,11 @@ public class SharpshooterFilter implements ImageFilter{
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
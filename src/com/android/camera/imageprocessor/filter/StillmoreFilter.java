@@ -149,6 +149,11 @@ public class StillmoreFilter implements ImageFilter{
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
@@ -266,6 +266,11 @@ public class TrackingFocusFrameListener implements ImageFilter {
         return true;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
@@ -47,6 +47,7 @@ import android.util.Range;
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.imageprocessor.PostProcessor;
+import com.android.camera.imageprocessor.YuvBufferPool;
 import com.android.camera.util.CameraUtil;
 
 import java.io.ByteArrayOutputStream;
@@ -192,6 +193,11 @@ public class UbifocusFilter implements ImageFilter {
         return false;
     }
 
+    @Override
+    public boolean isAddImageThreadSafe() {
+        return false;
+    }
+
     @Override
     public boolean isManualMode() {
         return true;
@@ -282,17 +288,19 @@ public class UbifocusFilter implements ImageFilter {
             if (mOutBuf == null) {
                 return null;
             }
-            mUbifocusResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
-                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
+            mUbifocusResultImage = YuvBufferPool.getInstance().acquireResultImage(
+                    mWidth, mHeight, mStrideY);
             yBuf.get(mUbifocusResultImage.outBuffer.array(), 0, yBuf.remaining());
             vuBuf.get(mUbifocusResultImage.outBuffer.array(), mStrideY * mHeight,
                     vuBuf.remaining());
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mUbifocusResultImage, mOrientation,
+            byte[] bytes = nv21ToJpeg(mUbifocusResultImage, mOrientation,
                     mPostProcessor.waitForMetaData(imageNum));
+            mUbifocusResultImage.release();
+            mUbifocusResultImage = null;
+            return bytes;
         }
     }
 
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.android.camera.exif.JpegHeader;
+
+/**
+ * Writes an MPO file to a {@link FileChannel} one image at a time. Every image
+ * size is known up front, so the MP Entry offsets are computed before
+ * anything is written and the images never have to be resident together.
+ * File-backed images are copied with {@link FileChannel#transferTo}; only
+ * their marker segments are read into the heap.
+ *
+ * The output is identical to what {@link MpoOutputStream} produces.
+ */
+class MpoChannelWriter {
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    private static final int CROP_INFO_SIZE = MpoOutputStream.DC_CROP_INFO.length();
+    private static final byte[] CROP_INFO = MpoOutputStream.DC_CROP_INFO.getBytes();
+
+    private final MpoData mMpoData;
+    private final FileChannel mOut;
+    private final ByteBuffer mSegmentHeader = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    private final ByteBuffer mCropInfo = ByteBuffer.allocate(CROP_INFO_SIZE);
+    private ByteBuffer mZeros;
+    private int mMpoOffsetStart = -1;
+    private long mSize = 0;
+
+    MpoChannelWriter(MpoData mpoData, FileChannel out) {
+        mMpoData = mpoData;
+        mOut = out;
+    }
+
+    /**
+     * Writes the primary image followed by the auxiliary images and returns
+     * the number of bytes written.
+     */
+    long write() throws IOException {
+        mMpoData.updateAllTags();
+
+        MpoImageData primary = mMpoData.getPrimaryMpoImage();
+        List<MpoImageData> auxiliary = mMpoData.getAuxiliaryMpoImages();
+        // don't clear the crop info if primary == bayer
+        writeImage(primary, auxiliary.size() > 1);
+        for (MpoImageData image : auxiliary) {
+            writeImage(image, false);
+        }
+        return mSize;
+    }
+
+    private void writeImage(MpoImageData image, boolean clearCropInfo)
+            throws IOException {
+        Source src = Source.open(image);
+        try {
+            if (readSegmentHeader(src, 0, 2) != JpegHeader.SOI) {
+                throw new IOException("Not a valid jpeg image, cannot write mpo");
+            }
+            // The MP segment goes after APP0 and APP1, in front of the first
+            // other marker.
+            long insertPos = 2;
+            short marker;
+            while ((marker = readSegmentHeader(src, insertPos, SEGMENT_HEADER_SIZE))
+                    == JpegHeader.APP1 || marker == JpegHeader.APP0) {
+                insertPos += 2 + segmentLength();
+            }
+
+            long cropPos = -1;
+            int cropSize = 0;
+            if (clearCropInfo) {
+                long pos = insertPos;
+                while (!JpegHeader.isSofMarker(
+                        readSegmentHeader(src, pos, SEGMENT_HEADER_SIZE))) {
+                    int length = segmentLength();
+                    if (isDualCamCropInfo(src, pos + SEGMENT_HEADER_SIZE)) {
+                        cropPos = pos + SEGMENT_HEADER_SIZE;
+                        cropSize = length - 2;
+                        break;
+                    }
+                    pos += 2 + length;
+                }
+            }
+
+            if (mMpoOffsetStart == -1) {
+                mMpoOffsetStart = (int) (mSize + insertPos) + 2 + MpoImageData.APP_HEADER_SIZE;
+            }
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(
+                    image.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE + 2);
+            MpoOutputStream.writeMpoSegment(mMpoData, image, mMpoOffsetStart, segment);
+
+            src.transferTo(0, insertPos, this);
+            writeFully(ByteBuffer.wrap(segment.toByteArray()));
+            if (cropPos < 0) {
+                src.transferTo(insertPos, src.size() - insertPos, this);
+            } else {
+                src.transferTo(insertPos, cropPos - insertPos, this);
+                if (mZeros == null) {
+                    mZeros = ByteBuffer.allocate(MpoOutputStream.MAX_EXIF_SIZE);
+                }
+                mZeros.clear().limit(cropSize);
+                writeFully(mZeros);
+                long resume = cropPos + cropSize;
+                src.transferTo(resume, src.size() - resume, this);
+            }
+        } finally {
+            src.close();
+        }
+    }
+
+    private short readSegmentHeader(Source src, long pos, int size) throws IOException {
+        mSegmentHeader.clear().limit(size);
+        src.read(pos, mSegmentHeader);
+        return mSegmentHeader.getShort(0);
+    }
+
+    private int segmentLength() {
+        return mSegmentHeader.getShort(2) & 0x0000ffff;
+    }
+
+    private boolean isDualCamCropInfo(Source src, long pos) throws IOException {
+        if (pos + CROP_INFO_SIZE > src.size()) {
+            return false;
+        }
+        mCropInfo.clear();
+        src.read(pos, mCropInfo);
+        for (int i = 0; i < CROP_INFO_SIZE; i++) {
+            if (mCropInfo.get(i) != CROP_INFO[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mSize += mOut.write(buffer);
+        }
+    }
+
+    /**
+     * Random access to the bytes of one image, whether it sits in a buffer or
+     * in a file.
+     */
+    private abstract static class Source implements Closeable {
+        static Source open(MpoImageData image) throws IOException {
+            ByteBuffer buffer = image.getJpegBuffer();
+            if (buffer != null) {
+                return new BufferSource(buffer);
+            }
+            return new FileSource(new FileInputStream(image.getJpegFile()).getChannel());
+        }
+
+        abstract long size();
+
+        /** Fills the remaining space of dst with the bytes at pos. */
+        abstract void read(long pos, ByteBuffer dst) throws IOException;
+
+        abstract void transferTo(long pos, long count, MpoChannelWriter writer)
+                throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class BufferSource extends Source {
+        private final ByteBuffer mBuffer;
+
+        BufferSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        long size() {
+            return mBuffer.capacity();
+        }
+
+        @Override
+        void read(long pos, ByteBuffer dst) throws IOException {
+            if (pos + dst.remaining() > mBuffer.capacity()) {
+                throw new EOFException("Unexpected end of jpeg data");
+            }
+            mBuffer.limit((int) pos + dst.remaining()).position((int) pos);
+            dst.put(mBuffer);
+        }
+
+        @Override
+        void transferTo(long pos, long count, MpoChannelWriter writer) throws IOException {
+            mBuffer.limit((int) (pos + count)).position((int) pos);
+            writer.writeFully(mBuffer);
+        }
+    }
+
+    private static class FileSource extends Source {
+        private final FileChannel mChannel;
+        private final long mSize;
+
+        FileSource(FileChannel channel) throws IOException {
+            mChannel = channel;
+            mSize = channel.size();
+        }
+
+        @Override
+        long size() {
+            return mSize;
+        }
+
+        @Override
+        void read(long pos, ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                int n = mChannel.read(dst, pos);
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of jpeg file");
+                }
+                pos += n;
+            }
+        }
+
+        @Override
+        void transferTo(long pos, long count, MpoChannelWriter writer) throws IOException {
+            while (count > 0) {
+                long n = mChannel.transferTo(pos, count, writer.mOut);
+                if (n <= 0) {
+                    throw new EOFException("Unexpected end of jpeg file");
+                }
+                pos += n;
+                count -= n;
+                writer.mSize += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
@@ -19,6 +19,8 @@
 
 package com.android.camera.mpo;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,20 +39,75 @@ public class MpoImageData {
     private final MpoIfdData mMpIndexIfdData = new MpoIfdData(MpoIfdData.TYPE_MP_INDEX_IFD);
     private final MpoIfdData mMpAttribIfdData = new MpoIfdData(MpoIfdData.TYPE_MP_ATTRIB_IFD);
     private final byte[] mJpegData;
+    private final ByteBuffer mJpegBuffer;
+    private final File mJpegFile;
+    private final long mJpegSize;
     private final ByteOrder mByteOrder;
 
     public MpoImageData(byte[] jpegData, ByteOrder byteOrder) {
         mJpegData = jpegData;
+        mJpegBuffer = null;
+        mJpegFile = null;
+        mJpegSize = jpegData.length;
         mByteOrder = byteOrder;
     }
 
     /**
-     * Gets the jpeg data.
+     * Creates image data backed by the remaining bytes of a buffer, which may
+     * be direct or memory-mapped. The buffer's position is not modified.
+     */
+    public MpoImageData(ByteBuffer jpegBuffer, ByteOrder byteOrder) {
+        mJpegData = null;
+        mJpegBuffer = jpegBuffer.slice();
+        mJpegFile = null;
+        mJpegSize = mJpegBuffer.remaining();
+        mByteOrder = byteOrder;
+    }
+
+    /**
+     * Creates image data backed by a jpeg file, which is only read while the
+     * MPO is being written.
+     */
+    public MpoImageData(File jpegFile, ByteOrder byteOrder) {
+        mJpegData = null;
+        mJpegBuffer = null;
+        mJpegFile = jpegFile;
+        mJpegSize = jpegFile.length();
+        mByteOrder = byteOrder;
+    }
+
+    /**
+     * Gets the jpeg data, or null if this image is not backed by an array.
      */
     protected byte[] getJpegData() {
         return mJpegData;
     }
 
+    /**
+     * Gets the jpeg data as a read-only buffer, or null if this image is
+     * backed by a file.
+     */
+    protected ByteBuffer getJpegBuffer() {
+        if (mJpegData != null) {
+            return ByteBuffer.wrap(mJpegData).asReadOnlyBuffer();
+        }
+        return mJpegBuffer == null ? null : mJpegBuffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the jpeg file, or null if this image is held in memory.
+     */
+    protected File getJpegFile() {
+        return mJpegFile;
+    }
+
+    /**
+     * Gets the size of the jpeg data in bytes.
+     */
+    protected long getJpegSize() {
+        return mJpegSize;
+    }
+
     /**
      * Gets the byte order.
      */
@@ -243,6 +300,6 @@ public class MpoImageData {
     }
 
     public int calculateImageSize() {
-        return 2 + APP_HEADER_SIZE + calculateAllIfdOffsets() + mJpegData.length;
+        return 2 + APP_HEADER_SIZE + calculateAllIfdOffsets() + (int) mJpegSize;
     }
 }
@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
@@ -96,11 +97,36 @@ public class MpoInterface {
         return s.size();
     }
 
+    /**
+     * Writes the MPO to a channel image by image, without buffering the
+     * images in memory. Images may be backed by arrays, buffers or files.
+     */
+    public static int writeMpo(MpoData mpo, FileChannel out) {
+        if (mpo == null || out == null)
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+
+        try {
+            return (int) new MpoChannelWriter(mpo, out).write();
+        } catch (IOException e) {
+            Log.w(TAG, "IO Exception when writing mpo image", e);
+            return -1;
+        }
+    }
+
     public static int writeMpo(MpoData mpo, String outFilename) {
         if (mpo == null || outFilename == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        return writeMpo(mpo, getFileWriterStream(outFilename));
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(outFilename);
+            return writeMpo(mpo, out.getChannel());
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "File not found");
+            return -1;
+        } finally {
+            CameraUtil.closeSilently(out);
+        }
     }
 
     /**
@@ -118,26 +144,4 @@ public class MpoInterface {
         MpoOutputStream mos = new MpoOutputStream(outStream);
         return mos;
     }
-
-    /**
-     * Returns an FileOutputStream object that writes to a file.
-     *
-     * @param outFileName
-     *            an String containing a filepath for a file.
-     * @return an FileOutputStream that writes to the outFileName file.
-     * @throws FileNotFoundException
-     */
-    private static OutputStream getFileWriterStream(String outFileName) {
-        if (outFileName == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream out = null;
-        try {
-            out = new FileOutputStream(outFileName);
-        } catch (FileNotFoundException e) {
-            CameraUtil.closeSilently(out);
-            Log.w(TAG, "File not found");
-        }
-        return out;
-    }
 }
@@ -20,8 +20,10 @@
 package com.android.camera.mpo;
 
 import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -49,9 +51,9 @@ class MpoOutputStream extends FilterOutputStream {
     private static final short TIFF_HEADER = 0x002A;
     private static final short TIFF_BIG_ENDIAN = 0x4d4d;
     private static final short TIFF_LITTLE_ENDIAN = 0x4949;
-    private static final int MAX_EXIF_SIZE = 65535;
+    static final int MAX_EXIF_SIZE = 65535;
 
-    private static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
+    static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
     private static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
 
     private MpoData mMpoData;
@@ -117,7 +119,7 @@ class MpoOutputStream extends FilterOutputStream {
         if(mMpoData.getAuxiliaryImageCount() > 1) {
             mSkipCropData = true;
         }
-        write(mCurrentImageData.getJpegData());
+        writeImage(mCurrentImageData);
         flush();
 
         mSkipCropData = false;
@@ -125,17 +127,128 @@ class MpoOutputStream extends FilterOutputStream {
         for (MpoImageData image : mMpoData.getAuxiliaryMpoImages()) {
             resetStates();
             mCurrentImageData = image;
-            write(mCurrentImageData.getJpegData());
+            writeImage(mCurrentImageData);
             flush();
         }
     }
 
+    private void writeImage(MpoImageData image) throws IOException {
+        byte[] data = image.getJpegData();
+        if (data != null) {
+            write(data);
+            return;
+        }
+        byte[] chunk = new byte[STREAMBUFFER_SIZE];
+        ByteBuffer buffer = image.getJpegBuffer();
+        if (buffer != null) {
+            while (buffer.hasRemaining()) {
+                int n = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, n);
+                write(chunk, 0, n);
+            }
+            return;
+        }
+        InputStream in = new FileInputStream(image.getJpegFile());
+        try {
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                write(chunk, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readUnsignedShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+    }
+
+    private static boolean isDualCamCropInfo(byte[] buffer, int offset) {
+        for (int i = 0; i < DC_CROP_INFO_BYTE_SIZE; i++) {
+            if (buffer[offset + i] != (byte) DC_CROP_INFO.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an image whose headers are all in the given array. One pass over
+     * the segment headers finds where the MP segment goes and, for the
+     * primary image, the crop info to clear; everything around them is
+     * written with bulk writes. Returns false without writing anything when
+     * the array ends before the headers do, leaving the image to the
+     * incremental parser in {@link #write(byte[], int, int)}.
+     */
+    private boolean writeImageInBulk(byte[] buffer, int offset, int length) throws IOException {
+        final int end = offset + length;
+        if (length < 2 || (short) readUnsignedShort(buffer, offset) != JpegHeader.SOI) {
+            return false;
+        }
+        // Copy APP0 and APP1 if they exist, the MP segment follows them
+        int pos = offset + 2;
+        short marker;
+        while (true) {
+            if (pos + 4 > end) {
+                return false;
+            }
+            marker = (short) readUnsignedShort(buffer, pos);
+            if (marker != JpegHeader.APP1 && marker != JpegHeader.APP0) {
+                break;
+            }
+            pos += 2 + readUnsignedShort(buffer, pos + 2);
+        }
+        final int insertPos = pos;
+
+        int cropPos = -1;
+        int cropSize = 0;
+        while (mSkipCropData) {
+            if (pos + 4 > end) {
+                return false;
+            }
+            if (JpegHeader.isSofMarker((short) readUnsignedShort(buffer, pos))) {
+                break;
+            }
+            if (pos + 4 + DC_CROP_INFO_BYTE_SIZE > end) {
+                return false;
+            }
+            int segmentLength = readUnsignedShort(buffer, pos + 2);
+            if (isDualCamCropInfo(buffer, pos + 4)) {
+                cropPos = pos + 4;
+                cropSize = Math.max(segmentLength - 2, 0);
+                if (cropPos + cropSize > end) {
+                    return false;
+                }
+                break;
+            }
+            pos += 2 + segmentLength;
+        }
+
+        out.write(buffer, offset, insertPos - offset);
+        mSize += insertPos - offset;
+        writeMpoData();
+        if (cropPos < 0) {
+            out.write(buffer, insertPos, end - insertPos);
+        } else {
+            out.write(buffer, insertPos, cropPos - insertPos);
+            out.write(new byte[cropSize]);
+            out.write(buffer, cropPos + cropSize, end - cropPos - cropSize);
+        }
+        mSize += end - insertPos;
+        mState = STATE_JPEG_DATA;
+        return true;
+    }
+
     /**
      * Writes the image out. The input data should be a valid JPEG format. After
      * writing, it's Exif header will be replaced by the given header.
      */
     @Override
     public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (mState == STATE_SOI && mBuffer.position() == 0 && mByteToSkip == 0
+                && mByteToCopy == 0 && writeImageInBulk(buffer, offset, length)) {
+            return;
+        }
         while ((mByteToSkip > 0 || mByteToCopy > 0 || mState != STATE_JPEG_DATA) && length > 0) {
             if (mByteToSkip > 0) {
                 int byteToProcess = length > mByteToSkip ? mByteToSkip : length;
@@ -234,10 +347,9 @@ class MpoOutputStream extends FilterOutputStream {
                         mSize += 4;
 
                         int sizeToClear = mByteToSkip = (mBuffer.getShort() & 0x0000ffff) - 2;
-                        while(sizeToClear > 0) {
-                            out.write(0);
-                            mSize++;
-                            sizeToClear--;
+                        if (sizeToClear > 0) {
+                            out.write(new byte[sizeToClear]);
+                            mSize += sizeToClear;
                         }
                         mState = STATE_JPEG_DATA;
                     } else {
@@ -289,7 +401,21 @@ class MpoOutputStream extends FilterOutputStream {
         if (DEBUG) {
             Log.v(TAG, "Writing mpo data...");
         }
-        int exifSize = mCurrentImageData.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
+        if (mMpoOffsetStart == -1) {
+            mMpoOffsetStart = mSize + 2 + MpoImageData.APP_HEADER_SIZE;
+        }
+        mSize += writeMpoSegment(mMpoData, mCurrentImageData, mMpoOffsetStart, out);
+    }
+
+    /**
+     * Writes the APP2 segment holding the MP extensions of one image and
+     * returns its size. The MP Entry offsets are made relative to
+     * mpoOffsetStart, the file position right after the MP format identifier
+     * of the primary image.
+     */
+    static int writeMpoSegment(MpoData mpoData, MpoImageData imageData, int mpoOffsetStart,
+            OutputStream out) throws IOException {
+        int exifSize = imageData.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
         if (exifSize > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
@@ -298,28 +424,25 @@ class MpoOutputStream extends FilterOutputStream {
         dataOutputStream.writeShort(JpegHeader.APP2);
         dataOutputStream.writeShort((short) (exifSize));
         dataOutputStream.writeInt(MpoImageData.MP_FORMAT_IDENTIFIER);
-        if (mMpoOffsetStart == -1) {
-            mMpoOffsetStart = mSize + dataOutputStream.size();
-        }
-        if (mCurrentImageData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
+        if (imageData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
             dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
         } else {
             dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
         }
-        dataOutputStream.setByteOrder(mCurrentImageData.getByteOrder());
+        dataOutputStream.setByteOrder(imageData.getByteOrder());
         dataOutputStream.writeShort(TIFF_HEADER);
         if (exifSize > MpoImageData.MP_HEADER_SIZE + MpoImageData.APP_HEADER_SIZE) {
             dataOutputStream.writeInt(MpoImageData.OFFSET_TO_FIRST_IFD);
-            writeAllTags(dataOutputStream);
+            writeAllTags(mpoData, imageData, mpoOffsetStart, dataOutputStream);
         } else
             dataOutputStream.writeInt(0);
 
-        mSize += dataOutputStream.size();
+        return dataOutputStream.size();
     }
 
-    private void updateIndexIfdOffsets(MpoIfdData indexIfd, int mpoOffset) {
+    private static void updateIndexIfdOffsets(MpoData mpoData, int mpoOffset) {
         // update offsets
-        MpoTag mpEntryTag = mMpoData.getPrimaryMpoImage().getTag((short) MpoInterface.TAG_MP_ENTRY,
+        MpoTag mpEntryTag = mpoData.getPrimaryMpoImage().getTag((short) MpoInterface.TAG_MP_ENTRY,
                 MpoIfdData.TYPE_MP_INDEX_IFD);
         List<MpEntry> mpEntries = mpEntryTag.getMpEntryValue();
         for (int i = 1; i < mpEntries.size(); i++) { // primary offset is always
@@ -331,19 +454,20 @@ class MpoOutputStream extends FilterOutputStream {
         mpEntryTag.setValue(mpEntries);
     }
 
-    private void writeAllTags(OrderedDataOutputStream dataOutputStream) throws IOException {
-        MpoIfdData indexIfd = mCurrentImageData.getIndexIfdData();
+    private static void writeAllTags(MpoData mpoData, MpoImageData imageData, int mpoOffsetStart,
+            OrderedDataOutputStream dataOutputStream) throws IOException {
+        MpoIfdData indexIfd = imageData.getIndexIfdData();
         if (indexIfd.getTagCount() > 0) {
-            updateIndexIfdOffsets(indexIfd, mMpoOffsetStart);
+            updateIndexIfdOffsets(mpoData, mpoOffsetStart);
             writeIfd(indexIfd, dataOutputStream);
         }
 
-        MpoIfdData attribIfd = mCurrentImageData.getAttribIfdData();
+        MpoIfdData attribIfd = imageData.getAttribIfdData();
         if (attribIfd.getTagCount() > 0)
             writeIfd(attribIfd, dataOutputStream);
     }
 
-    private void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
+    private static void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
         MpoTag[] tags = ifd.getAllTags();
         dataOutputStream.writeShort((short) tags.length);
@@ -377,8 +501,9 @@ class MpoOutputStream extends FilterOutputStream {
         case MpoTag.TYPE_ASCII:
             byte buf[] = tag.getStringByte();
             if (buf.length == tag.getComponentCount()) {
-                buf[buf.length - 1] = 0;
-                dataOutputStream.write(buf);
+                // The last byte is the terminator, the value is not ours to change.
+                dataOutputStream.write(buf, 0, buf.length - 1);
+                dataOutputStream.write(0);
             } else {
                 dataOutputStream.write(buf);
                 dataOutputStream.write(0);
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.android.camera.exif.JpegHeader;
+import com.android.camera.mpo.MpoTag.MpEntry;
+
+/**
+ * Gives random access to the images of an MPO file. Only the headers of the
+ * primary image and the MP Index IFD are parsed; each image is returned as a
+ * read-only slice of the mapped file, so getting the Nth image neither
+ * decodes nor copies the others.
+ */
+public class MpoReader {
+    private static final short SOS = (short) 0xFFDA;
+    private static final short MP_ENTRY_TAG_ID = (short) MpoInterface.TAG_MP_ENTRY;
+
+    private final ByteBuffer mData;
+    private final List<MpEntry> mEntries;
+    private final int mMpoOffsetStart;
+
+    private MpoReader(ByteBuffer data, List<MpEntry> entries, int mpoOffsetStart) {
+        mData = data;
+        mEntries = entries;
+        mMpoOffsetStart = mpoOffsetStart;
+    }
+
+    /**
+     * Memory-maps the given file and parses its MP Index IFD.
+     *
+     * @throws IOException if the file cannot be read or is not an MPO
+     */
+    public static MpoReader open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+    }
+
+    /**
+     * Parses an MPO held in the remaining bytes of the buffer. The buffer is
+     * not copied, and its position is not modified.
+     *
+     * @throws IOException if the data is not an MPO
+     */
+    public static MpoReader parse(ByteBuffer mpo) throws IOException {
+        ByteBuffer data = mpo.slice().order(ByteOrder.BIG_ENDIAN);
+        int end = data.limit();
+        if (end < 4 || data.getShort(0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image");
+        }
+
+        // Find the APP2 segment holding the MP extensions of the primary image
+        int pos = 2;
+        while (true) {
+            if (pos + 4 > end) {
+                throw new IOException("Unexpected end of mpo data");
+            }
+            short marker = data.getShort(pos);
+            if (marker == SOS || marker == JpegHeader.EOI) {
+                throw new IOException("No MP extensions found");
+            }
+            int length = data.getShort(pos + 2) & 0xffff;
+            if (marker == JpegHeader.APP2 && length >= MpoImageData.APP_HEADER_SIZE
+                    + MpoImageData.MP_HEADER_SIZE && pos + 4 + 4 <= end
+                    && data.getInt(pos + 4) == MpoImageData.MP_FORMAT_IDENTIFIER) {
+                break;
+            }
+            pos += 2 + length;
+        }
+
+        // Offsets in the MP extensions are relative to the MP endian field
+        final int mpoOffsetStart = pos + 2 + MpoImageData.APP_HEADER_SIZE;
+        final int segmentEnd = pos + 2 + (data.getShort(pos + 2) & 0xffff);
+        if (segmentEnd > end) {
+            throw new IOException("Unexpected end of mpo data");
+        }
+        ByteBuffer mp = data.duplicate();
+        mp.limit(segmentEnd).position(mpoOffsetStart);
+        mp = mp.slice();
+        short endian = mp.getShort(0);
+        if (endian == 0x4949) {
+            mp.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (endian != 0x4d4d) {
+            throw new IOException("Invalid MP endian field");
+        }
+
+        int ifd = mp.getInt(4);
+        if (ifd < MpoImageData.MP_HEADER_SIZE || ifd + 2 > mp.limit()) {
+            throw new IOException("Invalid MP Index IFD offset");
+        }
+        int count = mp.getShort(ifd) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * MpoTag.TAG_SIZE;
+            if (entry + MpoTag.TAG_SIZE > mp.limit()) {
+                break;
+            }
+            if (mp.getShort(entry) == MP_ENTRY_TAG_ID) {
+                int size = mp.getInt(entry + 4);
+                int offset = mp.getInt(entry + 8);
+                if (size <= 0 || size % MpEntry.SIZE != 0 || offset < 0
+                        || offset + size > mp.limit()) {
+                    throw new IOException("Invalid MP Entry");
+                }
+                List<MpEntry> entries = readMpEntries(mp, offset, size);
+                MpoReader reader = new MpoReader(data, entries, mpoOffsetStart);
+                for (int j = 0; j < entries.size(); j++) {
+                    reader.checkBounds(j);
+                }
+                return reader;
+            }
+        }
+        throw new IOException("No MP Entry found");
+    }
+
+    private static List<MpEntry> readMpEntries(ByteBuffer mp, int offset, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i += MpEntry.SIZE) {
+            // MpEntry reads big endian, so reorder each field of the entry
+            ByteBuffer entry = ByteBuffer.wrap(bytes, i, MpEntry.SIZE);
+            entry.putInt(mp.getInt(offset + i));
+            entry.putInt(mp.getInt(offset + i + 4));
+            entry.putInt(mp.getInt(offset + i + 8));
+            entry.putShort(mp.getShort(offset + i + 12));
+            entry.putShort(mp.getShort(offset + i + 14));
+        }
+        MpoTag tag = new MpoTag((short) MpoInterface.TAG_MP_ENTRY, MpoTag.TYPE_UNDEFINED,
+                MpoTag.SIZE_UNDEFINED, MpoIfdData.TYPE_MP_INDEX_IFD, false);
+        tag.setValue(bytes);
+        return tag.getMpEntryValue();
+    }
+
+    private int getImageStart(int index) {
+        // the primary image starts the file and is always at offset 0
+        return index == 0 ? 0 : mMpoOffsetStart + mEntries.get(index).getImageOffset();
+    }
+
+    private void checkBounds(int index) throws IOException {
+        long start = getImageStart(index);
+        long size = mEntries.get(index).getImageSize() & 0xffffffffL;
+        if (start < 0 || start + size > mData.limit()) {
+            throw new IOException("Image " + index + " lies outside the mpo data");
+        }
+    }
+
+    /**
+     * Returns the number of images listed in the MP Index IFD.
+     */
+    public int getImageCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the individual image attribute flags and type code of the
+     * given image.
+     */
+    public int getImageAttribute(int index) {
+        return mEntries.get(index).getImageAttrib();
+    }
+
+    /**
+     * Returns the size in bytes of the given image.
+     */
+    public int getImageSize(int index) {
+        return mEntries.get(index).getImageSize();
+    }
+
+    /**
+     * Returns a read-only slice holding the complete jpeg of the given image,
+     * from its SOI to its EOI marker. Index 0 is the primary image.
+     */
+    public ByteBuffer getImage(int index) {
+        int start = getImageStart(index);
+        ByteBuffer image = mData.asReadOnlyBuffer();
+        image.limit(start + mEntries.get(index).getImageSize()).position(start);
+        return image.slice();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of capture latency spans.
+ *
+ * Recording a span is a few array stores and one atomic increment: span names
+ * are int constants, timestamps come from System.nanoTime() and nothing is
+ * allocated, so it is left on by default. Old spans are overwritten once the
+ * ring wraps. dumpChromeTrace() writes the ring in the Chrome trace event
+ * format, which can be loaded into chrome://tracing or Perfetto.
+ *
+ * Typical use:
+ *     long start = CaptureTrace.begin();
+ *     ...
+ *     CaptureTrace.end(CaptureTrace.SPAN_NV21_TO_JPEG, captureId, start);
+ */
+public class CaptureTrace {
+    private static final String TAG = "CaptureTrace";
+
+    public static final int SPAN_TAKE_PICTURE = 0;
+    public static final int SPAN_CAPTURE_STILL = 1;
+    public static final int SPAN_ADD_IMAGE = 2;
+    public static final int SPAN_PROCESS_IMAGE = 3;
+    public static final int SPAN_NV21_TO_JPEG = 4;
+    public static final int SPAN_ADD_EXIF = 5;
+    public static final int SPAN_SAVE_QUEUED = 6;
+    public static final int SPAN_SAVE_IMAGE = 7;
+    public static final int SPAN_SAVE_MPO = 8;
+    public static final int SPAN_SAVE_XMP = 9;
+    public static final int SPAN_SAVE_RAW = 10;
+
+    private static final String[] SPAN_NAMES = {
+        "takePicture",
+        "captureStillPicture",
+        "addImage",
+        "processImage",
+        "nv21ToJpeg",
+        "addExifTags",
+        "saveQueued",
+        "saveImage",
+        "saveMpo",
+        "saveXmp",
+        "saveRaw",
+    };
+
+    public static final int NO_CAPTURE = 0;
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static final CaptureTrace sInstance =
+            new CaptureTrace(DEFAULT_CAPACITY, PersistUtil.getCaptureTraceLevel() > 0);
+
+    private final boolean mEnabled;
+    private final int mMask;
+    private final int[] mSpans;
+    private final int[] mCaptureIds;
+    private final long[] mThreadIds;
+    private final long[] mStartNs;
+    private final long[] mEndNs;
+    // 0 while a slot is empty or being written, otherwise the write index + 1.
+    private final AtomicLongArray mSequence;
+    private final AtomicLong mNextWrite = new AtomicLong();
+    private final AtomicInteger mNextCaptureId = new AtomicInteger();
+    private volatile int mCurrentCaptureId = NO_CAPTURE;
+
+    /* capacity is rounded up to a power of two */
+    public CaptureTrace(int capacity, boolean enabled) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mEnabled = enabled;
+        mMask = size - 1;
+        mSpans = new int[size];
+        mCaptureIds = new int[size];
+        mThreadIds = new long[size];
+        mStartNs = new long[size];
+        mEndNs = new long[size];
+        mSequence = new AtomicLongArray(size);
+    }
+
+    public static CaptureTrace getInstance() {
+        return sInstance;
+    }
+
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    public static void end(int span, int captureId, long startNs) {
+        sInstance.record(span, captureId, startNs, System.nanoTime());
+    }
+
+    /* Starts a new capture and makes it the one returned by currentCaptureId() */
+    public static int newCaptureId() {
+        return sInstance.nextCaptureId();
+    }
+
+    public static int currentCaptureId() {
+        return sInstance.mCurrentCaptureId;
+    }
+
+    public int nextCaptureId() {
+        int id = mNextCaptureId.incrementAndGet();
+        if (id == NO_CAPTURE) {
+            id = mNextCaptureId.incrementAndGet();
+        }
+        mCurrentCaptureId = id;
+        return id;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void record(int span, int captureId, long startNs, long endNs) {
+        if (!mEnabled) {
+            return;
+        }
+        long index = mNextWrite.getAndIncrement();
+        int slot = (int) (index & mMask);
+        mSequence.set(slot, 0);
+        mSpans[slot] = span;
+        mCaptureIds[slot] = captureId;
+        mThreadIds[slot] = Thread.currentThread().getId();
+        mStartNs[slot] = startNs;
+        mEndNs[slot] = endNs;
+        mSequence.lazySet(slot, index + 1);
+    }
+
+    /* Number of spans recorded since start, including overwritten ones */
+    public long getRecordedCount() {
+        return mNextWrite.get();
+    }
+
+    public void dumpChromeTrace(Writer out) throws IOException {
+        long written = mNextWrite.get();
+        long first = Math.max(0, written - (mMask + 1));
+        out.write("{\"traceEvents\":[");
+        boolean separator = false;
+        for (long index = first; index < written; index++) {
+            int slot = (int) (index & mMask);
+            long sequence = mSequence.get(slot);
+            int span = mSpans[slot];
+            int captureId = mCaptureIds[slot];
+            long tid = mThreadIds[slot];
+            long startNs = mStartNs[slot];
+            long endNs = mEndNs[slot];
+            if (sequence != index + 1 || mSequence.get(slot) != sequence) {
+                // Overwritten or still being written while we read it.
+                continue;
+            }
+            if (separator) {
+                out.write(',');
+            }
+            separator = true;
+            out.write("{\"name\":\"");
+            out.write(span >= 0 && span < SPAN_NAMES.length ? SPAN_NAMES[span] : "span" + span);
+            out.write("\",\"cat\":\"capture\",\"ph\":\"X\",\"pid\":0,\"tid\":");
+            out.write(Long.toString(tid));
+            out.write(",\"ts\":");
+            out.write(toMicros(startNs));
+            out.write(",\"dur\":");
+            out.write(toMicros(endNs - startNs));
+            out.write(",\"args\":{\"capture\":");
+            out.write(Integer.toString(captureId));
+            out.write("}}");
+        }
+        out.write("]}");
+        out.flush();
+    }
+
+    public void dumpChromeTrace(File file) {
+        if (!mEnabled) {
+            return;
+        }
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(file));
+            dumpChromeTrace(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to dump capture trace to " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static String toMicros(long ns) {
+        String sign = ns < 0 ? "-" : "";
+        ns = Math.abs(ns);
+        long frac = ns % 1000;
+        return sign + (ns / 1000) + "." + (frac < 10 ? "00" : frac < 100 ? "0" : "") + frac;
+    }
+}
@@ -77,8 +77,18 @@ public class PersistUtil {
                     CAMERA_SENSOR_HORIZONTAL_ALIGNED);
     private static final int CIRCULAR_BUFFER_SIZE_PERSIST =
             SystemProperties.getInt("persist.vendor.camera.zsl.buffer.size", 5);
+    private static final int ZSL_SELECTION_WINDOW_MS =
+            SystemProperties.getInt("persist.vendor.camera.zsl.select.window", 100);
+    private static final int YUV_BUFFER_POOL_LIMIT_IN_MB =
+            SystemProperties.getInt("persist.vendor.camera.yuvpool.limit", 96);
+    private static final int CAPTURE_TRACE_LEVEL =
+            SystemProperties.getInt("persist.vendor.camera.capture.trace", 1);
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
             SystemProperties.getInt("persist.vendor.camera.perf.memlimit", 60);
+    private static final int SAVE_WORKER_COUNT =
+            SystemProperties.getInt("persist.vendor.camera.save.workers", 1);
+    private static final int EXIF_PADDING_SIZE =
+            SystemProperties.getInt("persist.vendor.camera.exif.padding", 1024);
     private static final boolean PERSIST_CAMERA_UI_AUTO_TEST_ENABLED =
             SystemProperties.getBoolean("persist.vendor.camera.ui.auto_test", false);
     private static final boolean PERSIST_CAMERA_SAVE_IN_SD_ENABLED =
@@ -105,8 +115,12 @@ public class PersistUtil {
             SystemProperties.getBoolean("persist.vendor.camera.cs.dumpyuv", false);
     private static final int PERSIST_CS_TIMEOUT =
             SystemProperties.getInt("persist.vendor.camera.cs.timeout", 300);
+    private static final int PERSIST_CS_REGISTER_THREADS =
+            SystemProperties.getInt("persist.vendor.camera.cs.register.threads", 1);
     private static final boolean PERSIST_DUMP_DEPTH_ENABLED =
             SystemProperties.getBoolean("persist.vendor.camera.cs.dumpdepth", false);
+    private static final int PERSIST_DEPTH_CONTAINER =
+            SystemProperties.getInt("persist.vendor.camera.cs.depth.container", 0);
     private static final boolean PERSIST_DISABLE_QCOM_MISC_SETTING =
             SystemProperties.getBoolean("persist.vendor.camera.qcom.misc.disable", false);
     private static final int PREVIEW_FLIP_VALUE =
@@ -204,10 +218,32 @@ public class PersistUtil {
         return CIRCULAR_BUFFER_SIZE_PERSIST;
     }
 
+    public static int getZSLSelectionWindowMs(){
+        //value: 0 - disable frame scoring, take the newest acceptable frame
+        return ZSL_SELECTION_WINDOW_MS;
+    }
+
+    public static int getYuvBufferPoolLimitInMb(){
+        return YUV_BUFFER_POOL_LIMIT_IN_MB;
+    }
+
+    public static int getCaptureTraceLevel(){
+        //value: 0 - off, 1 - record spans, 2 - also dump them when the camera closes
+        return CAPTURE_TRACE_LEVEL;
+    }
+
     public static int getSaveTaskMemoryLimitInMb(){
         return SAVE_TASK_MEMORY_LIMIT_IN_MB;
     }
 
+    public static int getSaveWorkerCount(){
+        return SAVE_WORKER_COUNT;
+    }
+
+    public static int getExifPaddingSize(){
+        return EXIF_PADDING_SIZE;
+    }
+
     public static boolean isAutoTestEnabled(){
         return PERSIST_CAMERA_UI_AUTO_TEST_ENABLED;
     }
@@ -266,10 +302,18 @@ public class PersistUtil {
         return PERSIST_CS_TIMEOUT;
     }
 
+    public static int getClearSightRegisterThreads(){
+        return PERSIST_CS_REGISTER_THREADS;
+    }
+
     public static boolean isDumpDepthEnabled() {
         return PERSIST_DUMP_DEPTH_ENABLED;
     }
 
+    public static int getDepthContainer() {
+        return PERSIST_DEPTH_CONTAINER;
+    }
+
     public static boolean isDisableQcomMiscSetting(){
         return PERSIST_DISABLE_QCOM_MISC_SETTING;
     }
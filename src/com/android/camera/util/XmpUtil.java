@@ -23,6 +23,7 @@ import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
 
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -31,6 +32,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -62,13 +64,28 @@ public class XmpUtil {
 
   private static final int MAX_EXTENDED_XMP_BUFFER_SIZE = 65000;
   private static final int EXTEND_XMP_HEADER_SIZE = 75;
+  private static final byte[] XMP_HEADER_BYTES = XMP_HEADER.getBytes();
+  private static final byte[] EXTENDED_XMP_HEADER_BYTES =
+      EXTENDED_XMP_HEADER_SIGNATURE.getBytes();
 
   private static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
   private static final String PANO_PREFIX = "GPano";
 
+  // Raw bytes Base64 encoded at a time while streaming binary properties.
+  private static final int BASE64_BLOCK_SIZE = 3 * 16 * 1024;
+  private static final byte[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+  private static final String BINARY_PLACEHOLDER = "XmpUtil-binary-property-";
+
+  // XMP section types for parseXMPSections.
+  private static final int XMP_STANDARD = 1;
+  private static final int XMP_EXTENDED = 2;
+
   private static final int M_SOI = 0xd8; // File start marker.
   private static final int M_APP1 = 0xe1; // Marker for Exif or XMP.
   private static final int M_SOS = 0xda; // Image data marker.
+  private static final int M_EOI = 0xd9; // File end marker.
+  private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
 
   // Jpeg file is composed of many sections and image data. This class is used
   // to hold the section data from image file.
@@ -78,6 +95,147 @@ public class XmpUtil {
     public byte[] data;
   }
 
+  /**
+   * A binary value of the extended XMP, such as an embedded depth map or
+   * image. It is Base64 encoded while it is written, so the encoded value
+   * never exists in memory as a whole.
+   */
+  public static class BinaryProperty {
+    private final String mNamespace;
+    private final String mName;
+    private final byte[] mData;
+
+    public BinaryProperty(String namespace, String name, byte[] data) {
+      mNamespace = namespace;
+      mName = name;
+      mData = data;
+    }
+  }
+
+  // The extended XMP serialization with the Base64 encoding of each binary
+  // property spliced in where the serializer wrote its placeholder value.
+  // Pieces alternate between skeleton text and binary values, and the whole
+  // serialization can be read again after rewind().
+  private static class ExtendedXmpStream {
+    private final byte[] mSkeleton;
+    private final int[] mTextStart;
+    private final int[] mTextEnd;
+    private final byte[][] mValues;
+    private final int mLength;
+    private final byte[] mEncoded = new byte[BASE64_BLOCK_SIZE / 3 * 4];
+
+    private int mPiece;
+    private int mTextPos;
+    private int mValuePos;
+    private int mEncodedPos;
+    private int mEncodedLimit;
+
+    ExtendedXmpStream(byte[] skeleton, int[] textStart, int[] textEnd, byte[][] values) {
+      mSkeleton = skeleton;
+      mTextStart = textStart;
+      mTextEnd = textEnd;
+      mValues = values;
+      long length = 0;
+      for (int i = 0; i < textStart.length; i++) {
+        length += textEnd[i] - textStart[i];
+      }
+      for (byte[] value : values) {
+        length += (value.length + 2) / 3 * 4L;
+      }
+      mLength = length > Integer.MAX_VALUE ? -1 : (int) length;
+      rewind();
+    }
+
+    int length() {
+      return mLength;
+    }
+
+    void rewind() {
+      mPiece = 0;
+      mTextPos = mTextStart[0];
+      mValuePos = 0;
+      mEncodedPos = 0;
+      mEncodedLimit = 0;
+    }
+
+    /**
+     * Fills dst with the next len bytes of the serialization and returns
+     * how many were available.
+     */
+    int read(byte[] dst, int off, int len) {
+      int total = 0;
+      while (len > 0 && mPiece < 2 * mValues.length + 1) {
+        int n;
+        if (mPiece % 2 == 0) {
+          int end = mTextEnd[mPiece / 2];
+          n = Math.min(len, end - mTextPos);
+          System.arraycopy(mSkeleton, mTextPos, dst, off, n);
+          mTextPos += n;
+          if (mTextPos == end) {
+            mPiece++;
+            mValuePos = 0;
+          }
+        } else {
+          byte[] value = mValues[mPiece / 2];
+          if (mEncodedPos == mEncodedLimit) {
+            if (mValuePos == value.length) {
+              mPiece++;
+              mTextPos = mTextStart[mPiece / 2];
+              continue;
+            }
+            int count = Math.min(BASE64_BLOCK_SIZE, value.length - mValuePos);
+            mEncodedLimit = encodeBase64(value, mValuePos, count, mEncoded);
+            mEncodedPos = 0;
+            mValuePos += count;
+          }
+          n = Math.min(len, mEncodedLimit - mEncodedPos);
+          System.arraycopy(mEncoded, mEncodedPos, dst, off, n);
+          mEncodedPos += n;
+        }
+        off += n;
+        len -= n;
+        total += n;
+      }
+      return total;
+    }
+  }
+
+  // Reads a buffer without copying it; skip() just moves the position.
+  private static class BufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+      mBuffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+      return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+      length = Math.min(length, mBuffer.remaining());
+      mBuffer.get(buffer, offset, length);
+      return length;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+      mBuffer.position(mBuffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return mBuffer.remaining();
+    }
+  }
+
   static {
     try {
       XMPMetaFactory.getSchemaRegistry().registerNamespace(
@@ -91,7 +249,8 @@ public class XmpUtil {
   }
 
   /**
-   * Extracts XMPMeta from JPEG image file.
+   * Extracts XMPMeta from JPEG image file. The file is memory-mapped and
+   * only the standard XMP segment is read.
    *
    * @param filename JPEG image file name.
    * @return Extracted XMPMeta or null.
@@ -103,12 +262,8 @@ public class XmpUtil {
       return null;
     }
 
-    try {
-      return extractXMPMeta(new FileInputStream(filename));
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Could not read file: " + filename, e);
-      return null;
-    }
+    ByteBuffer mapped = mapFile(filename);
+    return mapped == null ? null : extractXMPMeta(mapped);
   }
 
   /**
@@ -118,11 +273,76 @@ public class XmpUtil {
    * @return Extracted XMPMeta or null.
    */
   public static XMPMeta extractXMPMeta(InputStream is) {
-    List<Section> sections = parse(is, true);
+    return parseStandardXMP(parseXMPSections(is, XMP_STANDARD));
+  }
+
+  /**
+   * Extracts XMPMeta from JPEG image data held in a buffer, such as a
+   * memory-mapped file. The buffer's position is not modified.
+   *
+   * @return Extracted XMPMeta or null.
+   */
+  public static XMPMeta extractXMPMeta(ByteBuffer jpeg) {
+    return extractXMPMeta(new BufferInputStream(jpeg));
+  }
+
+  /**
+   * Extracts the extended XMPMeta, such as embedded depth maps and images,
+   * from a JPEG image file. The file is memory-mapped and the standard XMP
+   * and all other segments are skipped.
+   *
+   * @param filename JPEG image file name.
+   * @return Extracted extended XMPMeta or null.
+   */
+  public static XMPMeta extractExtendedXMPMeta(String filename) {
+    ByteBuffer mapped = mapFile(filename);
+    return mapped == null ? null : extractExtendedXMPMeta(mapped);
+  }
+
+  /**
+   * Extracts the extended XMPMeta from a JPEG image file stream.
+   *
+   * @return Extracted extended XMPMeta or null.
+   */
+  public static XMPMeta extractExtendedXMPMeta(InputStream is) {
+    return parseExtendedXMP(parseXMPSections(is, XMP_EXTENDED));
+  }
+
+  /**
+   * Extracts the extended XMPMeta from JPEG image data held in a buffer.
+   * The buffer's position is not modified.
+   *
+   * @return Extracted extended XMPMeta or null.
+   */
+  public static XMPMeta extractExtendedXMPMeta(ByteBuffer jpeg) {
+    return extractExtendedXMPMeta(new BufferInputStream(jpeg));
+  }
+
+  private static ByteBuffer mapFile(String filename) {
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(filename);
+      FileChannel channel = in.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read file: " + filename, e);
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          // the mapping stays valid after the file is closed
+          in.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+  }
+
+  private static XMPMeta parseStandardXMP(List<Section> sections) {
     if (sections == null) {
       return null;
     }
-    // Now we don't support extended xmp.
     for (Section section : sections) {
       if (hasXMPHeader(section.data)) {
         int end = getXMPContentEnd(section.data);
@@ -141,6 +361,47 @@ public class XmpUtil {
     return null;
   }
 
+  /**
+   * Reassembles the portions of the extended XMP that share the GUID of the
+   * first portion and parses the result.
+   */
+  private static XMPMeta parseExtendedXMP(List<Section> sections) {
+    if (sections == null || sections.isEmpty()) {
+      return null;
+    }
+    final int signatureSize = EXTENDED_XMP_HEADER_SIGNATURE.length();
+    ByteBuffer first = ByteBuffer.wrap(sections.get(0).data);
+    int fullLength = first.getInt(signatureSize + 32);
+    if (fullLength <= 0) {
+      return null;
+    }
+    byte[] buffer = new byte[fullLength];
+    int copied = 0;
+    for (Section section : sections) {
+      if (!matches(section.data, signatureSize, sections.get(0).data, signatureSize, 32)) {
+        continue;
+      }
+      int offset = ByteBuffer.wrap(section.data).getInt(signatureSize + 36);
+      int length = section.data.length - EXTEND_XMP_HEADER_SIZE;
+      if (offset < 0 || offset + length > fullLength) {
+        Log.d(TAG, "Invalid extended XMP portion");
+        return null;
+      }
+      System.arraycopy(section.data, EXTEND_XMP_HEADER_SIZE, buffer, offset, length);
+      copied += length;
+    }
+    if (copied != fullLength) {
+      Log.d(TAG, "Extended XMP is incomplete");
+      return null;
+    }
+    try {
+      return XMPMetaFactory.parseFromBuffer(buffer);
+    } catch (XMPException e) {
+      Log.d(TAG, "Extended XMP parse error", e);
+      return null;
+    }
+  }
+
   /**
    * Creates a new XMPMeta.
    */
@@ -415,6 +676,119 @@ public class XmpUtil {
     }
   }
 
+  /**
+   * Parses the jpeg image file up to the image data and keeps only the XMP
+   * sections of the requested types, XMP_STANDARD and/or XMP_EXTENDED. Only
+   * the signature of each APP1 section is read to classify it; everything
+   * else is skipped without being read, which is a seek for file and
+   * buffer backed streams.
+   *
+   * @param is Input image data stream.
+   * @param types The XMP section types to keep.
+   * @return The XMP sections in file order, or null if the data is invalid.
+   */
+  private static List<Section> parseXMPSections(InputStream is, int types) {
+    final int signatureSize = EXTENDED_XMP_HEADER_SIGNATURE.length();
+    byte[] signature = new byte[signatureSize];
+    try {
+      if (is.read() != 0xff || is.read() != M_SOI) {
+        return null;
+      }
+      List<Section> sections = new ArrayList<Section>();
+      int c;
+      while ((c = is.read()) != -1) {
+        if (c != 0xff) {
+          return null;
+        }
+        // Skip padding bytes.
+        while ((c = is.read()) == 0xff) {
+        }
+        if (c == -1) {
+          return null;
+        }
+        int marker = c;
+        if (marker == M_SOS) {
+          // No metadata after the image data.
+          return sections;
+        }
+        int lh = is.read();
+        int ll = is.read();
+        if (lh == -1 || ll == -1) {
+          return null;
+        }
+        int length = (lh << 8 | ll) - 2;
+        if (marker != M_APP1 || length < XMP_HEADER_SIZE) {
+          skipFully(is, length);
+          continue;
+        }
+
+        int peek = Math.min(length, signatureSize);
+        readFully(is, signature, 0, peek);
+        int type = 0;
+        if (hasXMPHeader(signature)) {
+          type = XMP_STANDARD;
+        } else if (peek == signatureSize && new String(signature, 0, signatureSize, "UTF-8")
+            .equals(EXTENDED_XMP_HEADER_SIGNATURE)) {
+          type = XMP_EXTENDED;
+        }
+        if ((type & types) == 0) {
+          skipFully(is, length - peek);
+          continue;
+        }
+
+        Section section = new Section();
+        section.marker = marker;
+        section.length = length + 2;
+        section.data = new byte[length];
+        System.arraycopy(signature, 0, section.data, 0, peek);
+        readFully(is, section.data, peek, length - peek);
+        sections.add(section);
+        if (types == XMP_STANDARD) {
+          // There is only one standard XMP section.
+          return sections;
+        }
+      }
+      return sections;
+    } catch (IOException e) {
+      Log.d(TAG, "Could not parse file.", e);
+      return null;
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+  }
+
+  private static void readFully(InputStream is, byte[] buffer, int offset, int length)
+      throws IOException {
+    while (length > 0) {
+      int n = is.read(buffer, offset, length);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      offset += n;
+      length -= n;
+    }
+  }
+
+  private static void skipFully(InputStream is, long length) throws IOException {
+    while (length > 0) {
+      long n = is.skip(length);
+      if (n <= 0) {
+        // skip() may stop early without being at the end of the stream.
+        if (is.read() == -1) {
+          throw new EOFException();
+        }
+        n = 1;
+      }
+      length -= n;
+    }
+  }
+
   private static Section createStandardXMPSection(XMPMeta meta) {
     byte[] buffer;
     try {
@@ -596,6 +970,266 @@ public class XmpUtil {
     return true;
   }
 
+  /**
+   * Writes a jpeg image with standard and extended XMP to outputStream. The
+   * binary properties are added to the extended XMP and Base64 encoded
+   * straight into the extended XMP marker segments as they are written, and
+   * the GUID is computed over the serialization incrementally, so only one
+   * segment of it is held in memory at a time. XMP and extended XMP
+   * sections the input already has are dropped.
+   *
+   * @param jpeg Input jpeg image
+   * @param outputStream Output image data stream
+   * @param standardMeta The main portion of the metadata tree, written as
+   *                     the standard XMP packet
+   * @param extendedMeta The extended portion, written with the binary
+   *                     properties as a series of APP1 marker segments
+   * @param binaryProperties Binary values of the extended portion
+   */
+  public static boolean writeXMPMeta(byte[] jpeg, OutputStream outputStream,
+      XMPMeta standardMeta, XMPMeta extendedMeta, List<BinaryProperty> binaryProperties) {
+    try {
+      if (jpeg.length < 6 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != M_SOI) {
+        Log.d(TAG, "Not a valid jpeg image");
+        return false;
+      }
+      // Offset of the image data, after the last section that is copied
+      // or dropped.
+      int metaEnd = 2;
+      int end;
+      while ((end = sectionEnd(jpeg, metaEnd)) > 0) {
+        metaEnd = end;
+      }
+      if (end < 0) {
+        Log.d(TAG, "Not a valid jpeg image");
+        return false;
+      }
+      ExtendedXmpStream extended = createExtendedXmpStream(extendedMeta, binaryProperties);
+      if (extended == null) {
+        return false;
+      }
+
+      byte[] chunk = new byte[MAX_EXTENDED_XMP_BUFFER_SIZE];
+      MessageDigest digester;
+      try {
+        digester = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException exception) {
+        Log.d(TAG, "get md5 instance failure" + exception);
+        return false;
+      }
+      int n;
+      while ((n = extended.read(chunk, 0, chunk.length)) > 0) {
+        digester.update(chunk, 0, n);
+      }
+      String guid = toGUID(digester.digest());
+      try {
+        standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
+      } catch (XMPException exception) {
+        Log.d(TAG, "set XMPMeta Property", exception);
+        return false;
+      }
+      Section standardXmpSection = createStandardXMPSection(standardMeta);
+      if (standardXmpSection == null) {
+        Log.e(TAG, "create standard meta section error");
+        return false;
+      }
+
+      // If the first section is Exif, insert XMP data after it, otherwise,
+      // make xmp data the first section.
+      int position = 2;
+      if (isApp1(jpeg, position, EXIF_HEADER)) {
+        position = sectionEnd(jpeg, position);
+      }
+      outputStream.write(jpeg, 0, position);
+      writeSection(outputStream, standardXmpSection);
+
+      /*
+      The extended XMP JPEG marker segment content holds:
+      - a signature string, "http://ns.adobe.com/xmp/extension/\0"
+      - a 128 bit GUID stored as a 32 byte ASCII hex string
+      - a UInt32 full length of the entire extended XMP
+      - a UInt32 offset for this portion of the extended XMP
+      - the UTF-8 text for this portion of the extended XMP
+       */
+      ByteBuffer header = ByteBuffer.allocate(4 + EXTEND_XMP_HEADER_SIZE);
+      header.put((byte) 0xff).put((byte) M_APP1).putShort((short) 0);
+      header.put(EXTENDED_XMP_HEADER_SIGNATURE.getBytes());
+      header.put(guid.getBytes());
+      header.putInt(extended.length());
+      extended.rewind();
+      int offset = 0;
+      while ((n = extended.read(chunk, 0, chunk.length)) > 0) {
+        header.putShort(2, (short) (2 + EXTEND_XMP_HEADER_SIZE + n));
+        header.putInt(header.capacity() - 4, offset);
+        outputStream.write(header.array());
+        outputStream.write(chunk, 0, n);
+        offset += n;
+      }
+
+      while (position < metaEnd) {
+        end = sectionEnd(jpeg, position);
+        if (!isApp1(jpeg, position, XMP_HEADER_BYTES)
+            && !isApp1(jpeg, position, EXTENDED_XMP_HEADER_BYTES)) {
+          outputStream.write(jpeg, position, end - position);
+        }
+        position = end;
+      }
+      outputStream.write(jpeg, position, jpeg.length - position);
+    } catch (IOException e) {
+      Log.d(TAG, "Write to stream failed", e);
+      return false;
+    } finally {
+      if (outputStream != null) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Serializes extendedMeta with a placeholder value for each binary
+   * property and records where the placeholders are, so the Base64 values
+   * can be spliced in while streaming.
+   */
+  private static ExtendedXmpStream createExtendedXmpStream(XMPMeta extendedMeta,
+      List<BinaryProperty> binaryProperties) {
+    int count = binaryProperties.size();
+    byte[] skeleton;
+    try {
+      for (int i = 0; i < count; i++) {
+        BinaryProperty property = binaryProperties.get(i);
+        extendedMeta.setProperty(property.mNamespace, property.mName, BINARY_PLACEHOLDER + i);
+      }
+      SerializeOptions options = new SerializeOptions();
+      options.setUseCompactFormat(true);
+      // We have to omit packet wrapper here because
+      // javax.xml.parsers.DocumentBuilder
+      // fails to parse the packet end <?xpacket end="w"?> in android.
+      options.setOmitPacketWrapper(true);
+      skeleton = XMPMetaFactory.serializeToBuffer(extendedMeta, options);
+    } catch (XMPException e) {
+      Log.d(TAG, "Serialize extended xmp failed", e);
+      return null;
+    }
+
+    // Placeholders in document order, which need not be the list order
+    int[] placeholderStart = new int[count];
+    int[] placeholderEnd = new int[count];
+    byte[][] values = new byte[count][];
+    byte[][] placeholders = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      placeholders[i] = (BINARY_PLACEHOLDER + i).getBytes();
+    }
+    int found = 0;
+    for (int pos = 0; pos < skeleton.length && found < count; pos++) {
+      for (int i = 0; i < count; i++) {
+        byte[] placeholder = placeholders[i];
+        int end = pos + placeholder.length;
+        if (end <= skeleton.length && matches(skeleton, pos, placeholder)
+            && (end == skeleton.length || !Character.isDigit(skeleton[end]))) {
+          placeholderStart[found] = pos;
+          placeholderEnd[found] = end;
+          values[found] = binaryProperties.get(i).mData;
+          found++;
+          pos = end - 1;
+          break;
+        }
+      }
+    }
+    if (found != count) {
+      Log.e(TAG, "Binary property missing from extended xmp");
+      return null;
+    }
+
+    int[] textStart = new int[count + 1];
+    int[] textEnd = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      textStart[i] = (i == 0) ? 0 : placeholderEnd[i - 1];
+      textEnd[i] = (i == count) ? skeleton.length : placeholderStart[i];
+    }
+    ExtendedXmpStream stream = new ExtendedXmpStream(skeleton, textStart, textEnd, values);
+    if (stream.length() < 0) {
+      Log.e(TAG, "Extended xmp is too large");
+      return null;
+    }
+    return stream;
+  }
+
+  /**
+   * Returns the end of the metadata section starting at offset, 0 if the
+   * image data starts there, or -1 if the section is truncated.
+   */
+  private static int sectionEnd(byte[] jpeg, int offset) {
+    if (offset + 4 > jpeg.length || (jpeg[offset] & 0xff) != 0xff) {
+      return 0;
+    }
+    int marker = jpeg[offset + 1] & 0xff;
+    if (marker == M_SOS || marker == M_EOI || marker == 0xff) {
+      return 0;
+    }
+    int end = offset + 2 + ((jpeg[offset + 2] & 0xff) << 8 | (jpeg[offset + 3] & 0xff));
+    return end >= offset + 4 && end <= jpeg.length ? end : -1;
+  }
+
+  // Whether the section at offset is an APP1 whose data starts with header
+  private static boolean isApp1(byte[] jpeg, int offset, byte[] header) {
+    return offset + 4 <= jpeg.length && (jpeg[offset] & 0xff) == 0xff
+        && (jpeg[offset + 1] & 0xff) == M_APP1 && matches(jpeg, offset + 4, header);
+  }
+
+  private static boolean matches(byte[] data, int offset, byte[] pattern) {
+    return matches(data, offset, pattern, 0, pattern.length);
+  }
+
+  private static boolean matches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    if (aOffset + length > a.length || bOffset + length > b.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (a[aOffset + i] != b[bOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Base64 encodes len bytes of src without line breaks into dst and
+   * returns the number of bytes written.
+   */
+  private static int encodeBase64(byte[] src, int offset, int len, byte[] dst) {
+    int d = 0;
+    int end = offset + len - len % 3;
+    for (int i = offset; i < end; i += 3) {
+      int v = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+      dst[d++] = BASE64_ALPHABET[v >>> 18];
+      dst[d++] = BASE64_ALPHABET[(v >>> 12) & 0x3f];
+      dst[d++] = BASE64_ALPHABET[(v >>> 6) & 0x3f];
+      dst[d++] = BASE64_ALPHABET[v & 0x3f];
+    }
+    int remain = len % 3;
+    if (remain > 0) {
+      int v = (src[end] & 0xff) << 16 | (remain == 2 ? (src[end + 1] & 0xff) << 8 : 0);
+      dst[d++] = BASE64_ALPHABET[v >>> 18];
+      dst[d++] = BASE64_ALPHABET[(v >>> 12) & 0x3f];
+      dst[d++] = (remain == 2) ? BASE64_ALPHABET[(v >>> 6) & 0x3f] : (byte) '=';
+      dst[d++] = '=';
+    }
+    return d;
+  }
+
+  private static void writeSection(OutputStream os, Section section) throws IOException {
+    os.write(0xff);
+    os.write(section.marker);
+    os.write(section.length >> 8);
+    os.write(section.length & 0xff);
+    os.write(section.data);
+  }
+
   private static List<Section> insertXMPSection(
           List<Section> sections, List<Section> xmpSections) {
     if (sections == null || sections.size() <= 1) {
@@ -613,21 +1247,22 @@ public class XmpUtil {
   }
 
   private static String getGUID(byte[] src) {
-    StringBuilder builder = new StringBuilder();
     try {
       MessageDigest digester = MessageDigest.getInstance("MD5");
       digester.update(src);
-      byte[] digest = digester.digest();
-
-      Formatter formatter = new Formatter(builder);
-      for (int i = 0; i < digest.length; ++i) {
-        formatter.format("%02x", ((256 + digest[i]) % 256));
-      }
+      return toGUID(digester.digest());
     } catch (NoSuchAlgorithmException exception) {
       Log.d(TAG, "get md5 instance failure" + exception);
       return null;
     }
+  }
 
+  private static String toGUID(byte[] digest) {
+    StringBuilder builder = new StringBuilder();
+    Formatter formatter = new Formatter(builder);
+    for (int i = 0; i < digest.length; ++i) {
+      formatter.format("%02x", ((256 + digest[i]) % 256));
+    }
     return builder.toString().toUpperCase();
   }
 
@@ -39,6 +39,11 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.codeaurora.snapcam.filter.ClearSightNativeEngine.CamSystemCalibrationData;
 import org.codeaurora.snapcam.filter.ClearSightNativeEngine.ClearsightImage;
@@ -118,6 +123,7 @@ public class ClearSightImageProcessor {
     private static final int CAM_TYPE_BAYER = 0;
     private static final int CAM_TYPE_MONO = 1;
     private static final int NUM_CAM = 2;
+    private static final long REGISTER_SHUTDOWN_TIMEOUT_MS = 1000;
 
     private static CameraCharacteristics.Key<byte[]> OTP_CALIB_BLOB =
             new CameraCharacteristics.Key<>(
@@ -147,6 +153,8 @@ public class ClearSightImageProcessor {
     private HandlerThread mClearsightProcessThread;
     private HandlerThread mImageEncodeThread;
     private HandlerThread mDepthProcessThread;
+    // Runs the registration graph of each shot, see ClearsightRegisterHandler
+    private ThreadPoolExecutor mRegisterExecutor;
     private Callback mCallback;
 
     private CameraCaptureSession[] mCaptureSessions = new CameraCaptureSession[NUM_CAM];
@@ -230,12 +238,29 @@ public class ClearSightImageProcessor {
         mImageEncodeThread.start();
         mDepthProcessThread = new HandlerThread("DepthProcess");
         mDepthProcessThread.start();
+        // nativeClearSightRegisterImage has not been shown to be reentrant, so
+        // registration stays serial by default and the graph only adds timing.
+        // More threads are an opt-in through the property for a vendor
+        // library that is known to be reentrant.
+        int registerThreads = PersistUtil.getClearSightRegisterThreads();
+        registerThreads = Math.max(1, Math.min(registerThreads, mNumFrameCount * NUM_CAM));
+        Log.d(TAG, "register threads: " + registerThreads);
+        mRegisterExecutor = new ThreadPoolExecutor(registerThreads, registerThreads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ClearsightRegister-" + mCount.getAndIncrement());
+                    }
+                });
 
         mImageProcessHandler = new ImageProcessHandler(mImageProcessThread.getLooper());
         mClearsightRegisterHandler = new ClearsightRegisterHandler(mClearsightRegisterThread.getLooper());
         mClearsightProcessHandler = new ClearsightProcessHandler(mClearsightProcessThread.getLooper());
         mImageEncodeHandler = new ImageEncodeHandler(mImageEncodeThread.getLooper());
-        mDepthProcessHandler = new DepthProcessHandler(mImageEncodeThread.getLooper());
+        mDepthProcessHandler = new DepthProcessHandler(mDepthProcessThread.getLooper());
 
         mFinalPictureSize = new Size(width, height);
         mFinalPictureRatio = (float)width / (float)height;
@@ -294,6 +319,21 @@ public class ClearSightImageProcessor {
             }
         }
 
+        if (mRegisterExecutor != null) {
+            // queued registrations see isClosing() and only close their image
+            mRegisterExecutor.shutdown();
+            try {
+                if (!mRegisterExecutor.awaitTermination(REGISTER_SHUTDOWN_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "register executor did not finish in time");
+                    mRegisterExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                mRegisterExecutor.shutdownNow();
+            }
+            mRegisterExecutor = null;
+        }
+
         if(mClearsightProcessThread != null) {
             mClearsightProcessThread.quit();
 
@@ -501,10 +541,30 @@ public class ClearSightImageProcessor {
     }
 
     private class ImageProcessHandler extends Handler {
-        private ArrayDeque<ReprocessableImage> mBayerFrames = new ArrayDeque<ReprocessableImage>(
-                mNumBurstCount);
-        private ArrayDeque<ReprocessableImage> mMonoFrames = new ArrayDeque<ReprocessableImage>(
-                mNumBurstCount);
+        private DualStreamSynchronizer<ReprocessableImage> mFrameSync =
+                new DualStreamSynchronizer<ReprocessableImage>(mTimestampThresholdNs,
+                        mNumBurstCount, new DualStreamSynchronizer.Listener<ReprocessableImage>() {
+                    @Override
+                    public void onPair(ReprocessableImage bayer, ReprocessableImage mono) {
+                        if (mReprocessingPairCount == mNumFrameCount) {
+                            Log.d(TAG, "frame sync - already have all pairs, toss pair");
+                            bayer.mImage.close();
+                            mono.mImage.close();
+                            return;
+                        }
+                        // send for reproc
+                        sendReprocessRequest(CAM_TYPE_BAYER, bayer);
+                        sendReprocessRequest(CAM_TYPE_MONO, mono);
+                        mReprocessingPairCount++;
+                    }
+
+                    @Override
+                    public void onDrop(int camId, ReprocessableImage frame, int reason) {
+                        Log.d(TAG, "frame sync - toss cam: " + camId + " ts: "
+                                + frame.mImage.getTimestamp() + " reason: " + reason);
+                        frame.mImage.close();
+                    }
+                });
         private ArrayDeque<TotalCaptureResult> mBayerCaptureResults = new ArrayDeque<TotalCaptureResult>(
                 mNumBurstCount);
         private ArrayDeque<TotalCaptureResult> mMonoCaptureResults = new ArrayDeque<TotalCaptureResult>(
@@ -542,6 +602,7 @@ public class ClearSightImageProcessor {
                 mReprocessingPairCount = 0;
                 mReprocessedBayerCount = 0;
                 mReprocessedMonoCount = 0;
+                mFrameSync.resetStats();
                 mNumImagesToProcess[msg.arg1] = msg.arg2;
                 mNamedImages.nameNewImage(System.currentTimeMillis());
                 mNamedEntity = mNamedImages.getNextNameEntity();
@@ -573,6 +634,7 @@ public class ClearSightImageProcessor {
 
         private void handleTimeout() {
             Log.d(TAG, "handleTimeout");
+            mFrameSync.clear();
             releaseBayerFrames();
             releaseMonoFrames();
             mReprocessingFrames[CAM_TYPE_BAYER].clear();
@@ -625,16 +687,13 @@ public class ClearSightImageProcessor {
 
             ArrayDeque<Image> imageQueue;
             ArrayDeque<TotalCaptureResult> resultQueue;
-            ArrayDeque<ReprocessableImage> frameQueue;
             // push image onto queue
             if (msg.arg1 == CAM_TYPE_BAYER) {
                 imageQueue = mBayerImages;
                 resultQueue = mBayerCaptureResults;
-                frameQueue = mBayerFrames;
             } else {
                 imageQueue = mMonoImages;
                 resultQueue = mMonoCaptureResults;
-                frameQueue = mMonoFrames;
             }
 
             if(msg.what == MSG_NEW_IMG) {
@@ -656,9 +715,13 @@ public class ClearSightImageProcessor {
             if (!imageQueue.isEmpty() && !resultQueue.isEmpty()) {
                 Image headImage = imageQueue.poll();
                 TotalCaptureResult headResult = resultQueue.poll();
-                frameQueue.add(new ReprocessableImage(headImage, headResult));
                 mNumImagesToProcess[msg.arg1]--;
-                checkForValidFramePairAndReprocess();
+                long tsSOF = headResult.get(CaptureResult.SENSOR_TIMESTAMP);
+                long exposure = headResult.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                Log.d(TAG, "processNewCaptureEvent - cam: " + msg.arg1
+                        + " ts SOF: " + tsSOF + ", EOF: " + (tsSOF + exposure));
+                mFrameSync.add(msg.arg1, new ReprocessableImage(headImage, headResult),
+                        tsSOF, exposure);
             }
 
 
@@ -672,10 +735,8 @@ public class ClearSightImageProcessor {
             if ((mNumImagesToProcess[CAM_TYPE_BAYER] == 0
                     && mNumImagesToProcess[CAM_TYPE_MONO] == 0)
                     && mReprocessingPairCount != mNumFrameCount) {
-                while (!mBayerFrames.isEmpty() && !mMonoFrames.isEmpty()
-                        && mReprocessingPairCount != mNumFrameCount) {
-                    checkForValidFramePairAndReprocess();
-                }
+                // no more frames coming, pair whatever is still pending
+                mFrameSync.flush();
             }
 
             if (mReprocessingPairCount == mNumFrameCount ||
@@ -689,59 +750,6 @@ public class ClearSightImageProcessor {
             }
         }
 
-        private void checkForValidFramePairAndReprocess() {
-            // if we have images from both
-            // as we just added an image onto one of the queues
-            // this condition is only true when both are not empty
-            Log.d(TAG,
-                    "checkForValidFramePair - num bayer frames: "
-                            + mBayerFrames.size() + " num mono frames: "
-                            + mMonoFrames.size());
-
-            if (!mBayerFrames.isEmpty() && !mMonoFrames.isEmpty()) {
-                // peek oldest pair of images
-                ReprocessableImage bayer = mBayerFrames.peek();
-                ReprocessableImage mono = mMonoFrames.peek();
-
-                long bayerTsSOF = bayer.mCaptureResult.get(CaptureResult.SENSOR_TIMESTAMP);
-                long bayerTsEOF = bayerTsSOF + bayer.mCaptureResult.get(
-                        CaptureResult.SENSOR_EXPOSURE_TIME);
-                long monoTsSOF = mono.mCaptureResult.get(CaptureResult.SENSOR_TIMESTAMP);
-                long monoTsEOF = monoTsSOF + mono.mCaptureResult.get(
-                        CaptureResult.SENSOR_EXPOSURE_TIME);
-
-
-                Log.d(TAG,
-                        "checkForValidFramePair - bayer ts SOF: "
-                                + bayerTsSOF + ", EOF: " + bayerTsEOF
-                                + ", mono ts SOF: " + monoTsSOF + ", EOF: " + monoTsEOF);
-                Log.d(TAG,
-                        "checkForValidFramePair - difference SOF: "
-                                + Math.abs(bayerTsSOF - monoTsSOF)
-                                + ", EOF: " + Math.abs(bayerTsEOF - monoTsEOF));
-                // if timestamps are within threshold, keep frames
-                if ((Math.abs(bayerTsSOF - monoTsSOF) > mTimestampThresholdNs) &&
-                        (Math.abs(bayerTsEOF - monoTsEOF) > mTimestampThresholdNs)) {
-                    if(bayerTsSOF > monoTsSOF) {
-                        Log.d(TAG, "checkForValidFramePair - toss mono");
-                        // no match, toss
-                        mono = mMonoFrames.poll();
-                        mono.mImage.close();
-                    } else {
-                        Log.d(TAG, "checkForValidFramePair - toss bayer");
-                        // no match, toss
-                        bayer = mBayerFrames.poll();
-                        bayer.mImage.close();
-                    }
-                } else {
-                    // send for reproc
-                    sendReprocessRequest(CAM_TYPE_BAYER, mBayerFrames.poll());
-                    sendReprocessRequest(CAM_TYPE_MONO, mMonoFrames.poll());
-                    mReprocessingPairCount++;
-                }
-            }
-        }
-
         private void sendReprocessRequest(final int camId, ReprocessableImage reprocImg) {
             CameraCaptureSession session = mCaptureSessions[camId];
             CameraDevice device = session.getDevice();
@@ -806,12 +814,6 @@ public class ClearSightImageProcessor {
         }
 
         private void releaseBayerFrames() {
-            for (ReprocessableImage reprocImg : mBayerFrames) {
-                reprocImg.mImage.close();
-            }
-
-            mBayerFrames.clear();
-
             for (Image img : mBayerImages) {
                 img.close();
             }
@@ -821,12 +823,6 @@ public class ClearSightImageProcessor {
         }
 
         private void releaseMonoFrames() {
-            for (ReprocessableImage reprocImg : mMonoFrames) {
-                reprocImg.mImage.close();
-            }
-
-            mMonoFrames.clear();
-
             for (Image img : mMonoImages) {
                 img.close();
             }
@@ -837,6 +833,8 @@ public class ClearSightImageProcessor {
 
         private void processFinalPair() {
             Log.d(TAG, "processFinalPair");
+            mFrameSync.clear();
+            Log.d(TAG, "processFinalPair - frame sync: " + mFrameSync.dumpStats());
             releaseBayerFrames();
             releaseMonoFrames();
 
@@ -930,8 +928,21 @@ public class ClearSightImageProcessor {
         }
     };
 
+    /*
+     * Registration runs as a TaskGraph per shot. The first image of each
+     * camera becomes its reference and the other images of that camera are
+     * registered against it on mRegisterExecutor, which is single threaded
+     * unless persist.vendor.camera.cs.register.threads says otherwise. With
+     * the default there is no concurrent registration and no latency gain
+     * has been measured; what the graph adds is per-task timing logs. Once
+     * the capture ends and every registration has finished, ClearSight
+     * processing starts.
+     */
     private class ClearsightRegisterHandler extends Handler {
         private NamedEntity mNamedEntity;
+        private TaskGraph mGraph;
+        private TaskGraph.Node[] mReferenceNodes = new TaskGraph.Node[NUM_CAM];
+        private int[] mImageCount = new int[NUM_CAM];
 
         ClearsightRegisterHandler(Looper looper) {
             super(looper);
@@ -944,6 +955,11 @@ public class ClearSightImageProcessor {
             switch (msg.what) {
             case MSG_START_CAPTURE:
                 mNamedEntity = (NamedEntity) msg.obj;
+                mGraph = new TaskGraph(mRegisterExecutor);
+                mReferenceNodes[CAM_TYPE_BAYER] = null;
+                mReferenceNodes[CAM_TYPE_MONO] = null;
+                mImageCount[CAM_TYPE_BAYER] = 0;
+                mImageCount[CAM_TYPE_MONO] = 0;
                 break;
             case MSG_NEW_IMG:
                 registerImage(msg);
@@ -952,32 +968,92 @@ public class ClearSightImageProcessor {
                 // Check if timeout
                 if(msg.arg2 == 1) {
                     Log.d(TAG, "ClearsightRegisterHandler - handleTimeout");
+                    cancelRegistration();
                     ClearSightNativeEngine.getInstance().reset();
                     if(mCallback != null) mCallback.onClearSightFailure(null);
                 } else {
-                    mClearsightProcessHandler.obtainMessage(MSG_START_CAPTURE,
-                            msg.arg1, 0, mNamedEntity).sendToTarget();
+                    startProcessWhenRegistered(msg.arg1);
                 }
                 break;
             }
         }
 
         private void registerImage(Message msg) {
-            boolean isBayer = (msg.arg1 == CAM_TYPE_BAYER);
-            Image image = (Image)msg.obj;
+            final int camId = msg.arg1;
+            final boolean isBayer = (camId == CAM_TYPE_BAYER);
+            final Image image = (Image)msg.obj;
+            final TaskGraph graph = mGraph;
+            if (graph == null || graph.isSealed()) {
+                Log.w(TAG, "registerImage - no capture in progress, drop image");
+                image.close();
+                return;
+            }
+            final int sequence = mImageCount[camId]++;
+            String name = (isBayer ? "bayer" : "mono") + sequence;
 
-            if (!ClearSightNativeEngine.getInstance()
-                    .hasReferenceImage(isBayer)) {
+            if (mReferenceNodes[camId] == null) {
                 // reference not yet set
-                ClearSightNativeEngine.getInstance().setReferenceImage(isBayer, image);
-                mDepthProcessHandler.obtainMessage(MSG_NEW_IMG, msg.arg1, 0, msg.obj).sendToTarget();
+                mReferenceNodes[camId] = graph.addTask("ref-" + name, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (graph.isCancelled() || isClosing()) {
+                            image.close();
+                            return;
+                        }
+                        ClearSightNativeEngine.getInstance().setReferenceImage(isBayer, image);
+                        mDepthProcessHandler.obtainMessage(MSG_NEW_IMG, camId, 0, image)
+                                .sendToTarget();
+                    }
+                });
             } else {
                 // if ref images set, register this image
-                if(ClearSightNativeEngine.getInstance().registerImage(
-                        isBayer, image) == false) {
-                    Log.w(TAG, "registerImage : terminal error with input image");
+                graph.addTask("reg-" + name, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (graph.isCancelled() || isClosing()) {
+                            image.close();
+                            return;
+                        }
+                        if(ClearSightNativeEngine.getInstance().registerImage(
+                                isBayer, image, sequence) == false) {
+                            Log.w(TAG, "registerImage : terminal error with input image");
+                        }
+                    }
+                }, mReferenceNodes[camId]);
+            }
+        }
+
+        private void startProcessWhenRegistered(final int encodeArg) {
+            final NamedEntity namedEntity = mNamedEntity;
+            if (mGraph == null) {
+                return;
+            }
+            mGraph.seal(new TaskGraph.Listener() {
+                @Override
+                public void onComplete(TaskGraph graph) {
+                    Log.d(TAG, "registration done - " + graph.dumpTimings());
+                    ClearsightProcessHandler processHandler = mClearsightProcessHandler;
+                    if (isClosing() || graph.isCancelled() || processHandler == null) {
+                        return;
+                    }
+                    processHandler.obtainMessage(MSG_START_CAPTURE,
+                            encodeArg, 0, namedEntity).sendToTarget();
                 }
+            });
+        }
+
+        // Lets running registrations finish before the engine is reset
+        private void cancelRegistration() {
+            if (mGraph == null) {
+                return;
+            }
+            mGraph.cancel();
+            try {
+                mGraph.awaitIdle();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted waiting for registrations");
             }
+            mGraph = null;
         }
     }
 
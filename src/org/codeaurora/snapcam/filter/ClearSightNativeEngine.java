@@ -63,6 +63,7 @@ public class ClearSightNativeEngine {
     private static final int METADATA_SIZE = 6;
     private static final int Y_PLANE = 0;
     private static final int VU_PLANE = 2;
+    private static final int REFERENCE_SEQUENCE = -1;
 
     private static boolean mLibLoaded;
     private static ClearSightNativeEngine mInstance;
@@ -79,6 +80,7 @@ public class ClearSightNativeEngine {
     private ArrayList<SourceImage> mCache = new ArrayList<SourceImage>();
     private ArrayList<SourceImage> mSrcColor = new ArrayList<SourceImage>();
     private ArrayList<SourceImage> mSrcMono = new ArrayList<SourceImage>();
+    private final DirectBufferArena mArena = new DirectBufferArena();
     private final float mBrIntensity;
     private final float mSmoothingIntensity;
     private final boolean mIsVerticallyAlignedSensor;
@@ -108,26 +110,40 @@ public class ClearSightNativeEngine {
         mImageHeight = height;
         mYStride = width;
         mVUStride = width;
-        while(frameCount > 0) {
-            cacheSourceImage(new SourceImage(width*height, width*height/2));
-            frameCount --;
+
+        // Source images are views into one arena block each and are recycled
+        // through mCache between shots. The arena keeps its slab when
+        // re-initialized with the same geometry.
+        int ySize = width*height;
+        int vuSize = width*height/2;
+        reset();
+        mCache.clear();
+        mArena.reserve(frameCount, ySize + vuSize);
+        for (int i = 0; i < frameCount; i++) {
+            cacheSourceImage(new SourceImage(mArena.getBlock(i), ySize, vuSize));
         }
     }
 
     public void close() {
         reset();
         mCache.clear();
+        mArena.release();
         mImageWidth = 0;
         mImageHeight = 0;
         mYStride = 0;
         mVUStride = 0;
     }
 
+    /* Number of direct buffers allocated for source images so far */
+    public int getDirectAllocationCount() {
+        return mArena.getAllocationCount();
+    }
+
     public boolean isLibLoaded() {
         return mLibLoaded;
     }
 
-    public void reset() {
+    public synchronized void reset() {
         while(!mSrcColor.isEmpty()) {
             cacheSourceImage(mSrcColor.remove(0));
         }
@@ -140,12 +156,16 @@ public class ClearSightNativeEngine {
         setReferenceMonoResult(null);
     }
 
-    private SourceImage getNewSourceImage() {
+    private synchronized SourceImage getNewSourceImage() {
         Log.d(TAG, "getNewSourceImage: " + mCache.size());
+        if (mCache.isEmpty()) {
+            Log.w(TAG, "no free source image");
+            return null;
+        }
         return mCache.remove(0);
     }
 
-    private void cacheSourceImage(SourceImage image) {
+    private synchronized void cacheSourceImage(SourceImage image) {
         mCache.add(image);
         Log.d(TAG, "cacheSourceImage: " + mCache.size());
     }
@@ -165,6 +185,11 @@ public class ClearSightNativeEngine {
         mRefMonoResult = result;
     }
 
+    /*
+     * The reference and registered images of the two cameras may be set from
+     * different threads. The source lists and the cache are only touched
+     * with the engine locked; buffer copies and registration run unlocked.
+     */
     public void setReferenceImage(boolean color, Image image) {
         if (color)
             setReferenceColorImage(image);
@@ -184,6 +209,9 @@ public class ClearSightNativeEngine {
             Log.d(TAG, "setRefColorImage");
             Plane[] planes = mRefColorImage.getPlanes();
             SourceImage newSrc = getNewSourceImage();
+            if (newSrc == null) {
+                return;
+            }
             ByteBuffer refY = planes[Y_PLANE].getBuffer();
             ByteBuffer refVU = planes[VU_PLANE].getBuffer();
             refY.rewind();
@@ -192,7 +220,8 @@ public class ClearSightNativeEngine {
             newSrc.mY.put(refY);
             newSrc.mVU.rewind();
             newSrc.mVU.put(refVU);
-            mSrcColor.add(newSrc);
+            newSrc.mSequence = REFERENCE_SEQUENCE;
+            addSourceImage(mSrcColor, newSrc);
         }
     }
 
@@ -208,19 +237,37 @@ public class ClearSightNativeEngine {
             Log.d(TAG, "setRefMonoImage");
             Plane[] planes = mRefMonoImage.getPlanes();
             SourceImage newSrc = getNewSourceImage();
+            if (newSrc == null) {
+                return;
+            }
             ByteBuffer refY = planes[Y_PLANE].getBuffer();
             refY.rewind();
             newSrc.mY.rewind();
             newSrc.mY.put(refY);
-            mSrcMono.add(newSrc);
+            newSrc.mSequence = REFERENCE_SEQUENCE;
+            addSourceImage(mSrcMono, newSrc);
+        }
+    }
+
+    // Keeps the list in sequence order whatever order registrations finish in
+    private synchronized void addSourceImage(List<SourceImage> sourceImages,
+            SourceImage newSrc) {
+        int index = sourceImages.size();
+        while (index > 0 && sourceImages.get(index - 1).mSequence > newSrc.mSequence) {
+            index--;
         }
+        sourceImages.add(index, newSrc);
+    }
+
+    private synchronized SourceImage getFirstSourceImage(List<SourceImage> sourceImages) {
+        return sourceImages.isEmpty() ? null : sourceImages.get(0);
     }
 
     public boolean hasReferenceImage(boolean color) {
         return (getImageCount(color) > 0);
     }
 
-    public int getImageCount(boolean color) {
+    public synchronized int getImageCount(boolean color) {
         return color ? mSrcColor.size() : mSrcMono.size();
     }
 
@@ -233,14 +280,29 @@ public class ClearSightNativeEngine {
     }
 
     public boolean registerImage(boolean color, Image image) {
+        return registerImage(color, image, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Registers an image against the reference. Images of one camera may be
+     * registered concurrently; sequence keeps them in capture order for
+     * initProcessImage(), which pairs color and mono images by position.
+     */
+    public boolean registerImage(boolean color, Image image, int sequence) {
         List<SourceImage> sourceImages = color?mSrcColor:mSrcMono;
-        if (sourceImages.isEmpty()) {
+        SourceImage referenceImage = getFirstSourceImage(sourceImages);
+        if (referenceImage == null) {
             Log.w(TAG, "reference image not yet set");
+            image.close();
             return false;
         }
 
         SourceImage newSrc = getNewSourceImage();
-        SourceImage referenceImage = sourceImages.get(0);
+        if (newSrc == null) {
+            image.close();
+            return false;
+        }
+        newSrc.mSequence = sequence;
         Plane[] planes = image.getPlanes();
         ByteBuffer yBuf = planes[Y_PLANE].getBuffer();
         ByteBuffer refY = referenceImage.mY;
@@ -263,14 +325,16 @@ public class ClearSightNativeEngine {
                 yRowStride, vuRowStride, regY, regVU, metadata);
 
         if (result) {
-            sourceImages.add(newSrc);
+            addSourceImage(sourceImages, newSrc);
+        } else {
+            cacheSourceImage(newSrc);
         }
 
         image.close();
         return result;
     }
 
-    public boolean initProcessImage() {
+    public synchronized boolean initProcessImage() {
         // check data validity
         if (mSrcColor.size() != mSrcMono.size()) {
             // mis-match in num images
@@ -357,10 +421,16 @@ public class ClearSightNativeEngine {
         ByteBuffer mY;
         ByteBuffer mVU;
         float[] mMetadata;
-
-        SourceImage(int ySize, int vuSize) {
-            mY = ByteBuffer.allocateDirect(ySize);
-            mVU = ByteBuffer.allocateDirect(vuSize);
+        int mSequence;
+
+        SourceImage(ByteBuffer block, int ySize, int vuSize) {
+            block.clear();
+            block.limit(ySize);
+            mY = block.slice();
+            block.limit(ySize + vuSize);
+            block.position(ySize);
+            mVU = block.slice();
+            block.clear();
             mMetadata = new float[METADATA_SIZE];
         }
     }
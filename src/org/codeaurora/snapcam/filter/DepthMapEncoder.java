@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.codeaurora.snapcam.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes 8-bit depth maps as single channel images without going through
+ * an ARGB {@link android.graphics.Bitmap}.
+ *
+ * JPEG output is baseline with one Y component and the standard luminance
+ * tables, so the chroma planes a Bitmap based encoder would write are
+ * skipped. PNG output is 8 or 16-bit grayscale and lossless. The deflate
+ * container is a zlib stream of the raw samples, 16-bit samples big-endian,
+ * for readers that want the values without an image decoder.
+ */
+public final class DepthMapEncoder {
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_DEFLATE = "application/zlib";
+
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    private static final int PNG_COLOR_GRAY = 0;
+    private static final int PNG_FILTER_SUB = 1;
+
+    private static final int[] ZIGZAG = {
+             0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // ITU T.81 Annex K.1, natural order.
+    private static final int[] LUMINANCE_QUANT_TABLE = {
+            16, 11, 10, 16,  24,  40,  51,  61,
+            12, 12, 14, 19,  26,  58,  60,  55,
+            14, 13, 16, 24,  40,  57,  69,  56,
+            14, 17, 22, 29,  51,  87,  80,  62,
+            18, 22, 37, 56,  68, 109, 103,  77,
+            24, 35, 55, 64,  81, 104, 113,  92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103,  99
+    };
+
+    // ITU T.81 Annex K.3, luminance DC and AC tables.
+    private static final int[] DC_BITS = {
+            0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final int[] DC_VALUES = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11
+    };
+    private static final int[] AC_BITS = {
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d
+    };
+    private static final int[] AC_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final double[] AAN_SCALE_FACTORS = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    // Huffman codes and lengths indexed by symbol.
+    private static final int[] DC_CODES = new int[256];
+    private static final int[] DC_LENGTHS = new int[256];
+    private static final int[] AC_CODES = new int[256];
+    private static final int[] AC_LENGTHS = new int[256];
+
+    static {
+        buildHuffmanTable(DC_BITS, DC_VALUES, DC_CODES, DC_LENGTHS);
+        buildHuffmanTable(AC_BITS, AC_VALUES, AC_CODES, AC_LENGTHS);
+    }
+
+    private DepthMapEncoder() {
+    }
+
+    /**
+     * Encodes an 8-bit single channel image as a grayscale baseline JPEG.
+     *
+     * @param gray width * height samples, row by row.
+     * @param quality JPEG quality from 1 to 100.
+     */
+    public static byte[] encodeJpeg(byte[] gray, int width, int height, int quality) {
+        checkSize(gray, width, height, 1);
+        int[] quant = scaleQuantTable(quality);
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                divisors[i] = (float) (1.0 / (quant[i]
+                        * AAN_SCALE_FACTORS[row] * AAN_SCALE_FACTORS[col] * 8.0));
+            }
+        }
+
+        BitWriter out = new BitWriter(width * height / 4 + 1024);
+        writeJpegHeaders(out, quant, width, height);
+
+        float[] block = new float[64];
+        int lastDc = 0;
+        for (int y = 0; y < height; y += 8) {
+            for (int x = 0; x < width; x += 8) {
+                loadBlock(gray, width, height, x, y, block);
+                forwardDct(block);
+                lastDc = encodeBlock(out, block, divisors, lastDc);
+            }
+        }
+        out.flushBits();
+        out.writeShort(0xffd9);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes an 8-bit single channel image as a lossless grayscale PNG.
+     *
+     * @param gray width * height samples, row by row.
+     */
+    public static byte[] encodePng(byte[] gray, int width, int height) {
+        return encodePng(gray, width, height, 8);
+    }
+
+    /**
+     * Encodes a single channel image as a lossless grayscale PNG.
+     *
+     * @param samples width * height samples, row by row. 16-bit samples are
+     *        two bytes each, big-endian.
+     * @param bitDepth 8 or 16.
+     */
+    public static byte[] encodePng(byte[] samples, int width, int height, int bitDepth) {
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        }
+        int bytesPerSample = bitDepth / 8;
+        checkSize(samples, width, height, bytesPerSample);
+        int rowBytes = width * bytesPerSample;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 2 + 1024);
+        try {
+            out.write(PNG_SIGNATURE);
+            byte[] header = new byte[13];
+            putInt(header, 0, width);
+            putInt(header, 4, height);
+            header[8] = (byte) bitDepth;
+            header[9] = PNG_COLOR_GRAY;
+            writePngChunk(out, "IHDR", header, header.length);
+
+            // Depth maps are smooth, so the Sub filter turns most rows into
+            // runs of small values that deflate well.
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            byte[] row = new byte[rowBytes + 1];
+            byte[] compressed = new byte[DEFLATE_BUFFER_SIZE];
+            ByteArrayOutputStream idat = new ByteArrayOutputStream(rowBytes * height / 2);
+            row[0] = PNG_FILTER_SUB;
+            for (int y = 0; y < height; y++) {
+                int offset = y * rowBytes;
+                for (int x = 0; x < bytesPerSample; x++) {
+                    row[x + 1] = samples[offset + x];
+                }
+                for (int x = bytesPerSample; x < rowBytes; x++) {
+                    row[x + 1] = (byte) (samples[offset + x]
+                            - samples[offset + x - bytesPerSample]);
+                }
+                deflater.setInput(row);
+                while (!deflater.needsInput()) {
+                    int n = deflater.deflate(compressed);
+                    idat.write(compressed, 0, n);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressed);
+                idat.write(compressed, 0, n);
+            }
+            deflater.end();
+            writePngChunk(out, "IDAT", idat.toByteArray(), idat.size());
+            writePngChunk(out, "IEND", header, 0);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses raw samples into a zlib stream.
+     */
+    public static byte[] encodeDeflate(byte[] samples, int width, int height,
+            int bytesPerSample) {
+        checkSize(samples, width, height, bytesPerSample);
+        int length = width * height * bytesPerSample;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(samples, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] compressed = new byte[DEFLATE_BUFFER_SIZE];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(compressed);
+            out.write(compressed, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflates a stream written by encodeDeflate.
+     *
+     * @param length the number of sample bytes, width * height * bytes per
+     *        sample.
+     * @return the samples, or null if the stream is corrupt or too short.
+     */
+    public static byte[] decodeDeflate(byte[] data, int length) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] samples = new byte[length];
+        int offset = 0;
+        try {
+            while (offset < length && !inflater.finished()) {
+                int n = inflater.inflate(samples, offset, length - offset);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += n;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+        return offset == length ? samples : null;
+    }
+
+    static void checkSize(byte[] data, int width, int height, int bytesPerSample) {
+        if (width <= 0 || height <= 0 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        if (data == null || data.length < (long) width * height * bytesPerSample) {
+            throw new IllegalArgumentException("Depth buffer is smaller than "
+                    + width + "x" + height);
+        }
+    }
+
+    static void writePngChunk(OutputStream out, String type, byte[] data, int length)
+            throws IOException {
+        byte[] field = new byte[4];
+        putInt(field, 0, length);
+        out.write(field);
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(field, 0, (int) crc.getValue());
+        out.write(field);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int[] scaleQuantTable(int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        int[] table = new int[64];
+        for (int i = 0; i < 64; i++) {
+            int q = (LUMINANCE_QUANT_TABLE[i] * scale + 50) / 100;
+            table[i] = Math.max(1, Math.min(255, q));
+        }
+        return table;
+    }
+
+    private static void buildHuffmanTable(int[] bits, int[] values, int[] codes,
+            int[] lengths) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code++;
+                lengths[values[k]] = length;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    private static void writeJpegHeaders(BitWriter out, int[] quant, int width, int height) {
+        out.writeShort(0xffd8);
+
+        // DQT, 8-bit precision table 0 in zigzag order.
+        out.writeShort(0xffdb);
+        out.writeShort(2 + 1 + 64);
+        out.writeByte(0);
+        for (int i = 0; i < 64; i++) {
+            out.writeByte(quant[ZIGZAG[i]]);
+        }
+
+        // SOF0 with a single component, no subsampling.
+        out.writeShort(0xffc0);
+        out.writeShort(2 + 6 + 3);
+        out.writeByte(8);
+        out.writeShort(height);
+        out.writeShort(width);
+        out.writeByte(1);
+        out.writeByte(1);
+        out.writeByte(0x11);
+        out.writeByte(0);
+
+        out.writeShort(0xffc4);
+        out.writeShort(2 + 17 + DC_VALUES.length + 17 + AC_VALUES.length);
+        writeHuffmanTable(out, 0x00, DC_BITS, DC_VALUES);
+        writeHuffmanTable(out, 0x10, AC_BITS, AC_VALUES);
+
+        out.writeShort(0xffda);
+        out.writeShort(2 + 1 + 2 + 3);
+        out.writeByte(1);
+        out.writeByte(1);
+        out.writeByte(0x00);
+        out.writeByte(0);
+        out.writeByte(63);
+        out.writeByte(0);
+    }
+
+    private static void writeHuffmanTable(BitWriter out, int classAndId, int[] bits,
+            int[] values) {
+        out.writeByte(classAndId);
+        for (int i = 0; i < 16; i++) {
+            out.writeByte(bits[i]);
+        }
+        for (int i = 0; i < values.length; i++) {
+            out.writeByte(values[i]);
+        }
+    }
+
+    // Copies an 8x8 block level shifted to [-128, 127], repeating the last
+    // row and column past the image edges.
+    private static void loadBlock(byte[] gray, int width, int height, int x, int y,
+            float[] block) {
+        for (int row = 0; row < 8; row++) {
+            int offset = Math.min(y + row, height - 1) * width;
+            for (int col = 0; col < 8; col++) {
+                int sample = gray[offset + Math.min(x + col, width - 1)] & 0xff;
+                block[row * 8 + col] = sample - 128;
+            }
+        }
+    }
+
+    // Floating point AAN forward DCT, as in the IJG jfdctflt.c. The output
+    // is scaled by the AAN factors, which the quantization divisors undo.
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int stride = pass == 0 ? 8 : 1;
+            for (int i = 0; i < 8; i++) {
+                int p = i * stride;
+                float d0 = data[p];
+                float d1 = data[p + step];
+                float d2 = data[p + 2 * step];
+                float d3 = data[p + 3 * step];
+                float d4 = data[p + 4 * step];
+                float d5 = data[p + 5 * step];
+                float d6 = data[p + 6 * step];
+                float d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private static int encodeBlock(BitWriter out, float[] block, float[] divisors,
+            int lastDc) {
+        int dc = Math.round(block[0] * divisors[0]);
+        int diff = dc - lastDc;
+        int size = bitCount(diff);
+        out.writeBits(DC_CODES[size], DC_LENGTHS[size]);
+        if (size > 0) {
+            out.writeBits(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int i = ZIGZAG[k];
+            int value = Math.round(block[i] * divisors[i]);
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL, sixteen zeros.
+                out.writeBits(AC_CODES[0xf0], AC_LENGTHS[0xf0]);
+                run -= 16;
+            }
+            size = bitCount(value);
+            int symbol = (run << 4) | size;
+            out.writeBits(AC_CODES[symbol], AC_LENGTHS[symbol]);
+            out.writeBits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB
+            out.writeBits(AC_CODES[0], AC_LENGTHS[0]);
+        }
+        return dc;
+    }
+
+    private static int bitCount(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    // Growable byte sink with an entropy coded segment bit writer.
+    private static class BitWriter {
+        private byte[] mBuffer;
+        private int mSize;
+        private int mBits;
+        private int mBitCount;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            if (mSize == mBuffer.length) {
+                byte[] grown = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, grown, 0, mSize);
+                mBuffer = grown;
+            }
+            mBuffer[mSize++] = (byte) b;
+        }
+
+        void writeShort(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void writeBits(int value, int count) {
+            mBits = (mBits << count) | (value & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                int b = (mBits >> mBitCount) & 0xff;
+                writeByte(b);
+                if (b == 0xff) {
+                    // Byte stuffing inside entropy coded data.
+                    writeByte(0);
+                }
+            }
+        }
+
+        void flushBits() {
+            if (mBitCount > 0) {
+                // Pad the last byte with ones.
+                writeBits(0x7f, 8 - mBitCount);
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[mSize];
+            System.arraycopy(mBuffer, 0, result, 0, mSize);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.codeaurora.snapcam.filter;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A fixed set of equally sized blocks carved out of a single direct buffer.
+ *
+ * The slab is allocated by reserve() and kept for as long as the requested
+ * geometry stays the same, so a session that is re-initialized with the same
+ * frame count and size does not allocate again. The blocks are owned by the
+ * caller, which recycles whatever it builds on top of them; release() drops
+ * the slab.
+ *
+ * Direct allocations are counted so callers can check that steady state
+ * capture does not allocate.
+ */
+public class DirectBufferArena {
+    private static final String TAG = "DirectBufferArena";
+
+    private ByteBuffer mSlab;
+    private int mBlockSize;
+    private final ArrayList<ByteBuffer> mBlocks = new ArrayList<ByteBuffer>();
+    private int mAllocationCount;
+
+    /**
+     * Makes blockCount blocks of blockSize bytes available. The current slab
+     * is kept when it has the same geometry; otherwise it is replaced and
+     * blocks handed out before are no longer part of the arena.
+     */
+    public synchronized void reserve(int blockCount, int blockSize) {
+        if (blockCount <= 0 || blockSize <= 0) {
+            throw new IllegalArgumentException("invalid arena geometry: "
+                    + blockCount + " x " + blockSize);
+        }
+        if ((long) blockCount * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("arena too large: "
+                    + blockCount + " x " + blockSize);
+        }
+
+        if (mSlab != null && mBlocks.size() == blockCount && mBlockSize == blockSize) {
+            return;
+        }
+
+        release();
+        mSlab = ByteBuffer.allocateDirect(blockCount * blockSize);
+        mAllocationCount++;
+        mBlockSize = blockSize;
+        for (int i = 0; i < blockCount; i++) {
+            mSlab.limit((i + 1) * blockSize);
+            mSlab.position(i * blockSize);
+            mBlocks.add(mSlab.slice());
+        }
+        mSlab.clear();
+        Log.d(TAG, "reserve: " + blockCount + " x " + blockSize);
+    }
+
+    /**
+     * Returns the block at index, cleared. The same index always returns
+     * the same buffer until the slab is replaced or released.
+     */
+    public synchronized ByteBuffer getBlock(int index) {
+        ByteBuffer block = mBlocks.get(index);
+        block.clear();
+        return block;
+    }
+
+    public synchronized void release() {
+        mSlab = null;
+        mBlockSize = 0;
+        mBlocks.clear();
+    }
+
+    public synchronized int getBlockCount() {
+        return mBlocks.size();
+    }
+
+    public synchronized int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /* Number of direct buffers allocated over the lifetime of the arena */
+    public synchronized int getAllocationCount() {
+        return mAllocationCount;
+    }
+}
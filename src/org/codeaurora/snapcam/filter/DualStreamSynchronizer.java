@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.codeaurora.snapcam.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Pairs the frames of two camera streams by exposure time.
+ *
+ * Each stream keeps a window of unpaired frames. Whenever a frame arrives
+ * both windows are matched as a whole. The matching keeps frame order and
+ * pairs as many frames as possible. Among those matchings it takes the one
+ * that minimizes the exposure time the two frames of a pair do not share,
+ * |dSOF| + |dEOF|. Two frames may only pair when their SOF or their EOF
+ * are within the threshold.
+ *
+ * When the frames at the front of both windows are paired with each other,
+ * no frame still waiting does better and the pair goes to the listener
+ * right away. Any other frame is settled once the other stream has
+ * delivered a frame that starts more than the threshold after the end of
+ * its exposure, since no later frame can pair with it. Settled pairs at the
+ * front of the windows go to the listener, and settled frames without a
+ * partner are dropped. A jittered frame therefore costs only itself, not
+ * the frames queued behind it.
+ *
+ * Pure Java and not thread-safe. ClearSight feeds it from its image process
+ * handler.
+ */
+public class DualStreamSynchronizer<T> {
+    public static final int NUM_STREAMS = 2;
+
+    /* No frame of the other stream was close enough, or it went to a better match */
+    public static final int DROP_NO_MATCH = 0;
+    /* Pushed out of a full window before it could be settled */
+    public static final int DROP_WINDOW_FULL = 1;
+    /* Still pending when the synchronizer was cleared */
+    public static final int DROP_CLEARED = 2;
+    public static final int NUM_DROP_REASONS = 3;
+
+    public interface Listener<T> {
+        /* first is from stream 0, second from stream 1 */
+        void onPair(T first, T second);
+
+        void onDrop(int stream, T frame, int reason);
+    }
+
+    private static class Frame<T> {
+        final T mPayload;
+        final long mSof;
+        final long mEof;
+
+        Frame(T payload, long sof, long eof) {
+            mPayload = payload;
+            mSof = sof;
+            mEof = eof;
+        }
+    }
+
+    private final long mThresholdNs;
+    private final int mWindowSize;
+    private final Listener<T> mListener;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayList<Frame<T>>[] mWindows = new ArrayList[NUM_STREAMS];
+    private final long[] mLatestSof = new long[NUM_STREAMS];
+
+    // Matching of the current windows, index of the partner or -1
+    private final int[][] mPartners = new int[NUM_STREAMS][];
+    // Dynamic programming tables of match(), sized for a full window plus
+    // the frame that overflows it
+    private final int[][] mPairs;
+    private final long[][] mCosts;
+
+    private int mPairCount;
+    private final int[] mFrameCount = new int[NUM_STREAMS];
+    private final int[] mDropCount = new int[NUM_DROP_REASONS];
+
+    /**
+     * @param thresholdNs maximum SOF or EOF difference of a pair.
+     * @param windowSize unpaired frames kept per stream.
+     */
+    public DualStreamSynchronizer(long thresholdNs, int windowSize, Listener<T> listener) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be at least 1");
+        }
+        mThresholdNs = thresholdNs;
+        mWindowSize = windowSize;
+        mListener = listener;
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            mWindows[i] = new ArrayList<Frame<T>>(windowSize + 1);
+            mLatestSof[i] = Long.MIN_VALUE;
+            mPartners[i] = new int[windowSize + 1];
+        }
+        mPairs = new int[windowSize + 2][windowSize + 2];
+        mCosts = new long[windowSize + 2][windowSize + 2];
+    }
+
+    /**
+     * Adds a frame and reports every pair and drop it settles.
+     *
+     * @param stream 0 or 1.
+     * @param sofNs start of exposure, the sensor timestamp.
+     * @param exposureNs exposure time, EOF is sofNs + exposureNs.
+     */
+    public void add(int stream, T frame, long sofNs, long exposureNs) {
+        mWindows[stream].add(new Frame<T>(frame, sofNs, sofNs + exposureNs));
+        mFrameCount[stream]++;
+        mLatestSof[stream] = Math.max(mLatestSof[stream], sofNs);
+        match();
+        settle(false);
+
+        while (mWindows[stream].size() > mWindowSize) {
+            drop(stream, DROP_WINDOW_FULL);
+            match();
+            settle(false);
+        }
+    }
+
+    /**
+     * Settles everything pending as if no more frames will come: the
+     * remaining matches are paired and the other frames dropped.
+     */
+    public void flush() {
+        match();
+        settle(true);
+    }
+
+    /* Drops every pending frame with DROP_CLEARED */
+    public void clear() {
+        for (int stream = 0; stream < NUM_STREAMS; stream++) {
+            while (!mWindows[stream].isEmpty()) {
+                drop(stream, DROP_CLEARED);
+            }
+            mLatestSof[stream] = Long.MIN_VALUE;
+        }
+    }
+
+    public int getPendingCount(int stream) {
+        return mWindows[stream].size();
+    }
+
+    public int getPairCount() {
+        return mPairCount;
+    }
+
+    public int getFrameCount(int stream) {
+        return mFrameCount[stream];
+    }
+
+    public int getDropCount(int reason) {
+        return mDropCount[reason];
+    }
+
+    /* Pairs made per frame of the stream that delivered fewer frames */
+    public float getPairYield() {
+        int frames = Math.min(mFrameCount[0], mFrameCount[1]);
+        return frames == 0 ? 0f : (float) mPairCount / frames;
+    }
+
+    public void resetStats() {
+        mPairCount = 0;
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            mFrameCount[i] = 0;
+        }
+        for (int i = 0; i < NUM_DROP_REASONS; i++) {
+            mDropCount[i] = 0;
+        }
+    }
+
+    public String dumpStats() {
+        return "frames " + mFrameCount[0] + "/" + mFrameCount[1]
+                + " pairs " + mPairCount + " yield " + getPairYield()
+                + " dropped no match=" + mDropCount[DROP_NO_MATCH]
+                + " window full=" + mDropCount[DROP_WINDOW_FULL]
+                + " cleared=" + mDropCount[DROP_CLEARED];
+    }
+
+    private boolean canPair(Frame<T> a, Frame<T> b) {
+        return Math.abs(a.mSof - b.mSof) <= mThresholdNs
+                || Math.abs(a.mEof - b.mEof) <= mThresholdNs;
+    }
+
+    private static long cost(Frame<?> a, Frame<?> b) {
+        return Math.abs(a.mSof - b.mSof) + Math.abs(a.mEof - b.mEof);
+    }
+
+    /*
+     * Order preserving matching of the two windows with the most pairs and
+     * the lowest total cost, by dynamic programming over window suffixes.
+     */
+    private void match() {
+        ArrayList<Frame<T>> a = mWindows[0];
+        ArrayList<Frame<T>> b = mWindows[1];
+        int n = a.size();
+        int m = b.size();
+        int[][] pairs = mPairs;
+        long[][] costs = mCosts;
+        // The tables are reused, clear the empty suffix row and column
+        for (int j = 0; j <= m; j++) {
+            pairs[n][j] = 0;
+            costs[n][j] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            pairs[i][m] = 0;
+            costs[i][m] = 0;
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                int bestPairs = pairs[i + 1][j];
+                long bestCost = costs[i + 1][j];
+                if (pairs[i][j + 1] > bestPairs
+                        || (pairs[i][j + 1] == bestPairs && costs[i][j + 1] < bestCost)) {
+                    bestPairs = pairs[i][j + 1];
+                    bestCost = costs[i][j + 1];
+                }
+                if (canPair(a.get(i), b.get(j))) {
+                    int p = pairs[i + 1][j + 1] + 1;
+                    long c = costs[i + 1][j + 1] + cost(a.get(i), b.get(j));
+                    if (p > bestPairs || (p == bestPairs && c < bestCost)) {
+                        bestPairs = p;
+                        bestCost = c;
+                    }
+                }
+                pairs[i][j] = bestPairs;
+                costs[i][j] = bestCost;
+            }
+        }
+
+        int[] partnersA = mPartners[0];
+        int[] partnersB = mPartners[1];
+        Arrays.fill(partnersA, 0, n, -1);
+        Arrays.fill(partnersB, 0, m, -1);
+        int i = 0;
+        int j = 0;
+        while (i < n && j < m) {
+            if (canPair(a.get(i), b.get(j))
+                    && pairs[i][j] == pairs[i + 1][j + 1] + 1
+                    && costs[i][j] == costs[i + 1][j + 1] + cost(a.get(i), b.get(j))) {
+                partnersA[i] = j;
+                partnersB[j] = i;
+                i++;
+                j++;
+            } else if (pairs[i][j] == pairs[i + 1][j] && costs[i][j] == costs[i + 1][j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+    }
+
+    private boolean isSettled(int stream, Frame<T> frame, boolean force) {
+        return force || mLatestSof[1 - stream] > frame.mEof + mThresholdNs;
+    }
+
+    /*
+     * Hands out decisions at the front of the windows, earliest frame first,
+     * for as long as the fronts are paired with each other or the frames
+     * involved are settled.
+     */
+    private void settle(boolean force) {
+        while (!mWindows[0].isEmpty() || !mWindows[1].isEmpty()) {
+            int stream;
+            if (mWindows[0].isEmpty()) {
+                stream = 1;
+            } else if (mWindows[1].isEmpty()) {
+                stream = 0;
+            } else {
+                stream = mWindows[0].get(0).mSof <= mWindows[1].get(0).mSof ? 0 : 1;
+            }
+            int other = 1 - stream;
+            Frame<T> frame = mWindows[stream].get(0);
+            int partner = mPartners[stream][0];
+            if (partner == 0) {
+                // Best match among everything waiting, no need to wait on
+                // the other stream
+                pair();
+                match();
+                continue;
+            }
+            if (!isSettled(stream, frame, force)) {
+                return;
+            }
+            if (partner < 0) {
+                drop(stream, DROP_NO_MATCH);
+            } else {
+                if (!isSettled(other, mWindows[other].get(partner), force)) {
+                    return;
+                }
+                // Frames of the other stream before the partner can no
+                // longer pair without crossing this pair.
+                for (int k = 0; k < partner; k++) {
+                    drop(other, DROP_NO_MATCH);
+                }
+                pair();
+            }
+            match();
+        }
+    }
+
+    private void pair() {
+        Frame<T> first = mWindows[0].remove(0);
+        Frame<T> second = mWindows[1].remove(0);
+        mPairCount++;
+        mListener.onPair(first.mPayload, second.mPayload);
+    }
+
+    private void drop(int stream, int reason) {
+        Frame<T> frame = mWindows[stream].remove(0);
+        mDropCount[reason]++;
+        mListener.onDrop(stream, frame.mPayload, reason);
+    }
+}
@@ -49,6 +49,7 @@ import java.io.BufferedOutputStream;
 import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
+import com.android.camera.util.PersistUtil;
 
 import static android.graphics.Color.rgb;
 
@@ -66,18 +67,35 @@ public class GDepth{
     public final static String PROPERTY_ROI_Y = "RoiY";
     public final static String PROPERTY_ROI_WIDTH = "RoiWidth";
     public final static String PROPERTY_ROI_HEIGHT = "RoiHeight";
+    //extend for the raw deflate container
+    public final static String PROPERTY_WIDTH = "Width";
+    public final static String PROPERTY_HEIGHT = "Height";
+    public final static String PROPERTY_BITS_PER_SAMPLE = "BitsPerSample";
 
     public final static String FORMAT_RANGE_INVERSE="RangeInverse";
     public final static String FORMAT_RANGLE_LINEAR = "RangeLinear";
     public final static String FORMAT_8_BIT = "8-bit";
 
-    private final static String MIME = "image/jpeg";
+    // Depth map containers, see createGDepth(DepthMap, int)
+    public final static int CONTAINER_JPEG = 0;
+    public final static int CONTAINER_PNG = 1;
+    public final static int CONTAINER_PNG_16 = 2;
+    public final static int CONTAINER_DEFLATE = 3;
+
+    private final static String MIME = DepthMapEncoder.MIME_JPEG;
+    private final static int DEPTH_JPEG_QUALITY = 100;
 
     private DepthMap mDepthMap;
     private String mData;
-    private final String mFormat = FORMAT_8_BIT;
+    private String mFormat = FORMAT_8_BIT;
+    private String mMime = MIME;
+    private float mNear = 0;
+    private float mFar = 255;
+    private int mContainer = CONTAINER_JPEG;
+    private int mBitsPerSample = 8;
+    // ARGB expansion of the depth map, only built for getGdepthBitmap()
     private int[] mMap;
-    private byte[] mGdepthJpeg;
+    private byte[] mEncodedDepthMap;
     private Rect mRoi;
 
 
@@ -90,22 +108,17 @@ public class GDepth{
         }
     }
 
-    private GDepth(DepthMap depthMap){
+    private GDepth(DepthMap depthMap, int container){
         mDepthMap = depthMap;
         mRoi = depthMap.roi;
-        if (depthMap != null && depthMap.buffer != null) {
-            mMap = new int[depthMap.buffer.length];
-
-            for( int i=0; i < mMap.length; ++i ) {
-                int gray = depthMap.buffer[i] & 0xff;
-                int color = Color.rgb(gray,gray,gray);
-                mMap[i] = color;
-            }
-        }
+        mContainer = container;
+        mFormat = depthMap.format;
+        mNear = depthMap.near;
+        mFar = depthMap.far;
     }
 
     private GDepth(byte[] gdepthJpeg) {
-        mGdepthJpeg = gdepthJpeg;
+        mEncodedDepthMap = gdepthJpeg;
     }
 
 
@@ -115,18 +128,33 @@ public class GDepth{
     }
 
     public String getMime() {
-        return MIME;
+        return mMime;
+    }
+
+    public float getNear() {
+        return mNear;
+    }
+
+    public float getFar() {
+        return mFar;
+    }
+
+    public int getWidth() {
+        return mDepthMap == null ? 0 : mDepthMap.width;
     }
 
-    public int getNear() {
-        return 0;
+    public int getHeight() {
+        return mDepthMap == null ? 0 : mDepthMap.height;
     }
 
-    public int getFar() {
-        return 255;
+    public int getBitsPerSample() {
+        return mBitsPerSample;
     }
 
     public String getData(){
+        if (mData == null && mEncodedDepthMap != null) {
+            mData = serializeAsBase64Str(mEncodedDepthMap);
+        }
         return mData;
     }
 
@@ -138,7 +166,17 @@ public class GDepth{
         mRoi = roi;
     }
     public static GDepth createGDepth(DepthMap depthMap){
-        GDepth gDepth = new GDepth(depthMap);
+        return createGDepth(depthMap, PersistUtil.getDepthContainer());
+    }
+
+    /**
+     * @param container CONTAINER_JPEG stores the map as is in a q100
+     *        grayscale JPEG. The other containers are lossless: the map is
+     *        stretched over the full sample range between the depths of its
+     *        smallest and largest values, which become near and far.
+     */
+    public static GDepth createGDepth(DepthMap depthMap, int container){
+        GDepth gDepth = new GDepth(depthMap, container);
         if ( gDepth.encoding() ) {
             return gDepth;
         }
@@ -156,30 +194,122 @@ public class GDepth{
     private boolean encoding(){
         Log.d(TAG, "encoding");
         boolean result = false;
-        Bitmap bitmap = Bitmap.createBitmap(
-                mMap,mDepthMap.width, mDepthMap.height, Bitmap.Config.ARGB_8888);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        byte[] jpegBytes = outputStream.toByteArray();
-        mGdepthJpeg = jpegBytes;
-        if (jpegBytes != null ) {
-            String base64String = serializeAsBase64Str(jpegBytes);
+        if (mDepthMap == null || mDepthMap.buffer == null) {
+            Log.e(TAG, "no depth map to encode");
+            return false;
+        }
+        byte[] encoded = null;
+        int width = mDepthMap.width;
+        int height = mDepthMap.height;
+        try {
+            // Single channel straight from the depth buffer, no ARGB Bitmap
+            switch (mContainer) {
+                case CONTAINER_PNG:
+                    encoded = DepthMapEncoder.encodePng(stretchRange(8), width, height, 8);
+                    mMime = DepthMapEncoder.MIME_PNG;
+                    break;
+                case CONTAINER_PNG_16:
+                    encoded = DepthMapEncoder.encodePng(
+                            stretchRange(16), width, height, 16);
+                    mMime = DepthMapEncoder.MIME_PNG;
+                    break;
+                case CONTAINER_DEFLATE:
+                    encoded = DepthMapEncoder.encodeDeflate(
+                            stretchRange(8), width, height, 1);
+                    mMime = DepthMapEncoder.MIME_DEFLATE;
+                    break;
+                default:
+                    encoded = DepthMapEncoder.encodeJpeg(mDepthMap.buffer,
+                            width, height, DEPTH_JPEG_QUALITY);
+                    mMime = DepthMapEncoder.MIME_JPEG;
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.toString());
+        }
+        mEncodedDepthMap = encoded;
+        if (encoded != null ) {
+            // the Base64 string is only built if getData() is called
             result = true;
-            mData = base64String;
         }else{
-            Log.e(TAG, "compressToJPEG failure");
+            Log.e(TAG, "depth map encoding failure");
         }
 
         return result;
     }
 
+    /**
+     * Maps the 8-bit depth values actually used onto [0, 2^bits - 1] and
+     * moves near and far to the depths of the smallest and largest value.
+     * Distinct input values stay distinct, so nothing is lost, and a 16-bit
+     * map keeps the full precision of any later rescaling of the range.
+     * A flat map has no range to stretch; it keeps near, far and format,
+     * since readers divide by far - near.
+     *
+     * @return the samples, big-endian for 16 bits.
+     */
+    private byte[] stretchRange(int bits) {
+        byte[] buffer = mDepthMap.buffer;
+        int count = mDepthMap.width * mDepthMap.height;
+        DepthMapEncoder.checkSize(buffer, mDepthMap.width, mDepthMap.height, 1);
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < count; ++i) {
+            int value = buffer[i] & 0xff;
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+        if (min == max) {
+            // keep the values where they are in the source range
+            min = 0;
+            max = 255;
+        } else {
+            mNear = depthAt(min);
+            mFar = depthAt(max);
+            if (FORMAT_8_BIT.equals(mFormat)) {
+                // values are linear between near and far once stretched
+                mFormat = FORMAT_RANGLE_LINEAR;
+            }
+        }
+        mBitsPerSample = bits;
+
+        int maxCode = (1 << bits) - 1;
+        int range = max - min;
+        int[] codes = new int[256];
+        for (int value = min; value <= max; ++value) {
+            codes[value] = ((value - min) * maxCode + range / 2) / range;
+        }
+        byte[] samples = new byte[count * bits / 8];
+        if (bits == 8) {
+            for (int i = 0; i < count; ++i) {
+                samples[i] = (byte) codes[buffer[i] & 0xff];
+            }
+        } else {
+            for (int i = 0; i < count; ++i) {
+                int code = codes[buffer[i] & 0xff];
+                samples[2 * i] = (byte) (code >> 8);
+                samples[2 * i + 1] = (byte) code;
+            }
+        }
+        return samples;
+    }
+
+    // Depth of an 8-bit value of the source map
+    private float depthAt(int value) {
+        float near = mDepthMap.near;
+        float far = mDepthMap.far;
+        float normalized = value / 255f;
+        if (FORMAT_RANGE_INVERSE.equals(mDepthMap.format)) {
+            return far * near / (far - normalized * (far - near));
+        }
+        return normalized * (far - near) + near;
+    }
+
     private boolean encodeDepthmapJpeg() {
         Log.d(TAG, "encodeDepthmapJpeg");
         boolean result = false;
-        if (mGdepthJpeg != null ) {
-            String base64String = serializeAsBase64Str(mGdepthJpeg);
+        if (mEncodedDepthMap != null ) {
             result = true;
-            mData = base64String;
         }else{
             Log.e(TAG, "compressToJPEG failure");
         }
@@ -188,16 +318,22 @@ public class GDepth{
     }
 
     public Bitmap getGdepthBitmap() {
+        if (mMap == null) {
+            mMap = new int[mDepthMap.buffer.length];
+            for( int i=0; i < mMap.length; ++i ) {
+                int gray = mDepthMap.buffer[i] & 0xff;
+                mMap[i] = Color.rgb(gray,gray,gray);
+            }
+        }
         Bitmap bitmap = Bitmap.createBitmap(
                 mMap,mDepthMap.width, mDepthMap.height, Bitmap.Config.ARGB_8888);
         return bitmap;
     }
 
     public Bitmap getBitGdepthBitmap() {
-        int[] data = new int[mMap.length];
+        int[] data = new int[mDepthMap.buffer.length];
         for (int i = 0; i < data.length; ++i) {
-            int p = mMap[i];
-            data[i] = (p & 0xff) << 24;
+            data[i] = (mDepthMap.buffer[i] & 0xff) << 24;
         }
         Bitmap bitmap = Bitmap.createBitmap(
                 data,mDepthMap.width, mDepthMap.height, Bitmap.Config.ALPHA_8);
@@ -216,8 +352,11 @@ public class GDepth{
         return outputStream.toByteArray();
     }
 
-    public byte[] getDepthJpeg() {
-        return mGdepthJpeg;
+    /**
+     * @return the encoded depth map, of the type returned by getMime()
+     */
+    public byte[] getEncodedDepthMap() {
+        return mEncodedDepthMap;
     }
 
     private  String serializeAsBase64Str(byte[] image) {
@@ -272,6 +411,10 @@ public class GDepth{
         public int width;
         public int height;
         public Rect roi;
+        // depths of the values 0 and 255, interpreted according to format
+        public float near = 0;
+        public float far = 255;
+        public String format = FORMAT_8_BIT;
         public DepthMap(int width, int height){
             this.width = width;
             this.height = height;
@@ -279,15 +422,16 @@ public class GDepth{
     }
 
 
-    private GDepth(int near, int far, String data) {
-
+    private GDepth(float near, float far, String data) {
+        this.mNear = near;
+        this.mFar = far;
         this.mData = data;
     }
     public static GDepth createGDepth(XMPMeta xmpMeta){
         try {
-            int near = Integer.parseInt((String)
+            float near = Float.parseFloat((String)
                     xmpMeta.getProperty(GDepth.NAMESPACE_URL, PROPERTY_NEAR).getValue());
-            int far = Integer.parseInt((String)
+            float far = Float.parseFloat((String)
                     xmpMeta.getProperty(GDepth.NAMESPACE_URL, PROPERTY_FAR).getValue());
             String data = (String)xmpMeta.getProperty(
                     GDepth.NAMESPACE_URL, PROPERTY_DATA).getValue();
@@ -51,10 +51,11 @@ public class GImage{
     }
 
     private  String mMime = "image/jpeg";
+    private byte[] mBytes;
     private String mData;
 
     public GImage(byte[] data, String mime){
-        mData = Base64.encodeToString(data, Base64.DEFAULT);
+        mBytes = data;
         mMime = mime;
     }
 
@@ -62,7 +63,18 @@ public class GImage{
         return mMime;
     }
 
+    /**
+     * Returns the image bytes. Savers should stream these rather than the
+     * Base64 string from {@link #getData()}.
+     */
+    public byte[] getBytes(){
+        return mBytes;
+    }
+
     public String getData(){
+        if (mData == null) {
+            mData = Base64.encodeToString(mBytes, Base64.DEFAULT);
+        }
         return mData;
     }
 }
\ No newline at end of file
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.codeaurora.snapcam.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A graph of tasks for one shot, run on a shared executor.
+ *
+ * A task is submitted as soon as all of its dependencies have finished, so
+ * independent tasks run concurrently up to the executor's thread count.
+ * Tasks may be added while others are running, which suits frames that
+ * arrive one at a time. seal() marks the end of the shot and the listener
+ * fires once every task has finished.
+ *
+ * Every task records when it became ready, when it started and when it
+ * ended, relative to the creation of the graph.
+ */
+public class TaskGraph {
+    public interface Listener {
+        void onComplete(TaskGraph graph);
+    }
+
+    public static class Node {
+        private final String mName;
+        private final Runnable mTask;
+        private final List<Node> mDependents = new ArrayList<Node>();
+        private int mPendingDependencies;
+        private boolean mDone;
+        private long mReadyNs;
+        private long mStartNs;
+        private long mEndNs;
+
+        private Node(String name, Runnable task) {
+            mName = name;
+            mTask = task;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /* Time spent runnable but waiting for a worker */
+        public long getWaitNs() {
+            return mStartNs - mReadyNs;
+        }
+
+        public long getRunNs() {
+            return mEndNs - mStartNs;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final long mCreatedNs = System.nanoTime();
+    private final List<Node> mNodes = new ArrayList<Node>();
+    private int mUnfinished;
+    private boolean mSealed;
+    private boolean mCompleted;
+    private volatile boolean mCancelled;
+    private long mCompletedNs;
+    private Listener mListener;
+
+    public TaskGraph(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds a task that runs once all of the given nodes have finished.
+     *
+     * @throws IllegalStateException if the graph is already sealed.
+     */
+    public synchronized Node addTask(String name, Runnable task, Node... dependencies) {
+        if (mSealed) {
+            throw new IllegalStateException("Graph is sealed, can't add " + name);
+        }
+        Node node = new Node(name, task);
+        for (Node dependency : dependencies) {
+            if (!dependency.mDone) {
+                dependency.mDependents.add(node);
+                node.mPendingDependencies++;
+            }
+        }
+        mNodes.add(node);
+        mUnfinished++;
+        if (node.mPendingDependencies == 0) {
+            submit(node);
+        }
+        return node;
+    }
+
+    /*
+     * No more tasks will be added; the listener, which may be null, fires
+     * once all have finished.
+     */
+    public void seal(Listener listener) {
+        boolean complete;
+        synchronized (this) {
+            mSealed = true;
+            mListener = listener;
+            complete = checkCompleteLocked();
+        }
+        if (complete && listener != null) {
+            listener.onComplete(this);
+        }
+    }
+
+    /*
+     * Tasks keep being scheduled after a cancel so that they can release
+     * their inputs; they are expected to check isCancelled() first.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /* Blocks until every task added so far has finished */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (mUnfinished > 0) {
+            wait();
+        }
+    }
+
+    public synchronized boolean isSealed() {
+        return mSealed;
+    }
+
+    public synchronized boolean isComplete() {
+        return mCompleted;
+    }
+
+    /* Creation to the end of the last task, 0 until complete */
+    public synchronized long getElapsedNs() {
+        return mCompleted ? mCompletedNs - mCreatedNs : 0;
+    }
+
+    public synchronized String dumpTimings() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("total ").append(getElapsedNs() / 1000000).append("ms");
+        for (Node node : mNodes) {
+            sb.append(", ").append(node.mName)
+                    .append(" [ready ").append((node.mReadyNs - mCreatedNs) / 1000000)
+                    .append(" wait ").append(node.getWaitNs() / 1000000)
+                    .append(" run ").append(node.getRunNs() / 1000000).append("]");
+        }
+        return sb.toString();
+    }
+
+    private void submit(final Node node) {
+        node.mReadyNs = System.nanoTime();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    node.mStartNs = System.nanoTime();
+                    try {
+                        node.mTask.run();
+                    } finally {
+                        finish(node);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor is shutting down. Run the task inline as
+            // cancelled so it still releases its inputs, and count it as
+            // finished or awaitIdle() and the listener would wait forever.
+            mCancelled = true;
+            node.mStartNs = System.nanoTime();
+            try {
+                node.mTask.run();
+            } finally {
+                finish(node);
+            }
+        }
+    }
+
+    private void finish(Node node) {
+        Listener listener = null;
+        synchronized (this) {
+            node.mEndNs = System.nanoTime();
+            node.mDone = true;
+            for (Node dependent : node.mDependents) {
+                if (--dependent.mPendingDependencies == 0) {
+                    submit(dependent);
+                }
+            }
+            node.mDependents.clear();
+            mUnfinished--;
+            if (checkCompleteLocked()) {
+                listener = mListener;
+            }
+            notifyAll();
+        }
+        if (listener != null) {
+            listener.onComplete(this);
+        }
+    }
+
+    private boolean checkCompleteLocked() {
+        if (mSealed && !mCompleted && mUnfinished == 0) {
+            mCompleted = true;
+            mCompletedNs = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.DepthMapEncoder;
+import org.codeaurora.snapcam.filter.GDepth;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Compares the GDepth depth map containers on a 1280x960 synthetic map:
+ * encoded size, encode time and decode time. The legacy row is the ARGB
+ * Bitmap path GDepth used before DepthMapEncoder.
+ */
+@LargeTest
+public class DepthCodecBenchmark extends TestCase {
+    private static final String TAG = "DepthCodecBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 960;
+    private static final int ITERATIONS = 5;
+
+    private GDepth.DepthMap mDepthMap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Smooth planes with a few depth edges, roughly what DDM produces.
+        byte[] buffer = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 30 + x / 16 + y / 24;
+                if ((x - 640) * (x - 640) + (y - 480) * (y - 480) < 300 * 300) {
+                    value += 70;
+                }
+                buffer[y * WIDTH + x] = (byte) Math.min(255, value);
+            }
+        }
+        mDepthMap = new GDepth.DepthMap(WIDTH, HEIGHT);
+        mDepthMap.buffer = buffer;
+        mDepthMap.roi = new Rect(0, 0, WIDTH, HEIGHT);
+        mDepthMap.near = 0.3f;
+        mDepthMap.far = 8f;
+        mDepthMap.format = GDepth.FORMAT_RANGE_INVERSE;
+    }
+
+    private byte[] encodeLegacy() {
+        int[] map = new int[mDepthMap.buffer.length];
+        for (int i = 0; i < map.length; i++) {
+            int gray = mDepthMap.buffer[i] & 0xff;
+            map[i] = Color.rgb(gray, gray, gray);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(map, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private void report(String name, byte[] data, long encodeNs, long decodeNs) {
+        Log.d(TAG, name + ": " + data.length + " bytes, encode "
+                + encodeNs / ITERATIONS / 1000 + "us, decode "
+                + decodeNs / ITERATIONS / 1000 + "us");
+    }
+
+    private long decodeBitmap(byte[] data) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+            assertNotNull(bitmap);
+            bitmap.recycle();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public void testContainers() {
+        byte[] data = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            data = encodeLegacy();
+        }
+        report("legacy jpeg", data, System.nanoTime() - start, decodeBitmap(data));
+
+        int[] containers = {
+                GDepth.CONTAINER_JPEG, GDepth.CONTAINER_PNG,
+                GDepth.CONTAINER_PNG_16, GDepth.CONTAINER_DEFLATE
+        };
+        String[] names = {"jpeg", "png", "png16", "deflate"};
+        for (int c = 0; c < containers.length; c++) {
+            GDepth gDepth = null;
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                gDepth = GDepth.createGDepth(mDepthMap, containers[c]);
+            }
+            long encodeNs = System.nanoTime() - start;
+            data = gDepth.getEncodedDepthMap();
+
+            long decodeNs;
+            if (containers[c] == GDepth.CONTAINER_DEFLATE) {
+                byte[] samples = null;
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    samples = DepthMapEncoder.decodeDeflate(data, WIDTH * HEIGHT);
+                }
+                decodeNs = System.nanoTime() - start;
+                assertNotNull(samples);
+                // Every source value must map to exactly one stored value.
+                int[] mapping = new int[256];
+                Arrays.fill(mapping, -1);
+                for (int i = 0; i < samples.length; i++) {
+                    int in = mDepthMap.buffer[i] & 0xff;
+                    int out = samples[i] & 0xff;
+                    assertTrue(mapping[in] == -1 || mapping[in] == out);
+                    mapping[in] = out;
+                }
+            } else {
+                decodeNs = decodeBitmap(data);
+            }
+            report(names[c] + " near=" + gDepth.getNear() + " far=" + gDepth.getFar(),
+                    data, encodeNs, decodeNs);
+        }
+    }
+}
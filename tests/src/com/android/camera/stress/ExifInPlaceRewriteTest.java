@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifIndex;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Edits the EXIF of multi-MB JPEG files the way RotationTask and metadata
+ * edits do. With padding reserved at write time, growing or adding tags must
+ * rewrite the header in place: the file keeps its size and everything after
+ * the APP1 segment is left untouched. Without padding it falls back to
+ * copying the file.
+ */
+@LargeTest
+public class ExifInPlaceRewriteTest extends TestCase {
+    private static final String TAG = "ExifInPlaceRewriteTest";
+    private static final int MB = 1024 * 1024;
+    private static final int PADDING = 1024;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("exif_rewrite", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP0, DQT, SOF0, scan data and EOI */
+    private static byte[] syntheticJpeg(int size) {
+        byte[] jpeg = new byte[size];
+        byte[] head = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00, 0x01, 0x01, 0x00,
+                    0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+            (byte) 0xFF, (byte) 0xDB, 0x00, 0x04, 0x00, 0x01,
+            (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x0B, (byte) 0xB8, 0x0F, (byte) 0xA0,
+                    0x01, 0x01, 0x11, 0x00,
+        };
+        System.arraycopy(head, 0, jpeg, 0, head.length);
+        for (int i = head.length; i < size - 2; i++) {
+            jpeg[i] = (byte) (((i * 131) ^ (i >> 5)) & 0x7F);
+        }
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private void writeCapture(int size, int padding) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setPaddingSize(padding);
+        exif.addMakeAndModelTag();
+        exif.addOrientationTag(0);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1500000000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.writeExif(syntheticJpeg(size), mFile.getAbsolutePath());
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] data = new byte[(int) mFile.length()];
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /* Offset of the first byte after the APP1 segment, which follows SOI */
+    private static int app1End(byte[] jpeg) {
+        return 4 + (((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff));
+    }
+
+    /* Rotates and adds GPS and a description, which do not exist yet */
+    private static List<ExifTag> edits() {
+        ExifInterface exif = new ExifInterface();
+        List<ExifTag> tags = new ArrayList<ExifTag>();
+        tags.add(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        tags.add(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION,
+                "Edited in place without touching the image data"));
+        exif.addGpsTags(37.422, -122.084);
+        tags.addAll(exif.getAllTags());
+        return tags;
+    }
+
+    private void assertEdited() throws IOException {
+        ExifIndex index = ExifIndex.read(mFile.getAbsolutePath());
+        assertEquals(90, index.getRotation());
+        assertEquals("Edited in place without touching the image data",
+                index.getString(ExifInterface.TAG_IMAGE_DESCRIPTION));
+        assertTrue(index.hasTag(ExifInterface.TAG_MAKE));
+        double[] latLong = new double[2];
+        assertTrue(index.getLatLong(latLong));
+        assertEquals(37.422, latLong[0], 1e-3);
+    }
+
+    private void runSize(int size) throws IOException {
+        writeCapture(size, PADDING);
+        byte[] before = readFile();
+        int end = app1End(before);
+
+        long start = System.nanoTime();
+        ExifInterface exif = new ExifInterface();
+        assertTrue(exif.rewriteExif(mFile.getAbsolutePath(), edits()));
+        long inPlaceUs = (System.nanoTime() - start) / 1000;
+
+        byte[] after = readFile();
+        assertEquals(before.length, after.length);
+        assertEquals(end, app1End(after));
+        for (int i = end; i < before.length; i++) {
+            if (before[i] != after[i]) {
+                fail("image data changed at " + i);
+            }
+        }
+        assertEdited();
+
+        writeCapture(size, 0);
+        start = System.nanoTime();
+        exif = new ExifInterface();
+        assertFalse(exif.rewriteExif(mFile.getAbsolutePath(), edits()));
+        exif.forceRewriteExif(mFile.getAbsolutePath(), edits());
+        long copyUs = (System.nanoTime() - start) / 1000;
+        assertEdited();
+
+        Log.d(TAG, (size / MB) + "MB in place: " + inPlaceUs + "us, copy: " + copyUs + "us");
+    }
+
+    public void testRewrite5Mb() throws IOException {
+        runSize(5 * MB);
+    }
+
+    public void testRewrite20Mb() throws IOException {
+        runSize(20 * MB);
+    }
+}
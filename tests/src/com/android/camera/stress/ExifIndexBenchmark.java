@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifIndex;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.Rational;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Scans orientation, date and GPS position out of 10k JPEG headers, once with
+ * ExifInterface.readExif() and once with ExifIndex, and checks they agree.
+ * Each image carries a typical camera tag set and a 16 KB thumbnail.
+ */
+@LargeTest
+public class ExifIndexBenchmark extends TestCase {
+    private static final String TAG = "ExifIndexBenchmark";
+    private static final int IMAGES = 10000;
+    private static final int DISTINCT = 64;
+
+    private byte[][] mJpegs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        byte[] payload = new byte[64 * 1024];
+        payload[0] = (byte) 0xFF;
+        payload[1] = (byte) 0xD8;
+        payload[2] = (byte) 0xFF;
+        payload[3] = (byte) 0xC0;
+        payload[4] = 0x00;
+        payload[5] = 0x0B;
+        payload[payload.length - 2] = (byte) 0xFF;
+        payload[payload.length - 1] = (byte) 0xD9;
+        byte[] thumbnail = new byte[16 * 1024];
+        thumbnail[0] = (byte) 0xFF;
+        thumbnail[1] = (byte) 0xD8;
+        mJpegs = new byte[DISTINCT][];
+        for (int i = 0; i < DISTINCT; i++) {
+            ExifInterface exif = new ExifInterface();
+            exif.addMakeAndModelTag();
+            exif.addOrientationTag((i % 4) * 90);
+            exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1500000000000L + i * 1000L,
+                    TimeZone.getTimeZone("UTC"));
+            exif.addGpsTags(37.0 + i / 100.0, -122.0 - i / 100.0);
+            exif.addFocalLength(new Rational(400, 100));
+            exif.addISO(100 + i);
+            exif.setCompressedThumbnail(thumbnail);
+            mJpegs[i] = exif.writeExif(payload, 0, payload.length);
+        }
+    }
+
+    public void testScanOrientationDateGps() throws IOException {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) {
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(mJpegs[i % DISTINCT]);
+            Integer orientation = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+            String date = exif.getTagStringValue(ExifInterface.TAG_DATE_TIME);
+            double[] latLong = exif.getLatLongAsDoubles();
+            checksum += (orientation == null ? 0 : orientation) + date.length()
+                    + (latLong == null ? 0 : 1);
+        }
+        long fullNs = System.nanoTime() - start;
+
+        long indexChecksum = 0;
+        double[] latLong = new double[2];
+        start = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) {
+            ExifIndex index = ExifIndex.read(mJpegs[i % DISTINCT]);
+            int orientation = index.getInt(ExifInterface.TAG_ORIENTATION, 0);
+            // Keeps the terminating NUL so the length matches getTagStringValue().
+            int dateLength = index.getComponentCount(ExifInterface.TAG_DATE_TIME);
+            indexChecksum += orientation + dateLength + (index.getLatLong(latLong) ? 1 : 0);
+        }
+        long indexNs = System.nanoTime() - start;
+
+        Log.d(TAG, IMAGES + " images, readExif: " + fullNs / 1000000 + "ms, ExifIndex: "
+                + indexNs / 1000000 + "ms");
+        assertEquals(checksum, indexChecksum);
+    }
+}
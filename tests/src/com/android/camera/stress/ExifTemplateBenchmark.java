@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Simulates the EXIF step of a longshot burst: every frame gets the tag set
+ * PostProcessor writes, with per-frame timestamp, exposure and ISO. Compares
+ * building an ExifInterface per frame with patching a precompiled
+ * ExifTemplate, and checks both produce the same images.
+ */
+@LargeTest
+public class ExifTemplateBenchmark extends TestCase {
+    private static final String TAG = "ExifTemplateBenchmark";
+    private static final int FRAMES = 200;
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FIELDS = ExifTemplate.FIELD_FLASH | ExifTemplate.FIELD_FOCAL_LENGTH
+            | ExifTemplate.FIELD_WHITE_BALANCE | ExifTemplate.FIELD_APERTURE
+            | ExifTemplate.FIELD_EXPOSURE_TIME | ExifTemplate.FIELD_ISO;
+
+    /* SOI, APP0, SOF0, scan data and EOI */
+    private static byte[] syntheticJpeg(int size) {
+        byte[] jpeg = new byte[size];
+        byte[] head = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00, 0x01, 0x01, 0x00,
+                    0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+            (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x0B, (byte) 0xB8, 0x0F, (byte) 0xA0,
+                    0x01, 0x01, 0x11, 0x00,
+        };
+        System.arraycopy(head, 0, jpeg, 0, head.length);
+        for (int i = head.length; i < size - 2; i++) {
+            jpeg[i] = (byte) (((i * 131) ^ (i >> 5)) & 0x7F);
+        }
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static ExifTemplate.Frame frame(int i) {
+        ExifTemplate.Frame frame = new ExifTemplate.Frame(90,
+                1500000000000L + i * 66L, TimeZone.getDefault());
+        frame.setFlashFired(false);
+        frame.setFocalLength(435, 100);
+        frame.setWhiteBalanceMode(1);
+        frame.setAperture(200, 100);
+        frame.setExposureTime(16 + (i % 17), 1000);
+        frame.setIso(100 + 25 * (i % 32));
+        return frame;
+    }
+
+    private static byte[] writeThroughInterface(byte[] jpeg, int i) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        frame(i).addTo(exif);
+        return exif.writeExif(jpeg, 0, jpeg.length);
+    }
+
+    private static byte[] writeThroughTemplate(byte[] jpeg, int i) throws IOException {
+        ExifTemplate.Frame frame = frame(i);
+        return ExifTemplate.getInstance(frame.getFields()).write(jpeg, 0, jpeg.length, frame);
+    }
+
+    private void runBurst(int jpegSize) throws IOException {
+        byte[] jpeg = syntheticJpeg(jpegSize);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            assertTrue(Arrays.equals(writeThroughInterface(jpeg, i),
+                    writeThroughTemplate(jpeg, i)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            writeThroughInterface(jpeg, i);
+        }
+        long interfaceNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            writeThroughTemplate(jpeg, i);
+        }
+        long templateNs = System.nanoTime() - start;
+
+        Log.d(TAG, (jpegSize / 1024) + "KB x " + FRAMES + " frames, ExifInterface: "
+                + (interfaceNs / FRAMES / 1000) + "us/frame ("
+                + (FRAMES * 1000000000L / interfaceNs) + " fps), template: "
+                + (templateNs / FRAMES / 1000) + "us/frame ("
+                + (FRAMES * 1000000000L / templateNs) + " fps)");
+    }
+
+    public void testHeaderOnlyBurst() throws IOException {
+        // Isolates the EXIF work from the image copy.
+        runBurst(4 * 1024);
+    }
+
+    public void testLongshotBurst() throws IOException {
+        runBurst(2 * 1024 * 1024);
+    }
+}
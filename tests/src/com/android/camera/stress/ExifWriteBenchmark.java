@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Compares writing a JPEG with fresh EXIF to a file through the old path
+ * (ExifOutputStream into a ByteArrayOutputStream, toByteArray(), then a
+ * FileOutputStream) with the gathering write straight to a FileChannel, for
+ * 5, 10 and 20 MB images. Both paths must produce the same file.
+ */
+@LargeTest
+public class ExifWriteBenchmark extends TestCase {
+    private static final String TAG = "ExifWriteBenchmark";
+    private static final int ITERATIONS = 5;
+    private static final int MB = 1024 * 1024;
+
+    private File mLegacyFile;
+    private File mChannelFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLegacyFile = File.createTempFile("exif_legacy", ".jpg");
+        mChannelFile = File.createTempFile("exif_channel", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLegacyFile.delete();
+        mChannelFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP0, an old APP1, DQT, SOF0, scan data and EOI */
+    private static byte[] syntheticJpeg(int size) {
+        byte[] jpeg = new byte[size];
+        int pos = 0;
+        byte[] head = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00, 0x01, 0x01, 0x00,
+                    0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+            (byte) 0xFF, (byte) 0xE1, 0x00, 0x0A, 'E', 'x', 'i', 'f', 0x00, 0x00, 0x4D, 0x4D,
+            (byte) 0xFF, (byte) 0xDB, 0x00, 0x04, 0x00, 0x01,
+            (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x0B, (byte) 0xB8, 0x0F, (byte) 0xA0,
+                    0x01, 0x01, 0x11, 0x00,
+        };
+        System.arraycopy(head, 0, jpeg, 0, head.length);
+        pos = head.length;
+        for (int i = pos; i < size - 2; i++) {
+            jpeg[i] = (byte) (((i * 131) ^ (i >> 5)) & 0x7F);
+        }
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static ExifInterface buildExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addMakeAndModelTag();
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 0L, TimeZone.getTimeZone("UTC"));
+        return exif;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private void runSize(int size) throws IOException {
+        byte[] jpeg = syntheticJpeg(size);
+        ExifInterface exif = buildExif();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            exif.writeExif(jpeg, bos);
+            FileOutputStream out = new FileOutputStream(mLegacyFile);
+            try {
+                out.write(bos.toByteArray());
+            } finally {
+                out.close();
+            }
+        }
+        long legacyNs = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            FileOutputStream out = new FileOutputStream(mChannelFile);
+            try {
+                exif.writeExif(jpeg, 0, jpeg.length, out.getChannel());
+            } finally {
+                out.close();
+            }
+        }
+        long channelNs = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.d(TAG, size / MB + "MB legacy: " + legacyNs / 1000000 + "ms, channel: "
+                + channelNs / 1000000 + "ms");
+        assertTrue(Arrays.equals(readFile(mLegacyFile), readFile(mChannelFile)));
+        assertTrue(Arrays.equals(readFile(mChannelFile), exif.writeExif(jpeg, 0, jpeg.length)));
+    }
+
+    public void testWrite5Mb() throws IOException {
+        runSize(5 * MB);
+    }
+
+    public void testWrite10Mb() throws IOException {
+        runSize(10 * MB);
+    }
+
+    public void testWrite20Mb() throws IOException {
+        runSize(20 * MB);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Writes a ClearSight style MPO (clear sight primary, bayer and mono
+ * auxiliaries) through MpoOutputStream and through the streaming channel
+ * writer with the auxiliary images spilled to files. Both must produce the
+ * same bytes, including the cleared dual camera crop info of the primary.
+ */
+@LargeTest
+public class MpoWriteBenchmark extends TestCase {
+    private static final String TAG = "MpoWriteBenchmark";
+    private static final int MB = 1024 * 1024;
+    private static final int ITERATIONS = 5;
+
+    private File mBayerFile;
+    private File mMonoFile;
+    private File mOutFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBayerFile = File.createTempFile("mpo_bayer", ".jpg");
+        mMonoFile = File.createTempFile("mpo_mono", ".jpg");
+        mOutFile = File.createTempFile("mpo_out", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBayerFile.delete();
+        mMonoFile.delete();
+        mOutFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP1, APP7 with the dual camera crop info, DQT, SOF0, scan data and EOI */
+    private static byte[] syntheticJpeg(int size, int seed) {
+        byte[] jpeg = new byte[size];
+        ByteBuffer buf = ByteBuffer.wrap(jpeg);
+        buf.putShort((short) 0xFFD8);
+        buf.putShort((short) 0xFFE1).putShort((short) 18).put("Exif\0\0".getBytes());
+        buf.put(new byte[10]);
+        byte[] cropInfo = "Qualcomm Dual Camera Attributes".getBytes();
+        buf.putShort((short) 0xFFE7).putShort((short) (2 + cropInfo.length + 64)).put(cropInfo);
+        for (int i = 0; i < 64; i++) {
+            buf.put((byte) (i + seed));
+        }
+        buf.putShort((short) 0xFFDB).putShort((short) 4).putShort((short) 1);
+        buf.putShort((short) 0xFFC0).putShort((short) 11).put((byte) 8)
+                .putShort((short) 3000).putShort((short) 4000).put(new byte[] {1, 1, 0x11, 0});
+        for (int i = buf.position(); i < size - 2; i++) {
+            jpeg[i] = (byte) (((i * 131 + seed) ^ (i >> 5)) & 0x7F);
+        }
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] readOutFile() throws IOException {
+        byte[] data = new byte[(int) mOutFile.length()];
+        FileInputStream in = new FileInputStream(mOutFile);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static int countCropInfo(byte[] data) {
+        byte[] cropInfo = "Qualcomm Dual Camera Attributes".getBytes();
+        int count = 0;
+        for (int i = 0; i <= data.length - cropInfo.length; i++) {
+            int j = 0;
+            while (j < cropInfo.length && data[i + j] == cropInfo[j]) {
+                j++;
+            }
+            if (j == cropInfo.length) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static MpoData buildMpo(MpoImageData cs, MpoImageData bayer, MpoImageData mono) {
+        MpoData mpo = new MpoData();
+        mpo.addAuxiliaryMpoImage(bayer);
+        mpo.addAuxiliaryMpoImage(mono);
+        mpo.setPrimaryMpoImage(cs);
+        return mpo;
+    }
+
+    private static long writeMpoUs(MpoImageData cs, MpoImageData bayer, MpoImageData mono) {
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        long start = System.nanoTime();
+        MpoInterface.writeMpo(buildMpo(cs, bayer, mono), sink);
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    /* Whole arrays, which MpoOutputStream scans and writes in bulk */
+    public void testThroughput10Mb() {
+        byte[][] jpegs = {
+            syntheticJpeg(10 * MB, 1), syntheticJpeg(10 * MB, 2), syntheticJpeg(10 * MB, 3)
+        };
+        long bestUs = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            bestUs = Math.min(bestUs, writeMpoUs(
+                    new MpoImageData(jpegs[0], ByteOrder.BIG_ENDIAN),
+                    new MpoImageData(jpegs[1], ByteOrder.BIG_ENDIAN),
+                    new MpoImageData(jpegs[2], ByteOrder.BIG_ENDIAN)));
+        }
+        Log.d(TAG, "3x10MB mpo: " + bestUs + "us (" + (30L * 1000000 / bestUs) + " MB/s)");
+    }
+
+    public void testStreamingMatchesOutputStream() throws IOException {
+        byte[] cs = syntheticJpeg(12 * MB, 1);
+        byte[] bayer = syntheticJpeg(10 * MB, 2);
+        byte[] mono = syntheticJpeg(8 * MB, 3);
+        writeFile(mBayerFile, bayer);
+        writeFile(mMonoFile, mono);
+
+        long streamUs = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            MpoInterface.writeMpo(buildMpo(new MpoImageData(cs, ByteOrder.BIG_ENDIAN),
+                    new MpoImageData(bayer, ByteOrder.BIG_ENDIAN),
+                    new MpoImageData(mono, ByteOrder.BIG_ENDIAN)),
+                    new FileOutputStream(mOutFile));
+            streamUs = Math.min(streamUs, (System.nanoTime() - start) / 1000);
+        }
+        byte[] expected = readOutFile();
+        bayer = null;
+        mono = null;
+
+        long channelUs = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            int size = MpoInterface.writeMpo(buildMpo(
+                    new MpoImageData(ByteBuffer.wrap(cs), ByteOrder.BIG_ENDIAN),
+                    new MpoImageData(mBayerFile, ByteOrder.BIG_ENDIAN),
+                    new MpoImageData(mMonoFile, ByteOrder.BIG_ENDIAN)),
+                    mOutFile.getAbsolutePath());
+            channelUs = Math.min(channelUs, (System.nanoTime() - start) / 1000);
+            assertEquals(expected.length, size);
+        }
+
+        byte[] actual = readOutFile();
+        assertEquals(expected.length, actual.length);
+        assertTrue(Arrays.equals(expected, actual));
+        // crop info is cleared in the primary image only
+        assertEquals(2, countCropInfo(actual));
+        Log.d(TAG, "30MB mpo via stream: " + streamUs + "us, channel: " + channelUs + "us");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.Nv21JpegEncoder;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the PostProcessor no-filter encode path before and after the
+ * Nv21JpegEncoder change for a 12 MP frame: wall time per frame and the number
+ * of bytes copied on the Java side between the Image planes and the JPEG.
+ */
+@LargeTest
+public class Nv21JpegEncodeBenchmark extends TestCase {
+    private static final String TAG = "Nv21JpegEncodeBenchmark";
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int ROW_STRIDE = 4032;
+    private static final int QUALITY = 85;
+    private static final int ITERATIONS = 10;
+
+    private ByteBuffer mY;
+    private ByteBuffer mVU;
+
+    /* Counts the copies ByteArrayOutputStream makes while it grows */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        long copied;
+
+        CountingOutputStream(int size) {
+            super(size);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) {
+                copied += count;
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (count + 1 > buf.length) {
+                copied += count;
+            }
+            super.write(b);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mY = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+        mVU = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT / 2 - 1);
+        for (int i = 0; i < mY.capacity(); i++) {
+            mY.put(i, (byte) ((i * 31) ^ (i >> 7)));
+        }
+        for (int i = 0; i < mVU.capacity(); i++) {
+            mVU.put(i, (byte) (128 + (i % 17)));
+        }
+    }
+
+    public void testEncode12Mp() {
+        Rect roi = new Rect(0, 0, WIDTH, HEIGHT);
+
+        long legacyCopied = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] nv21 = new byte[ROW_STRIDE * HEIGHT * 3 / 2];
+            mY.rewind();
+            mVU.rewind();
+            legacyCopied += mY.remaining() + mVU.remaining();
+            mY.get(nv21, 0, mY.remaining());
+            mVU.get(nv21, ROW_STRIDE * HEIGHT, mVU.remaining());
+            CountingOutputStream bos = new CountingOutputStream(1024);
+            new YuvImage(nv21, ImageFormat.NV21, WIDTH, HEIGHT,
+                    new int[] {ROW_STRIDE, ROW_STRIDE}).compressToJpeg(roi, QUALITY, bos);
+            legacyCopied += bos.copied;
+        }
+        long legacyNs = (System.nanoTime() - start) / ITERATIONS;
+
+        Nv21JpegEncoder encoder = new Nv21JpegEncoder();
+        byte[] nv21 = new byte[ROW_STRIDE * HEIGHT * 3 / 2];
+        start = System.nanoTime();
+        int size = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoder.copyPlanes(mY, ROW_STRIDE, mVU, null, ROW_STRIDE, 2, WIDTH, HEIGHT,
+                    nv21, ROW_STRIDE);
+            size = encoder.compress(nv21, WIDTH, HEIGHT, ROW_STRIDE, roi, QUALITY).size();
+        }
+        long encoderNs = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.d(TAG, "legacy: " + legacyNs / 1000000 + "ms/frame, "
+                + legacyCopied / ITERATIONS + " bytes copied/frame");
+        Log.d(TAG, "encoder: " + encoderNs / 1000000 + "ms/frame, "
+                + encoder.getBytesCopied() / ITERATIONS + " bytes copied/frame, jpeg " + size);
+        // One frame's worth of plane data and no output regrowth after warm up.
+        assertTrue(encoder.getBytesCopied() / ITERATIONS <= (long) ROW_STRIDE * HEIGHT * 3 / 2
+                + size);
+    }
+}
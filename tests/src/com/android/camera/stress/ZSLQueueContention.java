@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.TimestampRingBuffer;
+import com.android.camera.imageprocessor.ZSLFrameExchange;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Microbenchmark for the ZSL frame exchange. An image producer and a metadata
+ * producer run at a fixed frame rate while a shutter thread keeps claiming
+ * the newest matched frame. The same workload runs against a ring buffer
+ * guarded by a single lock, which is how ZSLQueue used to serialize the two
+ * producers and the shutter.
+ */
+@LargeTest
+public class ZSLQueueContention extends TestCase {
+    private static final String TAG = "ZSLQueueContention";
+    private static final int BUFFER_SIZE = 8;
+    private static final int DURATION_MS = 2000;
+
+    private interface Queue {
+        void addImage(long ts, Object image);
+        void addMeta(long ts, Object meta);
+        boolean take();
+    }
+
+    private static final TimestampRingBuffer.Recycler<Object, Object> RECYCLER =
+            new TimestampRingBuffer.Recycler<Object, Object>() {
+        @Override
+        public void recycleImage(Object image) {
+        }
+
+        @Override
+        public void recycleMeta(Object meta) {
+        }
+    };
+
+    private static class LockedQueue implements Queue {
+        private final TimestampRingBuffer<Object, Object> mRing =
+                new TimestampRingBuffer<Object, Object>(BUFFER_SIZE, RECYCLER);
+
+        public synchronized void addImage(long ts, Object image) {
+            mRing.addImage(ts, image);
+        }
+
+        public synchronized void addMeta(long ts, Object meta) {
+            mRing.addMeta(ts, meta);
+        }
+
+        public synchronized boolean take() {
+            return mRing.takeNewest(null) != null;
+        }
+    }
+
+    private static class ExchangeQueue implements Queue {
+        private final ZSLFrameExchange<Object, Object> mExchange =
+                new ZSLFrameExchange<Object, Object>(BUFFER_SIZE, RECYCLER);
+
+        public void addImage(long ts, Object image) {
+            mExchange.addImage(ts, image);
+        }
+
+        public void addMeta(long ts, Object meta) {
+            mExchange.addMeta(ts, meta);
+        }
+
+        public boolean take() {
+            return mExchange.takeNewest(null) != null;
+        }
+    }
+
+    private static class Stats {
+        final long[] samples;
+        int count;
+
+        Stats(int capacity) {
+            samples = new long[capacity];
+        }
+
+        void add(long ns) {
+            if (count < samples.length) {
+                samples[count++] = ns;
+            }
+        }
+
+        String summary() {
+            if (count == 0) {
+                return "n=0";
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return "n=" + count + " p50=" + sorted[count / 2] + "ns p99="
+                    + sorted[Math.min(count - 1, count * 99 / 100)] + "ns max="
+                    + sorted[count - 1] + "ns";
+        }
+    }
+
+    private Stats[] run(final Queue queue, int fps) throws InterruptedException {
+        final long periodNs = 1000000000L / fps;
+        final int frames = fps * DURATION_MS / 1000;
+        final Stats imageStats = new Stats(frames);
+        final Stats metaStats = new Stats(frames);
+        final Stats takeStats = new Stats(DURATION_MS * 2);
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long base = System.nanoTime();
+
+        Thread images = new Thread() {
+            public void run() {
+                await(start);
+                for (int i = 0; i < frames; i++) {
+                    pace(base + i * periodNs);
+                    long t0 = System.nanoTime();
+                    queue.addImage(base + i * periodNs, this);
+                    imageStats.add(System.nanoTime() - t0);
+                }
+            }
+        };
+        Thread metas = new Thread() {
+            public void run() {
+                await(start);
+                for (int i = 0; i < frames; i++) {
+                    // Results trail their images by about half a frame.
+                    pace(base + i * periodNs + periodNs / 2);
+                    long t0 = System.nanoTime();
+                    queue.addMeta(base + i * periodNs, this);
+                    metaStats.add(System.nanoTime() - t0);
+                }
+            }
+        };
+        Thread shutter = new Thread() {
+            public void run() {
+                await(start);
+                long end = base + DURATION_MS * 1000000L;
+                while (System.nanoTime() < end) {
+                    long t0 = System.nanoTime();
+                    if (queue.take()) {
+                        taken.incrementAndGet();
+                    }
+                    takeStats.add(System.nanoTime() - t0);
+                    pace(System.nanoTime() + 1000000L);
+                }
+            }
+        };
+        images.start();
+        metas.start();
+        shutter.start();
+        start.countDown();
+        images.join();
+        metas.join();
+        shutter.join();
+        assertTrue(taken.get() > 0);
+        return new Stats[] {imageStats, metaStats, takeStats};
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static void pace(long deadline) {
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            long remaining = deadline - now;
+            if (remaining > 200000L) {
+                try {
+                    Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+                } catch (InterruptedException e) {
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void report(String name, int fps, Stats[] stats) {
+        Log.d(TAG, name + "@" + fps + "fps image: " + stats[0].summary());
+        Log.d(TAG, name + "@" + fps + "fps meta: " + stats[1].summary());
+        Log.d(TAG, name + "@" + fps + "fps take: " + stats[2].summary());
+    }
+
+    public void testContention60Fps() throws InterruptedException {
+        report("locked", 60, run(new LockedQueue(), 60));
+        report("lockfree", 60, run(new ExchangeQueue(), 60));
+    }
+
+    public void testContention120Fps() throws InterruptedException {
+        report("locked", 120, run(new LockedQueue(), 120));
+        report("lockfree", 120, run(new ExchangeQueue(), 120));
+    }
+}
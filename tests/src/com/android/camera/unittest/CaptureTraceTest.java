@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.util.CaptureTrace;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+@SmallTest
+public class CaptureTraceTest extends TestCase {
+
+    private static int count(String haystack, String needle) {
+        int n = 0;
+        for (int i = haystack.indexOf(needle); i >= 0; i = haystack.indexOf(needle, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    public void testDumpsChromeTraceEvents() throws IOException {
+        CaptureTrace trace = new CaptureTrace(8, true);
+        trace.record(CaptureTrace.SPAN_NV21_TO_JPEG, 7, 1000, 3500);
+        StringWriter out = new StringWriter();
+        trace.dumpChromeTrace(out);
+        String json = out.toString();
+        assertTrue(json.startsWith("{\"traceEvents\":[{"));
+        assertTrue(json.endsWith("}]}"));
+        assertTrue(json.contains("\"name\":\"nv21ToJpeg\""));
+        assertTrue(json.contains("\"ph\":\"X\""));
+        assertTrue(json.contains("\"ts\":1.000"));
+        assertTrue(json.contains("\"dur\":2.500"));
+        assertTrue(json.contains("\"capture\":7"));
+    }
+
+    public void testRingKeepsNewestSpans() throws IOException {
+        CaptureTrace trace = new CaptureTrace(4, true);
+        for (int i = 1; i <= 6; i++) {
+            trace.record(CaptureTrace.SPAN_ADD_IMAGE, i, i * 1000, i * 1000 + 1);
+        }
+        assertEquals(6, trace.getRecordedCount());
+        StringWriter out = new StringWriter();
+        trace.dumpChromeTrace(out);
+        String json = out.toString();
+        assertEquals(4, count(json, "\"name\":"));
+        assertFalse(json.contains("\"capture\":2}"));
+        assertTrue(json.contains("\"capture\":3}"));
+        assertTrue(json.contains("\"capture\":6}"));
+    }
+
+    public void testDisabledTraceRecordsNothing() throws IOException {
+        CaptureTrace trace = new CaptureTrace(4, false);
+        trace.record(CaptureTrace.SPAN_ADD_IMAGE, 1, 0, 1);
+        assertEquals(0, trace.getRecordedCount());
+        StringWriter out = new StringWriter();
+        trace.dumpChromeTrace(out);
+        assertEquals("{\"traceEvents\":[]}", out.toString());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.ClearSightNativeEngine;
+import org.codeaurora.snapcam.filter.ClearSightNativeEngine.CamSystemCalibrationData;
+
+@SmallTest
+public class ClearSightNativeEngineTest extends TestCase {
+    private static final int FRAME_COUNT = 8;
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private ClearSightNativeEngine mEngine;
+    private CamSystemCalibrationData mCalibData;
+
+    @Override
+    protected void setUp() {
+        mEngine = ClearSightNativeEngine.getInstance();
+        mEngine.close();
+        // Larger than the OTP blob, which is parsed field by field
+        mCalibData = CamSystemCalibrationData.createFromBytes(new byte[1024]);
+    }
+
+    @Override
+    protected void tearDown() {
+        mEngine.close();
+    }
+
+    public void testInitResetCycleDoesNotAllocate() {
+        int before = mEngine.getDirectAllocationCount();
+        mEngine.init(FRAME_COUNT, WIDTH, HEIGHT, mCalibData);
+        assertEquals(before + 1, mEngine.getDirectAllocationCount());
+
+        for (int shot = 0; shot < 10; shot++) {
+            mEngine.reset();
+            assertFalse(mEngine.hasReferenceImage(true));
+            assertFalse(mEngine.hasReferenceImage(false));
+            // Re-initializing with the same geometry keeps the arena
+            mEngine.init(FRAME_COUNT, WIDTH, HEIGHT, mCalibData);
+        }
+        assertEquals(before + 1, mEngine.getDirectAllocationCount());
+    }
+
+    public void testCloseReleasesArena() {
+        int before = mEngine.getDirectAllocationCount();
+        mEngine.init(FRAME_COUNT, WIDTH, HEIGHT, mCalibData);
+        mEngine.close();
+        mEngine.init(FRAME_COUNT, WIDTH, HEIGHT, mCalibData);
+        assertEquals(before + 2, mEngine.getDirectAllocationCount());
+
+        mEngine.init(FRAME_COUNT, WIDTH * 2, HEIGHT, mCalibData);
+        assertEquals(before + 3, mEngine.getDirectAllocationCount());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.DepthMapEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+@SmallTest
+public class DepthMapEncoderTest extends TestCase {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 21;
+    // All quantizers are 1 at quality 100, leaving only DCT rounding.
+    private static final int MAX_JPEG_ERROR_Q100 = 3;
+
+    private static byte[] depthMap() {
+        byte[] depth = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                depth[y * WIDTH + x] = (byte) (x * 7 + y * 3 + (x > y ? 90 : 0));
+            }
+        }
+        return depth;
+    }
+
+    public void testJpegHasSingleComponentFrame() {
+        byte[] jpeg = DepthMapEncoder.encodeJpeg(depthMap(), WIDTH, HEIGHT, 100);
+        ByteBuffer buf = ByteBuffer.wrap(jpeg);
+        assertEquals(0xFFD8, buf.getShort() & 0xFFFF);
+        while ((buf.getShort() & 0xFFFF) != 0xFFC0) {
+            int length = buf.getShort() & 0xFFFF;
+            buf.position(buf.position() + length - 2);
+        }
+        assertEquals(11, buf.getShort());
+        assertEquals(8, buf.get());
+        assertEquals(HEIGHT, buf.getShort());
+        assertEquals(WIDTH, buf.getShort());
+        assertEquals(1, buf.get());
+        assertEquals(0xFFD9, ((jpeg[jpeg.length - 2] & 0xFF) << 8) | (jpeg[jpeg.length - 1] & 0xFF));
+    }
+
+    public void testJpegDecodesCloseToSource() {
+        byte[] depth = depthMap();
+        byte[] jpeg = DepthMapEncoder.encodeJpeg(depth, WIDTH, HEIGHT, 100);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        assertNotNull(bitmap);
+        assertEquals(WIDTH, bitmap.getWidth());
+        assertEquals(HEIGHT, bitmap.getHeight());
+        int maxError = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = bitmap.getPixel(x, y);
+                int expected = depth[y * WIDTH + x] & 0xFF;
+                // A single component frame decodes to equal channels.
+                assertEquals(Color.red(pixel), Color.green(pixel));
+                assertEquals(Color.red(pixel), Color.blue(pixel));
+                maxError = Math.max(maxError, Math.abs(Color.red(pixel) - expected));
+            }
+        }
+        bitmap.recycle();
+        assertTrue("max error " + maxError, maxError <= MAX_JPEG_ERROR_Q100);
+    }
+
+    public void testPngIsLossless() throws Exception {
+        byte[] depth = depthMap();
+        ByteBuffer buf = ByteBuffer.wrap(DepthMapEncoder.encodePng(depth, WIDTH, HEIGHT));
+        buf.position(8);
+        Inflater inflater = new Inflater();
+        while (buf.hasRemaining()) {
+            int length = buf.getInt();
+            String type = new String(buf.array(), buf.position(), 4, "US-ASCII");
+            buf.position(buf.position() + 4);
+            if ("IHDR".equals(type)) {
+                assertEquals(WIDTH, buf.getInt(buf.position()));
+                assertEquals(HEIGHT, buf.getInt(buf.position() + 4));
+                assertEquals(8, buf.get(buf.position() + 8));
+            } else if ("IDAT".equals(type)) {
+                inflater.setInput(buf.array(), buf.position(), length);
+            }
+            buf.position(buf.position() + length + 4);
+        }
+
+        byte[] rows = new byte[(WIDTH + 1) * HEIGHT];
+        assertEquals(rows.length, inflater.inflate(rows));
+        byte[] decoded = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            int row = y * (WIDTH + 1);
+            assertEquals(1, rows[row]);
+            for (int x = 0; x < WIDTH; x++) {
+                byte left = x == 0 ? 0 : decoded[y * WIDTH + x - 1];
+                decoded[y * WIDTH + x] = (byte) (rows[row + 1 + x] + left);
+            }
+        }
+        assertTrue(Arrays.equals(depth, decoded));
+    }
+}
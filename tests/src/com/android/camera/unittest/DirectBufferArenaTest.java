@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.DirectBufferArena;
+
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class DirectBufferArenaTest extends TestCase {
+    private static final int BLOCK_COUNT = 4;
+    private static final int BLOCK_SIZE = 96;
+
+    public void testBlocksAreDisjoint() {
+        DirectBufferArena arena = new DirectBufferArena();
+        arena.reserve(BLOCK_COUNT, BLOCK_SIZE);
+        assertEquals(BLOCK_COUNT, arena.getBlockCount());
+
+        ByteBuffer[] blocks = new ByteBuffer[BLOCK_COUNT];
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            blocks[i] = arena.getBlock(i);
+            assertTrue(blocks[i].isDirect());
+            assertEquals(BLOCK_SIZE, blocks[i].capacity());
+            while (blocks[i].hasRemaining()) {
+                blocks[i].put((byte) i);
+            }
+        }
+
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            assertEquals((byte) i, blocks[i].get(0));
+            assertEquals((byte) i, blocks[i].get(BLOCK_SIZE - 1));
+        }
+        assertEquals(1, arena.getAllocationCount());
+    }
+
+    public void testSameGeometryKeepsBlocks() {
+        DirectBufferArena arena = new DirectBufferArena();
+        arena.reserve(BLOCK_COUNT, BLOCK_SIZE);
+        ByteBuffer first = arena.getBlock(0);
+        first.put((byte) 1);
+
+        for (int shot = 0; shot < 10; shot++) {
+            arena.reserve(BLOCK_COUNT, BLOCK_SIZE);
+            ByteBuffer block = arena.getBlock(0);
+            assertSame(first, block);
+            assertEquals(0, block.position());
+        }
+        assertEquals(1, arena.getAllocationCount());
+    }
+
+    public void testGeometryChangeAndRelease() {
+        DirectBufferArena arena = new DirectBufferArena();
+        arena.reserve(BLOCK_COUNT, BLOCK_SIZE);
+        ByteBuffer stale = arena.getBlock(0);
+
+        arena.reserve(BLOCK_COUNT, BLOCK_SIZE * 2);
+        assertEquals(2, arena.getAllocationCount());
+        assertEquals(BLOCK_SIZE * 2, arena.getBlockSize());
+        assertNotSame(stale, arena.getBlock(0));
+
+        arena.release();
+        assertEquals(0, arena.getBlockCount());
+        arena.reserve(BLOCK_COUNT, BLOCK_SIZE * 2);
+        assertEquals(3, arena.getAllocationCount());
+    }
+}
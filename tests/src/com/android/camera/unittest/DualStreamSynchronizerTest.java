@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.DualStreamSynchronizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class DualStreamSynchronizerTest extends TestCase {
+    private static final long MS = 1000000L;
+    private static final long FRAME_NS = 33 * MS;
+    private static final long EXPOSURE_NS = 10 * MS;
+    private static final long THRESHOLD_NS = 10 * MS;
+
+    private final List<String> mPairs = new ArrayList<String>();
+    private final List<String> mDrops = new ArrayList<String>();
+    private DualStreamSynchronizer<String> mSync;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSync = new DualStreamSynchronizer<String>(THRESHOLD_NS, 4,
+                new DualStreamSynchronizer.Listener<String>() {
+                    @Override
+                    public void onPair(String first, String second) {
+                        mPairs.add(first + "+" + second);
+                    }
+
+                    @Override
+                    public void onDrop(int stream, String frame, int reason) {
+                        mDrops.add(frame + ":" + reason);
+                    }
+                });
+    }
+
+    private void add(int stream, String name, long sofNs) {
+        mSync.add(stream, name, sofNs, EXPOSURE_NS);
+    }
+
+    public void testPairsAlignedStreamsAsTheyArrive() {
+        for (int i = 0; i < 4; i++) {
+            add(0, "b" + i, i * FRAME_NS);
+            add(1, "m" + i, i * FRAME_NS + 2 * MS);
+        }
+        // Each pair goes out with its second frame, no flush needed.
+        assertEquals("[b0+m0, b1+m1, b2+m2, b3+m3]", mPairs.toString());
+        assertEquals(0, mSync.getPendingCount(0));
+        assertEquals(0, mSync.getPendingCount(1));
+        assertTrue(mDrops.isEmpty());
+        assertEquals(1f, mSync.getPairYield());
+    }
+
+    public void testJitteredFrameOnlyCostsItself() {
+        // m1 is 20ms late, beyond the threshold of b1 and short of b2.
+        long[] monoSof = {0, FRAME_NS + 20 * MS, 2 * FRAME_NS, 3 * FRAME_NS, 4 * FRAME_NS};
+        for (int i = 0; i < 5; i++) {
+            add(0, "b" + i, i * FRAME_NS);
+            add(1, "m" + i, monoSof[i]);
+        }
+        mSync.flush();
+        assertEquals("[b0+m0, b2+m2, b3+m3, b4+m4]", mPairs.toString());
+        assertEquals(2, mSync.getDropCount(DualStreamSynchronizer.DROP_NO_MATCH));
+        assertTrue(mDrops.contains("b1:" + DualStreamSynchronizer.DROP_NO_MATCH));
+        assertTrue(mDrops.contains("m1:" + DualStreamSynchronizer.DROP_NO_MATCH));
+        assertEquals(0.8f, mSync.getPairYield());
+    }
+
+    public void testOffsetStreamPairsByTimeNotArrival() {
+        // The mono stream starts one frame late and arrives in a burst.
+        for (int i = 0; i < 4; i++) {
+            add(0, "b" + i, i * FRAME_NS);
+        }
+        for (int i = 1; i < 4; i++) {
+            add(1, "m" + i, i * FRAME_NS + MS);
+        }
+        mSync.flush();
+        assertEquals("[b1+m1, b2+m2, b3+m3]", mPairs.toString());
+        assertEquals("[b0:" + DualStreamSynchronizer.DROP_NO_MATCH + "]", mDrops.toString());
+    }
+
+    public void testPairsLongExposuresWithoutWaiting() {
+        // The old rule held a pair until the other stream started a frame
+        // more than the threshold after its EOF, a frame interval or two.
+        long exposure = 2 * FRAME_NS;
+        mSync.add(0, "b0", 0, exposure);
+        mSync.add(1, "m0", MS, exposure);
+        assertEquals("[b0+m0]", mPairs.toString());
+        mSync.add(1, "m1", FRAME_NS + MS, exposure);
+        mSync.add(0, "b1", FRAME_NS, exposure);
+        assertEquals("[b0+m0, b1+m1]", mPairs.toString());
+        assertTrue(mDrops.isEmpty());
+    }
+
+    public void testPrefersClosestExposure() {
+        // m0 is within the threshold of b0 too, but m1 is closer.
+        add(1, "m0", -8 * MS);
+        add(1, "m1", 2 * MS);
+        add(0, "b0", 0);
+        assertTrue(mPairs.isEmpty());
+        mSync.flush();
+        assertEquals("[b0+m1]", mPairs.toString());
+        assertEquals("[m0:" + DualStreamSynchronizer.DROP_NO_MATCH + "]", mDrops.toString());
+    }
+
+    public void testFullWindowAndClear() {
+        for (int i = 0; i < 6; i++) {
+            add(0, "b" + i, i * FRAME_NS);
+        }
+        assertEquals(4, mSync.getPendingCount(0));
+        assertEquals(2, mSync.getDropCount(DualStreamSynchronizer.DROP_WINDOW_FULL));
+        mSync.clear();
+        assertEquals(0, mSync.getPendingCount(0));
+        assertEquals(4, mSync.getDropCount(DualStreamSynchronizer.DROP_CLEARED));
+        assertTrue(mPairs.isEmpty());
+    }
+}
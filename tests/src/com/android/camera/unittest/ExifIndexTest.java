@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifIndex;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+@SmallTest
+public class ExifIndexTest extends TestCase {
+
+    private static final byte[] JPEG = {
+        (byte) 0xFF, (byte) 0xD8,
+        (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x10, 0x01, 0x01, 0x11, 0x00,
+        0x12, 0x34, 0x56,
+        (byte) 0xFF, (byte) 0xD9,
+    };
+
+    private static byte[] jpegWithExif() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(270);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1500000000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.addGpsTags(-33.5, 151.25);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 400));
+        return exif.writeExif(JPEG, 0, JPEG.length);
+    }
+
+    public void testMatchesExifInterface() throws IOException {
+        byte[] jpeg = jpegWithExif();
+        ExifInterface full = new ExifInterface();
+        full.readExif(jpeg);
+        ExifIndex index = ExifIndex.read(jpeg);
+
+        assertEquals(270, index.getRotation());
+        // ExifInterface keeps the terminating NUL, the index stops at it.
+        assertEquals(full.getTagStringValue(ExifInterface.TAG_DATE_TIME).trim(),
+                index.getString(ExifInterface.TAG_DATE_TIME));
+        assertEquals(400, index.getInt(ExifInterface.TAG_ISO_SPEED_RATINGS, -1));
+        assertEquals(ExifTag.TYPE_ASCII, index.getDataType(ExifInterface.TAG_DATE_TIME));
+
+        double[] latLong = new double[2];
+        assertTrue(index.getLatLong(latLong));
+        assertEquals(-33.5, latLong[0], 1e-6);
+        assertEquals(151.25, latLong[1], 1e-6);
+        assertEquals(full.getTagRationalValue(ExifInterface.TAG_GPS_LATITUDE).toDouble(),
+                index.getRational(ExifInterface.TAG_GPS_LATITUDE, 0).toDouble(), 1e-9);
+    }
+
+    public void testMissingTagsAndBadInput() {
+        ExifIndex noExif = ExifIndex.read(JPEG);
+        assertEquals(0, noExif.getTagCount());
+        assertEquals(0, noExif.getRotation());
+        assertNull(noExif.getString(ExifInterface.TAG_DATE_TIME));
+        assertFalse(noExif.getLatLong(new double[2]));
+
+        assertEquals(0, ExifIndex.read(new byte[] {1, 2, 3, 4, 5}).getTagCount());
+        assertEquals(0, ExifIndex.read((byte[]) null).getTagCount());
+    }
+
+    public void testTruncatedHeaderIsIgnored() throws IOException {
+        byte[] jpeg = jpegWithExif();
+        byte[] truncated = new byte[40];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        assertEquals(0, ExifIndex.read(truncated).getRotation());
+    }
+
+    public void testReadsFromFile() throws IOException {
+        File file = File.createTempFile("exif_index", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(jpegWithExif());
+            } finally {
+                out.close();
+            }
+            ExifIndex index = ExifIndex.read(file.getPath());
+            assertEquals(270, index.getRotation());
+            assertEquals(400, index.getInt(ExifInterface.TAG_ISO_SPEED_RATINGS, -1));
+        } finally {
+            file.delete();
+        }
+    }
+}
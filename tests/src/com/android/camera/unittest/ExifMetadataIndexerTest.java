@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.data.ExifMetadataIndexer;
+import com.android.camera.data.LocalData;
+import com.android.camera.data.LocalDataList;
+import com.android.camera.data.LocalMediaData;
+import com.android.camera.data.MediaDetails;
+import com.android.camera.exif.ExifInterface;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class ExifMetadataIndexerTest extends TestCase {
+
+    private static final byte[] JPEG = {
+        (byte) 0xFF, (byte) 0xD8,
+        (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x10, 0x01, 0x01, 0x11, 0x00,
+        0x12, 0x34, 0x56,
+        (byte) 0xFF, (byte) 0xD9,
+    };
+
+    private final List<File> mFiles = new ArrayList<File>();
+    private ExifMetadataIndexer mIndexer;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mIndexer != null) {
+            mIndexer.shutdown();
+        }
+        for (File file : mFiles) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    private File writeJpeg(File file, int iso) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, iso));
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(exif.writeExif(JPEG, 0, JPEG.length));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private LocalData photo(long id, long modified, int iso) throws IOException {
+        File file = File.createTempFile("exif_indexer", ".jpg");
+        mFiles.add(file);
+        writeJpeg(file, iso);
+        return photo(id, modified, file);
+    }
+
+    private static LocalData photo(long id, long modified, File file) {
+        return new LocalMediaData.PhotoData(id, file.getName(), LocalData.MIME_TYPE_JPEG,
+                modified, modified, file.getPath(), 0, 16, 16, file.length(), 0, 0);
+    }
+
+    private static String iso(ExifMetadataIndexer indexer, LocalData data) {
+        MediaDetails details = new MediaDetails();
+        if (!indexer.fillDetails(data, details)) {
+            return null;
+        }
+        return (String) details.getDetail(MediaDetails.INDEX_ISO);
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    // Runs a request whose callback holds the only worker until released.
+    private void blockWorker(LocalData data, final CountDownLatch release)
+            throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        mIndexer.request(data, new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        await(blocked);
+    }
+
+    public void testMissThenHit() throws Exception {
+        mIndexer = new ExifMetadataIndexer(1);
+        LocalData data = photo(1, 100, 400);
+        assertNull(iso(mIndexer, data));
+
+        CountDownLatch done = new CountDownLatch(1);
+        mIndexer.request(data, countDown(done));
+        await(done);
+        assertEquals("400", iso(mIndexer, data));
+        assertEquals(1, mIndexer.size());
+
+        // Hits are served from the index, the file is not read again.
+        new File(data.getPath()).delete();
+        assertEquals("400", iso(mIndexer, data));
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger inline = new AtomicInteger();
+        mIndexer.request(data, new Runnable() {
+            @Override
+            public void run() {
+                if (Thread.currentThread() == caller) {
+                    inline.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(1, inline.get());
+    }
+
+    public void testModifiedPhotoIsReadAgain() throws Exception {
+        mIndexer = new ExifMetadataIndexer(1);
+        LocalData data = photo(1, 100, 400);
+        CountDownLatch done = new CountDownLatch(1);
+        mIndexer.request(data, countDown(done));
+        await(done);
+
+        File file = writeJpeg(new File(data.getPath()), 800);
+        LocalData modified = photo(1, 101, file);
+        assertNull(iso(mIndexer, modified));
+        done = new CountDownLatch(1);
+        mIndexer.request(modified, countDown(done));
+        await(done);
+        assertEquals("800", iso(mIndexer, modified));
+        assertNull(iso(mIndexer, data));
+        assertEquals(1, mIndexer.size());
+
+        mIndexer.invalidate(1);
+        assertNull(iso(mIndexer, modified));
+        assertEquals(0, mIndexer.size());
+    }
+
+    public void testRequestGoesAheadOfBatch() throws Exception {
+        mIndexer = new ExifMetadataIndexer(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockWorker(photo(1, 100, 100), release);
+
+        LocalDataList list = new LocalDataList();
+        for (int i = 0; i < 8; i++) {
+            list.add(photo(10 + i, 100, 200 + i));
+        }
+        mIndexer.index(list);
+        LocalData last = list.get(list.size() - 1);
+        final AtomicInteger indexedBefore = new AtomicInteger(-1);
+        final CountDownLatch done = new CountDownLatch(1);
+        mIndexer.request(last, new Runnable() {
+            @Override
+            public void run() {
+                indexedBefore.set(mIndexer.size());
+                done.countDown();
+            }
+        });
+        release.countDown();
+        await(done);
+
+        // Only the blocking photo and the requested one, none of the batch.
+        assertEquals(2, indexedBefore.get());
+        assertEquals("207", iso(mIndexer, last));
+    }
+
+    public void testShutdown() throws Exception {
+        mIndexer = new ExifMetadataIndexer(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockWorker(photo(1, 100, 100), release);
+
+        LocalData pending = photo(2, 100, 200);
+        CountDownLatch done = new CountDownLatch(1);
+        mIndexer.request(pending, countDown(done));
+        LocalDataList list = new LocalDataList();
+        list.add(photo(3, 100, 300));
+        mIndexer.index(list);
+        mIndexer.shutdown();
+        assertTrue(mIndexer.isShutdown());
+        release.countDown();
+
+        // Requests made before still call back, without reading the file.
+        await(done);
+        assertNull(iso(mIndexer, pending));
+
+        // Later requests call back right away, later batches are ignored.
+        CountDownLatch after = new CountDownLatch(1);
+        mIndexer.request(photo(4, 100, 400), countDown(after));
+        assertEquals(0, after.getCount());
+        mIndexer.index(list);
+        assertEquals(1, mIndexer.size());
+        assertNull(iso(mIndexer, list.get(0)));
+
+        ExifMetadataIndexer shared = ExifMetadataIndexer.getInstance();
+        shared.shutdown();
+        assertNotSame(shared, ExifMetadataIndexer.getInstance());
+        assertFalse(ExifMetadataIndexer.getInstance().isShutdown());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+@SmallTest
+public class ExifTemplateTest extends TestCase {
+
+    /* SOI, APP0, an old APP1 to be replaced, SOF0, some data and EOI */
+    private static final byte[] JPEG = {
+        (byte) 0xFF, (byte) 0xD8,
+        (byte) 0xFF, (byte) 0xE0, 0x00, 0x06, 'J', 'F', 'I', 'F',
+        (byte) 0xFF, (byte) 0xE1, 0x00, 0x08, 'E', 'x', 'i', 'f', 0x00, 0x00,
+        (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x10, 0x01, 0x01, 0x11, 0x00,
+        0x12, 0x34, 0x56,
+        (byte) 0xFF, (byte) 0xD9,
+    };
+
+    private static ExifTemplate.Frame frame(int fields, int seed) {
+        ExifTemplate.Frame frame = new ExifTemplate.Frame(90 * (seed % 4),
+                1500000000000L + seed * 1234L, TimeZone.getTimeZone("GMT+05:30"));
+        if ((fields & ExifTemplate.FIELD_FLASH) != 0) {
+            frame.setFlashFired(seed % 2 == 0);
+        }
+        if ((fields & ExifTemplate.FIELD_FOCAL_LENGTH) != 0) {
+            frame.setFocalLength(380 + seed, 100);
+        }
+        if ((fields & ExifTemplate.FIELD_WHITE_BALANCE) != 0) {
+            frame.setWhiteBalanceMode(seed % 2 == 0 ? CaptureResult.CONTROL_AWB_MODE_AUTO : 5);
+        }
+        if ((fields & ExifTemplate.FIELD_APERTURE) != 0) {
+            frame.setAperture(200 + seed, 100);
+        }
+        if ((fields & ExifTemplate.FIELD_EXPOSURE_TIME) != 0) {
+            frame.setExposureTime(33 + seed, 1000);
+        }
+        if ((fields & ExifTemplate.FIELD_ISO) != 0) {
+            frame.setIso(100 * (seed + 1));
+        }
+        return frame;
+    }
+
+    private static byte[] writeThroughInterface(ExifTemplate.Frame frame, byte[] jpeg)
+            throws IOException {
+        ExifInterface exif = new ExifInterface();
+        frame.addTo(exif);
+        return exif.writeExif(jpeg, 0, jpeg.length);
+    }
+
+    public void testMatchesExifInterfaceForEveryFieldSet() throws IOException {
+        for (int fields = 0; fields < 64; fields++) {
+            ExifTemplate template = ExifTemplate.getInstance(fields);
+            for (int seed = 0; seed < 3; seed++) {
+                ExifTemplate.Frame frame = frame(fields, seed);
+                byte[] expected = writeThroughInterface(frame, JPEG);
+                byte[] actual = template.write(JPEG, 0, JPEG.length, frame);
+                assertTrue("fields " + fields + " seed " + seed,
+                        Arrays.equals(expected, actual));
+            }
+        }
+    }
+
+    public void testWritesPartOfLargerBuffer() throws IOException {
+        byte[] buffer = Arrays.copyOf(JPEG, JPEG.length + 100);
+        ExifTemplate.Frame frame = frame(ExifTemplate.FIELD_ISO, 1);
+        byte[] actual = ExifTemplate.getInstance(ExifTemplate.FIELD_ISO)
+                .write(buffer, 0, JPEG.length, frame);
+        assertTrue(Arrays.equals(writeThroughInterface(frame, JPEG), actual));
+    }
+
+    public void testRejectsFramesThatDoNotFit() throws IOException {
+        ExifTemplate template = ExifTemplate.getInstance(ExifTemplate.FIELD_ISO);
+        ExifTemplate.Frame frame = frame(ExifTemplate.FIELD_ISO, 0);
+        frame.setIso(70000);
+        assertNull(template.write(JPEG, 0, JPEG.length, frame));
+
+        ExifTemplate.Frame other = frame(ExifTemplate.FIELD_FLASH, 0);
+        assertNull(template.write(JPEG, 0, JPEG.length, other));
+
+        try {
+            template.write(new byte[] {1, 2, 3}, 0, 3, frame(ExifTemplate.FIELD_ISO, 0));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
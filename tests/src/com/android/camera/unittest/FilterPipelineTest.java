@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.FilterPipeline;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class FilterPipelineTest extends TestCase {
+
+    public void testTrySubmitDropsWhenFull() throws Exception {
+        FilterPipeline pipeline = new FilterPipeline(1, 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runnable noop = new Runnable() {
+            public void run() {
+            }
+        };
+        assertTrue(pipeline.trySubmit(FilterPipeline.STAGE_INGEST, blocker));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // One queue slot, then the stage is full.
+        assertTrue(pipeline.trySubmit(FilterPipeline.STAGE_INGEST, noop));
+        long start = System.nanoTime();
+        assertFalse(pipeline.trySubmit(FilterPipeline.STAGE_INGEST, noop));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        release.countDown();
+        pipeline.shutdown();
+        assertFalse(pipeline.trySubmit(FilterPipeline.STAGE_INGEST, noop));
+    }
+
+    public void testSubmitReportsShutDownStage() throws Exception {
+        FilterPipeline pipeline = new FilterPipeline(1, 1, 1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        };
+        assertTrue(pipeline.submit(FilterPipeline.STAGE_ENCODE, task));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        final CountDownLatch dropped = new CountDownLatch(1);
+        assertFalse(pipeline.submit(FilterPipeline.STAGE_ENCODE, new Runnable() {
+            public void run() {
+                dropped.countDown();
+            }
+        }));
+        assertFalse(dropped.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testFailedBurst() {
+        FilterPipeline pipeline = new FilterPipeline(1, 1, 1);
+        FilterPipeline.Burst burst = pipeline.newBurst();
+        assertFalse(burst.isFailed());
+        burst.fail();
+        assertTrue(burst.isFailed());
+        assertFalse(pipeline.newBurst().isFailed());
+        pipeline.shutdown();
+    }
+
+    public void testShutdownIsBoundedForAllStages() throws Exception {
+        FilterPipeline pipeline = new FilterPipeline(1, 1, 1);
+        final CountDownLatch never = new CountDownLatch(1);
+        Runnable stuck = new Runnable() {
+            public void run() {
+                try {
+                    never.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // shutdownNow
+                }
+            }
+        };
+        for (int stage = FilterPipeline.STAGE_INGEST; stage <= FilterPipeline.STAGE_ENCODE;
+                stage++) {
+            assertTrue(pipeline.trySubmit(stage, stuck));
+        }
+        long start = System.nanoTime();
+        pipeline.shutdown();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+    }
+}
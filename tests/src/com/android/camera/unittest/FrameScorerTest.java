@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.DefaultFrameScorer;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class FrameScorerTest extends TestCase {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+
+    private static ByteBuffer checkerboard(int cell) {
+        ByteBuffer y = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                boolean white = ((row / cell) + (col / cell)) % 2 == 0;
+                y.put(row * STRIDE + col, (byte) (white ? 235 : 16));
+            }
+        }
+        return y;
+    }
+
+    public void testFlatImageHasNoSharpness() {
+        ByteBuffer y = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        assertEquals(0.0, DefaultFrameScorer.laplacianVariance(y, WIDTH, HEIGHT, STRIDE, 1, 4096),
+                1e-9);
+    }
+
+    public void testFineDetailScoresHigherThanCoarse() {
+        double fine = DefaultFrameScorer.laplacianVariance(checkerboard(7), WIDTH, HEIGHT,
+                STRIDE, 1, 4096);
+        double coarse = DefaultFrameScorer.laplacianVariance(checkerboard(160), WIDTH, HEIGHT,
+                STRIDE, 1, 4096);
+        assertTrue(fine > coarse);
+    }
+
+    // Separable box blur of the given width, clamped at the borders
+    private static ByteBuffer boxBlur(ByteBuffer src, int size) {
+        int radius = size / 2;
+        int[] tmp = new int[WIDTH * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int sum = 0;
+                for (int k = col - radius; k < col - radius + size; k++) {
+                    int c = Math.min(WIDTH - 1, Math.max(0, k));
+                    sum += src.get(row * STRIDE + c) & 0xff;
+                }
+                tmp[row * WIDTH + col] = sum;
+            }
+        }
+        ByteBuffer dst = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int sum = 0;
+                for (int k = row - radius; k < row - radius + size; k++) {
+                    int r = Math.min(HEIGHT - 1, Math.max(0, k));
+                    sum += tmp[r * WIDTH + col];
+                }
+                dst.put(row * STRIDE + col, (byte) (sum / (size * size)));
+            }
+        }
+        return dst;
+    }
+
+    public void testSmallBlurScoresLower() {
+        // Edges far apart relative to the sampling grid
+        ByteBuffer sharp = checkerboard(32);
+        double sharpScore = DefaultFrameScorer.laplacianVariance(sharp, WIDTH, HEIGHT,
+                STRIDE, 1, 4096);
+        for (int size = 2; size <= 3; size++) {
+            double blurScore = DefaultFrameScorer.laplacianVariance(boxBlur(sharp, size),
+                    WIDTH, HEIGHT, STRIDE, 1, 4096);
+            assertTrue("box " + size + ": " + blurScore + " vs " + sharpScore,
+                    blurScore < sharpScore / 2);
+        }
+    }
+
+    public void testBufferPositionIsUntouched() {
+        ByteBuffer y = checkerboard(8);
+        y.position(17);
+        DefaultFrameScorer.laplacianVariance(y, WIDTH, HEIGHT, STRIDE, 1, 4096);
+        assertEquals(17, y.position());
+    }
+}
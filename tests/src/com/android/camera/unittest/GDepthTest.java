@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.DepthMapEncoder;
+import org.codeaurora.snapcam.filter.GDepth;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+@SmallTest
+public class GDepthTest extends TestCase {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final int MIN = 40;
+    private static final int MAX = 200;
+
+    // Values MIN..MAX, so the stretched range is known.
+    private static GDepth.DepthMap depthMap(float near, float far, String format) {
+        GDepth.DepthMap map = new GDepth.DepthMap(WIDTH, HEIGHT);
+        map.buffer = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < map.buffer.length; i++) {
+            map.buffer[i] = (byte) (MIN + i * (MAX - MIN) / (map.buffer.length - 1));
+        }
+        map.near = near;
+        map.far = far;
+        map.format = format;
+        return map;
+    }
+
+    private static GDepth.DepthMap flatMap(int value) {
+        GDepth.DepthMap map = new GDepth.DepthMap(WIDTH, HEIGHT);
+        map.buffer = new byte[WIDTH * HEIGHT];
+        Arrays.fill(map.buffer, (byte) value);
+        map.near = 0.5f;
+        map.far = 4f;
+        return map;
+    }
+
+    // Samples of a grayscale PNG written with the Sub filter.
+    private static int[] pngSamples(byte[] png, int bitDepth) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(png);
+        buf.position(8);
+        Inflater inflater = new Inflater();
+        while (buf.hasRemaining()) {
+            int length = buf.getInt();
+            String type = new String(buf.array(), buf.position(), 4, "US-ASCII");
+            buf.position(buf.position() + 4);
+            if ("IHDR".equals(type)) {
+                assertEquals(WIDTH, buf.getInt(buf.position()));
+                assertEquals(HEIGHT, buf.getInt(buf.position() + 4));
+                assertEquals(bitDepth, buf.get(buf.position() + 8));
+            } else if ("IDAT".equals(type)) {
+                inflater.setInput(buf.array(), buf.position(), length);
+            }
+            buf.position(buf.position() + length + 4);
+        }
+        int bytesPerSample = bitDepth / 8;
+        int rowBytes = WIDTH * bytesPerSample;
+        byte[] rows = new byte[(rowBytes + 1) * HEIGHT];
+        assertEquals(rows.length, inflater.inflate(rows));
+        byte[] raw = new byte[rowBytes * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            int row = y * (rowBytes + 1);
+            assertEquals(1, rows[row]);
+            for (int x = 0; x < rowBytes; x++) {
+                byte left = x < bytesPerSample ? 0 : raw[y * rowBytes + x - bytesPerSample];
+                raw[y * rowBytes + x] = (byte) (rows[row + 1 + x] + left);
+            }
+        }
+        return samples(raw, bytesPerSample);
+    }
+
+    private static int[] samples(byte[] raw, int bytesPerSample) {
+        int[] samples = new int[raw.length / bytesPerSample];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = bytesPerSample == 1 ? raw[i] & 0xff
+                    : ((raw[2 * i] & 0xff) << 8) | (raw[2 * i + 1] & 0xff);
+        }
+        return samples;
+    }
+
+    private static float linearDepth(float near, float far, int code, int maxCode) {
+        return near + code * (far - near) / maxCode;
+    }
+
+    // Every sample must map back to the depth of its source value, within
+    // the rounding to the nearest code.
+    private static void assertLinearDepths(GDepth gDepth, GDepth.DepthMap map, int[] codes,
+            int maxCode) {
+        float step = (gDepth.getFar() - gDepth.getNear()) / maxCode;
+        for (int i = 0; i < codes.length; i++) {
+            float expected = linearDepth(map.near, map.far, map.buffer[i] & 0xff, 255);
+            float actual = linearDepth(gDepth.getNear(), gDepth.getFar(), codes[i], maxCode);
+            assertEquals(expected, actual, step / 2 + 1e-4f);
+        }
+    }
+
+    public void testPngStretchesRange() throws Exception {
+        GDepth.DepthMap map = depthMap(0, 255, GDepth.FORMAT_8_BIT);
+        GDepth gDepth = GDepth.createGDepth(map, GDepth.CONTAINER_PNG);
+        assertEquals(DepthMapEncoder.MIME_PNG, gDepth.getMime());
+        assertEquals(GDepth.FORMAT_RANGLE_LINEAR, gDepth.getFormat());
+        assertEquals(8, gDepth.getBitsPerSample());
+        assertEquals((float) MIN, gDepth.getNear());
+        assertEquals((float) MAX, gDepth.getFar());
+
+        int[] codes = pngSamples(gDepth.getEncodedDepthMap(), 8);
+        assertEquals(0, codes[0]);
+        assertEquals(255, codes[codes.length - 1]);
+        assertLinearDepths(gDepth, map, codes, 255);
+    }
+
+    public void testPng16StretchesRange() throws Exception {
+        GDepth.DepthMap map = depthMap(1, 5, GDepth.FORMAT_RANGLE_LINEAR);
+        GDepth gDepth = GDepth.createGDepth(map, GDepth.CONTAINER_PNG_16);
+        assertEquals(DepthMapEncoder.MIME_PNG, gDepth.getMime());
+        assertEquals(GDepth.FORMAT_RANGLE_LINEAR, gDepth.getFormat());
+        assertEquals(16, gDepth.getBitsPerSample());
+        assertEquals(1 + MIN * 4 / 255f, gDepth.getNear(), 1e-5f);
+        assertEquals(1 + MAX * 4 / 255f, gDepth.getFar(), 1e-5f);
+
+        int[] codes = pngSamples(gDepth.getEncodedDepthMap(), 16);
+        assertEquals(0, codes[0]);
+        assertEquals(0xffff, codes[codes.length - 1]);
+        assertLinearDepths(gDepth, map, codes, 0xffff);
+    }
+
+    public void testDeflateStretchesRange() {
+        GDepth.DepthMap map = depthMap(0, 255, GDepth.FORMAT_8_BIT);
+        GDepth gDepth = GDepth.createGDepth(map, GDepth.CONTAINER_DEFLATE);
+        assertEquals(DepthMapEncoder.MIME_DEFLATE, gDepth.getMime());
+        assertEquals(8, gDepth.getBitsPerSample());
+        assertEquals(WIDTH, gDepth.getWidth());
+        assertEquals(HEIGHT, gDepth.getHeight());
+
+        byte[] raw = DepthMapEncoder.decodeDeflate(gDepth.getEncodedDepthMap(),
+                WIDTH * HEIGHT);
+        assertNotNull(raw);
+        int[] codes = samples(raw, 1);
+        assertEquals(0, codes[0]);
+        assertEquals(255, codes[codes.length - 1]);
+        assertLinearDepths(gDepth, map, codes, 255);
+    }
+
+    public void testInverseRangeKeepsDepths() {
+        GDepth.DepthMap map = depthMap(0.5f, 8, GDepth.FORMAT_RANGE_INVERSE);
+        GDepth gDepth = GDepth.createGDepth(map, GDepth.CONTAINER_DEFLATE);
+        assertEquals(GDepth.FORMAT_RANGE_INVERSE, gDepth.getFormat());
+        int[] codes = samples(DepthMapEncoder.decodeDeflate(gDepth.getEncodedDepthMap(),
+                WIDTH * HEIGHT), 1);
+        for (int i = 0; i < codes.length; i++) {
+            float expected = inverseDepth(map.near, map.far, (map.buffer[i] & 0xff) / 255f);
+            float actual = inverseDepth(gDepth.getNear(), gDepth.getFar(), codes[i] / 255f);
+            // Codes round to the nearest step of the narrower range.
+            assertEquals(expected, actual, expected * 0.01f);
+        }
+    }
+
+    private static float inverseDepth(float near, float far, float normalized) {
+        return far * near / (far - normalized * (far - near));
+    }
+
+    public void testFlatMapKeepsRange() throws Exception {
+        GDepth gDepth = GDepth.createGDepth(flatMap(42), GDepth.CONTAINER_PNG);
+        assertEquals(0.5f, gDepth.getNear());
+        assertEquals(4f, gDepth.getFar());
+        assertEquals(GDepth.FORMAT_8_BIT, gDepth.getFormat());
+        for (int code : pngSamples(gDepth.getEncodedDepthMap(), 8)) {
+            assertEquals(42, code);
+        }
+
+        gDepth = GDepth.createGDepth(flatMap(42), GDepth.CONTAINER_PNG_16);
+        assertTrue(gDepth.getNear() < gDepth.getFar());
+        for (int code : pngSamples(gDepth.getEncodedDepthMap(), 16)) {
+            assertEquals(42 * 257, code);
+        }
+    }
+}
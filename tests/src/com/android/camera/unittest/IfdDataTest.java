@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.Rational;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.TimeZone;
+
+@SmallTest
+public class IfdDataTest extends TestCase {
+
+    private static final byte[] JPEG = {
+        (byte) 0xFF, (byte) 0xD8,
+        (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x10, 0x01, 0x01, 0x11, 0x00,
+        0x12, 0x34, 0x56,
+        (byte) 0xFF, (byte) 0xD9,
+    };
+
+    private static ExifInterface captureExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addMakeAndModelTag();
+        exif.addOrientationTag(270);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1500000000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.addFlashTag(true);
+        exif.addFocalLength(new Rational(435, 100));
+        exif.addAperture(new Rational(200, 100));
+        exif.addExposureTime(new Rational(33, 1000));
+        exif.addISO(400);
+        exif.addGpsTags(-33.5, 151.25);
+        return exif;
+    }
+
+    public void testIfdEntriesAreWrittenInTagOrder() throws IOException {
+        byte[] jpeg = captureExif().writeExif(JPEG, 0, JPEG.length);
+        // SOI, APP1 marker and length, "Exif\0\0", then the TIFF header.
+        int tiff = 12;
+        ByteBuffer buf = ByteBuffer.wrap(jpeg);
+        buf.order(jpeg[tiff] == 'M' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        int ifd = tiff + buf.getInt(tiff + 4);
+        int count = buf.getShort(ifd) & 0xffff;
+        assertTrue(count > 1);
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int tagId = buf.getShort(ifd + 2 + i * 12) & 0xffff;
+            assertTrue(tagId > previous);
+            previous = tagId;
+        }
+    }
+
+    public void testValuesRoundTrip() throws IOException {
+        ExifInterface written = captureExif();
+        written.setTag(written.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, "arena"));
+        byte[] jpeg = written.writeExif(JPEG, 0, JPEG.length);
+
+        ExifInterface read = new ExifInterface();
+        read.readExif(jpeg);
+        assertEquals(ExifInterface.Orientation.RIGHT_BOTTOM,
+                read.getTagIntValue(ExifInterface.TAG_ORIENTATION).intValue());
+        assertEquals(400, read.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS).intValue());
+        assertEquals(ExifInterface.Flash.FIRED,
+                read.getTagIntValue(ExifInterface.TAG_FLASH).intValue());
+        assertEquals(new Rational(435, 100),
+                read.getTagRationalValue(ExifInterface.TAG_FOCAL_LENGTH));
+        assertEquals(new Rational(33, 1000),
+                read.getTagRationalValue(ExifInterface.TAG_EXPOSURE_TIME));
+        assertEquals("2017:07:14 02:40:00",
+                read.getTagStringValue(ExifInterface.TAG_DATE_TIME).trim());
+        assertEquals("arena", read.getTagStringValue(ExifInterface.TAG_IMAGE_DESCRIPTION).trim());
+        for (int tagId : new int[] {
+                ExifInterface.TAG_ORIENTATION, ExifInterface.TAG_FOCAL_LENGTH,
+                ExifInterface.TAG_DATE_TIME, ExifInterface.TAG_MAKE,
+                ExifInterface.TAG_GPS_LATITUDE, ExifInterface.TAG_IMAGE_DESCRIPTION}) {
+            assertEquals(written.getTag(tagId), read.getTag(tagId));
+        }
+    }
+
+    public void testTagIsViewOverItsEntry() {
+        ExifInterface exif = new ExifInterface();
+        ExifTag iso = exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 100);
+        exif.setTag(iso);
+        assertTrue(exif.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, 800));
+        assertEquals(800, iso.getValueAsInt(-1));
+        assertTrue(iso.setValue(1600));
+        assertEquals(1600, exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS).intValue());
+        assertFalse(iso.setValue(-1));
+        assertEquals(1600, iso.getValueAt(0));
+    }
+
+    public void testReadsShareTheDecodedValueUntilItIsSet() {
+        ExifInterface exif = captureExif();
+        ExifTag focal = exif.getTag(ExifInterface.TAG_FOCAL_LENGTH);
+        Rational[] value = focal.getValueAsRationals();
+        assertSame(value, focal.getValueAsRationals());
+        assertSame(value, focal.getValue());
+        assertTrue(focal.setValue(new Rational(600, 100)));
+        assertNotSame(value, focal.getValue());
+        assertEquals(new Rational(435, 100), value[0]);
+        assertEquals(new Rational(600, 100), focal.getValueAsRational(null));
+
+        // The IFD keeps its own copy of a value that is set.
+        ExifTag iso = exif.getTag(ExifInterface.TAG_ISO_SPEED_RATINGS);
+        int[] speeds = {800};
+        assertTrue(iso.setValue(speeds));
+        speeds[0] = 1;
+        assertEquals(800, iso.getValueAsInt(-1));
+        assertEquals(800, exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS).intValue());
+    }
+
+    public void testReplacedAndRemovedTagsKeepTheirValues() {
+        ExifInterface exif = captureExif();
+        ExifTag orientation = exif.getTag(ExifInterface.TAG_ORIENTATION);
+        exif.addOrientationTag(90);
+        assertEquals(ExifInterface.Orientation.RIGHT_BOTTOM, orientation.getValueAsInt(-1));
+        assertEquals(ExifInterface.Orientation.RIGHT_TOP,
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION).intValue());
+
+        ExifTag model = exif.getTag(ExifInterface.TAG_MODEL);
+        String value = model.getValueAsString();
+        exif.deleteTag(ExifInterface.TAG_MODEL);
+        assertNull(exif.getTag(ExifInterface.TAG_MODEL));
+        assertEquals(value, model.getValueAsString());
+
+        // Moving a tag to another IFD leaves a copy behind.
+        ExifInterface other = new ExifInterface();
+        ExifTag focal = exif.getTag(ExifInterface.TAG_FOCAL_LENGTH);
+        other.setTag(focal);
+        focal.setValue(new Rational(600, 100));
+        assertEquals(new Rational(435, 100),
+                exif.getTagRationalValue(ExifInterface.TAG_FOCAL_LENGTH));
+        assertEquals(new Rational(600, 100),
+                other.getTagRationalValue(ExifInterface.TAG_FOCAL_LENGTH));
+    }
+
+    public void testGrowsPastInitialCapacity() throws IOException {
+        ExifInterface exif = captureExif();
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            description.append("0123456789");
+            exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION,
+                    description.toString()));
+        }
+        byte[] jpeg = exif.writeExif(JPEG, 0, JPEG.length);
+        ExifInterface read = new ExifInterface();
+        read.readExif(jpeg);
+        assertEquals(description.toString(),
+                read.getTagStringValue(ExifInterface.TAG_IMAGE_DESCRIPTION).trim());
+        assertEquals(exif.getTag(ExifInterface.TAG_MAKE), read.getTag(ExifInterface.TAG_MAKE));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.MetadataJoin;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MetadataJoinTest extends TestCase {
+
+    public void testResultsIndexedInFrameOrder() {
+        MetadataJoin<String> join = new MetadataJoin<String>(4);
+        MetadataJoin.Capture<String> capture = join.beginCapture();
+        join.onResult(10, "a");
+        join.onResult(11, "b");
+        assertEquals("a", capture.await(0, 0));
+        assertEquals("b", capture.await(1, 0));
+        assertEquals(11, capture.getFrameNumber(1));
+    }
+
+    public void testOutOfOrderResultsKeyedByFrameNumber() {
+        MetadataJoin<String> join = new MetadataJoin<String>(4);
+        MetadataJoin.Capture<String> capture = join.beginCapture();
+        join.onStarted(20);
+        join.onStarted(22);
+        join.onStarted(25);
+        join.onResult(25, "c");
+        join.onFailure(22);
+        assertNull(capture.get(0));
+        assertEquals(25, capture.getFrameNumber(2));
+        assertEquals("c", capture.await(2, 0));
+        join.onResult(20, "a");
+        assertEquals("a", capture.await(0, 0));
+        // The failed frame falls back to the first result, not its neighbour.
+        assertEquals("a", capture.await(1, 0));
+        assertEquals(3, capture.getResultCount());
+    }
+
+    public void testWaiterNotWokenByOtherFrame() {
+        MetadataJoin<String> join = new MetadataJoin<String>(4);
+        MetadataJoin.Capture<String> capture = join.beginCapture();
+        join.onStarted(1);
+        join.onStarted(2);
+        join.onResult(2, "b");
+        // Frame 1 is still pending, so index 0 must not resolve to frame 2.
+        assertEquals("b", capture.await(1, 0));
+        assertNull(capture.get(0));
+        assertEquals(1, capture.getFrameNumber(0));
+    }
+
+    public void testStartedFramesBoundNextCapture() {
+        MetadataJoin<String> join = new MetadataJoin<String>(4);
+        join.beginCapture();
+        join.onStarted(7);
+        MetadataJoin.Capture<String> next = join.beginCapture();
+        join.onResult(7, "stale");
+        assertEquals(0, next.getResultCount());
+    }
+
+    public void testStaleFramesIgnoredByNewCapture() {
+        MetadataJoin<String> join = new MetadataJoin<String>(4);
+        MetadataJoin.Capture<String> first = join.beginCapture();
+        join.onResult(5, "old");
+        MetadataJoin.Capture<String> second = join.beginCapture();
+        join.onResult(4, "late");
+        join.onResult(6, "new");
+        assertEquals("old", first.get(0));
+        assertEquals(1, second.getResultCount());
+        assertEquals("new", second.get(0));
+    }
+
+    public void testWaiterWokenByResult() throws InterruptedException {
+        final MetadataJoin<String> join = new MetadataJoin<String>(4);
+        MetadataJoin.Capture<String> capture = join.beginCapture();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                }
+                join.onResult(1, "a");
+            }
+        });
+        producer.start();
+        assertEquals("a", capture.await(0, 5000));
+        assertTrue(capture.getMaxWaitNs() < 5000L * 1000000L);
+        producer.join();
+    }
+
+    public void testTimeoutAndFailureFallBackToFirstResult() {
+        MetadataJoin<String> join = new MetadataJoin<String>(4);
+        MetadataJoin.Capture<String> capture = join.beginCapture();
+        assertNull(capture.await(0, 5));
+        join.onResult(1, "a");
+        join.onFailure(2);
+        assertEquals("a", capture.await(1, 0));
+        assertEquals("a", capture.await(3, 5));
+        long total = 0;
+        for (long count : join.getWaitHistogram()) {
+            total += count;
+        }
+        assertEquals(3, total);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Checks that MpoOutputStream writes the same bytes whether an image's
+ * headers arrive in one array, which takes the bulk path, or are split
+ * across writes, which takes the incremental parser. File-backed images are
+ * streamed in 64KB chunks, so a maximum size APP1 pushes them onto the
+ * incremental parser. The channel writer must agree with both.
+ */
+@SmallTest
+public class MpoOutputStreamTest extends TestCase {
+    private static final String CROP_INFO = "Qualcomm Dual Camera Attributes";
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private File[] mFiles = new File[3];
+    private File mOutFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < mFiles.length; i++) {
+            mFiles[i] = File.createTempFile("mpo_in", ".jpg");
+        }
+        mOutFile = File.createTempFile("mpo_out", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : mFiles) {
+            f.delete();
+        }
+        mOutFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP1, APP7 with the dual camera crop info, DQT, SOF0, scan data and EOI */
+    private static byte[] jpeg(int app1Length, int scanSize, int seed) {
+        byte[] crop = CROP_INFO.getBytes();
+        ByteBuffer buf = ByteBuffer.allocate(2 + 2 + app1Length + 4 + crop.length + 16
+                + 6 + 13 + scanSize + 2);
+        buf.putShort((short) 0xFFD8);
+        buf.putShort((short) 0xFFE1).putShort((short) app1Length).put("Exif\0\0".getBytes());
+        for (int i = 8; i < app1Length; i++) {
+            buf.put((byte) (i * 7 + seed));
+        }
+        buf.putShort((short) 0xFFE7).putShort((short) (2 + crop.length + 16)).put(crop);
+        for (int i = 0; i < 16; i++) {
+            buf.put((byte) (0x40 + i + seed));
+        }
+        buf.putShort((short) 0xFFDB).putShort((short) 4).putShort((short) 1);
+        buf.putShort((short) 0xFFC0).putShort((short) 11).put((byte) 8)
+                .putShort((short) 3000).putShort((short) 4000).put(new byte[] {1, 1, 0x11, 0});
+        for (int i = 0; i < scanSize; i++) {
+            buf.put((byte) (((i * 131 + seed) ^ (i >> 5)) & 0x7F));
+        }
+        buf.putShort((short) 0xFFD9);
+        return buf.array();
+    }
+
+    private static MpoData mpo(MpoImageData[] images) {
+        MpoData mpo = new MpoData();
+        for (int i = 1; i < images.length; i++) {
+            mpo.addAuxiliaryMpoImage(images[i]);
+        }
+        mpo.setPrimaryMpoImage(images[0]);
+        return mpo;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            int n;
+            while (pos < data.length && (n = in.read(data, pos, data.length - pos)) > 0) {
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static int countCropInfo(byte[] data) {
+        byte[] crop = CROP_INFO.getBytes();
+        int count = 0;
+        for (int i = 0; i <= data.length - crop.length; i++) {
+            int j = 0;
+            while (j < crop.length && data[i + j] == crop[j]) {
+                j++;
+            }
+            if (j == crop.length) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assertSameOutput(byte[][] jpegs) throws IOException {
+        MpoImageData[] arrays = new MpoImageData[jpegs.length];
+        MpoImageData[] files = new MpoImageData[jpegs.length];
+        MpoImageData[] channel = new MpoImageData[jpegs.length];
+        for (int i = 0; i < jpegs.length; i++) {
+            writeFile(mFiles[i], jpegs[i]);
+            arrays[i] = new MpoImageData(jpegs[i], ByteOrder.BIG_ENDIAN);
+            files[i] = new MpoImageData(mFiles[i], ByteOrder.BIG_ENDIAN);
+            channel[i] = new MpoImageData(mFiles[i], ByteOrder.BIG_ENDIAN);
+        }
+
+        ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+        MpoInterface.writeMpo(mpo(arrays), bulk);
+        ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+        MpoInterface.writeMpo(mpo(files), incremental);
+        MpoInterface.writeMpo(mpo(channel), mOutFile.getAbsolutePath());
+
+        byte[] expected = bulk.toByteArray();
+        assertTrue(Arrays.equals(expected, incremental.toByteArray()));
+        assertTrue(Arrays.equals(expected, readFile(mOutFile)));
+        // the crop info is cleared from the primary only, and only when
+        // there is more than one auxiliary image
+        assertEquals(jpegs.length > 2 ? jpegs.length - 1 : jpegs.length,
+                countCropInfo(expected));
+    }
+
+    public void testSmallHeaders() throws IOException {
+        assertSameOutput(new byte[][] {
+            jpeg(64, 100000, 1), jpeg(64, 90000, 2), jpeg(64, 80000, 3)
+        });
+    }
+
+    public void testHeadersSplitAcrossWrites() throws IOException {
+        assertSameOutput(new byte[][] {
+            jpeg(MAX_SEGMENT_LENGTH, 100000, 1), jpeg(MAX_SEGMENT_LENGTH, 90000, 2),
+            jpeg(MAX_SEGMENT_LENGTH, 80000, 3)
+        });
+    }
+
+    public void testPrimaryKeepsCropInfoWithOneAuxiliary() throws IOException {
+        assertSameOutput(new byte[][] {
+            jpeg(MAX_SEGMENT_LENGTH, 100000, 1), jpeg(64, 90000, 2)
+        });
+    }
+}
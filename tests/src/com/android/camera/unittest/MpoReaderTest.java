@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+import com.android.camera.mpo.MpoReader;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+@SmallTest
+public class MpoReaderTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("mpo_reader", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /* SOI, APP1, DQT, SOF0, scan data and EOI */
+    private static byte[] jpeg(int scanSize, int seed) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 20 + 6 + 13 + scanSize + 2);
+        buf.putShort((short) 0xFFD8);
+        buf.putShort((short) 0xFFE1).putShort((short) 18).put("Exif\0\0".getBytes());
+        buf.put(new byte[10]);
+        buf.putShort((short) 0xFFDB).putShort((short) 4).putShort((short) 1);
+        buf.putShort((short) 0xFFC0).putShort((short) 11).put((byte) 8)
+                .putShort((short) 480).putShort((short) 640).put(new byte[] {1, 1, 0x11, 0});
+        for (int i = 0; i < scanSize; i++) {
+            buf.put((byte) ((i * 31 + seed) & 0x7F));
+        }
+        buf.putShort((short) 0xFFD9);
+        return buf.array();
+    }
+
+    /* Drops the APP2 segment that the MPO writer inserted after APP1 */
+    private static byte[] withoutMpSegment(ByteBuffer image) {
+        int app2 = 2 + 20;
+        assertEquals((short) 0xFFE2, image.getShort(app2));
+        int app2Size = 2 + (image.getShort(app2 + 2) & 0xffff);
+        byte[] jpeg = new byte[image.remaining() - app2Size];
+        image.get(jpeg, 0, app2);
+        image.position(app2 + app2Size);
+        image.get(jpeg, app2, jpeg.length - app2);
+        return jpeg;
+    }
+
+    public void testReadsEveryImage() throws IOException {
+        byte[][] jpegs = { jpeg(5000, 1), jpeg(3000, 2), jpeg(4000, 3) };
+        MpoData mpo = new MpoData();
+        mpo.addAuxiliaryMpoImage(new MpoImageData(jpegs[1], ByteOrder.BIG_ENDIAN));
+        mpo.addAuxiliaryMpoImage(new MpoImageData(jpegs[2], ByteOrder.BIG_ENDIAN));
+        mpo.setPrimaryMpoImage(new MpoImageData(jpegs[0], ByteOrder.BIG_ENDIAN));
+        assertTrue(MpoInterface.writeMpo(mpo, mFile.getAbsolutePath()) > 0);
+
+        MpoReader reader = MpoReader.open(mFile);
+        assertEquals(3, reader.getImageCount());
+        assertEquals(1 << 29, reader.getImageAttribute(0));
+        assertEquals(0x020002, reader.getImageAttribute(2));
+        long total = 0;
+        // read out of order, the images are independent of each other
+        for (int i = jpegs.length - 1; i >= 0; i--) {
+            ByteBuffer image = reader.getImage(i);
+            assertTrue(image.isReadOnly());
+            assertEquals(reader.getImageSize(i), image.remaining());
+            assertTrue(Arrays.equals(jpegs[i], withoutMpSegment(image)));
+            total += reader.getImageSize(i);
+        }
+        assertEquals(mFile.length(), total);
+    }
+
+    public void testRejectsPlainJpeg() {
+        try {
+            MpoReader.parse(ByteBuffer.wrap(jpeg(100, 0)));
+            fail("parsed a jpeg without MP extensions");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.SaveScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class SaveSchedulerTest extends TestCase {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private static class Task extends SaveScheduler.SaveTask<String> {
+        final String mName;
+        final List<String> mOrder;
+        final CountDownLatch mGate;
+        final CountDownLatch mDone;
+
+        Task(String name, List<String> order, CountDownLatch gate, CountDownLatch done) {
+            mName = name;
+            mOrder = order;
+            mGate = gate;
+            mDone = done;
+        }
+
+        @Override
+        protected String doInBackground() {
+            try {
+                mGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            mOrder.add(mName);
+            return mName;
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            mDone.countDown();
+        }
+    }
+
+    public void testUserVisibleSavesRunFirst() throws InterruptedException {
+        SaveScheduler scheduler = new SaveScheduler(1, 1000, DIRECT);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch open = new CountDownLatch(0);
+        CountDownLatch done = new CountDownLatch(4);
+        scheduler.submit(new Task("blocker", order, gate, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 1);
+        scheduler.submit(new Task("raw", order, open, done), SaveScheduler.PRIORITY_BACKGROUND, 1);
+        scheduler.submit(new Task("jpeg1", order, open, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 1);
+        scheduler.submit(new Task("jpeg2", order, open, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 1);
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[blocker, jpeg1, jpeg2, raw]", order.toString());
+        assertEquals(0, scheduler.getQueuedBytes());
+        assertEquals(4, scheduler.getCompletedCount());
+        assertEquals(4, scheduler.getMaxQueueDepth());
+        scheduler.shutdown();
+    }
+
+    public void testAdmissionAndPressure() throws InterruptedException {
+        SaveScheduler scheduler = new SaveScheduler(1, 100, DIRECT);
+        final List<Integer> pressure = Collections.synchronizedList(new ArrayList<Integer>());
+        scheduler.setPressureListener(new SaveScheduler.PressureListener() {
+            @Override
+            public void onSavePressureChanged(int level, long queuedBytes, long limitBytes) {
+                pressure.add(level);
+            }
+        });
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        assertTrue(scheduler.submit(new Task("a", order, gate, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 80));
+        assertFalse(scheduler.isFull());
+        assertTrue(scheduler.hasRoomFor(20));
+        assertFalse(scheduler.hasRoomFor(40));
+        // Rejected because it would take the queue over the limit.
+        assertFalse(scheduler.submit(new Task("b", order, gate, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 40));
+        assertTrue(scheduler.submit(new Task("c", order, gate, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 20));
+        assertEquals(100, scheduler.getQueuedBytes());
+        assertTrue(scheduler.isFull());
+        assertFalse(scheduler.submit(new Task("d", order, gate, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 1));
+        assertEquals(2, scheduler.getRejectedCount());
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getQueuedBytes());
+        assertEquals("[0, 1, 2, 0]", pressure.toString());
+        scheduler.shutdown();
+    }
+
+    public void testOversizedTaskOnlyAdmittedIntoEmptyQueue() throws InterruptedException {
+        SaveScheduler scheduler = new SaveScheduler(1, 100, DIRECT);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(scheduler.submit(new Task("big", order, gate, done),
+                SaveScheduler.PRIORITY_BACKGROUND, 150));
+        assertEquals(150, scheduler.getQueuedBytes());
+        assertFalse(scheduler.submit(new Task("small", order, gate, done),
+                SaveScheduler.PRIORITY_USER_VISIBLE, 1));
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+
+    public void testUserVisibleSavesPublishInSubmissionOrder() throws InterruptedException {
+        SaveScheduler scheduler = new SaveScheduler(2, 1000, DIRECT);
+        final List<String> published = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+        List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch open = new CountDownLatch(0);
+        CountDownLatch unused = new CountDownLatch(2);
+        String[] names = {"first", "second"};
+        CountDownLatch[] gates = {gate, open};
+        for (int i = 0; i < names.length; i++) {
+            scheduler.submit(new Task(names[i], written, gates[i], unused) {
+                @Override
+                protected String onPublish(String result) {
+                    published.add(result);
+                    return result;
+                }
+
+                @Override
+                protected void onPostExecute(String result) {
+                    delivered.add(result);
+                    done.countDown();
+                }
+            }, SaveScheduler.PRIORITY_USER_VISIBLE, 1);
+        }
+        // The second save finishes writing first but must wait to be published.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (written.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("[second]", written.toString());
+        assertTrue(published.isEmpty());
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[first, second]", published.toString());
+        assertEquals("[first, second]", delivered.toString());
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.TaskGraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class TaskGraphTest extends TestCase {
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    private Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    public void testRunsDependentsAfterTheirDependencies() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        TaskGraph graph = new TaskGraph(mExecutor);
+        TaskGraph.Node ref = graph.addTask("ref", record(order, "ref"));
+        graph.addTask("reg1", record(order, "reg1"), ref);
+        graph.addTask("reg2", record(order, "reg2"), ref);
+        graph.seal(new TaskGraph.Listener() {
+            @Override
+            public void onComplete(TaskGraph graph) {
+                order.add("complete");
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(4, order.size());
+        assertEquals("ref", order.get(0));
+        assertEquals("complete", order.get(3));
+        assertTrue(graph.getElapsedNs() > 0);
+    }
+
+    public void testRunsIndependentTasksConcurrently() throws Exception {
+        // Each task waits for the other, which only works if both run at once.
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final AtomicInteger overlapped = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                bothRunning.countDown();
+                try {
+                    if (bothRunning.await(5, TimeUnit.SECONDS)) {
+                        overlapped.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        TaskGraph graph = new TaskGraph(mExecutor);
+        graph.addTask("a", task);
+        graph.addTask("b", task);
+        graph.seal(null);
+        graph.awaitIdle();
+        assertEquals(2, overlapped.get());
+        assertTrue(graph.isComplete());
+    }
+
+    public void testCancelStillDrainsTasks() throws Exception {
+        final AtomicInteger released = new AtomicInteger();
+        final TaskGraph graph = new TaskGraph(mExecutor);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (graph.isCancelled()) {
+                    released.incrementAndGet();
+                }
+            }
+        };
+        graph.cancel();
+        TaskGraph.Node ref = graph.addTask("ref", task);
+        graph.addTask("reg", task, ref);
+        graph.awaitIdle();
+        assertEquals(2, released.get());
+        try {
+            graph.seal(null);
+            graph.addTask("late", task);
+            fail("added a task to a sealed graph");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testRejectedTasksFinish() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        mExecutor.shutdown();
+        final TaskGraph graph = new TaskGraph(mExecutor);
+        // Like the registration tasks, which close their image when cancelled
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (graph.isCancelled()) {
+                    ran.incrementAndGet();
+                }
+            }
+        };
+        TaskGraph.Node ref = graph.addTask("ref", task);
+        graph.addTask("reg", task, ref);
+        graph.seal(new TaskGraph.Listener() {
+            @Override
+            public void onComplete(TaskGraph graph) {
+                completed.incrementAndGet();
+            }
+        });
+        graph.awaitIdle();
+        assertEquals(2, ran.get());
+        assertEquals(1, completed.get());
+        assertTrue(graph.isCancelled());
+    }
+}
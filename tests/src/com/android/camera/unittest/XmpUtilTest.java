@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.adobe.xmp.XMPMeta;
+import com.adobe.xmp.XMPMetaFactory;
+import com.android.camera.util.XmpUtil;
+
+import junit.framework.TestCase;
+
+import org.codeaurora.snapcam.filter.GDepth;
+import org.codeaurora.snapcam.filter.GImage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class XmpUtilTest extends TestCase {
+    private static final String XMP_NOTE_NAMESPACE = "http://ns.adobe.com/xmp/note/";
+    private static final String EXTENDED_XMP_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
+    private static final int EXTENDED_XMP_HEADER_SIZE = 75;
+    private static final int MAX_EXTENDED_XMP_PORTION = 65000;
+
+    // SOI, an empty DQT, SOS with a few bytes of scan data and EOI.
+    private static final byte[] JPEG = new byte[] {
+        (byte) 0xff, (byte) 0xd8,
+        (byte) 0xff, (byte) 0xdb, 0x00, 0x02,
+        (byte) 0xff, (byte) 0xda, 0x00, 0x02, 0x11, 0x22, 0x33,
+        (byte) 0xff, (byte) 0xd9
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        XMPMetaFactory.getSchemaRegistry().registerNamespace(GDepth.NAMESPACE_URL, "GDepth");
+        XMPMetaFactory.getSchemaRegistry().registerNamespace(GImage.NAMESPACE_URL, "GImage");
+    }
+
+    public void testBinaryPropertiesRoundTrip() throws Exception {
+        // Neither length is a multiple of 3, so both Base64 values end in
+        // padding, and the bayer value alone spans several portions.
+        byte[] depth = pattern(1000, 7);
+        byte[] bayer = pattern(3 * MAX_EXTENDED_XMP_PORTION / 4 * 3 + 1, 13);
+        byte[] out = write(depth, bayer);
+
+        XMPMeta extended = XmpUtil.extractExtendedXMPMeta(new ByteArrayInputStream(out));
+        assertNotNull(extended);
+        assertTrue(Arrays.equals(depth, Base64.decode(
+                extended.getPropertyString(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA),
+                Base64.DEFAULT)));
+        assertTrue(Arrays.equals(bayer, Base64.decode(
+                extended.getPropertyString(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA),
+                Base64.DEFAULT)));
+    }
+
+    public void testGuidMatchesExtendedPortions() throws Exception {
+        byte[] out = write(pattern(1000, 7), pattern(3 * MAX_EXTENDED_XMP_PORTION, 13));
+
+        XMPMeta standard = XmpUtil.extractXMPMeta(new ByteArrayInputStream(out));
+        assertNotNull(standard);
+        String guid = standard.getPropertyString(XMP_NOTE_NAMESPACE, "HasExtendedXMP");
+        assertNotNull(guid);
+        assertEquals(32, guid.length());
+
+        // Walk the marker segments up to the image data and check that the
+        // portions are contiguous, carry the GUID and hash to it.
+        ByteBuffer buffer = ByteBuffer.wrap(out);
+        assertEquals(0xffd8, buffer.getShort() & 0xffff);
+        MessageDigest digester = MessageDigest.getInstance("MD5");
+        int portions = 0;
+        int expectedOffset = 0;
+        int fullLength = -1;
+        while (true) {
+            int marker = buffer.getShort() & 0xffff;
+            if (marker == 0xffda) {
+                break;
+            }
+            int length = buffer.getShort() & 0xffff;
+            int start = buffer.position();
+            buffer.position(start + length - 2);
+            if (marker != 0xffe1 || !startsWith(out, start, EXTENDED_XMP_SIGNATURE)) {
+                continue;
+            }
+            int pos = start + EXTENDED_XMP_SIGNATURE.length();
+            assertEquals(guid, new String(out, pos, 32, "US-ASCII"));
+            int total = ByteBuffer.wrap(out, pos + 32, 4).getInt();
+            int offset = ByteBuffer.wrap(out, pos + 36, 4).getInt();
+            if (fullLength < 0) {
+                fullLength = total;
+            }
+            assertEquals(fullLength, total);
+            assertEquals(expectedOffset, offset);
+            int size = length - 2 - EXTENDED_XMP_HEADER_SIZE;
+            assertTrue(size <= MAX_EXTENDED_XMP_PORTION);
+            digester.update(out, start + EXTENDED_XMP_HEADER_SIZE, size);
+            expectedOffset += size;
+            portions++;
+        }
+        assertTrue(portions >= 3);
+        assertEquals(fullLength, expectedOffset);
+        assertEquals(guid, toHex(digester.digest()));
+
+        // The image data follows the metadata unchanged.
+        int scan = buffer.position() - 2;
+        assertTrue(Arrays.equals(Arrays.copyOfRange(JPEG, 6, JPEG.length),
+                Arrays.copyOfRange(out, scan, out.length)));
+    }
+
+    public void testSkipsUnrelatedSectionsBeforeXmp() throws Exception {
+        byte[] depth = pattern(1000, 7);
+        byte[] jpeg = write(depth, pattern(10, 13));
+        // APP0, a large APP2 and a non-XMP APP1 ahead of the XMP sections.
+        byte[] icc = new byte[40000];
+        Arrays.fill(icc, (byte) 0xe1);
+        ByteBuffer app2 = ByteBuffer.allocate(4 + icc.length);
+        app2.putShort((short) 0xffe2).putShort((short) (2 + icc.length)).put(icc);
+        jpeg = withSection(jpeg, app1("Exif\0\0MM"));
+        jpeg = withSection(jpeg, app2.array());
+        jpeg = withSection(jpeg, new byte[] {
+            (byte) 0xff, (byte) 0xe0, 0x00, 0x07, 'J', 'F', 'I', 'F', 0});
+        assertEquals(Arrays.asList("ffe0", "ffe2", "EXIF", "XMP", "EXT", "ffdb"),
+                sections(jpeg));
+
+        XMPMeta standard = XmpUtil.extractXMPMeta(new ByteArrayInputStream(jpeg));
+        assertNotNull(standard);
+        assertNotNull(standard.getPropertyString(XMP_NOTE_NAMESPACE, "HasExtendedXMP"));
+        assertNotNull(XmpUtil.extractXMPMeta(ByteBuffer.wrap(jpeg)));
+        assertNotNull(XmpUtil.extractExtendedXMPMeta(new ByteArrayInputStream(jpeg)));
+        XMPMeta extended = XmpUtil.extractExtendedXMPMeta(ByteBuffer.wrap(jpeg));
+        assertNotNull(extended);
+        assertTrue(Arrays.equals(depth, Base64.decode(
+                extended.getPropertyString(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA),
+                Base64.DEFAULT)));
+    }
+
+    public void testReplacesExistingXmp() throws Exception {
+        byte[] first = write(pattern(1000, 7), pattern(3 * MAX_EXTENDED_XMP_PORTION, 13));
+        byte[] depth = pattern(500, 3);
+        byte[] out = write(first, depth, pattern(10, 5));
+
+        List<String> sections = sections(out);
+        assertEquals(1, count(sections, "XMP"));
+        assertEquals(1, count(sections, "EXT"));
+        XMPMeta extended = XmpUtil.extractExtendedXMPMeta(new ByteArrayInputStream(out));
+        assertTrue(Arrays.equals(depth, Base64.decode(
+                extended.getPropertyString(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA),
+                Base64.DEFAULT)));
+    }
+
+    public void testInsertsAfterExifOnly() throws Exception {
+        byte[] exif = withSection(JPEG, app1("Exif\0\0MM"));
+        assertEquals(Arrays.asList("EXIF", "XMP", "EXT", "ffdb"),
+                sections(write(exif, pattern(10, 7), pattern(10, 13))));
+
+        // Some other APP1 stays where it is, after the XMP.
+        byte[] other = withSection(JPEG, app1("http://example.com/\0"));
+        assertEquals(Arrays.asList("XMP", "EXT", "ffe1", "ffdb"),
+                sections(write(other, pattern(10, 7), pattern(10, 13))));
+    }
+
+    public void testRejectsTruncatedInput() {
+        assertFalse(writes(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1}));
+        assertFalse(writes(new byte[] {
+            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1, 0x00}));
+        // The APP1 claims more bytes than there are.
+        assertFalse(writes(new byte[] {
+            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1, 0x00, 0x40, 'E', 'x'}));
+    }
+
+    private static boolean writes(byte[] jpeg) {
+        List<XmpUtil.BinaryProperty> properties = new ArrayList<XmpUtil.BinaryProperty>();
+        properties.add(new XmpUtil.BinaryProperty(GDepth.NAMESPACE_URL,
+                GDepth.PROPERTY_DATA, pattern(10, 7)));
+        return XmpUtil.writeXMPMeta(jpeg, new ByteArrayOutputStream(),
+                XmpUtil.createXMPMeta(), XmpUtil.createXMPMeta(), properties);
+    }
+
+    private static byte[] app1(String data) throws Exception {
+        byte[] bytes = data.getBytes("US-ASCII");
+        ByteBuffer section = ByteBuffer.allocate(4 + bytes.length);
+        section.putShort((short) 0xffe1).putShort((short) (2 + bytes.length)).put(bytes);
+        return section.array();
+    }
+
+    // Inserts section right after SOI.
+    private static byte[] withSection(byte[] jpeg, byte[] section) {
+        byte[] out = new byte[jpeg.length + section.length];
+        System.arraycopy(jpeg, 0, out, 0, 2);
+        System.arraycopy(section, 0, out, 2, section.length);
+        System.arraycopy(jpeg, 2, out, 2 + section.length, jpeg.length - 2);
+        return out;
+    }
+
+    // The sections up to the image data, XMP sections by kind and the rest
+    // by marker.
+    private static List<String> sections(byte[] jpeg) throws Exception {
+        List<String> sections = new ArrayList<String>();
+        ByteBuffer buffer = ByteBuffer.wrap(jpeg);
+        assertEquals(0xffd8, buffer.getShort() & 0xffff);
+        while (true) {
+            int marker = buffer.getShort() & 0xffff;
+            if (marker == 0xffda) {
+                return sections;
+            }
+            int start = buffer.position() + 2;
+            buffer.position(start + (buffer.getShort() & 0xffff) - 2);
+            String name = Integer.toHexString(marker);
+            if (marker == 0xffe1 && startsWith(jpeg, start, "Exif\0\0")) {
+                name = "EXIF";
+            } else if (marker == 0xffe1 && startsWith(jpeg, start, EXTENDED_XMP_SIGNATURE)) {
+                name = "EXT";
+            } else if (marker == 0xffe1 && startsWith(jpeg, start,
+                    "http://ns.adobe.com/xap/1.0/\0")) {
+                name = "XMP";
+            }
+            // Consecutive extended portions count once.
+            if (!name.equals("EXT") || sections.isEmpty()
+                    || !sections.get(sections.size() - 1).equals("EXT")) {
+                sections.add(name);
+            }
+        }
+    }
+
+    private static int count(List<String> list, String value) {
+        int count = 0;
+        for (String s : list) {
+            if (s.equals(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] write(byte[] depth, byte[] bayer) {
+        return write(JPEG, depth, bayer);
+    }
+
+    private static byte[] write(byte[] jpeg, byte[] depth, byte[] bayer) {
+        XMPMeta standardMeta = XmpUtil.createXMPMeta();
+        XMPMeta extendedMeta = XmpUtil.createXMPMeta();
+        List<XmpUtil.BinaryProperty> properties = new ArrayList<XmpUtil.BinaryProperty>();
+        properties.add(new XmpUtil.BinaryProperty(GDepth.NAMESPACE_URL,
+                GDepth.PROPERTY_DATA, depth));
+        properties.add(new XmpUtil.BinaryProperty(GImage.NAMESPACE_URL,
+                GImage.PROPERTY_DATA, bayer));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(XmpUtil.writeXMPMeta(jpeg, out, standardMeta, extendedMeta, properties));
+        return out.toByteArray();
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed + (i >> 8));
+        }
+        return data;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String prefix) throws Exception {
+        byte[] bytes = prefix.getBytes("US-ASCII");
+        return offset + bytes.length <= data.length && Arrays.equals(bytes,
+                Arrays.copyOfRange(data, offset, offset + bytes.length));
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02X", b & 0xff));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.YuvBufferPool;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class YuvBufferPoolTest extends TestCase {
+
+    public void testReusesBufferOfSameSizeClass() {
+        YuvBufferPool pool = new YuvBufferPool(1 << 20);
+        ByteBuffer first = pool.acquire(320, 320, 240);
+        pool.release(320, 320, 240, first);
+        assertSame(first, pool.acquire(320, 320, 240));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    public void testDifferentStrideIsADifferentClass() {
+        YuvBufferPool pool = new YuvBufferPool(1 << 20);
+        ByteBuffer buffer = pool.acquire(320, 320, 240);
+        pool.release(320, 320, 240, buffer);
+        assertTrue(buffer != pool.acquire(320, 384, 240));
+        assertEquals(2, pool.getMissCount());
+    }
+
+    public void testCapEvictsOldestIdleBuffer() {
+        int size = YuvBufferPool.getBufferSize(320, 240);
+        YuvBufferPool pool = new YuvBufferPool(2 * size);
+        ByteBuffer a = pool.acquire(320, 320, 240);
+        ByteBuffer b = pool.acquire(320, 320, 240);
+        pool.release(320, 320, 240, a);
+        pool.release(320, 320, 240, b);
+        assertEquals(2 * size, pool.getFreeBytes());
+        // A new size class only fits once the oldest idle buffer is gone.
+        pool.acquire(320, 384, 200);
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(size, pool.getFreeBytes());
+        assertTrue(pool.acquire(320, 320, 240) == b);
+        assertEquals(0, pool.getWaitCount());
+    }
+
+    public void testCapCountsBorrowedBuffers() throws Exception {
+        int size = YuvBufferPool.getBufferSize(320, 240);
+        final YuvBufferPool pool = new YuvBufferPool(2 * size, 5000);
+        ByteBuffer a = pool.acquire(320, 320, 240);
+        pool.acquire(320, 320, 240);
+        assertEquals(2 * size, pool.getOutstandingBytes());
+
+        final ByteBuffer[] third = new ByteBuffer[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                third[0] = pool.acquire(320, 320, 240);
+            }
+        });
+        thread.start();
+        while (pool.getWaitCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(thread.isAlive());
+        pool.release(320, 320, 240, a);
+        thread.join(5000);
+        assertTrue(third[0] == a);
+        assertEquals(2 * size, pool.getOutstandingBytes());
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(0, pool.getOverflowCount());
+    }
+
+    public void testWaitTimesOutOverTheCap() {
+        int size = YuvBufferPool.getBufferSize(320, 240);
+        YuvBufferPool pool = new YuvBufferPool(size, 10);
+        ByteBuffer a = pool.acquire(320, 320, 240);
+        ByteBuffer b = pool.acquire(320, 320, 240);
+        assertTrue(a != b);
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(1, pool.getOverflowCount());
+        assertEquals(2 * size, pool.getOutstandingBytes());
+
+        // Back under the cap, only one of them is kept.
+        pool.release(320, 320, 240, a);
+        pool.release(320, 320, 240, b);
+        assertEquals(0, pool.getOutstandingBytes());
+        assertEquals(size, pool.getFreeBytes());
+        assertEquals(1, pool.getEvictionCount());
+    }
+
+    public void testDoubleReleaseIsIgnored() {
+        YuvBufferPool pool = new YuvBufferPool(1 << 20);
+        ByteBuffer buffer = pool.acquire(64, 64, 64);
+        pool.release(64, 64, 64, buffer);
+        pool.release(64, 64, 64, buffer);
+        assertEquals(YuvBufferPool.getBufferSize(64, 64), pool.getFreeBytes());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.TimestampIndex;
+import com.android.camera.imageprocessor.TimestampRingBuffer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays recorded image/metadata arrival traces against the ZSL ring buffer.
+ * A trace is a sequence of "I<ts>" (image) and "M<ts>" (metadata) events.
+ */
+@SmallTest
+public class ZSLRingBufferTest extends TestCase {
+
+    private static class Replay implements TimestampRingBuffer.Recycler<String, String> {
+        final List<String> recycled = new ArrayList<String>();
+        final TimestampRingBuffer<String, String> buffer;
+
+        Replay(int size) {
+            buffer = new TimestampRingBuffer<String, String>(size, this);
+        }
+
+        Replay play(String trace) {
+            for (String event : trace.trim().split("\\s+")) {
+                long ts = Long.parseLong(event.substring(1));
+                if (event.charAt(0) == 'I') {
+                    buffer.addImage(ts, event);
+                } else {
+                    buffer.addMeta(ts, event);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public void recycleImage(String image) {
+            recycled.add(image);
+        }
+
+        @Override
+        public void recycleMeta(String meta) {
+            recycled.add(meta);
+        }
+
+        long takeNewest() {
+            TimestampRingBuffer.Match<String, String> match = buffer.takeNewest(null);
+            if (match == null) {
+                return -1;
+            }
+            assertEquals("I" + match.timestamp, match.image);
+            assertEquals("M" + match.timestamp, match.meta);
+            return match.timestamp;
+        }
+    }
+
+    public void testInOrderArrival() {
+        Replay r = new Replay(5).play("I1 M1 I2 M2 I3 M3");
+        assertEquals(3, r.takeNewest());
+        assertEquals(2, r.takeNewest());
+        assertEquals(1, r.takeNewest());
+        assertEquals(-1, r.takeNewest());
+    }
+
+    public void testMetadataBeforeImage() {
+        Replay r = new Replay(5).play("M1 M2 I1 M3 I2 I3");
+        assertEquals(3, r.takeNewest());
+        assertEquals(2, r.takeNewest());
+        assertEquals(1, r.takeNewest());
+    }
+
+    public void testOutOfOrderTimestamps() {
+        Replay r = new Replay(5).play("I2 I1 M1 I3 M3 M2");
+        assertEquals(3, r.takeNewest());
+        assertEquals(1, r.takeNewest());
+        assertEquals(2, r.takeNewest());
+    }
+
+    public void testDroppedImageAgesOut() {
+        Replay r = new Replay(3).play("M1 I2 M2 I3 M3 I4 M4");
+        assertTrue(r.recycled.contains("M1"));
+        assertEquals(4, r.takeNewest());
+        assertEquals(3, r.takeNewest());
+        assertEquals(2, r.takeNewest());
+        assertEquals(-1, r.takeNewest());
+        assertEquals(1, r.buffer.getDroppedCount());
+    }
+
+    public void testLateArrivalForEvictedFrameIsDiscarded() {
+        Replay r = new Replay(2).play("I1 I2 I3 M1");
+        assertTrue(r.recycled.contains("I1"));
+        assertTrue(r.recycled.contains("M1"));
+        assertEquals(-1, r.takeNewest());
+        r.play("M3");
+        assertEquals(3, r.takeNewest());
+    }
+
+    public void testClearRecyclesEverything() {
+        Replay r = new Replay(4).play("I1 M1 I2 M3");
+        r.buffer.clear();
+        assertEquals(4, r.recycled.size());
+        assertEquals(-1, r.takeNewest());
+    }
+
+    public void testRandomInterleavingsMatchEveryRetainedFrame() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            StringBuilder trace = new StringBuilder();
+            int imageNext = 1;
+            int metaNext = 1;
+            int frames = 40;
+            while (imageNext <= frames || metaNext <= frames) {
+                boolean image = metaNext > frames || (imageNext <= frames && random.nextBoolean());
+                // Keep the two streams within a couple of frames of each other.
+                if (image && imageNext > metaNext + 2) image = false;
+                if (!image && metaNext > imageNext + 2) image = true;
+                int ts = image ? imageNext++ : metaNext++;
+                if (random.nextInt(10) == 0) {
+                    continue; // dropped
+                }
+                trace.append(image ? " I" : " M").append(ts);
+            }
+            Replay r = new Replay(8).play(trace.toString());
+            long previous = Long.MAX_VALUE;
+            long ts;
+            while ((ts = r.takeNewest()) != -1) {
+                assertTrue(ts < previous);
+                previous = ts;
+            }
+        }
+    }
+
+    public void testTakeBestPicksHighestScoreInsideWindow() {
+        Replay r = new Replay(8);
+        r.buffer.addImage(10, "I10", 5f);
+        r.buffer.addMeta(10, "M10", 0f);
+        r.buffer.addImage(20, "I20", 1f);
+        r.buffer.addMeta(20, "M20", 2f);
+        r.buffer.addImage(30, "I30", 2f);
+        r.buffer.addMeta(30, "M30", 0f);
+        r.buffer.addImage(40, "I40", 0f);
+        // Frame 40 has no metadata yet, so the window is anchored at 30.
+        assertEquals(20, r.buffer.takeBest(10, null).timestamp);
+        assertEquals(10, r.buffer.takeBest(100, null).timestamp);
+        assertEquals(30, r.buffer.takeBest(0, null).timestamp);
+        assertNull(r.buffer.takeBest(100, null));
+    }
+
+    public void testTakeBestFallsBackWhenWindowIsRejected() {
+        Replay r = new Replay(8).play("I1 M1 I2 M2 I3 M3");
+        TimestampRingBuffer.Match<String, String> match = r.buffer.takeBest(0,
+                new TimestampRingBuffer.Selector<String, String>() {
+                    @Override
+                    public boolean accept(String image, String meta) {
+                        return !"I3".equals(image);
+                    }
+                });
+        assertEquals(2, match.timestamp);
+    }
+
+    public void testIndexRemoveKeepsProbeChains() {
+        TimestampIndex index = new TimestampIndex(16);
+        for (int i = 0; i < 16; i++) {
+            index.put(1000000L * i, i);
+        }
+        for (int i = 0; i < 16; i += 2) {
+            assertEquals(i, index.remove(1000000L * i));
+        }
+        for (int i = 1; i < 16; i += 2) {
+            assertEquals(i, index.get(1000000L * i));
+        }
+        assertEquals(TimestampIndex.NO_SLOT, index.get(0));
+        assertEquals(8, index.size());
+    }
+}